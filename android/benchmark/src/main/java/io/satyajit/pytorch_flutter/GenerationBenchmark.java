@@ -0,0 +1,78 @@
+package io.satyajit.pytorch_flutter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pytorch.IValue;
+import org.pytorch.Tensor;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the Java end of the generation loop, the model itself is replaced by a step returning
+ * the same logits
+ *
+ * sample: picking one token from the logits of a 32000 token vocabulary
+ * generate: 32 tokens of a stateful step, so the cost of the loop per token is this / 32
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GenerationBenchmark {
+    private static final int VOCAB = 32000;
+    private static final int TOKENS = 32;
+
+    @Param({"greedy", "topk", "topp"})
+    public String sampling;
+
+    private TokenSampler sampler;
+    private float[] logits;
+    private IValue stepOutput;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        logits = new float[VOCAB];
+        for (int i = 0; i < logits.length; i++) {
+            logits[i] = (float) random.nextGaussian() * 3;
+        }
+        switch (sampling) {
+            case "greedy":
+                sampler = new TokenSampler(0, 1f, 0f, 42L);
+                break;
+            case "topk":
+                sampler = new TokenSampler(40, 1f, 0.8f, 42L);
+                break;
+            default:
+                sampler = new TokenSampler(0, 0.9f, 0.8f, 42L);
+        }
+        // the logits and a past state, like a decoder exported with its cache
+        stepOutput = IValue.tupleFrom(IValue.from(Tensor.fromBlob(logits, new long[]{1, 1, VOCAB})),
+                IValue.from(Tensor.fromBlob(new float[64], new long[]{1, 64})));
+    }
+
+    @Benchmark
+    public int sample() {
+        return sampler.sample(logits, 0, VOCAB);
+    }
+
+    @Benchmark
+    public HashMap<String, Object> generate() throws Exception {
+        TokenGenerator generator = new TokenGenerator(inputs -> stepOutput, sampler, TOKENS, null);
+        return generator.generate(new long[]{1, 2, 3, 4}, new IValue[0], (token, position) -> {
+        });
+    }
+}
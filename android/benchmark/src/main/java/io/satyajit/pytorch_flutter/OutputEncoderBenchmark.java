@@ -0,0 +1,85 @@
+package io.satyajit.pytorch_flutter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pytorch.IValue;
+import org.pytorch.Tensor;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.flutter.plugin.common.StandardMessageCodec;
+
+/**
+ * Measures the outputs of the models sent back to flutter, from the logits of a classifier to the
+ * feature maps of a detector
+ *
+ * encode: OutputEncoder.encode, the data copied out of the Tensor as a typed or a raw array
+ * message: encode and the StandardMessageCodec writing the result, which is the larger part for
+ *  the typed arrays
+ * chunked: the same with the Tensors larger than 256 KiB streamed by a ChunkWriter, each chunk
+ *  written by the codec as soon as it is copied, so the largest message is a single chunk
+ *
+ * A rawThresholdBytes of 2147483647 sends the typed arrays, to compare with the raw path, except for
+ * FLOAT32 which is always raw
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputEncoderBenchmark {
+    @Param({"UINT8", "INT32", "FLOAT32", "INT64", "FLOAT64"})
+    public String dtype;
+
+    @Param({"1x1000", "1x3x224x224", "1x3x640x640", "1x512"})
+    public String shape;
+
+    @Param({"262144", "2147483647"})
+    public int rawThresholdBytes;
+
+    private static final int CHUNK_BYTES = 256 * 1024;
+
+    private final TensorConverter converter = new TensorConverter(new TensorBufferPool(256L * 1024 * 1024));
+    private OutputEncoder encoder;
+    private IValue output;
+
+    @Setup
+    public void setup() throws Exception {
+        encoder = new OutputEncoder(rawThresholdBytes);
+        long[] dims = TensorConversionBenchmark.shapeOf(shape);
+        Object data = TensorConversionBenchmark.randomArray("int", (int) Tensor.numel(dims), new Random(42));
+        // the lease is never closed, the Tensor stays valid for the whole run
+        output = converter.tensorValueOf(data, dims, dtype, converter.newLease());
+    }
+
+    @Benchmark
+    public Object encode() throws Exception {
+        return encoder.encode(output);
+    }
+
+    @Benchmark
+    public ByteBuffer message() throws Exception {
+        return StandardMessageCodec.INSTANCE.encodeMessage(encoder.encode(output));
+    }
+
+    @Benchmark
+    public ByteBuffer chunked() throws Exception {
+        ChunkWriter chunks = new ChunkWriter(0, CHUNK_BYTES, (event, sent) -> {
+            StandardMessageCodec.INSTANCE.encodeMessage(event);
+            sent.run();
+        });
+        return StandardMessageCodec.INSTANCE.encodeMessage(encoder.encode(output, chunks));
+    }
+}
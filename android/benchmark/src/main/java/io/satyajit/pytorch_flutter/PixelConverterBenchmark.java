@@ -0,0 +1,89 @@
+package io.satyajit.pytorch_flutter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the RawImageTensor and YuvImageTensor inputs, a camera frame scaled and rotated into
+ * the input of the model
+ *
+ * rgba: PixelConverter.rgbaToFloat on an RGBA frame
+ * yuv: PixelConverter.yuv420ToFloat on the YUV_420_888 planes of a frame, with interleaved U and V
+ *  like most camera outputs
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PixelConverterBenchmark {
+    @Param({"1280x720", "1920x1080"})
+    public String frame;
+
+    @Param({"224x224", "640x640"})
+    public String output;
+
+    @Param({"0", "90"})
+    public int rotation;
+
+    private static final float[] MEAN = {0.485f, 0.456f, 0.406f};
+    private static final float[] STD = {0.229f, 0.224f, 0.225f};
+
+    private int width;
+    private int height;
+    private PixelConverter.Transform transform;
+    private FloatBuffer out;
+    private byte[] rgba;
+    private byte[] yPlane;
+    private byte[] uPlane;
+    private byte[] vPlane;
+
+    @Setup
+    public void setup() throws Exception {
+        long[] frameSize = TensorConversionBenchmark.shapeOf(frame);
+        long[] outputSize = TensorConversionBenchmark.shapeOf(output);
+        width = (int) frameSize[0];
+        height = (int) frameSize[1];
+        transform = PixelConverter.Transform.of(width, height, 0, 0, 0, 0, rotation,
+                (int) outputSize[0], (int) outputSize[1]);
+        out = FloatBuffer.allocate(transform.numel());
+
+        Random random = new Random(42);
+        rgba = new byte[4 * width * height];
+        random.nextBytes(rgba);
+        yPlane = new byte[width * height];
+        random.nextBytes(yPlane);
+        // the U and V planes of a semi planar frame are views of the same interleaved buffer
+        uPlane = new byte[width * height / 2 - 1];
+        random.nextBytes(uPlane);
+        vPlane = uPlane.clone();
+    }
+
+    @Benchmark
+    public FloatBuffer rgba() throws Exception {
+        PixelConverter.rgbaToFloat(rgba, width, height, 4 * width, PixelConverter.PixelFormat.RGBA, transform,
+                MEAN, STD, out, 0);
+        return out;
+    }
+
+    @Benchmark
+    public FloatBuffer yuv() throws Exception {
+        PixelConverter.yuv420ToFloat(yPlane, uPlane, vPlane, width, height, width, width, 2, transform,
+                MEAN, STD, out, 0);
+        return out;
+    }
+}
@@ -0,0 +1,92 @@
+package io.satyajit.pytorch_flutter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pytorch.IValue;
+import org.pytorch.Tensor;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.flutter.plugin.common.StandardMessageCodec;
+
+/**
+ * Compares sending the whole output of a model with post-processing it on the Java end
+ *
+ * full: the output encoded and written by the StandardMessageCodec, as without a postprocess spec
+ * postprocess: the post-processor run on the output, and its result written by the codec
+ *
+ * topk runs on the logits of a 1000 class classifier, nms on the 25200 boxes of a 640x640 YOLOv5
+ * with 80 classes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PostProcessorBenchmark {
+    @Param({"topk", "nms"})
+    public String op;
+
+    private final OutputEncoder encoder = new OutputEncoder(OutputEncoder.DEFAULT_RAW_THRESHOLD_BYTES);
+    private PostProcessor postProcessor;
+    private IValue output;
+
+    @Setup
+    public void setup() throws Exception {
+        Random random = new Random(42);
+        HashMap<String, Object> spec = new HashMap<>();
+        spec.put("op", op);
+        float[] data;
+        long[] shape;
+        if (op.equals("topk")) {
+            spec.put("activation", "softmax");
+            shape = new long[]{1, 1000};
+            data = new float[1000];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (float) random.nextGaussian();
+            }
+        } else {
+            int boxes = 25200;
+            int values = 85;
+            shape = new long[]{1, boxes, values};
+            data = new float[boxes * values];
+            for (int box = 0; box < boxes; box++) {
+                int offset = box * values;
+                data[offset] = random.nextFloat() * 640;
+                data[offset + 1] = random.nextFloat() * 640;
+                data[offset + 2] = 20 + random.nextFloat() * 100;
+                data[offset + 3] = 20 + random.nextFloat() * 100;
+                // a few hundred boxes pass the score threshold, like on a real image
+                data[offset + 4] = random.nextFloat() < 0.02f ? 0.5f + random.nextFloat() / 2 : random.nextFloat() / 10;
+                for (int c = 5; c < values; c++) {
+                    data[offset + c] = random.nextFloat();
+                }
+            }
+        }
+        postProcessor = PostProcessor.of(spec);
+        output = IValue.from(Tensor.fromBlob(data, shape));
+    }
+
+    @Benchmark
+    public ByteBuffer full() throws Exception {
+        return StandardMessageCodec.INSTANCE.encodeMessage(encoder.encode(output));
+    }
+
+    @Benchmark
+    public ByteBuffer postprocess() throws Exception {
+        return StandardMessageCodec.INSTANCE.encodeMessage(postProcessor.apply(output));
+    }
+}
@@ -0,0 +1,89 @@
+package io.satyajit.pytorch_flutter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pytorch.DType;
+import org.pytorch.Tensor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.flutter.plugin.common.StandardMessageCodec;
+
+/**
+ * Compares the two ways a FLOAT32 input reaches the Tensor buffer on the Java end
+ *
+ * map: the HashMap sent through the StandardMessageCodec by `forward`, with the data as a
+ *  Float64List, decoded by the codec and converted by the TensorConverter
+ * binary: the message of the binary tensor channel, decoded by the TensorMessageCodec
+ *
+ * Both paths start from the encoded message, as it is received from the engine
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TensorChannelBenchmark {
+    @Param({"1024", "65536", "1048576", "16777216"})
+    public int inputBytes;
+
+    private final TensorConverter converter = new TensorConverter(new TensorBufferPool(256L * 1024 * 1024));
+    private ByteBuffer mapMessage;
+    private ByteBuffer binaryMessage;
+
+    @Setup
+    public void setup() {
+        int numel = inputBytes / 4;
+        long[] shape = {1, numel};
+        Random random = new Random(42);
+
+        double[] doubles = new double[numel];
+        ByteBuffer floats = ByteBuffer.allocate(inputBytes).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < numel; i++) {
+            doubles[i] = random.nextDouble();
+            floats.putFloat((float) doubles[i]);
+        }
+
+        HashMap<String, Object> args = new HashMap<>();
+        args.put("index", 0);
+        args.put("class_type", "TensorValue");
+        args.put("data", doubles);
+        args.put("shape", shape);
+        args.put("dtype", "FLOAT32");
+        mapMessage = StandardMessageCodec.INSTANCE.encodeMessage(args);
+
+        binaryMessage = TensorMessageCodec.encodeRequest(0, "forward", new DType[]{DType.FLOAT32},
+                new long[][]{shape}, new byte[][]{floats.array()});
+    }
+
+    @Benchmark
+    public Tensor map() throws Exception {
+        mapMessage.rewind();
+        HashMap<?, ?> args = (HashMap<?, ?>) StandardMessageCodec.INSTANCE.decodeMessage(mapMessage);
+        try (TensorConverter.Lease lease = converter.newLease()) {
+            DType dtype = TensorConverter.dtypeOf(args.get("dtype").toString());
+            return converter.toTensor(args.get("data"), (long[]) args.get("shape"), dtype, lease);
+        }
+    }
+
+    @Benchmark
+    public Tensor binary() throws Exception {
+        try (TensorConverter.Lease lease = converter.newLease()) {
+            return TensorMessageCodec.decodeRequest(binaryMessage, lease).inputs[0].toTensor();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package io.satyajit.pytorch_flutter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pytorch.IValue;
+import org.pytorch.Tensor;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.flutter.plugin.common.StandardMessageCodec;
+
+/**
+ * Measures the TensorValue inputs, for every dtype and every primitive array the codec can hand
+ * over as the data, at the shapes of the usual models
+ *
+ * convert: TensorConverter.tensorValueOf, the array copied into the pooled buffer of the Tensor
+ * parse: the whole `parseIValue` path of a TensorValue, from the encoded method call arguments
+ *
+ * Run with `-prof gc` (the default of the jmh task) to get the allocations per call, which should
+ * stay close to zero for convert once the pool is warm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TensorConversionBenchmark {
+    @Param({"UINT8", "INT8", "INT32", "FLOAT32", "INT64", "FLOAT64"})
+    public String dtype;
+
+    // the type of the array received from flutter, Uint8List, Int32List, Int64List, Float32List
+    // and Float64List
+    @Param({"byte", "int", "long", "float", "double"})
+    public String source;
+
+    @Param({"1x3x224x224", "1x3x640x640", "1x512"})
+    public String shape;
+
+    private final TensorConverter converter = new TensorConverter(new TensorBufferPool(256L * 1024 * 1024));
+    private Object data;
+    private long[] dims;
+    private ByteBuffer message;
+
+    @Setup
+    public void setup() {
+        dims = shapeOf(shape);
+        data = randomArray(source, (int) Tensor.numel(dims), new Random(42));
+
+        HashMap<String, Object> args = new HashMap<>();
+        args.put("index", 0);
+        args.put("class_type", "TensorValue");
+        args.put("data", data);
+        args.put("shape", dims);
+        args.put("dtype", dtype);
+        message = StandardMessageCodec.INSTANCE.encodeMessage(args);
+    }
+
+    @Benchmark
+    public IValue convert() throws Exception {
+        try (TensorConverter.Lease lease = converter.newLease()) {
+            return converter.tensorValueOf(data, dims, dtype, lease);
+        }
+    }
+
+    @Benchmark
+    public IValue parse() throws Exception {
+        message.rewind();
+        HashMap<?, ?> args = (HashMap<?, ?>) StandardMessageCodec.INSTANCE.decodeMessage(message);
+        try (TensorConverter.Lease lease = converter.newLease()) {
+            return converter.tensorValueOf(Objects.requireNonNull(args.get("data")), (long[]) args.get("shape"),
+                    Objects.requireNonNull(args.get("dtype")).toString(), lease);
+        }
+    }
+
+    /**
+     * Parses a shape written as 1x3x224x224
+     */
+    static long[] shapeOf(String shape) {
+        String[] dims = shape.split("x");
+        long[] result = new long[dims.length];
+        for (int i = 0; i < dims.length; i++) {
+            result[i] = Long.parseLong(dims[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Fills an array of the given element type with values that fit in every dtype
+     */
+    static Object randomArray(String type, int numel, Random random) {
+        switch (type) {
+            case "byte": {
+                byte[] array = new byte[numel];
+                random.nextBytes(array);
+                return array;
+            }
+            case "int": {
+                int[] array = new int[numel];
+                for (int i = 0; i < numel; i++) {
+                    array[i] = random.nextInt(128);
+                }
+                return array;
+            }
+            case "long": {
+                long[] array = new long[numel];
+                for (int i = 0; i < numel; i++) {
+                    array[i] = random.nextInt(128);
+                }
+                return array;
+            }
+            case "float": {
+                float[] array = new float[numel];
+                for (int i = 0; i < numel; i++) {
+                    array[i] = random.nextFloat();
+                }
+                return array;
+            }
+            case "double": {
+                double[] array = new double[numel];
+                for (int i = 0; i < numel; i++) {
+                    array[i] = random.nextDouble();
+                }
+                return array;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown array type: " + type);
+        }
+    }
+}
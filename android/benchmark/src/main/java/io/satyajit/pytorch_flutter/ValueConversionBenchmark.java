@@ -0,0 +1,79 @@
+package io.satyajit.pytorch_flutter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pytorch.IValue;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import io.flutter.plugin.common.StandardMessageCodec;
+
+/**
+ * Measures the Value inputs, the scalars and strings passed to the methods of the models
+ *
+ * convert: TensorConverter.valueOf on the decoded data
+ * parse: the whole `parseIValue` path of a Value, from the encoded method call arguments
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValueConversionBenchmark {
+    @Param({"BOOL", "INT", "FLOAT", "STR"})
+    public String toType;
+
+    private Object data;
+    private ByteBuffer message;
+
+    @Setup
+    public void setup() {
+        switch (toType) {
+            case "BOOL":
+                data = true;
+                break;
+            case "INT":
+                data = 1L << 40;
+                break;
+            case "FLOAT":
+                data = 0.5;
+                break;
+            default:
+                data = "a prompt of a few words";
+                break;
+        }
+
+        HashMap<String, Object> args = new HashMap<>();
+        args.put("index", 0);
+        args.put("class_type", "Value");
+        args.put("data", data);
+        args.put("dtype", toType);
+        message = StandardMessageCodec.INSTANCE.encodeMessage(args);
+    }
+
+    @Benchmark
+    public IValue convert() throws Exception {
+        return TensorConverter.valueOf(data, toType);
+    }
+
+    @Benchmark
+    public IValue parse() throws Exception {
+        message.rewind();
+        HashMap<?, ?> args = (HashMap<?, ?>) StandardMessageCodec.INSTANCE.decodeMessage(message);
+        return TensorConverter.valueOf(Objects.requireNonNull(args.get("data")),
+                Objects.requireNonNull(args.get("dtype")).toString());
+    }
+}
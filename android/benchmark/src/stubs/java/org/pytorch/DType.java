@@ -0,0 +1,13 @@
+package org.pytorch;
+
+/**
+ * Stub of the pytorch_android DType, the benchmarks run on a plain JVM without the native library
+ */
+public enum DType {
+    UINT8,
+    INT8,
+    INT32,
+    FLOAT32,
+    INT64,
+    FLOAT64
+}
@@ -0,0 +1,197 @@
+package org.pytorch;
+
+import java.util.Map;
+
+/**
+ * Stub of the pytorch_android IValue, it only holds the value and its type
+ */
+public final class IValue {
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_TENSOR = 1;
+    private static final int TYPE_BOOL = 2;
+    private static final int TYPE_LONG = 3;
+    private static final int TYPE_DOUBLE = 4;
+    private static final int TYPE_STRING = 5;
+    private static final int TYPE_TUPLE = 6;
+    private static final int TYPE_BOOL_LIST = 7;
+    private static final int TYPE_LONG_LIST = 8;
+    private static final int TYPE_DOUBLE_LIST = 9;
+    private static final int TYPE_TENSOR_LIST = 10;
+    private static final int TYPE_LIST = 11;
+    private static final int TYPE_DICT_STRING_KEY = 12;
+    private static final int TYPE_DICT_LONG_KEY = 13;
+
+    private final int type;
+    private final Object data;
+
+    private IValue(int type, Object data) {
+        this.type = type;
+        this.data = data;
+    }
+
+    public boolean isNull() {
+        return type == TYPE_NULL;
+    }
+
+    public boolean isTensor() {
+        return type == TYPE_TENSOR;
+    }
+
+    public boolean isBool() {
+        return type == TYPE_BOOL;
+    }
+
+    public boolean isLong() {
+        return type == TYPE_LONG;
+    }
+
+    public boolean isDouble() {
+        return type == TYPE_DOUBLE;
+    }
+
+    public boolean isString() {
+        return type == TYPE_STRING;
+    }
+
+    public boolean isTuple() {
+        return type == TYPE_TUPLE;
+    }
+
+    public boolean isBoolList() {
+        return type == TYPE_BOOL_LIST;
+    }
+
+    public boolean isLongList() {
+        return type == TYPE_LONG_LIST;
+    }
+
+    public boolean isDoubleList() {
+        return type == TYPE_DOUBLE_LIST;
+    }
+
+    public boolean isTensorList() {
+        return type == TYPE_TENSOR_LIST;
+    }
+
+    public boolean isList() {
+        return type == TYPE_LIST;
+    }
+
+    public boolean isDictStringKey() {
+        return type == TYPE_DICT_STRING_KEY;
+    }
+
+    public boolean isDictLongKey() {
+        return type == TYPE_DICT_LONG_KEY;
+    }
+
+    public static IValue optionalNull() {
+        return new IValue(TYPE_NULL, null);
+    }
+
+    public static IValue from(Tensor tensor) {
+        return new IValue(TYPE_TENSOR, tensor);
+    }
+
+    public static IValue from(boolean value) {
+        return new IValue(TYPE_BOOL, value);
+    }
+
+    public static IValue from(long value) {
+        return new IValue(TYPE_LONG, value);
+    }
+
+    public static IValue from(double value) {
+        return new IValue(TYPE_DOUBLE, value);
+    }
+
+    public static IValue from(String value) {
+        return new IValue(TYPE_STRING, value);
+    }
+
+    public static IValue listFrom(boolean... list) {
+        return new IValue(TYPE_BOOL_LIST, list);
+    }
+
+    public static IValue listFrom(long... list) {
+        return new IValue(TYPE_LONG_LIST, list);
+    }
+
+    public static IValue listFrom(double... list) {
+        return new IValue(TYPE_DOUBLE_LIST, list);
+    }
+
+    public static IValue listFrom(Tensor... list) {
+        return new IValue(TYPE_TENSOR_LIST, list);
+    }
+
+    public static IValue listFrom(IValue... list) {
+        return new IValue(TYPE_LIST, list);
+    }
+
+    public static IValue tupleFrom(IValue... tuple) {
+        return new IValue(TYPE_TUPLE, tuple);
+    }
+
+    public static IValue dictStringKeyFrom(Map<String, IValue> map) {
+        return new IValue(TYPE_DICT_STRING_KEY, map);
+    }
+
+    public static IValue dictLongKeyFrom(Map<Long, IValue> map) {
+        return new IValue(TYPE_DICT_LONG_KEY, map);
+    }
+
+    public Tensor toTensor() {
+        return (Tensor) data;
+    }
+
+    public boolean toBool() {
+        return (Boolean) data;
+    }
+
+    public long toLong() {
+        return (Long) data;
+    }
+
+    public double toDouble() {
+        return (Double) data;
+    }
+
+    public String toStr() {
+        return (String) data;
+    }
+
+    public boolean[] toBoolList() {
+        return (boolean[]) data;
+    }
+
+    public long[] toLongList() {
+        return (long[]) data;
+    }
+
+    public double[] toDoubleList() {
+        return (double[]) data;
+    }
+
+    public Tensor[] toTensorList() {
+        return (Tensor[]) data;
+    }
+
+    public IValue[] toList() {
+        return (IValue[]) data;
+    }
+
+    public IValue[] toTuple() {
+        return (IValue[]) data;
+    }
+
+    @SuppressWarnings("unchecked")
+    public Map<String, IValue> toDictStringKey() {
+        return (Map<String, IValue>) data;
+    }
+
+    @SuppressWarnings("unchecked")
+    public Map<Long, IValue> toDictLongKey() {
+        return (Map<Long, IValue>) data;
+    }
+}
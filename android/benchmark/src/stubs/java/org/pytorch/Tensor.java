@@ -0,0 +1,181 @@
+package org.pytorch;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * Stub of the pytorch_android Tensor
+ *
+ * Like the real Tensor it is a thin wrapper over a direct buffer, with the same allocation and
+ * copy behaviour on the Java side, so the benchmarks measure the conversion done by the plugin
+ * and not the stub
+ */
+public final class Tensor {
+    private final Buffer data;
+    private final long[] shape;
+    private final DType dtype;
+
+    private Tensor(Buffer data, long[] shape, DType dtype) {
+        checkShapeAndDataCapacityConsistency(data.capacity(), shape);
+        this.data = data;
+        this.shape = Arrays.copyOf(shape, shape.length);
+        this.dtype = dtype;
+    }
+
+    public static ByteBuffer allocateByteBuffer(int numElements) {
+        return ByteBuffer.allocateDirect(numElements).order(ByteOrder.nativeOrder());
+    }
+
+    public static IntBuffer allocateIntBuffer(int numElements) {
+        return ByteBuffer.allocateDirect(numElements * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    public static FloatBuffer allocateFloatBuffer(int numElements) {
+        return ByteBuffer.allocateDirect(numElements * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    public static LongBuffer allocateLongBuffer(int numElements) {
+        return ByteBuffer.allocateDirect(numElements * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+
+    public static DoubleBuffer allocateDoubleBuffer(int numElements) {
+        return ByteBuffer.allocateDirect(numElements * 8).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
+
+    public static Tensor fromBlobUnsigned(byte[] data, long[] shape) {
+        ByteBuffer buffer = allocateByteBuffer(data.length);
+        buffer.put(data);
+        return new Tensor(buffer, shape, DType.UINT8);
+    }
+
+    public static Tensor fromBlob(byte[] data, long[] shape) {
+        ByteBuffer buffer = allocateByteBuffer(data.length);
+        buffer.put(data);
+        return new Tensor(buffer, shape, DType.INT8);
+    }
+
+    public static Tensor fromBlob(int[] data, long[] shape) {
+        IntBuffer buffer = allocateIntBuffer(data.length);
+        buffer.put(data);
+        return new Tensor(buffer, shape, DType.INT32);
+    }
+
+    public static Tensor fromBlob(float[] data, long[] shape) {
+        FloatBuffer buffer = allocateFloatBuffer(data.length);
+        buffer.put(data);
+        return new Tensor(buffer, shape, DType.FLOAT32);
+    }
+
+    public static Tensor fromBlob(long[] data, long[] shape) {
+        LongBuffer buffer = allocateLongBuffer(data.length);
+        buffer.put(data);
+        return new Tensor(buffer, shape, DType.INT64);
+    }
+
+    public static Tensor fromBlob(long[] shape, double[] data) {
+        DoubleBuffer buffer = allocateDoubleBuffer(data.length);
+        buffer.put(data);
+        return new Tensor(buffer, shape, DType.FLOAT64);
+    }
+
+    public static Tensor fromBlobUnsigned(ByteBuffer data, long[] shape) {
+        return new Tensor(data, shape, DType.UINT8);
+    }
+
+    public static Tensor fromBlob(ByteBuffer data, long[] shape) {
+        return new Tensor(data, shape, DType.INT8);
+    }
+
+    public static Tensor fromBlob(IntBuffer data, long[] shape) {
+        return new Tensor(data, shape, DType.INT32);
+    }
+
+    public static Tensor fromBlob(FloatBuffer data, long[] shape) {
+        return new Tensor(data, shape, DType.FLOAT32);
+    }
+
+    public static Tensor fromBlob(LongBuffer data, long[] shape) {
+        return new Tensor(data, shape, DType.INT64);
+    }
+
+    public static Tensor fromBlob(DoubleBuffer data, long[] shape) {
+        return new Tensor(data, shape, DType.FLOAT64);
+    }
+
+    public static long numel(long[] shape) {
+        long result = 1;
+        for (long dim : shape) {
+            result *= dim;
+        }
+        return result;
+    }
+
+    public long numel() {
+        return numel(shape);
+    }
+
+    public long[] shape() {
+        return Arrays.copyOf(shape, shape.length);
+    }
+
+    public DType dtype() {
+        return dtype;
+    }
+
+    public byte[] getDataAsByteArray() {
+        ByteBuffer buffer = ((ByteBuffer) data).duplicate();
+        buffer.rewind();
+        byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+
+    public byte[] getDataAsUnsignedByteArray() {
+        return getDataAsByteArray();
+    }
+
+    public int[] getDataAsIntArray() {
+        IntBuffer buffer = ((IntBuffer) data).duplicate();
+        buffer.rewind();
+        int[] result = new int[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+
+    public float[] getDataAsFloatArray() {
+        FloatBuffer buffer = ((FloatBuffer) data).duplicate();
+        buffer.rewind();
+        float[] result = new float[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+
+    public long[] getDataAsLongArray() {
+        LongBuffer buffer = ((LongBuffer) data).duplicate();
+        buffer.rewind();
+        long[] result = new long[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+
+    public double[] getDataAsDoubleArray() {
+        DoubleBuffer buffer = ((DoubleBuffer) data).duplicate();
+        buffer.rewind();
+        double[] result = new double[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+
+    private static void checkShapeAndDataCapacityConsistency(int capacity, long[] shape) {
+        if (capacity != numel(shape)) {
+            throw new IllegalArgumentException("Inconsistent data capacity:" + capacity
+                    + " and shape number elements:" + numel(shape) + " shape:" + Arrays.toString(shape));
+        }
+    }
+}
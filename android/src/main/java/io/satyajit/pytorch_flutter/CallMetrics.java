@@ -0,0 +1,236 @@
+package io.satyajit.pytorch_flutter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The latency of each stage of the model calls, and their counters, per model index and method
+ *
+ * A call is timed with a {@link Timer}, there is one per thread, reset when the call begins on the
+ * worker, and the stages add their time to it as they go. When the call ends, the timer is
+ * recorded into the histograms of its model and method. Nothing is allocated on the way, apart
+ * from the entry of a model and method the first time they are called
+ */
+class CallMetrics {
+    enum Stage {
+        // from the call being received on the platform thread to it starting on the worker
+        QUEUE,
+        // decoding the binary tensor messages on the platform thread, a part of QUEUE
+        DECODE,
+        // turning the arguments into IValues, including the image decodes
+        CONVERT,
+        // decoding the encoded images, a part of CONVERT
+        IMAGE,
+        // Module.forward or Module.runMethod
+        RUN,
+        // turning the output into values that can be sent to flutter
+        ENCODE,
+        // from the call being received to its output being ready
+        TOTAL
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    /**
+     * The time spent in each stage by the call running on the current thread
+     */
+    static class Timer {
+        private final long[] stageNanos = new long[STAGES.length];
+        private long receivedNanos;
+        private long bytesIn;
+        private long bytesOut;
+
+        private void reset(long receivedNanos) {
+            for (int i = 0; i < stageNanos.length; i++) {
+                stageNanos[i] = 0;
+            }
+            this.receivedNanos = receivedNanos;
+            bytesIn = 0;
+            bytesOut = 0;
+        }
+
+        /**
+         * Adds the time elapsed since `startNanos` to the stage
+         *
+         * @return (long) the current System.nanoTime(), to start timing the next stage
+         */
+        long lap(Stage stage, long startNanos) {
+            long now = System.nanoTime();
+            stageNanos[stage.ordinal()] += now - startNanos;
+            return now;
+        }
+
+        /**
+         * Adds time measured elsewhere to the stage, like the decode done on the platform thread
+         */
+        void add(Stage stage, long nanos) {
+            stageNanos[stage.ordinal()] += nanos;
+        }
+
+        void addBytesIn(long bytes) {
+            bytesIn += bytes;
+        }
+
+        void addBytesOut(long bytes) {
+            bytesOut += bytes;
+        }
+    }
+
+    private static class MethodMetrics {
+        final LatencyHistogram[] stages = new LatencyHistogram[STAGES.length];
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong bytesOut = new AtomicLong();
+        final ConcurrentHashMap<String, AtomicLong> errors = new ConcurrentHashMap<>();
+
+        MethodMetrics() {
+            for (int i = 0; i < stages.length; i++) {
+                stages[i] = new LatencyHistogram();
+            }
+        }
+
+        HashMap<String, Object> toMap() {
+            HashMap<String, Object> map = new HashMap<>();
+            map.put("calls", calls.get());
+            map.put("bytesIn", bytesIn.get());
+            map.put("bytesOut", bytesOut.get());
+
+            HashMap<String, Object> errorCounts = new HashMap<>();
+            for (Map.Entry<String, AtomicLong> entry : errors.entrySet()) {
+                errorCounts.put(entry.getKey(), entry.getValue().get());
+            }
+            map.put("errors", errorCounts);
+
+            HashMap<String, Object> stageMaps = new HashMap<>();
+            for (Stage stage : STAGES) {
+                // the stages a method never goes through are left out
+                if (stages[stage.ordinal()].getCount() > 0) {
+                    stageMaps.put(stage.toString().toLowerCase(), stages[stage.ordinal()].toMap());
+                }
+            }
+            map.put("stages", stageMaps);
+            return map;
+        }
+    }
+
+    private static final ThreadLocal<Timer> timers = new ThreadLocal<Timer>() {
+        @Override
+        protected Timer initialValue() {
+            return new Timer();
+        }
+    };
+
+    private final ConcurrentHashMap<Integer, ConcurrentHashMap<String, MethodMetrics>> models = new ConcurrentHashMap<>();
+    private volatile long sinceMillis = System.currentTimeMillis();
+
+    /**
+     * Starts timing a call on the current thread, the time since the call was received is
+     * recorded as the QUEUE stage
+     *
+     * @param receivedNanos a value of System.nanoTime() taken when the call was received
+     * @return (Timer) the timer of the current thread
+     */
+    static Timer begin(long receivedNanos) {
+        Timer timer = timers.get();
+        timer.reset(receivedNanos);
+        timer.lap(Stage.QUEUE, receivedNanos);
+        return timer;
+    }
+
+    /**
+     * @return (Timer) the timer of the call running on the current thread
+     */
+    static Timer current() {
+        return timers.get();
+    }
+
+    /**
+     * Records the call timed by the timer of the current thread
+     *
+     * @param modelIndex the index of the model
+     * @param methodName the method that was run
+     * @param errorCode the PTFLErrors code sent to flutter if the call failed, null otherwise
+     */
+    void end(int modelIndex, String methodName, String errorCode) {
+        Timer timer = timers.get();
+        record(modelIndex, methodName, errorCode, timer, 0, System.nanoTime() - timer.receivedNanos);
+    }
+
+    /**
+     * Records one call of a batch, the timer of the current thread timed the batch from the time
+     * it started on the worker, the call adds the time it waited for the batch to its QUEUE and
+     * TOTAL. The bytes of the batch are counted once, with the first call recorded
+     *
+     * @param modelIndex the index of the model
+     * @param methodName the method that was run
+     * @param receivedNanos a value of System.nanoTime() taken when the call was received
+     * @param errorCode the PTFLErrors code sent to flutter if the call failed, null otherwise
+     */
+    void endBatched(int modelIndex, String methodName, long receivedNanos, String errorCode) {
+        Timer timer = timers.get();
+        record(modelIndex, methodName, errorCode, timer, timer.receivedNanos - receivedNanos,
+                System.nanoTime() - receivedNanos);
+        timer.bytesIn = 0;
+        timer.bytesOut = 0;
+    }
+
+    private void record(int modelIndex, String methodName, String errorCode, Timer timer, long waitNanos,
+                        long totalNanos) {
+        MethodMetrics metrics = metricsOf(modelIndex, methodName);
+        metrics.calls.incrementAndGet();
+        metrics.bytesIn.addAndGet(timer.bytesIn);
+        metrics.bytesOut.addAndGet(timer.bytesOut);
+        if (errorCode != null) {
+            metrics.errors.computeIfAbsent(errorCode, code -> new AtomicLong()).incrementAndGet();
+        }
+        for (int i = 0; i < STAGES.length; i++) {
+            long nanos = i == Stage.TOTAL.ordinal() ? totalNanos
+                    : i == Stage.QUEUE.ordinal() ? timer.stageNanos[i] + waitNanos : timer.stageNanos[i];
+            if (nanos > 0) {
+                metrics.stages[i].record(nanos / 1000);
+            }
+        }
+    }
+
+    private MethodMetrics metricsOf(int modelIndex, String methodName) {
+        return models.computeIfAbsent(modelIndex, index -> new ConcurrentHashMap<>())
+                .computeIfAbsent(methodName, name -> new MethodMetrics());
+    }
+
+    /**
+     * @return the metrics of every model and method, as {index: {methodName: {calls, errors,
+     *  bytesIn, bytesOut, stages: {stage: latency}}}}, and the time they were last reset
+     */
+    HashMap<String, Object> getStats() {
+        HashMap<Integer, Object> modelMaps = new HashMap<>();
+        for (Map.Entry<Integer, ConcurrentHashMap<String, MethodMetrics>> model : models.entrySet()) {
+            HashMap<String, Object> methodMaps = new HashMap<>();
+            for (Map.Entry<String, MethodMetrics> method : model.getValue().entrySet()) {
+                methodMaps.put(method.getKey(), method.getValue().toMap());
+            }
+            modelMaps.put(model.getKey(), methodMaps);
+        }
+
+        HashMap<String, Object> stats = new HashMap<>();
+        stats.put("models", modelMaps);
+        stats.put("sinceMillis", sinceMillis);
+        return stats;
+    }
+
+    /**
+     * Clears all the metrics
+     */
+    void reset() {
+        models.clear();
+        sinceMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Drops the metrics of a closed model, so its index starts fresh when it is reused
+     */
+    void remove(int modelIndex) {
+        models.remove(modelIndex);
+    }
+}
@@ -0,0 +1,183 @@
+package io.satyajit.pytorch_flutter;
+
+import org.pytorch.DType;
+import org.pytorch.Tensor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams the large Tensors of an output in chunks, instead of sending them in the result of the
+ * call, so neither end holds a second copy of the whole Tensor while it is encoded
+ *
+ * - a chunk holds whole rows of the last dimension when a row fits in `chunkBytes`, so flutter can
+ *   use the rows of a chunk as soon as it arrives, each chunk carries its element offset along
+ *   with the dtype and shape of the Tensor
+ * - the data goes through a reused direct buffer to one of two reused byte arrays, one array is
+ *   sent on the main thread while the next chunk is copied to the other, and the worker waits for
+ *   an array to be sent before reusing it, the codec copies the array when the event is sent
+ * - all the chunks are sent before {@link #write(Tensor)} returns, so they reach flutter before
+ *   the result of the call
+ *
+ * The Tensor itself is still copied out of PyTorch once, pytorch_android only gives the data of a
+ * Tensor as a new array
+ *
+ * This class only depends on the org.pytorch classes, so it can run on a plain JVM
+ */
+class ChunkWriter {
+    /**
+     * Sends a chunk on the main thread, `sent` must be run once the event is sent, or dropped
+     */
+    interface ChunkSender {
+        void send(HashMap<String, Object> event, Runnable sent);
+    }
+
+    // the ids of the streamed Tensors, unique across the calls
+    private static final AtomicInteger nextTensorId = new AtomicInteger();
+
+    // each worker thread gets its own direct buffer, which is grown when a larger chunk is asked for
+    private static final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<>();
+
+    private final int streamId;
+    private final int chunkBytes;
+    private final ChunkSender sender;
+    private final byte[][] arrays = new byte[2][];
+    // one permit per array that is not being sent
+    private final Semaphore free = new Semaphore(2);
+
+    /**
+     * @param streamId the id flutter listens to the chunks of the call with
+     * @param chunkBytes the maximum size of a chunk, the Tensors larger than that are streamed
+     * @param sender sends the chunks to flutter
+     */
+    ChunkWriter(int streamId, int chunkBytes, ChunkSender sender) {
+        if (chunkBytes < 8) {
+            throw new IllegalArgumentException("chunkBytes must be >= 8, got: " + chunkBytes);
+        }
+        this.streamId = streamId;
+        this.chunkBytes = chunkBytes;
+        this.sender = sender;
+    }
+
+    /**
+     * @return (boolean) true if the Tensor is larger than a chunk, and is streamed
+     */
+    boolean accepts(Tensor tensor) {
+        return TensorBufferPool.sizeInBytes(tensor.dtype(), Tensor.numel(tensor.shape())) > chunkBytes;
+    }
+
+    /**
+     * Streams the Tensor, on the worker thread
+     *
+     * @param tensor the Tensor to stream
+     * @return (HashMap) what is sent in place of the Tensor in the result of the call, its
+     *  "tensorId", "dtype", "shape" and number of "chunks"
+     * @throws InterruptedException if the worker is interrupted while waiting for a chunk to be sent
+     */
+    HashMap<String, Object> write(Tensor tensor) throws InterruptedException {
+        DType dtype = tensor.dtype();
+        long[] shape = tensor.shape();
+        Object data = OutputEncoder.typedData(tensor);
+        int numel = (int) Tensor.numel(shape);
+        int elementBytes = (int) TensorBufferPool.sizeInBytes(dtype, 1);
+        int chunkElements = chunkElements(shape, elementBytes);
+        int tensorId = nextTensorId.getAndIncrement();
+        CallMetrics.current().addBytesOut((long) numel * elementBytes);
+
+        int chunks = 0;
+        try {
+            for (int offset = 0; offset < numel; offset += chunkElements) {
+                int length = Math.min(chunkElements, numel - offset);
+                free.acquire();
+                byte[] bytes = copyChunk(data, offset, length, length * elementBytes,
+                        length == chunkElements ? chunks % 2 : -1);
+
+                HashMap<String, Object> event = new HashMap<>();
+                event.put("streamId", streamId);
+                event.put("tensorId", tensorId);
+                event.put("dtype", dtype.toString());
+                event.put("shape", shape);
+                event.put("offset", offset);
+                event.put("length", length);
+                event.put("data", bytes);
+                event.put("last", offset + length == numel);
+                sender.send(event, free::release);
+                chunks++;
+            }
+        } finally {
+            // the arrays are reused by the next Tensor, and the result must come after the chunks
+            free.acquireUninterruptibly(2);
+            free.release(2);
+        }
+
+        HashMap<String, Object> map = new HashMap<>();
+        map.put("class_type", "ChunkedTensor");
+        map.put("streamId", streamId);
+        map.put("tensorId", tensorId);
+        map.put("dtype", dtype.toString());
+        map.put("shape", shape);
+        map.put("chunks", chunks);
+        return map;
+    }
+
+    /**
+     * @return (int) the number of elements of a chunk, whole rows when a row fits in a chunk
+     */
+    private int chunkElements(long[] shape, int elementBytes) {
+        int maxElements = Math.max(1, chunkBytes / elementBytes);
+        long rowElements = shape.length == 0 ? 1 : shape[shape.length - 1];
+        if (rowElements > 0 && rowElements <= maxElements) {
+            return (int) (maxElements / rowElements * rowElements);
+        }
+        return maxElements;
+    }
+
+    /**
+     * Copies the elements to the reused array of the given slot, through the direct buffer so both
+     * the steps are bulk copies
+     *
+     * @param slot the array to reuse, -1 for the last chunk of a Tensor, which is shorter and gets
+     *  an array of its own size
+     */
+    private byte[] copyChunk(Object data, int offset, int length, int sizeInBytes, int slot) {
+        byte[] bytes = slot < 0 ? null : arrays[slot];
+        if (bytes == null || bytes.length != sizeInBytes) {
+            bytes = new byte[sizeInBytes];
+            if (slot >= 0) {
+                arrays[slot] = bytes;
+            }
+        }
+
+        if (data instanceof byte[]) {
+            System.arraycopy(data, offset, bytes, 0, sizeInBytes);
+            return bytes;
+        }
+        ByteBuffer buffer = scratchBuffer(sizeInBytes);
+        if (data instanceof int[]) {
+            buffer.asIntBuffer().put((int[]) data, offset, length);
+        } else if (data instanceof float[]) {
+            buffer.asFloatBuffer().put((float[]) data, offset, length);
+        } else if (data instanceof long[]) {
+            buffer.asLongBuffer().put((long[]) data, offset, length);
+        } else if (data instanceof double[]) {
+            buffer.asDoubleBuffer().put((double[]) data, offset, length);
+        } else {
+            throw new IllegalArgumentException("Unsupported data type: " + data.getClass());
+        }
+        buffer.get(bytes, 0, sizeInBytes);
+        return bytes;
+    }
+
+    private ByteBuffer scratchBuffer(int sizeInBytes) {
+        ByteBuffer buffer = scratch.get();
+        if (buffer == null || buffer.capacity() < sizeInBytes) {
+            buffer = ByteBuffer.allocateDirect(Math.max(sizeInBytes, chunkBytes)).order(ByteOrder.nativeOrder());
+            scratch.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+}
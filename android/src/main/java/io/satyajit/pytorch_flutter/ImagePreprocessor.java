@@ -0,0 +1,192 @@
+package io.satyajit.pytorch_flutter;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Decodes the encoded images of the ImageTensors straight to the size the model wants
+ *
+ * - the bounds are decoded first, and the image is decoded with the largest `inSampleSize` that
+ *   keeps it at least as large as the target, so a 12 MP JPEG for a 224x224 model is decoded at
+ *   a fraction of its full resolution
+ * - the decoded image is then scaled, and center cropped if asked, into a bitmap of the target size
+ * - the bitmaps are pooled, the decodes reuse them through `inBitmap`, so no new bitmap is
+ *   allocated per frame once the pool is warm
+ */
+class ImagePreprocessor {
+    enum ResizeMode {
+        // the whole image is scaled to the target size, the aspect ratio is not kept
+        STRETCH,
+        // the largest centered part of the image with the aspect ratio of the target is scaled to it
+        CENTER_CROP
+    }
+
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final int maxPooledBitmaps;
+    private final ArrayList<Bitmap> pool = new ArrayList<>();
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * @param maxPooledBitmaps the number of bitmaps kept for reuse
+     */
+    ImagePreprocessor(int maxPooledBitmaps) {
+        this.maxPooledBitmaps = maxPooledBitmaps;
+    }
+
+    /**
+     * Decodes the image at the target size
+     *
+     * @param data the encoded image, in any format BitmapFactory can decode
+     * @param width the target width, 0 to keep the size of the image
+     * @param height the target height, 0 to keep the size of the image
+     * @param mode how the image is fit to the target size
+     * @return (Bitmap) a pooled ARGB_8888 bitmap, that must be given back with {@link #release(Bitmap)}
+     *  once it has been read
+     * @throws Exception if the data cannot be decoded as an image
+     */
+    Bitmap decode(byte[] data, int width, int height, ResizeMode mode) throws Exception {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, bounds);
+        int sourceWidth = bounds.outWidth;
+        int sourceHeight = bounds.outHeight;
+        if (sourceWidth <= 0 || sourceHeight <= 0) {
+            throw new Exception("Could not decode the image data of the ImageTensor");
+        }
+        if (width <= 0 || height <= 0) {
+            width = sourceWidth;
+            height = sourceHeight;
+        }
+
+        Rect crop = cropOf(sourceWidth, sourceHeight, width, height, mode);
+        int sampleSize = sampleSizeOf(crop.width(), crop.height(), width, height);
+        Bitmap decoded = decodeSampled(data, sampleSize, sourceWidth, sourceHeight);
+
+        boolean fullImage = crop.width() == sourceWidth && crop.height() == sourceHeight;
+        if (fullImage && decoded.getWidth() == width && decoded.getHeight() == height) {
+            return decoded;
+        }
+
+        // the crop in the coordinates of the sampled image
+        float scaleX = decoded.getWidth() / (float) sourceWidth;
+        float scaleY = decoded.getHeight() / (float) sourceHeight;
+        Rect source = new Rect(Math.round(crop.left * scaleX), Math.round(crop.top * scaleY),
+                Math.round(crop.right * scaleX), Math.round(crop.bottom * scaleY));
+
+        Bitmap output = acquire(width, height);
+        new Canvas(output).drawBitmap(decoded, source, new Rect(0, 0, width, height), paint);
+        release(decoded);
+        return output;
+    }
+
+    /**
+     * Gives a bitmap returned by {@link #decode} back to the pool
+     */
+    void release(Bitmap bitmap) {
+        synchronized (pool) {
+            if (pool.size() < maxPooledBitmaps && bitmap.isMutable() && !bitmap.isRecycled()) {
+                pool.add(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Drops the pooled bitmaps, used when the system is low on memory
+     */
+    void clear() {
+        synchronized (pool) {
+            pool.clear();
+        }
+    }
+
+    private Bitmap decodeSampled(byte[] data, int sampleSize, int sourceWidth, int sourceHeight) throws Exception {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        // the decoder rounds the sampled size up at most
+        int sampledWidth = (sourceWidth + sampleSize - 1) / sampleSize;
+        int sampledHeight = (sourceHeight + sampleSize - 1) / sampleSize;
+        options.inBitmap = take((long) sampledWidth * sampledHeight * BYTES_PER_PIXEL);
+
+        Bitmap decoded;
+        try {
+            decoded = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (IllegalArgumentException e) {
+            // the pooled bitmap could not be reused for this image, it is dropped
+            Log.d(PytorchFlutterPlugin.LOGTAG, "Could not decode into a pooled bitmap", e);
+            options.inBitmap = null;
+            decoded = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+        if (decoded == null) {
+            throw new Exception("Could not decode the image data of the ImageTensor");
+        }
+        return decoded;
+    }
+
+    /**
+     * @return a bitmap of the given size, reconfigured from the pool when one is large enough
+     */
+    private Bitmap acquire(int width, int height) {
+        Bitmap bitmap = take((long) width * height * BYTES_PER_PIXEL);
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+        return bitmap;
+    }
+
+    /**
+     * Takes the smallest pooled bitmap that holds at least `bytes`, null if none does
+     */
+    private Bitmap take(long bytes) {
+        synchronized (pool) {
+            int best = -1;
+            for (int i = 0; i < pool.size(); i++) {
+                int size = pool.get(i).getAllocationByteCount();
+                if (size >= bytes && (best < 0 || size < pool.get(best).getAllocationByteCount())) {
+                    best = i;
+                }
+            }
+            return best < 0 ? null : pool.remove(best);
+        }
+    }
+
+    /**
+     * @return the part of the source image that is fit to the target size
+     */
+    static Rect cropOf(int sourceWidth, int sourceHeight, int width, int height, ResizeMode mode) {
+        if (mode != ResizeMode.CENTER_CROP) {
+            return new Rect(0, 0, sourceWidth, sourceHeight);
+        }
+        // compared with longs, so the products can't overflow
+        int cropWidth = sourceWidth;
+        int cropHeight = sourceHeight;
+        if ((long) sourceWidth * height > (long) sourceHeight * width) {
+            cropWidth = (int) ((long) sourceHeight * width / height);
+        } else {
+            cropHeight = (int) ((long) sourceWidth * height / width);
+        }
+        int left = (sourceWidth - cropWidth) / 2;
+        int top = (sourceHeight - cropHeight) / 2;
+        return new Rect(left, top, left + cropWidth, top + cropHeight);
+    }
+
+    /**
+     * @return the largest power of two that keeps the crop at least as large as the target
+     */
+    static int sampleSizeOf(int cropWidth, int cropHeight, int width, int height) {
+        int sampleSize = 1;
+        while (cropWidth / (sampleSize * 2) >= width && cropHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
@@ -0,0 +1,542 @@
+package io.satyajit.pytorch_flutter;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.pytorch.PyTorchAndroid;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * Runs the model calls off the platform thread
+ *
+ * Every model index gets its own serial queue, so the calls made on one model run one at a time,
+ * while calls on different models can run in parallel, on at most `maxThreads` workers. A model
+ * loaded as several replicas runs as many of its calls at the same time, see
+ * {@link #setConcurrency(int, int)}. The
+ * results are posted back on the main looper, since `Result` must only be used from the platform
+ * thread
+ *
+ * Each call has a priority class. A free worker takes the call of the highest priority waiting on
+ * a model that can run one more call, and between models with calls of the same priority, the one that
+ * was served the longest ago, so a model flooded with calls can't starve the others. The calls of
+ * a model run in the order they were received within a priority, a higher priority call goes
+ * before the lower ones already waiting. At most `maxBackgroundThreads` workers run BACKGROUND
+ * calls, so the other workers stay free for the interactive calls, a running call is never
+ * interrupted
+ *
+ * Each queued call holds its model, see {@link ModelHolder}, so a model closed while calls are
+ * waiting on it is only destroyed once they are done, and its index can't be given to another
+ * model under them
+ *
+ * A model can also be given its own number of intra-op threads, which is set before each of its
+ * calls. PyTorch only has one intra-op thread pool for the whole process, so the models that run
+ * at the same time share the number set last, a BACKGROUND call started while other calls run
+ * sets the largest number of the running models, so it never lowers theirs
+ */
+class InferenceScheduler {
+    enum Priority {
+        // the calls a user is waiting on, like the result of a tap
+        INTERACTIVE,
+        NORMAL,
+        // the jobs nobody is waiting on, like indexing a photo library
+        BACKGROUND;
+
+        /**
+         * @param name the name of the priority, null for NORMAL
+         */
+        static Priority of(String name) {
+            return name == null ? NORMAL : valueOf(name);
+        }
+    }
+
+    /**
+     * Keeps the models with queued calls alive, a call holds its model from the time it is queued
+     * until it is done, `ModelRegistry` on the device
+     */
+    interface ModelHolder {
+        /**
+         * @throws Exception if there is no model at the index, or it has been closed
+         */
+        void retain(int modelIndex) throws Exception;
+
+        void release(int modelIndex);
+    }
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor pool;
+    private final ModelHolder holder;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ConcurrentHashMap<Integer, ModelQueue> queues = new ConcurrentHashMap<>();
+
+    // guarded by this
+    private int maxThreads;
+    private int maxBackgroundThreads;
+    private int workers = 0;
+    private long turns = 0;
+    private final int[] running = new int[Priority.values().length];
+    private final int[] waiting = new int[Priority.values().length];
+    private final long[] completed = new long[Priority.values().length];
+
+    // the intra-op threads set last, 0 while it has never been changed
+    private final Object numThreadsLock = new Object();
+    private int currentNumThreads = 0;
+
+    /**
+     * @param maxThreads the maximum number of models that can run at the same time
+     * @param holder holds the models while calls are queued on them
+     */
+    InferenceScheduler(int maxThreads, ModelHolder holder) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "pytorch_flutter-inference-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        // the pool only provides the threads, the workers pick the calls themselves
+        pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), threadFactory);
+        this.holder = holder;
+        this.maxThreads = maxThreads;
+        this.maxBackgroundThreads = defaultMaxBackgroundThreads(maxThreads);
+    }
+
+    /**
+     * Default number of worker threads, each forward already uses the intra-op thread pool of
+     * PyTorch, so there is no point in running more models in parallel than there are cores
+     */
+    static int defaultMaxThreads() {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Default number of workers the BACKGROUND calls can use, all but one, so an interactive call
+     * never waits for a background call to end
+     */
+    static int defaultMaxBackgroundThreads(int maxThreads) {
+        return Math.max(1, maxThreads - 1);
+    }
+
+    /**
+     * Changes the number of models that can run in parallel
+     *
+     * @param maxThreads the new upper bound of worker threads, must be at least 1
+     */
+    void setMaxThreads(int maxThreads) {
+        setMaxThreads(maxThreads, defaultMaxBackgroundThreads(maxThreads));
+    }
+
+    /**
+     * Changes the number of models that can run in parallel, and how many of them can run
+     * BACKGROUND calls
+     *
+     * @param maxThreads the new upper bound of worker threads, must be at least 1
+     * @param maxBackgroundThreads the workers the BACKGROUND calls can use, from 1 to maxThreads
+     */
+    synchronized void setMaxThreads(int maxThreads, int maxBackgroundThreads) {
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("maxThreads must be >= 1, got: " + maxThreads);
+        }
+        if (maxBackgroundThreads < 1 || maxBackgroundThreads > maxThreads) {
+            throw new IllegalArgumentException("maxBackgroundThreads must be between 1 and " + maxThreads
+                    + ", got: " + maxBackgroundThreads);
+        }
+        this.maxThreads = maxThreads;
+        this.maxBackgroundThreads = maxBackgroundThreads;
+        // the extra workers stop after their call, the new ones start right away if there are calls
+        startWorkers();
+    }
+
+    synchronized int getMaxThreads() {
+        return maxThreads;
+    }
+
+    synchronized int getMaxBackgroundThreads() {
+        return maxBackgroundThreads;
+    }
+
+    /**
+     * Sets the number of intra-op threads used by the calls of a model
+     *
+     * @param modelIndex the index of the model
+     * @param numThreads the number of threads, 0 for the default
+     */
+    void setNumThreads(int modelIndex, int numThreads) {
+        if (numThreads < 0) {
+            throw new IllegalArgumentException("numThreads must be >= 0, got: " + numThreads);
+        }
+        ModelQueue queue = queueOf(modelIndex);
+        synchronized (this) {
+            queue.numThreads = numThreads;
+        }
+    }
+
+    /**
+     * Sets the number of calls of a model that can run at the same time, the number of replicas
+     * the model was loaded with
+     *
+     * @param modelIndex the index of the model
+     * @param concurrency the number of calls, at least 1
+     */
+    void setConcurrency(int modelIndex, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be >= 1, got: " + concurrency);
+        }
+        ModelQueue queue = queueOf(modelIndex);
+        synchronized (this) {
+            queue.concurrency = concurrency;
+            startWorkers();
+        }
+    }
+
+    /**
+     * Default number of intra-op threads, set back for the models without their own number once
+     * another model has changed it
+     */
+    static int defaultNumThreads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Queues the task on the queue of the given model, once the task completes the result is
+     * posted back on the main thread
+     *
+     * @param modelIndex the index of the model the task runs on
+     * @param priority the priority class of the task
+     * @param task the work to be done on the worker thread, its return value is sent to flutter
+     * @param result the result of the method call, it is completed on the main thread
+     * @param errorCode the error code sent to flutter if the task throws
+     * @param errorMessage the error message sent to flutter if the task throws
+     */
+    void submit(int modelIndex, Priority priority, Callable<Object> task, Result result,
+                PytorchFlutterPlugin.PTFLErrors errorCode, String errorMessage) {
+        try {
+            enqueue(modelIndex, priority, () -> {
+                try {
+                    Object output = task.call();
+                    postSuccess(result, output);
+                } catch (RequestTracker.AbortedException e) {
+                    // a cancelled or expired call is not an error of the model
+                    postError(result, e.errorCode.toString(), e.getMessage(), e);
+                } catch (Exception e) {
+                    Log.e(PytorchFlutterPlugin.LOGTAG, errorMessage, e);
+                    postError(result, errorCode.toString(), errorMessage, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the model has been closed, or the plugin has been detached from the engine
+            postError(result, errorCode.toString(), errorMessage, e);
+        }
+    }
+
+    /**
+     * Queues a task that completes its own results, like a batch of calls
+     *
+     * @param modelIndex the index of the model the task runs on
+     * @param task the work to be done on the worker thread
+     * @throws RejectedExecutionException if the model has been closed, or the scheduler shut down
+     */
+    void execute(int modelIndex, Runnable task) {
+        execute(modelIndex, Priority.NORMAL, task);
+    }
+
+    /**
+     * Queues a task that completes its own results, with the given priority class
+     */
+    void execute(int modelIndex, Priority priority, Runnable task) {
+        enqueue(modelIndex, priority, task);
+    }
+
+    private ModelQueue queueOf(int modelIndex) {
+        ModelQueue queue = queues.get(modelIndex);
+        if (queue == null) {
+            ModelQueue newQueue = new ModelQueue(modelIndex);
+            queue = queues.putIfAbsent(modelIndex, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+            }
+        }
+        return queue;
+    }
+
+    private void enqueue(int modelIndex, Priority priority, Runnable task) {
+        try {
+            holder.retain(modelIndex);
+        } catch (Exception e) {
+            throw new RejectedExecutionException(e.getMessage(), e);
+        }
+        ModelQueue queue = queueOf(modelIndex);
+        synchronized (this) {
+            if (pool.isShutdown()) {
+                holder.release(modelIndex);
+                throw new RejectedExecutionException("The scheduler has been shut down");
+            }
+            queue.tasks[priority.ordinal()].add(task);
+            queue.depth++;
+            waiting[priority.ordinal()]++;
+            startWorkers();
+        }
+    }
+
+    /**
+     * Starts a worker per waiting call, up to maxThreads workers, a worker that finds no call it
+     * can run stops, the calls it left are run by the workers of the calls blocking them
+     */
+    private void startWorkers() {
+        int waitingCalls = 0;
+        for (int count : waiting) {
+            waitingCalls += count;
+        }
+        while (workers < maxThreads && workers < waitingCalls + runningCalls() && !pool.isShutdown()) {
+            pool.execute(this::work);
+            workers++;
+        }
+    }
+
+    private int runningCalls() {
+        int count = 0;
+        for (int calls : running) {
+            count += calls;
+        }
+        return count;
+    }
+
+    /**
+     * The loop of a worker, it runs calls until there is none it can run, the bookkeeping of a call
+     * and of the worker is undone even when a task throws an Error
+     */
+    private void work() {
+        boolean stopped = false;
+        try {
+            while (true) {
+                ModelQueue queue;
+                Priority priority;
+                Runnable task;
+                int numThreads;
+                synchronized (this) {
+                    queue = workers > maxThreads ? null : nextQueue();
+                    if (queue == null) {
+                        workers--;
+                        stopped = true;
+                        return;
+                    }
+                    priority = queue.headPriority(canRunBackground());
+                    task = queue.tasks[priority.ordinal()].poll();
+                    queue.running++;
+                    queue.lastTurn = ++turns;
+                    waiting[priority.ordinal()]--;
+                    running[priority.ordinal()]++;
+                    // the threads are shared, a background call doesn't take them from the calls running
+                    numThreads = priority == Priority.BACKGROUND && runningCalls() > running[priority.ordinal()]
+                            ? runningNumThreads() : queue.numThreads;
+                }
+
+                try {
+                    applyNumThreads(numThreads);
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(PytorchFlutterPlugin.LOGTAG, "Error running a task of the scheduler", e);
+                } finally {
+                    synchronized (this) {
+                        queue.running--;
+                        queue.depth--;
+                        running[priority.ordinal()]--;
+                        completed[priority.ordinal()]++;
+                    }
+                    holder.release(queue.modelIndex);
+                }
+            }
+        } finally {
+            // an Error ends the thread, another worker takes its place so the waiting calls still run
+            if (!stopped) {
+                synchronized (this) {
+                    workers--;
+                    startWorkers();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the queue with the call of the highest priority that can run now, between equal
+     *  priorities the queue served the longest ago, null if no call can run
+     */
+    private ModelQueue nextQueue() {
+        boolean canRunBackground = canRunBackground();
+        ModelQueue next = null;
+        Priority nextPriority = null;
+        for (ModelQueue queue : queues.values()) {
+            if (queue.running >= queue.concurrency) {
+                continue;
+            }
+            Priority priority = queue.headPriority(canRunBackground);
+            if (priority == null) {
+                continue;
+            }
+            if (next == null || priority.ordinal() < nextPriority.ordinal()
+                    || (priority == nextPriority && queue.lastTurn < next.lastTurn)) {
+                next = queue;
+                nextPriority = priority;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * @return the largest number of intra-op threads of the models running calls
+     */
+    private int runningNumThreads() {
+        int numThreads = 0;
+        for (ModelQueue queue : queues.values()) {
+            if (queue.running > 0) {
+                numThreads = Math.max(numThreads, queue.numThreads > 0 ? queue.numThreads : defaultNumThreads());
+            }
+        }
+        return numThreads;
+    }
+
+    private boolean canRunBackground() {
+        return running[Priority.BACKGROUND.ordinal()] < maxBackgroundThreads;
+    }
+
+    /**
+     * Sets the intra-op threads of PyTorch when the model needs a different number than the
+     * current one
+     */
+    private void applyNumThreads(int numThreads) {
+        synchronized (numThreadsLock) {
+            int target = numThreads > 0 ? numThreads : currentNumThreads == 0 ? 0 : defaultNumThreads();
+            if (target != currentNumThreads && target > 0) {
+                PyTorchAndroid.setNumThreads(target);
+                currentNumThreads = target;
+            }
+        }
+    }
+
+    void postSuccess(Result result, Object output) {
+        mainHandler.post(() -> result.success(output));
+    }
+
+    void postError(Result result, String errorCode, String errorMessage, Exception e) {
+        // the exception itself cannot be encoded by the StandardMessageCodec, so only its
+        // description is sent across
+        mainHandler.post(() -> result.error(errorCode, errorMessage, e.toString()));
+    }
+
+    /**
+     * @param modelIndex the index of the model
+     * @return the number of calls waiting or running on the given model
+     */
+    int getQueueDepth(int modelIndex) {
+        ModelQueue queue = queues.get(modelIndex);
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (this) {
+            return queue.depth;
+        }
+    }
+
+    /**
+     * @return the queue depth of every model that has received a call so far
+     */
+    synchronized Map<Integer, Integer> getQueueDepths() {
+        HashMap<Integer, Integer> depths = new HashMap<>();
+        for (Map.Entry<Integer, ModelQueue> entry : queues.entrySet()) {
+            depths.put(entry.getKey(), entry.getValue().depth);
+        }
+        return depths;
+    }
+
+    /**
+     * @return the limits of the scheduler, and for each priority the number of calls waiting,
+     *  running and completed
+     */
+    synchronized HashMap<String, Object> getStats() {
+        HashMap<String, Object> stats = new HashMap<>();
+        stats.put("maxThreads", maxThreads);
+        stats.put("maxBackgroundThreads", maxBackgroundThreads);
+        stats.put("workers", workers);
+        stats.put("numThreads", currentNumThreads);
+        for (Priority priority : Priority.values()) {
+            HashMap<String, Object> counts = new HashMap<>();
+            counts.put("waiting", waiting[priority.ordinal()]);
+            counts.put("running", running[priority.ordinal()]);
+            counts.put("completed", completed[priority.ordinal()]);
+            stats.put(priority.name(), counts);
+        }
+        return stats;
+    }
+
+    /**
+     * Stops the workers, the calls that are still waiting in the queues are dropped, and let go of
+     * their models
+     */
+    synchronized void shutdown() {
+        pool.shutdownNow();
+        for (ModelQueue queue : queues.values()) {
+            for (ArrayDeque<Runnable> tasks : queue.tasks) {
+                for (int i = 0; i < tasks.size(); i++) {
+                    holder.release(queue.modelIndex);
+                }
+                tasks.clear();
+            }
+        }
+        queues.clear();
+        Arrays.fill(waiting, 0);
+    }
+
+    /**
+     * The calls waiting on one model, by priority, guarded by the scheduler
+     */
+    private static class ModelQueue {
+        final int modelIndex;
+        @SuppressWarnings("unchecked")
+        final ArrayDeque<Runnable>[] tasks = new ArrayDeque[Priority.values().length];
+        // the calls running, and how many can run at the same time
+        int running = 0;
+        int concurrency = 1;
+        int depth = 0;
+        // the turn the model was last served at, the lowest goes first between equal priorities
+        long lastTurn = 0;
+        int numThreads = 0;
+
+        ModelQueue(int modelIndex) {
+            this.modelIndex = modelIndex;
+            for (int i = 0; i < tasks.length; i++) {
+                tasks[i] = new ArrayDeque<>();
+            }
+        }
+
+        /**
+         * @return the priority of the next call of the model, null if it has none that can run
+         */
+        Priority headPriority(boolean canRunBackground) {
+            for (Priority priority : Priority.values()) {
+                if (priority == Priority.BACKGROUND && !canRunBackground) {
+                    return null;
+                }
+                if (!tasks[priority.ordinal()].isEmpty()) {
+                    return priority;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package io.satyajit.pytorch_flutter;
+
+import org.pytorch.DType;
+import org.pytorch.IValue;
+import org.pytorch.Tensor;
+
+import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * Batches the `forward` calls made on one model
+ *
+ * The calls that arrive within `maxWaitMicros` of the first pending call, up to `maxBatchSize` of
+ * them, are run together: their inputs are concatenated along dim 0 into one pooled buffer, the
+ * model runs once on the whole batch, and the output is split back along dim 0 so that each call
+ * gets its own rows. Only the inputs with the same dtype and the same shape past dim 0 can go in
+ * the same batch, the others are run as separate batches
+ *
+ * The model must treat dim 0 as the batch dimension, and return a Tensor, or a tuple or list of
+ * Tensors, whose dim 0 is the batch size
+ *
+ * Each call is recorded in the `forward` metrics of the model, with the time it waited for its
+ * batch as QUEUE, and the stages of its batch
+ */
+class MicroBatcher {
+    /**
+     * An input that can be written into the batch buffer
+     */
+    interface BatchInput {
+        DType dtype();
+
+        long[] shape();
+
+        /**
+         * Writes the input at the given element of a buffer acquired for `dtype()`
+         */
+        void writeTo(Buffer buffer, int offset) throws Exception;
+
+        /**
+         * Releases what the input holds, like a pooled bitmap, once its group is done, whether it
+         * was written or not
+         */
+        default void release() {
+        }
+    }
+
+    interface InputParser {
+        BatchInput parse(HashMap<?, ?> args) throws Exception;
+    }
+
+    interface Forward {
+        IValue forward(IValue input) throws Exception;
+    }
+
+    private static class Item {
+        final HashMap<?, ?> args;
+        final Result result;
+        final long enqueuedNanos;
+        BatchInput input;
+
+        Item(HashMap<?, ?> args, Result result) {
+            this.args = args;
+            this.result = result;
+            this.enqueuedNanos = System.nanoTime();
+        }
+    }
+
+    private static final String ERROR_CODE = PytorchFlutterPlugin.PTFLErrors.ERROR_RUNNING_FORWARD.toString();
+
+    private final int modelIndex;
+    private final int maxBatchSize;
+    private final long maxWaitMicros;
+    private final InferenceScheduler scheduler;
+    private final ScheduledExecutorService timer;
+    private final TensorConverter converter;
+    private final OutputEncoder outputEncoder;
+    private final InputParser parser;
+    private final Forward forward;
+    private final CallMetrics metrics;
+
+    private ArrayList<Item> pending = new ArrayList<>();
+    private ScheduledFuture<?> flushTimer;
+
+    // from the call being received to its result being posted
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong items = new AtomicLong();
+
+    MicroBatcher(int modelIndex, int maxBatchSize, long maxWaitMicros, InferenceScheduler scheduler,
+                 ScheduledExecutorService timer, TensorConverter converter, OutputEncoder outputEncoder,
+                 InputParser parser, Forward forward, CallMetrics metrics) {
+        this.modelIndex = modelIndex;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitMicros = maxWaitMicros;
+        this.scheduler = scheduler;
+        this.timer = timer;
+        this.converter = converter;
+        this.outputEncoder = outputEncoder;
+        this.parser = parser;
+        this.forward = forward;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Adds a `forward` call to the current batch
+     *
+     * @param args the arguments of the call, a TensorValue or ImageTensor
+     * @param result the result of the call, completed on the main thread once its batch has run
+     */
+    synchronized void add(HashMap<?, ?> args, Result result) {
+        pending.add(new Item(args, result));
+        if (pending.size() >= maxBatchSize) {
+            flushLocked();
+        } else if (flushTimer == null) {
+            flushTimer = timer.schedule(this::onFlushTimer, maxWaitMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    /**
+     * Sends the pending calls to the model right away, used when the batching is turned off
+     */
+    synchronized void flush() {
+        if (!pending.isEmpty()) {
+            flushLocked();
+        }
+    }
+
+    private synchronized void onFlushTimer() {
+        flushTimer = null;
+        if (!pending.isEmpty()) {
+            flushLocked();
+        }
+    }
+
+    private void flushLocked() {
+        if (flushTimer != null) {
+            flushTimer.cancel(false);
+            flushTimer = null;
+        }
+        final List<Item> batch = pending;
+        pending = new ArrayList<>();
+        try {
+            scheduler.execute(modelIndex, () -> runBatch(batch));
+        } catch (RejectedExecutionException e) {
+            // the model has been closed
+            for (Item item : batch) {
+                fail(item, e);
+            }
+        }
+    }
+
+    /**
+     * Runs on the worker of the model, parses the inputs and runs each compatible group as one
+     * forward
+     */
+    private void runBatch(List<Item> batch) {
+        // the first group is timed from the start of the batch, the others from their own start
+        long start = System.nanoTime();
+        CallMetrics.Timer timer = CallMetrics.begin(start);
+        ArrayList<Item> parsed = new ArrayList<>(batch.size());
+        for (Item item : batch) {
+            try {
+                item.input = parser.parse(item.args);
+                if (item.input.shape().length == 0) {
+                    item.input.release();
+                    throw new Exception("Inputs without a batch dimension cannot be batched");
+                }
+                parsed.add(item);
+            } catch (Exception e) {
+                fail(item, e);
+                metrics.endBatched(modelIndex, "forward", item.enqueuedNanos, ERROR_CODE);
+            }
+        }
+        timer.lap(CallMetrics.Stage.CONVERT, start);
+
+        boolean firstGroup = true;
+        while (!parsed.isEmpty()) {
+            if (!firstGroup) {
+                CallMetrics.begin(System.nanoTime());
+            }
+            firstGroup = false;
+            ArrayList<Item> group = new ArrayList<>();
+            ArrayList<Item> rest = new ArrayList<>();
+            BatchInput first = parsed.get(0).input;
+            for (Item item : parsed) {
+                (compatible(first, item.input) ? group : rest).add(item);
+            }
+            runGroup(group);
+            parsed = rest;
+        }
+    }
+
+    private void runGroup(List<Item> group) {
+        CallMetrics.Timer timer = CallMetrics.current();
+        BatchInput first = group.get(0).input;
+        DType dtype = first.dtype();
+        long[] shape = first.shape().clone();
+        long rows = 0;
+        for (Item item : group) {
+            rows += item.input.shape()[0];
+        }
+        shape[0] = rows;
+
+        try (TensorConverter.Lease lease = converter.newLease()) {
+            long start = System.nanoTime();
+            Buffer buffer = lease.acquire(dtype, (int) Tensor.numel(shape));
+            int offset = 0;
+            for (Item item : group) {
+                item.input.writeTo(buffer, offset);
+                offset += (int) Tensor.numel(item.input.shape());
+            }
+            buffer.rewind();
+            timer.addBytesIn(TensorBufferPool.sizeInBytes(dtype, Tensor.numel(shape)));
+            timer.lap(CallMetrics.Stage.CONVERT, start);
+
+            IValue output = forward.forward(IValue.from(TensorConverter.fromBuffer(buffer, dtype, shape)));
+            start = System.nanoTime();
+            Object[] results = split(output, group, rows);
+            timer.lap(CallMetrics.Stage.ENCODE, start);
+
+            batches.incrementAndGet();
+            items.addAndGet(group.size());
+            for (int i = 0; i < group.size(); i++) {
+                Item item = group.get(i);
+                scheduler.postSuccess(item.result, results[i]);
+                latency.recordSince(item.enqueuedNanos);
+                metrics.endBatched(modelIndex, "forward", item.enqueuedNanos, null);
+            }
+        } catch (Exception e) {
+            for (Item item : group) {
+                fail(item, e);
+                metrics.endBatched(modelIndex, "forward", item.enqueuedNanos, ERROR_CODE);
+            }
+        } finally {
+            // the inputs not written yet when the group failed are released too
+            for (Item item : group) {
+                item.input.release();
+            }
+        }
+    }
+
+    /**
+     * Splits the output of the batch along dim 0 and encodes the part of each call
+     */
+    private Object[] split(IValue output, List<Item> group, long rows) throws Exception {
+        Tensor[] tensors;
+        boolean single = output.isTensor();
+        if (single) {
+            tensors = new Tensor[]{output.toTensor()};
+        } else if (output.isTensorList()) {
+            tensors = output.toTensorList();
+        } else if (output.isTuple() || output.isList()) {
+            IValue[] values = output.isTuple() ? output.toTuple() : output.toList();
+            tensors = new Tensor[values.length];
+            for (int i = 0; i < values.length; i++) {
+                if (!values[i].isTensor()) {
+                    throw new Exception("Batched models must return Tensors, got a non Tensor at " + i);
+                }
+                tensors[i] = values[i].toTensor();
+            }
+        } else {
+            throw new Exception("Batched models must return a Tensor, or a tuple or list of Tensors");
+        }
+
+        Object[][] parts = new Object[group.size()][tensors.length];
+        for (int t = 0; t < tensors.length; t++) {
+            long[] shape = tensors[t].shape();
+            if (shape.length == 0 || shape[0] != rows) {
+                throw new Exception("Output " + t + " has shape " + Arrays.toString(shape)
+                        + ", expected dim 0 to be the batch size " + rows);
+            }
+            Object data = OutputEncoder.typedData(tensors[t]);
+            int rowNumel = (int) (tensors[t].numel() / rows);
+
+            int row = 0;
+            for (int i = 0; i < group.size(); i++) {
+                long[] itemShape = shape.clone();
+                itemShape[0] = group.get(i).input.shape()[0];
+                int itemRows = (int) itemShape[0];
+                Object slice = slice(data, row * rowNumel, (row + itemRows) * rowNumel);
+                parts[i][t] = outputEncoder.encodeTensor(tensors[t].dtype(), itemShape, slice);
+                row += itemRows;
+            }
+        }
+
+        Object[] results = new Object[group.size()];
+        for (int i = 0; i < group.size(); i++) {
+            results[i] = single ? parts[i][0] : new ArrayList<>(Arrays.asList(parts[i]));
+        }
+        return results;
+    }
+
+    private static Object slice(Object data, int from, int to) {
+        if (data instanceof byte[]) {
+            return Arrays.copyOfRange((byte[]) data, from, to);
+        } else if (data instanceof int[]) {
+            return Arrays.copyOfRange((int[]) data, from, to);
+        } else if (data instanceof float[]) {
+            return Arrays.copyOfRange((float[]) data, from, to);
+        } else if (data instanceof long[]) {
+            return Arrays.copyOfRange((long[]) data, from, to);
+        }
+        return Arrays.copyOfRange((double[]) data, from, to);
+    }
+
+    private static boolean compatible(BatchInput a, BatchInput b) {
+        if (a.dtype() != b.dtype()) {
+            return false;
+        }
+        long[] shapeA = a.shape();
+        long[] shapeB = b.shape();
+        if (shapeA.length != shapeB.length) {
+            return false;
+        }
+        for (int i = 1; i < shapeA.length; i++) {
+            if (shapeA[i] != shapeB[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void fail(Item item, Exception e) {
+        scheduler.postError(item.result, ERROR_CODE, "Error running batched forward(input) on Model", e);
+        latency.recordSince(item.enqueuedNanos);
+    }
+
+    /**
+     * @param reset clears the stats after reading them
+     * @return the number of batches and calls run so far, the mean batch size and the latency of
+     *  the calls from being received to their result being posted
+     */
+    HashMap<String, Object> getStats(boolean reset) {
+        HashMap<String, Object> stats = new HashMap<>();
+        long batchCount = batches.get();
+        long itemCount = items.get();
+        stats.put("maxBatchSize", maxBatchSize);
+        stats.put("maxWaitMicros", maxWaitMicros);
+        stats.put("batches", batchCount);
+        stats.put("calls", itemCount);
+        stats.put("meanBatchSize", batchCount == 0 ? 0.0 : (double) itemCount / batchCount);
+        stats.put("latency", latency.toMap());
+        if (reset) {
+            batches.set(0);
+            items.set(0);
+            latency.reset();
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,281 @@
+package io.satyajit.pytorch_flutter;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.res.AssetFileDescriptor;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Extracts the model assets out of the APK once, to `files/pytorch_flutter/models`, so that
+ * `Module.load` can read them from a real file
+ *
+ * A manifest keeps the APK stamp (version code and last update time), the size and the CRC32 of
+ * every extracted asset. On the next launches the cached file is used as long as the stamp and
+ * the size match, so the asset is only extracted again when the APK changes
+ */
+class ModelCache {
+    private static final String DIRECTORY = "pytorch_flutter/models";
+    private static final String MANIFEST = "manifest.properties";
+    private static final int COPY_BUFFER_BYTES = 1024 * 1024;
+
+    private final Context context;
+    private final File directory;
+    private final String apkStamp;
+    private final Properties manifest = new Properties();
+    // one lock per asset, so that two loads of the same asset don't extract it twice
+    private final ConcurrentHashMap<String, Object> assetLocks = new ConcurrentHashMap<>();
+
+    // from the call being received to the model being loaded, with and without the extraction
+    private final LatencyHistogram coldStarts = new LatencyHistogram();
+    private final LatencyHistogram warmStarts = new LatencyHistogram();
+    private final LatencyHistogram extractions = new LatencyHistogram();
+
+    ModelCache(Context context) {
+        this.context = context;
+        this.directory = new File(context.getFilesDir(), DIRECTORY);
+        this.apkStamp = apkStampOf(context);
+        readManifest();
+    }
+
+    /**
+     * Returns the cached file of the asset, extracting it first if it is missing or stale
+     *
+     * @param assetPath the path of the asset inside the APK, as given by the flutter assets
+     * @param verify recompute the CRC32 of a cached file before using it, to catch a corrupt copy
+     * @return (File) the extracted model
+     * @throws IOException if the asset cannot be read or written
+     */
+    File get(String assetPath, boolean verify) throws IOException {
+        Object lock = assetLocks.computeIfAbsent(assetPath, key -> new Object());
+        synchronized (lock) {
+            File file = new File(directory, fileNameOf(assetPath));
+            if (isFresh(assetPath, file, verify)) {
+                return file;
+            }
+
+            long start = System.nanoTime();
+            long[] sizeAndCrc = extract(assetPath, file);
+            extractions.recordSince(start);
+
+            synchronized (manifest) {
+                manifest.setProperty(assetPath + ".stamp", apkStamp);
+                manifest.setProperty(assetPath + ".size", Long.toString(sizeAndCrc[0]));
+                manifest.setProperty(assetPath + ".crc32", Long.toString(sizeAndCrc[1]));
+                writeManifest();
+            }
+            Log.i(PytorchFlutterPlugin.LOGTAG, "Extracted " + assetPath + " (" + sizeAndCrc[0] + " bytes) in "
+                    + (System.nanoTime() - start) / 1000000 + "ms");
+            return file;
+        }
+    }
+
+    /**
+     * @param assetPath the path of the asset inside the APK
+     * @return (boolean) true if the asset is extracted and up to date
+     */
+    boolean isCached(String assetPath) {
+        return isFresh(assetPath, new File(directory, fileNameOf(assetPath)), false);
+    }
+
+    /**
+     * Records the time taken to load a model from an asset
+     *
+     * @param cold true if the asset had to be extracted first
+     * @param startNanos a value of System.nanoTime() taken when the load call was received
+     */
+    void recordLoad(boolean cold, long startNanos) {
+        (cold ? coldStarts : warmStarts).recordSince(startNanos);
+    }
+
+    /**
+     * @return the cold and warm load times, the extraction times and the size of the cache
+     */
+    HashMap<String, Object> getStats() {
+        long bytes = 0;
+        int files = 0;
+        File[] cached = directory.listFiles();
+        if (cached != null) {
+            for (File file : cached) {
+                if (!file.getName().equals(MANIFEST)) {
+                    bytes += file.length();
+                    files++;
+                }
+            }
+        }
+
+        HashMap<String, Object> stats = new HashMap<>();
+        stats.put("cachedModels", files);
+        stats.put("cachedBytes", bytes);
+        stats.put("coldStart", coldStarts.toMap());
+        stats.put("warmStart", warmStarts.toMap());
+        stats.put("extraction", extractions.toMap());
+        return stats;
+    }
+
+    private boolean isFresh(String assetPath, File file, boolean verify) {
+        String stamp;
+        String size;
+        String crc;
+        synchronized (manifest) {
+            stamp = manifest.getProperty(assetPath + ".stamp");
+            size = manifest.getProperty(assetPath + ".size");
+            crc = manifest.getProperty(assetPath + ".crc32");
+        }
+        if (!apkStamp.equals(stamp) || size == null || crc == null || file.length() != Long.parseLong(size)) {
+            return false;
+        }
+        if (!verify) {
+            return true;
+        }
+
+        try (FileInputStream input = new FileInputStream(file)) {
+            return copy(input.getChannel(), null, file.length())[1] == Long.parseLong(crc);
+        } catch (IOException e) {
+            Log.w(PytorchFlutterPlugin.LOGTAG, "Could not verify " + file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Copies the asset to a temporary file and renames it, so a copy cut short by the app being
+     * killed is never taken for a complete one
+     *
+     * @return (long[]) the size and the CRC32 of the asset
+     */
+    private long[] extract(String assetPath, File file) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the model cache directory " + directory);
+        }
+        File temp = new File(directory, file.getName() + ".tmp");
+
+        long[] sizeAndCrc;
+        try (FileOutputStream output = new FileOutputStream(temp)) {
+            FileChannel out = output.getChannel();
+            AssetFileDescriptor descriptor = openFd(assetPath);
+            if (descriptor != null) {
+                // the asset is stored uncompressed, it is read straight from its range of the APK
+                try (AssetFileDescriptor fd = descriptor; FileInputStream input = fd.createInputStream()) {
+                    FileChannel in = input.getChannel();
+                    in.position(fd.getStartOffset());
+                    sizeAndCrc = copy(in, out, fd.getLength());
+                }
+            } else {
+                try (ReadableByteChannel in = Channels.newChannel(context.getAssets().open(assetPath))) {
+                    sizeAndCrc = copy(in, out, Long.MAX_VALUE);
+                }
+            }
+            out.force(false);
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not move the extracted model to " + file);
+        }
+        return sizeAndCrc;
+    }
+
+    private AssetFileDescriptor openFd(String assetPath) throws IOException {
+        try {
+            return context.getAssets().openFd(assetPath);
+        } catch (FileNotFoundException e) {
+            // thrown for the compressed assets, they can only be streamed
+            return null;
+        }
+    }
+
+    /**
+     * Copies up to `length` bytes from `in` to `out` while computing their CRC32
+     *
+     * @param out the channel to write to, null to only compute the CRC32
+     * @return (long[]) the number of bytes copied and their CRC32
+     */
+    private static long[] copy(ReadableByteChannel in, FileChannel out, long length) throws IOException {
+        // a heap buffer, CRC32.update(ByteBuffer) needs API 26
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(COPY_BUFFER_BYTES, Math.max(length, 1)));
+        CRC32 crc = new CRC32();
+        long copied = 0;
+        while (copied < length) {
+            buffer.clear();
+            if (length - copied < buffer.capacity()) {
+                buffer.limit((int) (length - copied));
+            }
+            int read = in.read(buffer);
+            if (read < 0) {
+                break;
+            }
+            crc.update(buffer.array(), 0, read);
+            buffer.flip();
+            while (out != null && buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            copied += read;
+        }
+        return new long[]{copied, crc.getValue()};
+    }
+
+    private void readManifest() {
+        File file = new File(directory, MANIFEST);
+        if (!file.isFile()) {
+            return;
+        }
+        try (FileInputStream input = new FileInputStream(file)) {
+            manifest.load(input);
+        } catch (IOException e) {
+            // everything is extracted again
+            Log.w(PytorchFlutterPlugin.LOGTAG, "Could not read the model cache manifest", e);
+            manifest.clear();
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        File file = new File(directory, MANIFEST);
+        File temp = new File(directory, MANIFEST + ".tmp");
+        try (FileOutputStream output = new FileOutputStream(temp)) {
+            manifest.store(output, null);
+            output.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not write the model cache manifest");
+        }
+    }
+
+    /**
+     * The file name of the asset, prefixed with the hash of its full path, so that the assets with
+     * the same name in different directories don't overwrite each other
+     */
+    private static String fileNameOf(String assetPath) {
+        return Integer.toHexString(assetPath.hashCode()) + "_" + new File(assetPath).getName();
+    }
+
+    /**
+     * Every install or update of the APK changes the last update time, even when the version code
+     * stays the same, as it does for debug builds
+     */
+    @SuppressWarnings("deprecation")
+    private static String apkStampOf(Context context) {
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+            long versionCode = Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ? info.getLongVersionCode() : info.versionCode;
+            return versionCode + ":" + info.lastUpdateTime;
+        } catch (Exception e) {
+            // no stamp matches, every launch extracts again
+            Log.w(PytorchFlutterPlugin.LOGTAG, "Could not read the package info", e);
+            return "unknown:" + System.currentTimeMillis();
+        }
+    }
+}
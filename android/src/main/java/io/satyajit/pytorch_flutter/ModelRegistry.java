@@ -0,0 +1,390 @@
+package io.satyajit.pytorch_flutter;
+
+import android.util.Log;
+
+import org.pytorch.Module;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps track of the loaded modules and the index flutter uses to refer to each of them
+ *
+ * - the slot of a closed model is reused by the next model that is loaded
+ * - a model is retained by each call from the time it is queued, and acquired while the call
+ *   runs, a close only destroys the module once the calls queued or running on it are done, so a
+ *   close can never race a forward, and a queued call never runs on the next model given the index
+ * - each model is tracked by an estimate of its native footprint, when a memory budget is set the
+ *   least recently used idle models are destroyed to stay under the budget, and are loaded again
+ *   from their file the next time they are used
+ * - a model can be loaded as several replicas, independent modules loaded from the same file, so
+ *   that several calls can run on it at the same time, each call gets the replica running the
+ *   fewest calls, and between those the one used the longest ago
+ */
+class ModelRegistry implements InferenceScheduler.ModelHolder {
+    /**
+     * Loads a module from a file, `Module::load` on the device
+     */
+    interface ModuleLoader {
+        Module load(String path) throws Exception;
+    }
+
+    private static class Entry {
+        final String path;
+        // the footprint of all the replicas
+        final long footprintBytes;
+        // the replicas, null while the model is evicted
+        Module[] modules;
+        // the calls running on each replica, and the last time each was acquired
+        final int[] busy;
+        final long[] replicaLastUsed;
+        int refCount = 0;
+        long lastUsed;
+        boolean closing = false;
+        // incremented every time the module is loaded again after being evicted
+        int generation = 0;
+
+        Entry(String path, long footprintBytes, Module[] modules) {
+            this.path = path;
+            this.footprintBytes = footprintBytes;
+            this.modules = modules;
+            this.busy = new int[modules.length];
+            this.replicaLastUsed = new long[modules.length];
+        }
+    }
+
+    private final ModuleLoader loader;
+    private final ArrayList<Entry> slots = new ArrayList<>();
+    // lowest free slot first, so the indices stay small
+    private final PriorityQueue<Integer> freeSlots = new PriorityQueue<>();
+
+    private long memoryBudgetBytes = 0;
+    private long loadedBytes = 0;
+    private long useClock = 0;
+    private long evictions = 0;
+    private long reloads = 0;
+
+    ModelRegistry(ModuleLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Loads the module from the given file and registers it
+     *
+     * @param path the path of the model file, it is kept to load the model again after an eviction
+     * @param footprintBytes the estimated native memory used by one loaded module
+     * @param replicas the number of modules loaded from the file, at least 1
+     * @return (int) the index of the model
+     * @throws Exception if the module cannot be loaded
+     */
+    int load(String path, long footprintBytes, int replicas) throws Exception {
+        // loading takes a while, it is done before taking the lock
+        Module[] modules = loadReplicas(path, replicas);
+        return register(path, footprintBytes * replicas, modules);
+    }
+
+    /**
+     * Registers already loaded modules
+     *
+     * @param path the path of the model file, null if the model cannot be loaded again, in which
+     *  case it is never evicted
+     * @param footprintBytes the estimated native memory used by all the modules
+     * @param modules the replicas of the model
+     * @return (int) the index of the model
+     */
+    synchronized int register(String path, long footprintBytes, Module[] modules) {
+        Entry entry = new Entry(path, footprintBytes, modules);
+        entry.lastUsed = ++useClock;
+
+        int index;
+        if (freeSlots.isEmpty()) {
+            slots.add(entry);
+            index = slots.size() - 1;
+        } else {
+            index = freeSlots.poll();
+            slots.set(index, entry);
+        }
+
+        loadedBytes += footprintBytes;
+        evictToBudget(entry);
+        return index;
+    }
+
+    /**
+     * Holds the model for a call that is queued, the model isn't destroyed until the call is
+     * released with {@link #release(int)}
+     *
+     * @param index the index of the model
+     * @throws Exception if there is no model at the index, or it has been closed
+     */
+    @Override
+    public synchronized void retain(int index) throws Exception {
+        entryOf(index).refCount++;
+    }
+
+    /**
+     * Releases the model held by a call with {@link #retain(int)}
+     *
+     * @param index the index of the model
+     */
+    @Override
+    public void release(int index) {
+        release(index, null);
+    }
+
+    /**
+     * Acquires a replica of the module for a call, the model is loaded again if it had been
+     * evicted, every acquire must be followed by a {@link #release(int, Module)} once the call is
+     * done
+     *
+     * A model that is being closed can still be acquired by the calls retained before the close
+     *
+     * @param index the index of the model
+     * @return (Module) the loaded replica running the fewest calls
+     * @throws Exception if there is no model at the index, or it fails to load
+     */
+    Module acquire(int index) throws Exception {
+        Entry entry;
+        synchronized (this) {
+            entry = index >= 0 && index < slots.size() ? slots.get(index) : null;
+            if (entry == null) {
+                throw new Exception("No model loaded at index: " + index);
+            }
+            entry.refCount++;
+            entry.lastUsed = ++useClock;
+        }
+
+        try {
+            // only the calls of this model wait while it is loaded again
+            synchronized (entry) {
+                if (entry.modules == null) {
+                    Module[] modules = loadReplicas(entry.path, entry.busy.length);
+                    synchronized (this) {
+                        entry.modules = modules;
+                        entry.generation++;
+                        loadedBytes += entry.footprintBytes;
+                        reloads++;
+                        evictToBudget(entry);
+                    }
+                    Log.d(PytorchFlutterPlugin.LOGTAG, "Reloaded evicted model " + index + " from " + entry.path);
+                }
+            }
+            synchronized (this) {
+                int replica = 0;
+                for (int i = 1; i < entry.busy.length; i++) {
+                    if (entry.busy[i] < entry.busy[replica] || (entry.busy[i] == entry.busy[replica]
+                            && entry.replicaLastUsed[i] < entry.replicaLastUsed[replica])) {
+                        replica = i;
+                    }
+                }
+                entry.busy[replica]++;
+                entry.replicaLastUsed[replica] = ++useClock;
+                return entry.modules[replica];
+            }
+        } catch (Exception e) {
+            release(index, null);
+            throw e;
+        }
+    }
+
+    /**
+     * Releases a module acquired with {@link #acquire(int)}, if the model was closed while the call
+     * was queued or running, it is destroyed here
+     *
+     * @param index the index of the model
+     * @param module the replica returned by acquire, null if the acquire failed
+     */
+    synchronized void release(int index, Module module) {
+        Entry entry = slots.get(index);
+        for (int i = 0; module != null && entry.modules != null && i < entry.modules.length; i++) {
+            if (entry.modules[i] == module) {
+                entry.busy[i]--;
+                break;
+            }
+        }
+        entry.refCount--;
+        if (entry.refCount == 0 && entry.closing) {
+            destroy(index, entry);
+        }
+    }
+
+    /**
+     * Closes the model, the module is destroyed as soon as no call is queued or running on it, and
+     * the index can then be given to another model
+     *
+     * @param index the index of the model
+     * @throws Exception if there is no model at the index
+     */
+    synchronized void close(int index) throws Exception {
+        Entry entry = entryOf(index);
+        entry.closing = true;
+        if (entry.refCount == 0) {
+            destroy(index, entry);
+        }
+    }
+
+    /**
+     * @param index the index of the model
+     * @return (int) how many times the model was loaded again after an eviction, a change means
+     *  that anything derived from the previous module must be dropped
+     * @throws Exception if there is no model at the index
+     */
+    synchronized int generationOf(int index) throws Exception {
+        return entryOf(index).generation;
+    }
+
+    /**
+     * @param index the index of the model
+     * @return (int) the number of replicas of the model
+     * @throws Exception if there is no model at the index
+     */
+    synchronized int replicasOf(int index) throws Exception {
+        return entryOf(index).busy.length;
+    }
+
+    /**
+     * Sets the memory budget of the loaded models, 0 means no budget
+     *
+     * @param bytes the budget in bytes
+     */
+    synchronized void setMemoryBudget(long bytes) {
+        memoryBudgetBytes = bytes;
+        evictToBudget(null);
+    }
+
+    /**
+     * Evicts all the models that are not running a call and can be loaded again, used when the
+     * system is low on memory
+     *
+     * @return (int) the number of models evicted
+     */
+    synchronized int trimIdle() {
+        int count = 0;
+        for (Entry entry : slots) {
+            if (isEvictable(entry)) {
+                evict(entry);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the memory used by the models, the budget, and the number of evictions and reloads
+     */
+    synchronized HashMap<String, Object> getStats() {
+        int models = 0;
+        int loaded = 0;
+        for (Entry entry : slots) {
+            if (entry != null) {
+                models++;
+                if (entry.modules != null) {
+                    loaded++;
+                }
+            }
+        }
+
+        HashMap<String, Object> stats = new HashMap<>();
+        stats.put("models", models);
+        stats.put("loadedModels", loaded);
+        stats.put("loadedBytes", loadedBytes);
+        stats.put("memoryBudgetBytes", memoryBudgetBytes);
+        stats.put("evictions", evictions);
+        stats.put("reloads", reloads);
+        return stats;
+    }
+
+    /**
+     * Closes all the models, used when the plugin is detached, the models still running a call are
+     * destroyed once the call is done
+     */
+    synchronized void closeAll() {
+        for (int i = 0; i < slots.size(); i++) {
+            Entry entry = slots.get(i);
+            if (entry != null && !entry.closing) {
+                entry.closing = true;
+                if (entry.refCount == 0) {
+                    destroy(i, entry);
+                }
+            }
+        }
+    }
+
+    private Entry entryOf(int index) throws Exception {
+        Entry entry = index >= 0 && index < slots.size() ? slots.get(index) : null;
+        if (entry == null) {
+            throw new Exception("No model loaded at index: " + index);
+        }
+        if (entry.closing) {
+            throw new Exception("The model at index " + index + " has been closed");
+        }
+        return entry;
+    }
+
+    private void destroy(int index, Entry entry) {
+        if (entry.modules != null) {
+            destroyAll(entry.modules);
+            entry.modules = null;
+            loadedBytes -= entry.footprintBytes;
+        }
+        slots.set(index, null);
+        freeSlots.add(index);
+    }
+
+    /**
+     * Evicts the least recently used idle models until the loaded models fit in the budget
+     *
+     * @param keep a model that must not be evicted, the one that was just loaded
+     */
+    private void evictToBudget(Entry keep) {
+        while (memoryBudgetBytes > 0 && loadedBytes > memoryBudgetBytes) {
+            Entry lru = null;
+            for (Entry entry : slots) {
+                if (entry != keep && isEvictable(entry) && (lru == null || entry.lastUsed < lru.lastUsed)) {
+                    lru = entry;
+                }
+            }
+            if (lru == null) {
+                // everything left is in use, or cannot be loaded again
+                return;
+            }
+            evict(lru);
+        }
+    }
+
+    private static boolean isEvictable(Entry entry) {
+        return entry != null && entry.modules != null && entry.refCount == 0 && !entry.closing && entry.path != null;
+    }
+
+    private void evict(Entry entry) {
+        destroyAll(entry.modules);
+        entry.modules = null;
+        loadedBytes -= entry.footprintBytes;
+        evictions++;
+    }
+
+    /**
+     * Loads the replicas of a model, the ones already loaded are destroyed if one fails
+     */
+    private Module[] loadReplicas(String path, int replicas) throws Exception {
+        Module[] modules = new Module[Math.max(1, replicas)];
+        try {
+            for (int i = 0; i < modules.length; i++) {
+                modules[i] = loader.load(path);
+            }
+        } catch (Exception e) {
+            destroyAll(modules);
+            throw e;
+        }
+        return modules;
+    }
+
+    private static void destroyAll(Module[] modules) {
+        for (Module module : modules) {
+            if (module != null) {
+                module.destroy();
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package io.satyajit.pytorch_flutter;
+
+import org.pytorch.DType;
+import org.pytorch.IValue;
+import org.pytorch.Tensor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Converts the IValue returned by the model to values that the StandardMessageCodec can send to
+ * flutter
+ *
+ * Dart <- Java
+ * null <- None
+ * bool, int, double, String <- bool, int, float, str
+ * List <- tuple, list
+ * Map <- dict
+ * Map{class_type: "Tensor", dtype, shape, data} <- Tensor
+ *
+ * The data of a Tensor is sent as a primitive array of its own dtype (Uint8List for UINT8 and
+ * INT8, Int32List, Int64List, Float64List), with no boxing. The StandardMessageCodec writes the
+ * elements of the number arrays one by one, so the Tensors larger than `rawThresholdBytes` are
+ * instead written as raw bytes in the native byte order straight into a new byte[], and sent as a
+ * single Uint8List with `"raw": true`, which the codec writes in one go. The codec of the flutter
+ * versions the plugin supports has no float array type, so the FLOAT32 Tensors are always sent raw
+ *
+ * When the call streams its output, the Tensors larger than a chunk are streamed by a
+ * {@link ChunkWriter}, and only their description is part of the encoded output
+ */
+class OutputEncoder {
+    static final int DEFAULT_RAW_THRESHOLD_BYTES = 256 * 1024;
+
+    private final int rawThresholdBytes;
+
+    /**
+     * @param rawThresholdBytes the size above which the Tensors are sent as raw bytes
+     */
+    OutputEncoder(int rawThresholdBytes) {
+        this.rawThresholdBytes = rawThresholdBytes;
+    }
+
+    /**
+     * Encodes the output of the model
+     *
+     * @param value the output received from forward or runMethod
+     * @return (Object) a value that can be sent with the StandardMessageCodec
+     * @throws Exception if the IValue holds a type that cannot be sent to flutter
+     */
+    Object encode(IValue value) throws Exception {
+        return encode(value, null);
+    }
+
+    /**
+     * Encodes the output of the model, streaming its large Tensors
+     *
+     * @param value the output received from forward or runMethod
+     * @param chunks streams the Tensors larger than a chunk, null to send them all in the output
+     * @return (Object) a value that can be sent with the StandardMessageCodec
+     * @throws Exception if the IValue holds a type that cannot be sent to flutter
+     */
+    Object encode(IValue value, ChunkWriter chunks) throws Exception {
+        if (value == null || value.isNull()) {
+            return null;
+        } else if (value.isTensor()) {
+            return encodeTensor(value.toTensor(), chunks);
+        } else if (value.isBool()) {
+            return value.toBool();
+        } else if (value.isLong()) {
+            return value.toLong();
+        } else if (value.isDouble()) {
+            return value.toDouble();
+        } else if (value.isString()) {
+            return value.toStr();
+        } else if (value.isLongList()) {
+            return value.toLongList();
+        } else if (value.isDoubleList()) {
+            return value.toDoubleList();
+        } else if (value.isBoolList()) {
+            // there is no boolean[] in the StandardMessageCodec, these lists are small anyway
+            boolean[] bools = value.toBoolList();
+            ArrayList<Boolean> list = new ArrayList<>(bools.length);
+            for (boolean b : bools) {
+                list.add(b);
+            }
+            return list;
+        } else if (value.isTensorList()) {
+            Tensor[] tensors = value.toTensorList();
+            ArrayList<Object> list = new ArrayList<>(tensors.length);
+            for (Tensor tensor : tensors) {
+                list.add(encodeTensor(tensor, chunks));
+            }
+            return list;
+        } else if (value.isList()) {
+            return encodeList(value.toList(), chunks);
+        } else if (value.isTuple()) {
+            return encodeList(value.toTuple(), chunks);
+        } else if (value.isDictStringKey()) {
+            HashMap<String, Object> map = new HashMap<>();
+            for (Map.Entry<String, IValue> entry : value.toDictStringKey().entrySet()) {
+                map.put(entry.getKey(), encode(entry.getValue(), chunks));
+            }
+            return map;
+        } else if (value.isDictLongKey()) {
+            HashMap<Long, Object> map = new HashMap<>();
+            for (Map.Entry<Long, IValue> entry : value.toDictLongKey().entrySet()) {
+                map.put(entry.getKey(), encode(entry.getValue(), chunks));
+            }
+            return map;
+        }
+        throw new Exception("Unsupported output IValue type");
+    }
+
+    private ArrayList<Object> encodeList(IValue[] values, ChunkWriter chunks) throws Exception {
+        ArrayList<Object> list = new ArrayList<>(values.length);
+        for (IValue value : values) {
+            list.add(encode(value, chunks));
+        }
+        return list;
+    }
+
+    private HashMap<String, Object> encodeTensor(Tensor tensor, ChunkWriter chunks) throws Exception {
+        if (chunks != null && chunks.accepts(tensor)) {
+            return chunks.write(tensor);
+        }
+        return encodeTensor(tensor);
+    }
+
+    /**
+     * Encodes a Tensor as a map with its dtype, shape and data
+     *
+     * @param tensor the Tensor to encode
+     * @return (HashMap) the representation of the Tensor sent to flutter
+     */
+    HashMap<String, Object> encodeTensor(Tensor tensor) {
+        return encodeTensor(tensor.dtype(), tensor.shape(), typedData(tensor));
+    }
+
+    /**
+     * Encodes the data of a Tensor as a map with its dtype, shape and data
+     *
+     * @param dtype the dtype of the Tensor
+     * @param shape the shape of the Tensor
+     * @param data the data as a primitive array of the dtype, see {@link #typedData(Tensor)}
+     * @return (HashMap) the representation of the Tensor sent to flutter
+     */
+    HashMap<String, Object> encodeTensor(DType dtype, long[] shape, Object data) {
+        HashMap<String, Object> map = new HashMap<>();
+        map.put("class_type", "Tensor");
+        map.put("dtype", dtype.toString());
+        map.put("shape", shape);
+
+        long sizeInBytes = TensorBufferPool.sizeInBytes(dtype, Tensor.numel(shape));
+        // byte arrays are always written in one go by the codec, so they never need the raw path,
+        // and float arrays can't be written by the codec at all
+        boolean raw = dtype == DType.FLOAT32
+                || sizeInBytes > rawThresholdBytes && dtype != DType.UINT8 && dtype != DType.INT8;
+        CallMetrics.current().addBytesOut(sizeInBytes);
+        map.put("raw", raw);
+        map.put("data", raw ? rawData(data) : data);
+        return map;
+    }
+
+    /**
+     * @return the data of the Tensor as a primitive array of its own dtype
+     */
+    static Object typedData(Tensor tensor) {
+        switch (tensor.dtype()) {
+            case UINT8:
+                return tensor.getDataAsUnsignedByteArray();
+            case INT8:
+                return tensor.getDataAsByteArray();
+            case INT32:
+                return tensor.getDataAsIntArray();
+            case FLOAT32:
+                return tensor.getDataAsFloatArray();
+            case INT64:
+                return tensor.getDataAsLongArray();
+            case FLOAT64:
+                return tensor.getDataAsDoubleArray();
+            default:
+                throw new IllegalArgumentException("Unsupported dtype: " + tensor.dtype());
+        }
+    }
+
+    /**
+     * Copies the data to a new byte[] in the native byte order, through a view of the array, so
+     * the elements are copied once
+     *
+     * @param data the data as a primitive array, see {@link #typedData(Tensor)}
+     * @return (byte[]) the raw bytes of the data
+     */
+    static byte[] rawData(Object data) {
+        if (data instanceof int[]) {
+            int[] array = (int[]) data;
+            byte[] bytes = new byte[4 * array.length];
+            ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder()).asIntBuffer().put(array);
+            return bytes;
+        } else if (data instanceof float[]) {
+            float[] array = (float[]) data;
+            byte[] bytes = new byte[4 * array.length];
+            ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder()).asFloatBuffer().put(array);
+            return bytes;
+        } else if (data instanceof long[]) {
+            long[] array = (long[]) data;
+            byte[] bytes = new byte[8 * array.length];
+            ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder()).asLongBuffer().put(array);
+            return bytes;
+        } else if (data instanceof double[]) {
+            double[] array = (double[]) data;
+            byte[] bytes = new byte[8 * array.length];
+            ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder()).asDoubleBuffer().put(array);
+            return bytes;
+        }
+        throw new IllegalArgumentException("Unsupported data type: " + data.getClass());
+    }
+}
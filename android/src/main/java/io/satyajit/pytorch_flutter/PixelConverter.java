@@ -0,0 +1,278 @@
+package io.satyajit.pytorch_flutter;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Converts raw pixels to normalized NCHW float data, without going through a Bitmap
+ *
+ * The camera frames and the decoded `dart:ui` images are sent as they are, RGBA/BGRA buffers or
+ * YUV_420_888 planes with their strides, and are written straight into the float buffer of the
+ * input Tensor. The crop, the rotation and the scaling to the output size are applied in the same
+ * pass, by nearest neighbour sampling through index tables computed once per call
+ *
+ * This class only uses java.nio, so it can run on a plain JVM
+ */
+class PixelConverter {
+    enum PixelFormat {
+        RGBA,
+        BGRA
+    }
+
+    /**
+     * The crop of the source image, the clockwise rotation applied to it, and the size it is
+     * scaled to
+     */
+    static class Transform {
+        final int cropX;
+        final int cropY;
+        final int cropWidth;
+        final int cropHeight;
+        final int rotation;
+        final int outWidth;
+        final int outHeight;
+
+        private Transform(int cropX, int cropY, int cropWidth, int cropHeight, int rotation, int outWidth,
+                          int outHeight) {
+            this.cropX = cropX;
+            this.cropY = cropY;
+            this.cropWidth = cropWidth;
+            this.cropHeight = cropHeight;
+            this.rotation = rotation;
+            this.outWidth = outWidth;
+            this.outHeight = outHeight;
+        }
+
+        /**
+         * @param width the width of the source image
+         * @param height the height of the source image
+         * @param cropX the left of the crop, the crop arguments are ignored when cropWidth is 0
+         * @param cropY the top of the crop
+         * @param cropWidth the width of the crop, 0 for the whole image
+         * @param cropHeight the height of the crop, 0 for the whole image
+         * @param rotation the clockwise rotation in degrees, 0, 90, 180 or 270
+         * @param outWidth the width of the output, 0 for the width of the rotated crop
+         * @param outHeight the height of the output, 0 for the height of the rotated crop
+         * @return (Transform) the validated transform
+         * @throws Exception if the crop is not inside the image or the rotation is not supported
+         */
+        static Transform of(int width, int height, int cropX, int cropY, int cropWidth, int cropHeight, int rotation,
+                            int outWidth, int outHeight) throws Exception {
+            if (cropWidth <= 0 || cropHeight <= 0) {
+                cropX = 0;
+                cropY = 0;
+                cropWidth = width;
+                cropHeight = height;
+            }
+            if (cropX < 0 || cropY < 0 || cropX + cropWidth > width || cropY + cropHeight > height) {
+                throw new Exception("The crop (" + cropX + ", " + cropY + ", " + cropWidth + "x" + cropHeight
+                        + ") is not inside the " + width + "x" + height + " image");
+            }
+            rotation = ((rotation % 360) + 360) % 360;
+            if (rotation % 90 != 0) {
+                throw new Exception("Only rotations by multiples of 90 degrees are supported, got " + rotation);
+            }
+            boolean swap = rotation == 90 || rotation == 270;
+            if (outWidth <= 0 || outHeight <= 0) {
+                outWidth = swap ? cropHeight : cropWidth;
+                outHeight = swap ? cropWidth : cropHeight;
+            }
+            return new Transform(cropX, cropY, cropWidth, cropHeight, rotation, outWidth, outHeight);
+        }
+
+        /**
+         * @return (long[]) the shape of the Tensor, {1, 3, outHeight, outWidth}
+         */
+        long[] shape() {
+            return new long[]{1, 3, outHeight, outWidth};
+        }
+
+        int numel() {
+            return 3 * outWidth * outHeight;
+        }
+
+        /**
+         * Maps every output column and row to the source pixels it samples
+         *
+         * For the rotations by 0 and 180 degrees the output x only depends on the source x, and the
+         * output y on the source y, for 90 and 270 they are swapped, so in every case the source
+         * coordinates of a pixel are read from one table indexed by x and one indexed by y
+         *
+         * @return (int[][]) the table indexed by the output x and the table indexed by the output y
+         */
+        int[][] indexTables() {
+            boolean swap = rotation == 90 || rotation == 270;
+            // the size of the crop once rotated, the output is that size scaled
+            int rotatedWidth = swap ? cropHeight : cropWidth;
+            int rotatedHeight = swap ? cropWidth : cropHeight;
+
+            int[] byX = new int[outWidth];
+            for (int x = 0; x < outWidth; x++) {
+                int u = (int) ((long) x * rotatedWidth / outWidth);
+                switch (rotation) {
+                    case 0:
+                        byX[x] = cropX + u;
+                        break;
+                    case 90:
+                        byX[x] = cropY + cropHeight - 1 - u;
+                        break;
+                    case 180:
+                        byX[x] = cropX + cropWidth - 1 - u;
+                        break;
+                    default:
+                        byX[x] = cropY + u;
+                        break;
+                }
+            }
+
+            int[] byY = new int[outHeight];
+            for (int y = 0; y < outHeight; y++) {
+                int v = (int) ((long) y * rotatedHeight / outHeight);
+                switch (rotation) {
+                    case 0:
+                        byY[y] = cropY + v;
+                        break;
+                    case 90:
+                        byY[y] = cropX + v;
+                        break;
+                    case 180:
+                        byY[y] = cropY + cropHeight - 1 - v;
+                        break;
+                    default:
+                        byY[y] = cropX + cropWidth - 1 - v;
+                        break;
+                }
+            }
+            return new int[][]{byX, byY};
+        }
+
+        boolean swapsAxes() {
+            return rotation == 90 || rotation == 270;
+        }
+    }
+
+    /**
+     * Writes an RGBA or BGRA image as normalized NCHW floats, the alpha is dropped
+     *
+     * @param data the pixels, 4 bytes each
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param rowStride the number of bytes between the start of two rows
+     * @param format the order of the channels
+     * @param transform the crop, rotation and output size
+     * @param mean the mean of each of the R, G and B channels, for values in [0, 1]
+     * @param std the standard deviation of each of the channels
+     * @param out the buffer of the Tensor
+     * @param offset the index of the first element to write to
+     * @throws Exception if the data is too short for the given size and stride
+     */
+    static void rgbaToFloat(byte[] data, int width, int height, int rowStride, PixelFormat format,
+                            Transform transform, float[] mean, float[] std, FloatBuffer out, int offset)
+            throws Exception {
+        if (rowStride < 4 * width || data.length < (long) (height - 1) * rowStride + 4 * width) {
+            throw new Exception("The pixel data is too short for a " + width + "x" + height
+                    + " image with a row stride of " + rowStride);
+        }
+        int red = format == PixelFormat.RGBA ? 0 : 2;
+        int blue = format == PixelFormat.RGBA ? 2 : 0;
+
+        int[][] tables = transform.indexTables();
+        boolean swap = transform.swapsAxes();
+        int outWidth = transform.outWidth;
+        int outHeight = transform.outHeight;
+        float[] scale = scaleOf(std);
+        float[] bias = biasOf(mean, std);
+        float[] rows = new float[3 * outWidth];
+
+        for (int y = 0; y < outHeight; y++) {
+            for (int x = 0; x < outWidth; x++) {
+                int sourceX = swap ? tables[1][y] : tables[0][x];
+                int sourceY = swap ? tables[0][x] : tables[1][y];
+                int pixel = sourceY * rowStride + 4 * sourceX;
+                rows[x] = (data[pixel + red] & 0xFF) * scale[0] + bias[0];
+                rows[outWidth + x] = (data[pixel + 1] & 0xFF) * scale[1] + bias[1];
+                rows[2 * outWidth + x] = (data[pixel + blue] & 0xFF) * scale[2] + bias[2];
+            }
+            putRows(rows, out, offset, y, outWidth, outHeight);
+        }
+    }
+
+    /**
+     * Writes a YUV_420_888 image as normalized NCHW floats, converted to RGB with the full range
+     * BT.601 matrix used by the Android cameras
+     *
+     * @param yPlane the luma plane
+     * @param uPlane the U (Cb) plane, subsampled by 2 in both directions
+     * @param vPlane the V (Cr) plane, subsampled by 2 in both directions
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param yRowStride the number of bytes between the start of two rows of the Y plane
+     * @param uvRowStride the number of bytes between the start of two rows of the U and V planes
+     * @param uvPixelStride the number of bytes between two pixels of the U and V planes, 2 when
+     *  they are interleaved
+     * @param transform the crop, rotation and output size
+     * @param mean the mean of each of the R, G and B channels, for values in [0, 1]
+     * @param std the standard deviation of each of the channels
+     * @param out the buffer of the Tensor
+     * @param offset the index of the first element to write to
+     * @throws Exception if a plane is too short for the given size and strides
+     */
+    static void yuv420ToFloat(byte[] yPlane, byte[] uPlane, byte[] vPlane, int width, int height, int yRowStride,
+                              int uvRowStride, int uvPixelStride, Transform transform, float[] mean, float[] std,
+                              FloatBuffer out, int offset) throws Exception {
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        long uvLength = (long) (chromaHeight - 1) * uvRowStride + (long) (chromaWidth - 1) * uvPixelStride + 1;
+        if (yPlane.length < (long) (height - 1) * yRowStride + width || uPlane.length < uvLength
+                || vPlane.length < uvLength) {
+            throw new Exception("The YUV planes are too short for a " + width + "x" + height + " image");
+        }
+
+        int[][] tables = transform.indexTables();
+        boolean swap = transform.swapsAxes();
+        int outWidth = transform.outWidth;
+        int outHeight = transform.outHeight;
+        float[] scale = scaleOf(std);
+        float[] bias = biasOf(mean, std);
+        float[] rows = new float[3 * outWidth];
+
+        for (int y = 0; y < outHeight; y++) {
+            for (int x = 0; x < outWidth; x++) {
+                int sourceX = swap ? tables[1][y] : tables[0][x];
+                int sourceY = swap ? tables[0][x] : tables[1][y];
+                int uv = (sourceY >> 1) * uvRowStride + (sourceX >> 1) * uvPixelStride;
+
+                float luma = yPlane[sourceY * yRowStride + sourceX] & 0xFF;
+                float cb = (uPlane[uv] & 0xFF) - 128f;
+                float cr = (vPlane[uv] & 0xFF) - 128f;
+                rows[x] = clamp(luma + 1.402f * cr) * scale[0] + bias[0];
+                rows[outWidth + x] = clamp(luma - 0.344136f * cb - 0.714136f * cr) * scale[1] + bias[1];
+                rows[2 * outWidth + x] = clamp(luma + 1.772f * cb) * scale[2] + bias[2];
+            }
+            putRows(rows, out, offset, y, outWidth, outHeight);
+        }
+    }
+
+    /**
+     * Copies one output row of each channel to its place in the NCHW buffer
+     */
+    private static void putRows(float[] rows, FloatBuffer out, int offset, int y, int outWidth, int outHeight) {
+        int plane = outWidth * outHeight;
+        for (int channel = 0; channel < 3; channel++) {
+            out.position(offset + channel * plane + y * outWidth);
+            out.put(rows, channel * outWidth, outWidth);
+        }
+    }
+
+    private static float clamp(float value) {
+        return value < 0f ? 0f : (value > 255f ? 255f : value);
+    }
+
+    // (value / 255 - mean) / std == value * scale + bias
+    private static float[] scaleOf(float[] std) {
+        return new float[]{1f / (255f * std[0]), 1f / (255f * std[1]), 1f / (255f * std[2])};
+    }
+
+    private static float[] biasOf(float[] mean, float[] std) {
+        return new float[]{-mean[0] / std[0], -mean[1] / std[1], -mean[2] / std[2]};
+    }
+}
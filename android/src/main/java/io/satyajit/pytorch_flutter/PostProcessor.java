@@ -0,0 +1,436 @@
+package io.satyajit.pytorch_flutter;
+
+import org.pytorch.DType;
+import org.pytorch.IValue;
+import org.pytorch.Tensor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reduces the output Tensor of a model to the small result the app needs, before it is sent to
+ * flutter, so the full logits or boxes never cross the channel
+ *
+ * - argmax: the best class of each row of the last dimension, with its score
+ * - topk: the k best classes of each row, sorted by score
+ * - threshold: every class of each row with a score of at least the threshold
+ * - nms: the boxes of a YOLO style detector that survive the non maximum suppression, the boxes of
+ *   different classes don't suppress each other unless classAware is false
+ *
+ * The scores can go through a softmax or a sigmoid first. The ops work on the float[] of the
+ * Tensor with primitive loops, the only allocations are the arrays of the result and, for nms,
+ * the arrays of the candidate boxes
+ *
+ * The classification ops return {class_type: "ScoredIndices", indices, scores, rowSplits}, the
+ * entries of row r are in [rowSplits[r], rowSplits[r + 1]). nms returns {class_type: "Detections",
+ * boxes, scores, classes, rowSplits}, with the boxes as x1, y1, x2, y2 and a row per image. The
+ * scores and boxes are sent as the raw bytes of their floats, see {@link OutputEncoder#rawData}
+ *
+ * This class only depends on the org.pytorch classes, so it can run on a plain JVM
+ */
+class PostProcessor {
+    enum Op {
+        ARGMAX,
+        TOPK,
+        THRESHOLD,
+        NMS
+    }
+
+    enum Activation {
+        NONE,
+        SOFTMAX,
+        SIGMOID
+    }
+
+    private final Op op;
+    private final Activation activation;
+    // the element of a tuple or list output that holds the Tensor
+    private final int outputIndex;
+    private final int k;
+    private final float threshold;
+
+    // nms only
+    private final float iouThreshold;
+    private final float scoreThreshold;
+    private final int maxDetections;
+    // the boxes are given as center x, center y, width, height instead of x1, y1, x2, y2
+    private final boolean centerBoxes;
+    // there is an objectness score after the box, the class scores are multiplied by it
+    private final boolean objectness;
+    private final boolean classAware;
+    // the Tensor is [batch, values, boxes] instead of [batch, boxes, values], like YOLOv8
+    private final boolean transposed;
+
+    private PostProcessor(Map<?, ?> spec) throws Exception {
+        Object opArg = spec.get("op");
+        if (opArg == null) {
+            throw new Exception("The postprocess spec has no op, supported ones are: argmax, topk, threshold, nms");
+        }
+        op = Op.valueOf(opArg.toString().toUpperCase());
+        Object activationArg = spec.get("activation");
+        activation = activationArg == null ? Activation.NONE : Activation.valueOf(activationArg.toString().toUpperCase());
+        outputIndex = intOf(spec, "outputIndex", 0);
+        k = op == Op.ARGMAX ? 1 : intOf(spec, "k", 5);
+        threshold = floatOf(spec, "threshold", 0.5f);
+
+        iouThreshold = floatOf(spec, "iouThreshold", 0.45f);
+        scoreThreshold = floatOf(spec, "scoreThreshold", 0.25f);
+        maxDetections = intOf(spec, "maxDetections", 100);
+        centerBoxes = !"xyxy".equals(spec.get("boxFormat"));
+        objectness = booleanOf(spec, "objectness", true);
+        classAware = booleanOf(spec, "classAware", true);
+        transposed = booleanOf(spec, "transposed", false);
+
+        if (k <= 0 || maxDetections <= 0) {
+            throw new Exception("k and maxDetections of the postprocess spec must be positive");
+        }
+        if (op == Op.NMS && activation == Activation.SOFTMAX) {
+            throw new Exception("The scores of nms can only go through a sigmoid");
+        }
+    }
+
+    /**
+     * Parses the postprocess spec sent with a call
+     *
+     * @param spec the spec received from flutter, may be null
+     * @return (PostProcessor) the post-processor of the spec, null if there is no spec
+     * @throws Exception if the spec is not valid
+     */
+    static PostProcessor of(Map<?, ?> spec) throws Exception {
+        if (spec == null) {
+            return null;
+        }
+        try {
+            return new PostProcessor(spec);
+        } catch (IllegalArgumentException e) {
+            throw new Exception("Invalid postprocess spec " + spec + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the op on the output of the model
+     *
+     * @param output the output of the model, a FLOAT32 Tensor, or a tuple or list holding one at
+     *  outputIndex
+     * @return (HashMap) the result, that can be sent with the StandardMessageCodec
+     * @throws Exception if the output does not hold a FLOAT32 Tensor of a suitable shape
+     */
+    HashMap<String, Object> apply(IValue output) throws Exception {
+        Tensor tensor = tensorOf(output);
+        if (tensor.dtype() != DType.FLOAT32) {
+            throw new Exception("postprocess needs a FLOAT32 output, got " + tensor.dtype());
+        }
+        long[] shape = tensor.shape();
+        if (shape.length == 0 || (op == Op.NMS && shape.length < 2)) {
+            throw new Exception("The output of shape " + Arrays.toString(shape) + " cannot be post-processed with " + op);
+        }
+        float[] data = tensor.getDataAsFloatArray();
+
+        HashMap<String, Object> result;
+        if (op == Op.NMS) {
+            int boxes = (int) shape[shape.length - (transposed ? 1 : 2)];
+            int values = (int) shape[shape.length - (transposed ? 2 : 1)];
+            result = nms(data, boxes * values == 0 ? 0 : data.length / (boxes * values), boxes, values);
+        } else {
+            int cols = (int) shape[shape.length - 1];
+            int rows = cols == 0 ? 0 : data.length / cols;
+            result = op == Op.THRESHOLD ? threshold(data, rows, cols) : topK(data, rows, cols);
+        }
+        CallMetrics.current().addBytesOut(sizeOf(result));
+        return result;
+    }
+
+    private Tensor tensorOf(IValue output) throws Exception {
+        if (output.isTensor()) {
+            return output.toTensor();
+        }
+        IValue[] values = output.isTuple() ? output.toTuple() : output.isList() ? output.toList() : null;
+        if (output.isTensorList()) {
+            Tensor[] tensors = output.toTensorList();
+            if (outputIndex < tensors.length) {
+                return tensors[outputIndex];
+            }
+        } else if (values != null && outputIndex < values.length && values[outputIndex].isTensor()) {
+            return values[outputIndex].toTensor();
+        }
+        throw new Exception("The output has no Tensor at outputIndex " + outputIndex + " to post-process");
+    }
+
+    /**
+     * The k highest scores of each row, in decreasing order, kept by insertion into a sorted
+     * window of k, which is faster than sorting the rows for the small k of the classifiers
+     */
+    HashMap<String, Object> topK(float[] data, int rows, int cols) {
+        int k = Math.min(this.k, cols);
+        int[] indices = new int[rows * k];
+        float[] scores = new float[rows * k];
+        int[] rowSplits = new int[rows + 1];
+
+        for (int row = 0; row < rows; row++) {
+            int base = row * cols;
+            int out = row * k;
+            int filled = 0;
+            for (int col = 0; col < cols; col++) {
+                float value = data[base + col];
+                if (filled == k && !(value > scores[out + k - 1])) {
+                    continue;
+                }
+                int position = Math.min(filled, k - 1);
+                while (position > 0 && scores[out + position - 1] < value) {
+                    scores[out + position] = scores[out + position - 1];
+                    indices[out + position] = indices[out + position - 1];
+                    position--;
+                }
+                scores[out + position] = value;
+                indices[out + position] = col;
+                if (filled < k) {
+                    filled++;
+                }
+            }
+
+            // the activations keep the order, so they are only applied to the k kept scores
+            if (activation == Activation.SOFTMAX) {
+                float max = scores[out];
+                float sum = expSum(data, base, cols, max);
+                for (int i = out; i < out + k; i++) {
+                    scores[i] = (float) Math.exp(scores[i] - max) / sum;
+                }
+            } else if (activation == Activation.SIGMOID) {
+                for (int i = out; i < out + k; i++) {
+                    scores[i] = sigmoid(scores[i]);
+                }
+            }
+            rowSplits[row + 1] = out + k;
+        }
+        return scoredIndices(indices, scores, rowSplits);
+    }
+
+    /**
+     * The scores of each row that are at least the threshold, in the order of the columns
+     */
+    HashMap<String, Object> threshold(float[] data, int rows, int cols) {
+        int[] indices = new int[16];
+        float[] scores = new float[16];
+        int[] rowSplits = new int[rows + 1];
+        int count = 0;
+
+        for (int row = 0; row < rows; row++) {
+            int base = row * cols;
+            float max = 0;
+            float sum = 1;
+            if (activation == Activation.SOFTMAX) {
+                max = Float.NEGATIVE_INFINITY;
+                for (int col = 0; col < cols; col++) {
+                    max = Math.max(max, data[base + col]);
+                }
+                sum = expSum(data, base, cols, max);
+            }
+
+            for (int col = 0; col < cols; col++) {
+                float value = data[base + col];
+                if (activation == Activation.SOFTMAX) {
+                    value = (float) Math.exp(value - max) / sum;
+                } else if (activation == Activation.SIGMOID) {
+                    value = sigmoid(value);
+                }
+                if (value >= threshold) {
+                    if (count == indices.length) {
+                        indices = Arrays.copyOf(indices, 2 * count);
+                        scores = Arrays.copyOf(scores, 2 * count);
+                    }
+                    indices[count] = col;
+                    scores[count] = value;
+                    count++;
+                }
+            }
+            rowSplits[row + 1] = count;
+        }
+        return scoredIndices(Arrays.copyOf(indices, count), Arrays.copyOf(scores, count), rowSplits);
+    }
+
+    /**
+     * The greedy non maximum suppression of the boxes of each image
+     *
+     * @param data the output of the detector, [batch, boxes, values] or [batch, values, boxes]
+     *  when transposed, the values of a box are the 4 coordinates, the objectness if any, and the
+     *  score of each class
+     * @param batch the number of images
+     * @param boxes the number of boxes of each image
+     * @param values the number of values of each box
+     */
+    HashMap<String, Object> nms(float[] data, int batch, int boxes, int values) throws Exception {
+        int firstClass = objectness ? 5 : 4;
+        if (values < firstClass) {
+            throw new Exception("The boxes of nms need at least " + firstClass + " values, got " + values);
+        }
+        // the candidates of one image, reused for each image
+        float[] candidateBoxes = new float[4 * boxes];
+        float[] candidateScores = new float[boxes];
+        int[] candidateClasses = new int[boxes];
+        long[] order = new long[boxes];
+        boolean[] suppressed = new boolean[boxes];
+
+        float[] keptBoxes = new float[4 * Math.min(maxDetections, boxes) * Math.max(batch, 1)];
+        float[] keptScores = new float[keptBoxes.length / 4];
+        int[] keptClasses = new int[keptBoxes.length / 4];
+        int[] rowSplits = new int[batch + 1];
+        int kept = 0;
+
+        // the stride between the values of a box, and between the boxes
+        int valueStride = transposed ? boxes : 1;
+        int boxStride = transposed ? 1 : values;
+
+        for (int image = 0; image < batch; image++) {
+            int base = image * boxes * values;
+            int candidates = 0;
+            for (int box = 0; box < boxes; box++) {
+                int offset = base + box * boxStride;
+                int bestClass = 0;
+                float best = values > firstClass ? Float.NEGATIVE_INFINITY : 1f;
+                for (int c = firstClass; c < values; c++) {
+                    float value = data[offset + c * valueStride];
+                    if (value > best) {
+                        best = value;
+                        bestClass = c - firstClass;
+                    }
+                }
+                float score = values > firstClass ? activate(best) : 1f;
+                if (objectness) {
+                    score *= activate(data[offset + 4 * valueStride]);
+                }
+                if (!(score >= scoreThreshold)) {
+                    continue;
+                }
+
+                float a = data[offset];
+                float b = data[offset + valueStride];
+                float c = data[offset + 2 * valueStride];
+                float d = data[offset + 3 * valueStride];
+                int out = 4 * candidates;
+                if (centerBoxes) {
+                    candidateBoxes[out] = a - c / 2;
+                    candidateBoxes[out + 1] = b - d / 2;
+                    candidateBoxes[out + 2] = a + c / 2;
+                    candidateBoxes[out + 3] = b + d / 2;
+                } else {
+                    candidateBoxes[out] = a;
+                    candidateBoxes[out + 1] = b;
+                    candidateBoxes[out + 2] = c;
+                    candidateBoxes[out + 3] = d;
+                }
+                candidateScores[candidates] = score;
+                candidateClasses[candidates] = bestClass;
+                // sorted as longs, the score in the high bits and the candidate in the low bits
+                order[candidates] = ((long) sortableBits(score) << 32) | candidates;
+                suppressed[candidates] = false;
+                candidates++;
+            }
+
+            Arrays.sort(order, 0, candidates);
+            int imageKept = 0;
+            for (int i = candidates - 1; i >= 0 && imageKept < maxDetections; i--) {
+                int candidate = (int) order[i];
+                if (suppressed[candidate]) {
+                    continue;
+                }
+                System.arraycopy(candidateBoxes, 4 * candidate, keptBoxes, 4 * kept, 4);
+                keptScores[kept] = candidateScores[candidate];
+                keptClasses[kept] = candidateClasses[candidate];
+                kept++;
+                imageKept++;
+
+                for (int j = i - 1; j >= 0; j--) {
+                    int other = (int) order[j];
+                    if (!suppressed[other] && (!classAware || candidateClasses[other] == candidateClasses[candidate])
+                            && iou(candidateBoxes, candidate, other) > iouThreshold) {
+                        suppressed[other] = true;
+                    }
+                }
+            }
+            rowSplits[image + 1] = kept;
+        }
+
+        HashMap<String, Object> result = new HashMap<>();
+        result.put("class_type", "Detections");
+        result.put("boxes", OutputEncoder.rawData(Arrays.copyOf(keptBoxes, 4 * kept)));
+        result.put("scores", OutputEncoder.rawData(Arrays.copyOf(keptScores, kept)));
+        result.put("classes", Arrays.copyOf(keptClasses, kept));
+        result.put("rowSplits", rowSplits);
+        return result;
+    }
+
+    private float activate(float value) {
+        return activation == Activation.SIGMOID ? sigmoid(value) : value;
+    }
+
+    private static float sigmoid(float value) {
+        return 1f / (1f + (float) Math.exp(-value));
+    }
+
+    private static float expSum(float[] data, int base, int cols, float max) {
+        float sum = 0;
+        for (int col = 0; col < cols; col++) {
+            sum += (float) Math.exp(data[base + col] - max);
+        }
+        return sum;
+    }
+
+    private static float iou(float[] boxes, int i, int j) {
+        float left = Math.max(boxes[4 * i], boxes[4 * j]);
+        float top = Math.max(boxes[4 * i + 1], boxes[4 * j + 1]);
+        float right = Math.min(boxes[4 * i + 2], boxes[4 * j + 2]);
+        float bottom = Math.min(boxes[4 * i + 3], boxes[4 * j + 3]);
+        float intersection = Math.max(0f, right - left) * Math.max(0f, bottom - top);
+        float union = areaOf(boxes, i) + areaOf(boxes, j) - intersection;
+        return union <= 0f ? 0f : intersection / union;
+    }
+
+    private static float areaOf(float[] boxes, int i) {
+        return Math.max(0f, boxes[4 * i + 2] - boxes[4 * i]) * Math.max(0f, boxes[4 * i + 3] - boxes[4 * i + 1]);
+    }
+
+    /**
+     * @return the bits of the float as an int that sorts in the same order as the float
+     */
+    static int sortableBits(float value) {
+        int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+
+    private static HashMap<String, Object> scoredIndices(int[] indices, float[] scores, int[] rowSplits) {
+        HashMap<String, Object> result = new HashMap<>();
+        result.put("class_type", "ScoredIndices");
+        result.put("indices", indices);
+        result.put("scores", OutputEncoder.rawData(scores));
+        result.put("rowSplits", rowSplits);
+        return result;
+    }
+
+    private static long sizeOf(HashMap<String, Object> result) {
+        long bytes = 0;
+        for (Object value : result.values()) {
+            if (value instanceof int[]) {
+                bytes += 4L * ((int[]) value).length;
+            } else if (value instanceof byte[]) {
+                bytes += ((byte[]) value).length;
+            }
+        }
+        return bytes;
+    }
+
+    private static int intOf(Map<?, ?> spec, String key, int defaultValue) {
+        Object value = spec.get(key);
+        return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+    }
+
+    private static float floatOf(Map<?, ?> spec, String key, float defaultValue) {
+        Object value = spec.get(key);
+        return value instanceof Number ? ((Number) value).floatValue() : defaultValue;
+    }
+
+    private static boolean booleanOf(Map<?, ?> spec, String key, boolean defaultValue) {
+        Object value = spec.get(key);
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+}
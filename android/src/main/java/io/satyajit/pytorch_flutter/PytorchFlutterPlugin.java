@@ -2,18 +2,18 @@ package io.satyajit.pytorch_flutter;
 
 import androidx.annotation.NonNull;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
-import com.google.common.primitives.Bytes;
-import com.google.common.primitives.Doubles;
-import com.google.common.primitives.Floats;
-import com.google.common.primitives.Ints;
-import com.google.common.primitives.Longs;
-
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
+import io.flutter.plugin.common.BasicMessageChannel;
+import io.flutter.plugin.common.BinaryCodec;
+import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
@@ -25,14 +25,27 @@ import org.pytorch.IValue;
 import org.pytorch.Module;
 import org.pytorch.Tensor;
 
-import java.security.spec.ECField;
+import java.io.File;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Objects;
-import java.util.function.Function;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.pytorch.torchvision.TensorImageUtils;
 
@@ -40,21 +53,97 @@ import org.pytorch.torchvision.TensorImageUtils;
 public class PytorchFlutterPlugin implements FlutterPlugin, MethodCallHandler {
     static String LOGTAG = "PyTorchFlutter";
     static String CHANNEL = "pytorch_flutter";
+    static String TENSOR_CHANNEL = "pytorch_flutter/tensor";
+    static String STREAM_CHANNEL = "pytorch_flutter/stream";
+    static String STATS_CHANNEL = "pytorch_flutter/stats";
+    static String GENERATE_CHANNEL = "pytorch_flutter/generate";
+    static String CHUNK_CHANNEL = "pytorch_flutter/chunks";
+    static long MAX_POOLED_BUFFER_BYTES = 64L * 1024 * 1024;
+    static int MAX_POOLED_BITMAPS = 8;
+    static long DEFAULT_HANDLE_TTL_MILLIS = 60 * 1000;
+    static long HANDLE_SWEEP_MILLIS = 1000;
 
     enum PTFLErrors {
         ERROR_LOADINNG_MODEL,
         ERROR_RUNNING_FORWARD,
         ERROR_RUNNING_FORWARD_LIST,
-        ERROR_DATATYPE_MISMATCH
+        ERROR_DATATYPE_MISMATCH,
+        ERROR_INVALID_ARGUMENT,
+        ERROR_CLOSING_MODEL,
+        ERROR_REQUEST_CANCELLED,
+        ERROR_DEADLINE_EXCEEDED
     }
 
     // Flutter Binding Variables
     private MethodChannel channel;
+    private BasicMessageChannel<ByteBuffer> tensorChannel;
+    private EventChannel streamChannel;
+    // the sink of the stream events, null while flutter is not listening
+    private volatile EventChannel.EventSink streamSink;
+    private EventChannel statsChannel;
+    // sends the stats on an interval while flutter listens to the stats channel
+    private ScheduledFuture<?> statsTimer;
+    private EventChannel generateChannel;
+    // the sink of the generated tokens, null while flutter is not listening
+    private volatile EventChannel.EventSink generateSink;
+    private EventChannel chunkChannel;
+    // the sink of the chunks of the streamed outputs, null while flutter is not listening
+    private volatile EventChannel.EventSink chunkSink;
     private Context applicationContext;
     private FlutterPluginBinding pluginBinding;
 
     // PyTorch Plugin Variables
-    ArrayList<Module> modules = new ArrayList<>();
+    // the modules are loaded on the loader threads and used from the inference workers
+    private final ModelRegistry registry = new ModelRegistry(Module::load);
+
+    // drops the idle models when the system runs low on memory, they are loaded again when used
+    private final ComponentCallbacks2 memoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            // TRIM_MEMORY_UI_HIDDEN only means that the app went to the background
+            if (level == TRIM_MEMORY_RUNNING_LOW || level == TRIM_MEMORY_RUNNING_CRITICAL
+                    || level >= TRIM_MEMORY_BACKGROUND) {
+                trimMemory();
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            trimMemory();
+        }
+
+        @Override
+        public void onConfigurationChanged(@NonNull Configuration configuration) {
+        }
+    };
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private InferenceScheduler scheduler;
+    // loads the models, the threads are only kept while loads are coming in
+    private ExecutorService loadExecutor;
+    private ModelCache modelCache;
+    // the batchers of the models that have batching turned on, and the timer that flushes them,
+    // which also sends the stats on an interval
+    private final ConcurrentHashMap<Integer, MicroBatcher> batchers = new ConcurrentHashMap<>();
+    // the result caches of the models that have one, see ResultCache
+    private final ConcurrentHashMap<Integer, ResultCache> resultCaches = new ConcurrentHashMap<>();
+    private ScheduledExecutorService batchTimer;
+    // the calls with a request id or a deadline, see RequestTracker
+    private RequestTracker requests;
+    // the open frame streams, by session id
+    private final ConcurrentHashMap<Integer, StreamSession> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger nextStreamId = new AtomicInteger();
+    // the generations waiting or running, by the id flutter gave them, so they can be stopped
+    private final ConcurrentHashMap<Integer, TokenGenerator> generations = new ConcurrentHashMap<>();
+    // the direct buffers backing the input Tensors are reused across calls
+    private final TensorConverter converter = new TensorConverter(new TensorBufferPool(MAX_POOLED_BUFFER_BYTES));
+    // decodes the ImageTensors at the size the model wants, into pooled bitmaps
+    private final ImagePreprocessor imagePreprocessor = new ImagePreprocessor(MAX_POOLED_BITMAPS);
+    // the outputs are encoded on the worker thread, while the input buffers are still held
+    private final OutputEncoder outputEncoder = new OutputEncoder(OutputEncoder.DEFAULT_RAW_THRESHOLD_BYTES);
+    // the latency of the stages of the calls, and their counters
+    private final CallMetrics metrics = new CallMetrics();
+    // the outputs kept on this end for later calls, see OutputSpec
+    private final TensorHandleStore handles = new TensorHandleStore();
 
     @Override
     public void onAttachedToEngine(@NonNull FlutterPluginBinding flutterPluginBinding) {
@@ -63,70 +152,389 @@ public class PytorchFlutterPlugin implements FlutterPlugin, MethodCallHandler {
         channel = new MethodChannel(flutterPluginBinding.getBinaryMessenger(), CHANNEL);
         channel.setMethodCallHandler(this);
 
+        // the binary channel for the Tensor inputs, see TensorMessageCodec
+        tensorChannel = new BasicMessageChannel<>(flutterPluginBinding.getBinaryMessenger(), TENSOR_CHANNEL, BinaryCodec.INSTANCE);
+        tensorChannel.setMessageHandler(this::onTensorMessage);
+
+        // the results of the frame streams, see StreamSession
+        streamChannel = new EventChannel(flutterPluginBinding.getBinaryMessenger(), STREAM_CHANNEL);
+        streamChannel.setStreamHandler(new EventChannel.StreamHandler() {
+            @Override
+            public void onListen(Object arguments, EventChannel.EventSink events) {
+                streamSink = events;
+            }
+
+            @Override
+            public void onCancel(Object arguments) {
+                streamSink = null;
+            }
+        });
+
+        // the stats sent on an interval, the interval is given when flutter starts listening
+        statsChannel = new EventChannel(flutterPluginBinding.getBinaryMessenger(), STATS_CHANNEL);
+        statsChannel.setStreamHandler(new EventChannel.StreamHandler() {
+            @Override
+            public void onListen(Object arguments, EventChannel.EventSink events) {
+                startStatsTimer((HashMap<?, ?>) arguments, events);
+            }
+
+            @Override
+            public void onCancel(Object arguments) {
+                stopStatsTimer();
+            }
+        });
+
+        // the tokens of the generations, see TokenGenerator
+        generateChannel = new EventChannel(flutterPluginBinding.getBinaryMessenger(), GENERATE_CHANNEL);
+        generateChannel.setStreamHandler(new EventChannel.StreamHandler() {
+            @Override
+            public void onListen(Object arguments, EventChannel.EventSink events) {
+                generateSink = events;
+            }
+
+            @Override
+            public void onCancel(Object arguments) {
+                generateSink = null;
+            }
+        });
+
+        // the chunks of the large output Tensors, see ChunkWriter
+        chunkChannel = new EventChannel(flutterPluginBinding.getBinaryMessenger(), CHUNK_CHANNEL);
+        chunkChannel.setStreamHandler(new EventChannel.StreamHandler() {
+            @Override
+            public void onListen(Object arguments, EventChannel.EventSink events) {
+                chunkSink = events;
+            }
+
+            @Override
+            public void onCancel(Object arguments) {
+                chunkSink = null;
+            }
+        });
+
         applicationContext = flutterPluginBinding.getApplicationContext();
+        applicationContext.registerComponentCallbacks(memoryCallbacks);
+
+        scheduler = new InferenceScheduler(InferenceScheduler.defaultMaxThreads(), registry);
+        loadExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "pytorch_flutter-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        modelCache = new ModelCache(applicationContext);
+        batchTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "pytorch_flutter-batch-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        requests = new RequestTracker(batchTimer, mainHandler::post);
+        batchTimer.scheduleWithFixedDelay(handles::releaseExpired, HANDLE_SWEEP_MILLIS, HANDLE_SWEEP_MILLIS,
+                TimeUnit.MILLISECONDS);
     }
 
     @Override
     public void onMethodCall(@NonNull MethodCall call, @NonNull Result result) {
 
         switch (call.method) {
+            /// the models are loaded on the loader threads, an asset is extracted to the model cache
+            /// the first time it is loaded, which can take a while for large models
             case "loadModelFromAsset": {
+                submitLoad(() -> loadModelFromAsset((HashMap) call.arguments), result, "Error Loading model from asset");
+            }
+            break;
+            case "loadModelFromFile": {
+                submitLoad(() -> loadModelFromFile((HashMap) call.arguments), result, "Error Loading model from file");
+            }
+            break;
+            /// "preloadModels" loads a list of models in parallel, and warms each of them up with
+            /// dummy inputs, every model is reported with "onModelPreloaded" as soon as it is ready,
+            /// and the call completes with the reports of all the models
+            case "preloadModels": {
+                preloadModels(call, result);
+            }
+            break;
+            /// "startStream" opens a frame stream on a model, the results of the frames are sent on
+            /// the stream event channel, and the frames are dropped when the model can't keep up
+            case "startStream": {
+                startStream(call, result);
+            }
+            break;
+            /// "submitFrame" adds a frame to a stream, and completes right away with false if the
+            /// frame was dropped
+            case "submitFrame": {
+                Integer sessionId = call.argument("sessionId");
+                StreamSession session = sessionId == null ? null : streams.get(sessionId);
+                if (session == null) {
+                    result.error(PTFLErrors.ERROR_INVALID_ARGUMENT.toString(), "No stream with the id " + sessionId, null);
+                } else {
+                    Number frameId = call.argument("frameId");
+                    result.success(session.add(frameId == null ? 0 : frameId.longValue(), call.argument("timestamp"),
+                            call.argument("input")));
+                }
+            }
+            break;
+            case "stopStream": {
+                Integer sessionId = call.argument("sessionId");
+                StreamSession session = sessionId == null ? null : streams.remove(sessionId);
+                result.success(session == null ? null : session.close());
+            }
+            break;
+            case "getStreamStats": {
+                Integer sessionId = call.argument("sessionId");
+                StreamSession session = sessionId == null ? null : streams.get(sessionId);
+                result.success(session == null ? null : session.getStats());
+            }
+            break;
+            /// "getModelCacheStats" returns the size of the model cache, and the time taken by the
+            /// loads from an asset that had to be extracted (cold) and the ones that did not (warm)
+            case "getModelCacheStats": {
+                result.success(modelCache.getStats());
+            }
+            break;
+            /// "getStats" returns the latency of each stage of the calls and their counters, per model
+            /// and method, along with the scheduler, memory and model cache stats
+            case "getStats": {
+                result.success(getStats(Boolean.TRUE.equals(call.argument("reset"))));
+            }
+            break;
+            case "resetStats": {
+                metrics.reset();
+                result.success(null);
+            }
+            break;
+            /// "forward" is used to run the "forward" method of the module
+            case "forward": {
+                MicroBatcher batcher = batchers.get(modelIndexOf(call));
+                // the cache is looked up on the worker, the calls of a model with a cache are not batched
+                if (batcher != null && isBatchable(call) && !resultCaches.containsKey(modelIndexOf(call))) {
+                    batcher.add((HashMap<?, ?>) call.arguments, result);
+                } else {
+                    submitCall(call, "forward", () -> cachedCall(call, "forward", () -> modelForward(call)), result,
+                            PTFLErrors.ERROR_RUNNING_FORWARD, "Error running forward(input) on Model");
+                }
+            }
+            break;
+            /// "forwardList" is used to run the "forward" method of the module but with variable list of
+            /// arguments
+            case "forwardList": {
+                submitCall(call, "forward", () -> cachedCall(call, "forward", () -> modelForwardList(call)), result,
+                        PTFLErrors.ERROR_RUNNING_FORWARD_LIST, "Error running forward(...inputs) on Model");
+            }
+            break;
+            case "runMethod": {
+                submitCall(call, call.argument("methodName"),
+                        () -> cachedCall(call, call.argument("methodName"), () -> modelRunMethod(call)), result,
+                        PTFLErrors.ERROR_RUNNING_FORWARD_LIST, "Error running forward(...inputs) on Model");
+            }
+            break;
+            case "runMethodList": {
+                submitCall(call, call.argument("methodName"),
+                        () -> cachedCall(call, call.argument("methodName"), () -> modelRunMethodList(call)), result,
+                        PTFLErrors.ERROR_RUNNING_FORWARD_LIST, "Error running forward(...inputs) on Model");
+            }
+            break;
+            /// "forwardMany" runs the "forward" method once per input, the inputs are spread across the
+            /// replicas of the model, and the call completes with the outputs in the order of the inputs
+            case "forwardMany": {
+                forwardMany(call, result);
+            }
+            break;
+            /// "measureReplicaScaling" runs the same input on 1 to all the replicas of the model, and
+            /// reports the calls per second of each number of replicas
+            case "measureReplicaScaling": {
                 try {
-                    int modelIndex = loadModelFromAsset((HashMap) call.arguments);
-                    result.success(modelIndex);
+                    loadExecutor.execute(() -> {
+                        try {
+                            scheduler.postSuccess(result, measureReplicaScaling(call));
+                        } catch (Exception e) {
+                            Log.e(LOGTAG, "Error measuring the replica scaling", e);
+                            scheduler.postError(result, PTFLErrors.ERROR_RUNNING_FORWARD.toString(),
+                                    "Error measuring the replica scaling", e);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    result.error(PTFLErrors.ERROR_RUNNING_FORWARD.toString(), "Error measuring the replica scaling",
+                            e.toString());
+                }
+            }
+            break;
+            /// "generate" runs the token by token decoding of a sequence model on its worker, the
+            /// tokens are sent on the generate event channel as they are picked, and the call
+            /// completes with all of them
+            case "generate": {
+                int generationId;
+                TokenGenerator generator;
+                try {
+                    generationId = Objects.requireNonNull(call.argument("generationId"));
+                    generator = newGenerator(call);
                 } catch (Exception e) {
-                    result.error(PTFLErrors.ERROR_LOADINNG_MODEL.toString(), "Error Loading model from asset", e);
+                    result.error(PTFLErrors.ERROR_INVALID_ARGUMENT.toString(), "Invalid generate arguments", e.toString());
+                    break;
                 }
+                // registered before being queued, so it can be stopped while waiting
+                generations.put(generationId, generator);
+                submitCall(call, call.argument("methodName"), () -> generate(call, generationId, generator), result,
+                        PTFLErrors.ERROR_RUNNING_FORWARD_LIST, "Error running generate on Model");
             }
             break;
-            case "loadModelFromFile": {
+            /// "cancel" cancels the call with the given requestId, a call still waiting for its model
+            /// fails right away, a running call fails before its model runs
+            case "cancel": {
+                String requestId = call.argument("requestId");
+                result.success(requestId != null && requests.cancel(requestId));
+            }
+            break;
+            /// "stopGeneration" stops a generation after the step it is running, the call of the
+            /// generation completes with the tokens generated so far
+            case "stopGeneration": {
+                Integer generationId = call.argument("generationId");
+                TokenGenerator generator = generationId == null ? null : generations.get(generationId);
+                if (generator != null) {
+                    generator.cancel();
+                }
+                result.success(generator != null);
+            }
+            break;
+            /// "closeModel" destroys the model once the calls queued or running on it are done
+            case "closeModel": {
                 try {
-                    int modelIndex = loadModelFromFile((HashMap) call.arguments);
-                    result.success(modelIndex);
+                    int index = modelIndexOf(call);
+                    MicroBatcher batcher = batchers.remove(index);
+                    if (batcher != null) {
+                        batcher.flush();
+                    }
+                    // the streams of the model can't run anymore
+                    for (StreamSession session : streams.values()) {
+                        if (session.getModelIndex() == index) {
+                            streams.remove(session.getSessionId());
+                            session.close();
+                        }
+                    }
+                    registry.close(index);
+                    metrics.remove(index);
+                    resultCaches.remove(index);
+                    // a model loaded later at the same index starts with the default threads
+                    scheduler.setNumThreads(index, 0);
+                    result.success(true);
                 } catch (Exception e) {
-                    result.error(PTFLErrors.ERROR_LOADINNG_MODEL.toString(), "Error Loading model from file", e);
+                    result.error(PTFLErrors.ERROR_CLOSING_MODEL.toString(), "Error closing the model", e.toString());
                 }
             }
             break;
-            /// "forward" is used to run the "forward" method of the module
-            case "forward": {
+            /// "setMemoryBudget" sets the memory the loaded models can use, the least recently used
+            /// idle models are evicted and loaded again when needed, 0 removes the budget
+            case "setMemoryBudget": {
+                Number bytes = call.argument("bytes");
+                registry.setMemoryBudget(bytes == null ? 0 : bytes.longValue());
+                result.success(getMemoryStats());
+            }
+            break;
+            case "getMemoryStats": {
+                result.success(getMemoryStats());
+            }
+            break;
+            /// "fetchHandle" sends the value of a kept output, and releases its handle if "release"
+            /// is true, the value is encoded on a loader thread since it can be large
+            case "fetchHandle": {
+                fetchHandle(call, result);
+            }
+            break;
+            /// "releaseHandles" releases the kept outputs of the "handles", and returns the number
+            /// of handles that were still held
+            case "releaseHandles": {
+                ArrayList<?> ids = call.argument("handles");
+                int released = 0;
+                if (ids != null) {
+                    for (Object id : ids) {
+                        if (handles.release(((Number) id).intValue())) {
+                            released++;
+                        }
+                    }
+                }
+                result.success(released);
+            }
+            break;
+            /// "getQueueDepth" returns the number of calls waiting or running on the model
+            case "getQueueDepth": {
+                result.success(scheduler.getQueueDepth(modelIndexOf(call)));
+            }
+            break;
+            /// "configureScheduler" changes the number of models that can run in parallel, and how
+            /// many of them can run BACKGROUND calls
+            case "configureScheduler": {
                 try {
-                    Object output = modelForward(call);
-                    result.success(output);
+                    int maxThreads = Objects.requireNonNull(call.argument("maxThreads"));
+                    Integer maxBackgroundThreads = call.argument("maxBackgroundThreads");
+                    if (maxBackgroundThreads == null) {
+                        scheduler.setMaxThreads(maxThreads);
+                    } else {
+                        scheduler.setMaxThreads(maxThreads, maxBackgroundThreads);
+                    }
+                    result.success(scheduler.getMaxThreads());
                 } catch (Exception e) {
-                    result.error(PTFLErrors.ERROR_RUNNING_FORWARD.toString(), "Error running forward(input) on Model", e);
+                    result.error(PTFLErrors.ERROR_INVALID_ARGUMENT.toString(), "Error configuring the scheduler", e.toString());
                 }
             }
             break;
-            /// "forwardList" is used to run the "forward" method of the module but with variable list of
-            /// arguments
-            case "forwardList": {
+            /// "setNumThreads" sets the intra-op threads PyTorch uses for the calls of a model, 0
+            /// for the default
+            case "setNumThreads": {
                 try {
-                    Object output = modelForwardList(call);
-                    result.success(output);
+                    int index = modelIndexOf(call);
+                    int numThreads = Objects.requireNonNull(call.argument("numThreads"));
+                    registry.generationOf(index);
+                    scheduler.setNumThreads(index, numThreads);
+                    result.success(true);
                 } catch (Exception e) {
-                    result.error(PTFLErrors.ERROR_RUNNING_FORWARD_LIST.toString(), "Error running forward(...inputs) on Model", e);
+                    result.error(PTFLErrors.ERROR_INVALID_ARGUMENT.toString(), "Error setting the number of threads", e.toString());
                 }
             }
             break;
-            case "runMethod": {
+            /// "configureResultCache" gives a model a cache of its outputs of at most maxBytes, for
+            /// the models that always return the same output for the same input, a maxBytes of 0
+            /// removes the cache
+            case "configureResultCache": {
                 try {
-                    Object output = modelRunMethod(call);
-                    result.success(output);
+                    int index = modelIndexOf(call);
+                    Number maxBytes = Objects.requireNonNull(call.argument("maxBytes"));
+                    registry.generationOf(index);
+                    if (maxBytes.longValue() > 0) {
+                        resultCaches.put(index, new ResultCache(maxBytes.longValue()));
+                    } else {
+                        resultCaches.remove(index);
+                    }
+                    result.success(true);
                 } catch (Exception e) {
-                    result.error(PTFLErrors.ERROR_RUNNING_FORWARD_LIST.toString(), "Error running forward(...inputs) on Model", e);
+                    result.error(PTFLErrors.ERROR_INVALID_ARGUMENT.toString(), "Error configuring the result cache", e.toString());
                 }
             }
             break;
-            case "runMethodList": {
+            case "getResultCacheStats": {
+                ResultCache cache = resultCaches.get(modelIndexOf(call));
+                Boolean clear = call.argument("clear");
+                if (cache != null && Boolean.TRUE.equals(clear)) {
+                    cache.clear();
+                }
+                result.success(cache == null ? null : cache.getStats());
+            }
+            break;
+            /// "configureBatching" turns on the batching of the forward calls of a model, a
+            /// maxBatchSize of 1 or less turns it off
+            case "configureBatching": {
                 try {
-                    Object output = modelRunMethodList(call);
-                    result.success(output);
+                    configureBatching(call);
+                    result.success(true);
                 } catch (Exception e) {
-                    result.error(PTFLErrors.ERROR_RUNNING_FORWARD_LIST.toString(), "Error running forward(...inputs) on Model", e);
+                    result.error(PTFLErrors.ERROR_INVALID_ARGUMENT.toString(), "Error configuring the batching", e.toString());
                 }
             }
             break;
+            case "getBatchingStats": {
+                MicroBatcher batcher = batchers.get(modelIndexOf(call));
+                Boolean reset = call.argument("reset");
+                result.success(batcher == null ? null : batcher.getStats(reset != null && reset));
+            }
+            break;
             default:
                 result.notImplemented();
                 break;
@@ -134,6 +542,359 @@ public class PytorchFlutterPlugin implements FlutterPlugin, MethodCallHandler {
 
     }
 
+    /**
+     * Handles a message on the binary tensor channel, the inputs are copied into the Tensor buffers
+     * right away, since the message is only valid during this callback, and the model is run on
+     * the queue of the model like the other calls
+     *
+     * @param message the request encoded by the Dart end, see TensorMessageCodec
+     * @param reply the reply, it receives either the output Tensors or the error
+     */
+    private void onTensorMessage(ByteBuffer message, @NonNull BasicMessageChannel.Reply<ByteBuffer> reply) {
+        long received = System.nanoTime();
+        long bytesIn = Objects.requireNonNull(message).remaining();
+        TensorConverter.Lease lease = converter.newLease();
+        TensorMessageCodec.Request request;
+        try {
+            request = TensorMessageCodec.decodeRequest(message, lease);
+        } catch (Exception e) {
+            lease.close();
+            reply.reply(TensorMessageCodec.encodeError(PTFLErrors.ERROR_INVALID_ARGUMENT.toString(), e.toString()));
+            return;
+        }
+        long decodeNanos = System.nanoTime() - received;
+
+        scheduler.submit(request.modelIndex, InferenceScheduler.Priority.NORMAL, () -> {
+            CallMetrics.Timer timer = CallMetrics.begin(received);
+            timer.add(CallMetrics.Stage.DECODE, decodeNanos);
+            timer.addBytesIn(bytesIn);
+            try {
+                IValue output = runModel(request.modelIndex, request.methodName, request.inputs);
+                long start = System.nanoTime();
+                ByteBuffer encoded = TensorMessageCodec.encodeReply(output);
+                timer.lap(CallMetrics.Stage.ENCODE, start);
+                timer.addBytesOut(encoded.remaining());
+                metrics.end(request.modelIndex, request.methodName, null);
+                return encoded;
+            } catch (Exception e) {
+                metrics.end(request.modelIndex, request.methodName, PTFLErrors.ERROR_RUNNING_FORWARD.toString());
+                throw e;
+            } finally {
+                lease.close();
+            }
+        }, new TensorReplyResult(reply), PTFLErrors.ERROR_RUNNING_FORWARD, "Error running the tensor message on Model");
+    }
+
+    /**
+     * Turns the batching of the forward calls of a model on or off
+     *
+     * @param call the call parameters from Flutter end, must contain "index", "maxBatchSize" and
+     *  "maxWaitMicros"
+     */
+    private void configureBatching(MethodCall call) {
+        int index = Objects.requireNonNull(call.argument("index"));
+        int maxBatchSize = Objects.requireNonNull(call.argument("maxBatchSize"));
+        Number maxWaitMicros = Objects.requireNonNull(call.argument("maxWaitMicros"));
+
+        MicroBatcher previous;
+        if (maxBatchSize <= 1) {
+            previous = batchers.remove(index);
+        } else {
+            MicroBatcher batcher = new MicroBatcher(index, maxBatchSize, maxWaitMicros.longValue(), scheduler,
+                    batchTimer, converter, outputEncoder, this::parseBatchInput,
+                    input -> runModel(index, "forward", input), metrics);
+            previous = batchers.put(index, batcher);
+        }
+
+        // the calls waiting in the old batcher still have to run
+        if (previous != null) {
+            previous.flush();
+        }
+    }
+
+    /**
+     * Only single Tensor and image inputs can be batched
+     */
+    private static boolean isBatchable(MethodCall call) {
+        if (!(call.arguments instanceof HashMap<?, ?>)) {
+            return false;
+        }
+        // the batched outputs are split and encoded as Tensors, they can't be post-processed or kept
+        if (call.argument("postprocess") != null || Boolean.TRUE.equals(call.argument("keepOutput"))) {
+            return false;
+        }
+        // the streamed outputs are encoded by the call itself
+        if (call.argument("chunkBytes") != null) {
+            return false;
+        }
+        // the batches run as NORMAL calls, and can't be cancelled
+        if (call.argument("priority") != null && !"NORMAL".equals(call.argument("priority"))
+                || call.argument("requestId") != null || call.argument("timeoutMillis") != null) {
+            return false;
+        }
+        Object classType = ((HashMap<?, ?>) call.arguments).get("class_type");
+        return "TensorValue".equals(classType) || "ImageTensor".equals(classType)
+                || "RawImageTensor".equals(classType) || "YuvImageTensor".equals(classType);
+    }
+
+    /**
+     * Parses a Tensor or an image input into an input that is written straight into the batch
+     * buffer, without creating a Tensor for it
+     *
+     * @param args the call.arguments received from flutter
+     * @return (MicroBatcher.BatchInput) the input of one call of the batch
+     * @throws Exception if the input cannot be parsed
+     */
+    private MicroBatcher.BatchInput parseBatchInput(HashMap<?, ?> args) throws Exception {
+        Object dataArg = Objects.requireNonNull(args.get("data"));
+        String classType = Objects.requireNonNull(args.get("class_type")).toString();
+
+        if (classType.equals("TensorValue")) {
+            Object data = TensorConverter.dataOf(args);
+            DType dtype = TensorConverter.dtypeOf(Objects.requireNonNull(args.get("dtype")).toString());
+            long[] shape = Objects.requireNonNull((long[]) args.get("shape"));
+            if (TensorConverter.lengthOf(data) != Tensor.numel(shape)) {
+                throw new Exception("Shape " + Arrays.toString(shape) + " does not match the length of the data");
+            }
+            return new MicroBatcher.BatchInput() {
+                @Override
+                public DType dtype() {
+                    return dtype;
+                }
+
+                @Override
+                public long[] shape() {
+                    return shape;
+                }
+
+                @Override
+                public void writeTo(Buffer buffer, int offset) {
+                    TensorConverter.copyTo(data, buffer, dtype, offset);
+                }
+            };
+        }
+
+        if (classType.equals("RawImageTensor") || classType.equals("YuvImageTensor")) {
+            return parsePixels(args);
+        }
+
+        float[] mean = TensorConverter.toFloatArray((double[]) args.get("mean"));
+        float[] std = TensorConverter.toFloatArray((double[]) args.get("std"));
+        Bitmap bitmap = decodeImage(args);
+        long[] shape = {1, 3, bitmap.getHeight(), bitmap.getWidth()};
+        return new MicroBatcher.BatchInput() {
+            public DType dtype() {
+                return DType.FLOAT32;
+            }
+
+            public long[] shape() {
+                return shape;
+            }
+
+            public void writeTo(Buffer buffer, int offset) {
+                TensorImageUtils.bitmapToFloatBuffer(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(),
+                        mean, std, (FloatBuffer) buffer, offset);
+            }
+
+            public void release() {
+                imagePreprocessor.release(bitmap);
+            }
+        };
+    }
+
+    /**
+     * Opens a frame stream on a model
+     *
+     * @param call the call with the "index" of the model, the "methodName" to run, the "capacity"
+     *  of the frame queue, the "dropPolicy" and the "postprocess" spec applied to every frame
+     * @param result completed with the id of the session
+     */
+    private void startStream(MethodCall call, Result result) {
+        int index = modelIndexOf(call);
+        String methodName = call.argument("methodName");
+        Number capacity = call.argument("capacity");
+        String dropPolicy = call.argument("dropPolicy");
+        PostProcessor postProcessor;
+        InferenceScheduler.Priority priority;
+        try {
+            postProcessor = PostProcessor.of(call.argument("postprocess"));
+            priority = InferenceScheduler.Priority.of(call.argument("priority"));
+        } catch (Exception e) {
+            result.error(PTFLErrors.ERROR_INVALID_ARGUMENT.toString(), "Invalid stream arguments", e.toString());
+            return;
+        }
+        int sessionId = nextStreamId.getAndIncrement();
+
+        StreamSession session = new StreamSession(sessionId, index, methodName == null ? "forward" : methodName,
+                capacity == null ? 1 : capacity.intValue(),
+                dropPolicy == null ? StreamSession.DropPolicy.DROP_OLDEST : StreamSession.DropPolicy.valueOf(dropPolicy),
+                priority, scheduler, (modelIndex, method, input, received) ->
+                        runFrame(modelIndex, method, input, received, postProcessor),
+                this::sendStreamEvent);
+        streams.put(sessionId, session);
+        result.success(sessionId);
+    }
+
+    /**
+     * Runs a frame of a stream, on the worker of its model, the frame is counted in the metrics of
+     * the method like the other calls
+     */
+    private Object runFrame(int index, String methodName, HashMap<?, ?> input, long received,
+                            PostProcessor postProcessor) throws Exception {
+        CallMetrics.begin(received);
+        try (TensorConverter.Lease lease = converter.newLease()) {
+            Object output = encodeOutput(runModel(index, methodName, parseIValue(input, lease)), postProcessor);
+            metrics.end(index, methodName, null);
+            return output;
+        } catch (Exception e) {
+            metrics.end(index, methodName, PTFLErrors.ERROR_RUNNING_FORWARD.toString());
+            throw e;
+        }
+    }
+
+    private void sendStreamEvent(HashMap<String, Object> event) {
+        mainHandler.post(() -> {
+            EventChannel.EventSink sink = streamSink;
+            if (sink != null) {
+                sink.success(event);
+            }
+        });
+    }
+
+    /**
+     * Creates the generator of a "generate" call
+     *
+     * @param call the call with the "index" of the model, the step "methodName", "maxTokens",
+     *  "stopTokens", and the sampling "temperature", "topK", "topP" and "seed"
+     * @return (TokenGenerator) the generator, the step runs the method on the model
+     * @throws Exception if an argument is missing or invalid
+     */
+    private TokenGenerator newGenerator(MethodCall call) throws Exception {
+        int index = modelIndexOf(call);
+        String methodName = call.argument("methodName") == null ? "forward" : call.argument("methodName");
+        Number maxTokens = Objects.requireNonNull(call.argument("maxTokens"));
+        if (maxTokens.intValue() < 1) {
+            throw new Exception("maxTokens must be >= 1, got: " + maxTokens);
+        }
+        Number topK = call.argument("topK");
+        Number topP = call.argument("topP");
+        Number temperature = call.argument("temperature");
+        Number seed = call.argument("seed");
+        // checked here, the generation would never be removed if submitCall refused it
+        InferenceScheduler.Priority.of(call.argument("priority"));
+
+        TokenSampler sampler = new TokenSampler(topK == null ? 0 : topK.intValue(),
+                topP == null ? 1f : topP.floatValue(), temperature == null ? 0f : temperature.floatValue(),
+                seed == null ? null : seed.longValue());
+        return new TokenGenerator(inputs -> runModel(index, methodName, inputs), sampler, maxTokens.intValue(),
+                call.argument("stopTokens"));
+    }
+
+    /**
+     * Runs a generation, on the worker of its model
+     *
+     * @param call the call with the prompt "tokens", and the "inputs" passed after them to the
+     *  first step
+     * @param generationId the id the tokens are sent with
+     * @param generator the generator of the call
+     * @return (HashMap) the result of the generation, see {@link TokenGenerator#generate}
+     * @throws Exception if the inputs can't be parsed or a step fails
+     */
+    private Object generate(MethodCall call, int generationId, TokenGenerator generator) throws Exception {
+        try (TensorConverter.Lease lease = converter.newLease()) {
+            long[] prompt = Objects.requireNonNull(call.argument("tokens"));
+            ArrayList<HashMap<?, ?>> inputsArg = call.argument("inputs");
+            IValue[] state = new IValue[inputsArg == null ? 0 : inputsArg.size()];
+            for (int i = 0; i < state.length; i++) {
+                state[i] = parseIValue(inputsArg.get(i), lease);
+            }
+
+            HashMap<String, Object> output = generator.generate(prompt, state,
+                    (token, position) -> sendGenerateEvent(generationId, token, position));
+            output.put("generationId", generationId);
+            return output;
+        } finally {
+            generations.remove(generationId);
+        }
+    }
+
+    /**
+     * Sends a chunk of a streamed output on the main thread, the chunk is marked as sent even when
+     * flutter is not listening or the main looper is gone, so the worker never waits forever
+     */
+    private void sendChunk(HashMap<String, Object> event, Runnable sent) {
+        boolean posted = mainHandler.post(() -> {
+            try {
+                EventChannel.EventSink sink = chunkSink;
+                if (sink != null) {
+                    sink.success(event);
+                }
+            } finally {
+                sent.run();
+            }
+        });
+        if (!posted) {
+            sent.run();
+        }
+    }
+
+    private void sendGenerateEvent(int generationId, long token, int position) {
+        HashMap<String, Object> event = new HashMap<>();
+        event.put("generationId", generationId);
+        event.put("token", token);
+        event.put("position", position);
+        mainHandler.post(() -> {
+            EventChannel.EventSink sink = generateSink;
+            if (sink != null) {
+                sink.success(event);
+            }
+        });
+    }
+
+    /**
+     * Sends the stats to flutter every "intervalMillis", reset after each send if "reset" is true,
+     * so each event holds the metrics of one interval
+     */
+    private synchronized void startStatsTimer(HashMap<?, ?> arguments, EventChannel.EventSink events) {
+        stopStatsTimer();
+        Number intervalMillis = arguments == null ? null : (Number) arguments.get("intervalMillis");
+        boolean reset = arguments != null && Boolean.TRUE.equals(arguments.get("reset"));
+        long interval = intervalMillis == null ? 1000 : Math.max(10, intervalMillis.longValue());
+        statsTimer = batchTimer.scheduleAtFixedRate(() -> {
+            HashMap<String, Object> stats = getStats(reset);
+            mainHandler.post(() -> events.success(stats));
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopStatsTimer() {
+        if (statsTimer != null) {
+            statsTimer.cancel(false);
+            statsTimer = null;
+        }
+    }
+
+    /**
+     * Evicts the idle models and drops the pooled input buffers
+     */
+    private void trimMemory() {
+        int evicted = registry.trimIdle();
+        handles.releaseExpired();
+        converter.getPool().clear();
+        imagePreprocessor.clear();
+        Log.i(LOGTAG, "Trimmed memory, evicted " + evicted + " idle models");
+    }
+
+    /**
+     * Reads the index of the model the call is made on
+     *
+     * @param call the call parameters from Flutter end, must contain "index"
+     * @return (int) the index of the model
+     */
+    private static int modelIndexOf(MethodCall call) {
+        Integer index = call.argument("index");
+        return index == null ? -1 : index;
+    }
+
     /**
      * Runs a specific method of the Module with variable list of arguments
      *
@@ -145,23 +906,23 @@ public class PytorchFlutterPlugin implements FlutterPlugin, MethodCallHandler {
     private Object modelRunMethodList(MethodCall call) throws Exception {
         int index = Objects.requireNonNull(call.argument("index"));
         String methodName = call.argument("methodName");
-
-        Module module = modules.get(index);
+        OutputSpec outputSpec = OutputSpec.of(call);
 
         ArrayList<HashMap<?, ?>> inputsArg = call.argument("inputs");
 
         assert inputsArg != null;
-        assert module != null;
 
-        ArrayList<IValue> inputs = new ArrayList<>();
-        // prepare the input arguments
-        for (HashMap<?, ?> arg : inputsArg) {
-            inputs.add(parseIValue(arg));
-        }
+        try (TensorConverter.Lease lease = converter.newLease()) {
+            ArrayList<IValue> inputs = new ArrayList<>();
+            // prepare the input arguments
+            for (HashMap<?, ?> arg : inputsArg) {
+                inputs.add(parseIValue(arg, lease));
+            }
 
-        Object output = module.runMethod(methodName, inputs.toArray(new IValue[0]));
+            Object output = encodeOutput(runModel(index, methodName, inputs.toArray(new IValue[0])), outputSpec, lease);
 
-        return output;
+            return output;
+        }
 
     }
 
@@ -177,14 +938,16 @@ public class PytorchFlutterPlugin implements FlutterPlugin, MethodCallHandler {
     private Object modelRunMethod(MethodCall call) throws Exception {
         int index = Objects.requireNonNull(call.argument("index"));
         String methodName = call.argument("methodName");
-        Module module = modules.get(index);
+        OutputSpec outputSpec = OutputSpec.of(call);
 
         Object output;
         if (call.arguments instanceof HashMap<?, ?>) {
-            IValue input = parseIValue((HashMap<?, ?>) call.arguments);
-            output = module.runMethod(methodName, input);
+            try (TensorConverter.Lease lease = converter.newLease()) {
+                IValue input = parseIValue((HashMap<?, ?>) call.arguments, lease);
+                output = encodeOutput(runModel(index, methodName, input), outputSpec, lease);
 
-            return output;
+                return output;
+            }
         } else {
             throw new Exception("Unknown type found for call.arguments: " + call.arguments.getClass());
         }
@@ -194,66 +957,670 @@ public class PytorchFlutterPlugin implements FlutterPlugin, MethodCallHandler {
     /**
      * Loads the model from the given asset path (flutter)
      *
-     * @param args the arguments passed from the Flutter end, must contain "assetPath"
+     * The asset is extracted to the model cache, and the model is loaded from the extracted file
+     *
+     * @param args the arguments passed from the Flutter end, must contain "assetPath", and can
+     *  contain "verifyCache" to check the CRC32 of the extracted file before using it, and the
+     *  number of "replicas" to load from the extracted file
      * @return (int) the index of the model stored in the backend, on all the future calls using
      *  the `Model` class in Flutter end, it will be required to use the index
+     * @throws Exception if the model cannot be loaded
      */
-    private int loadModelFromAsset(HashMap args) {
-        String modelPath = pluginBinding.getFlutterAssets().getAssetFilePathBySubpath(Objects.requireNonNull(args.get("assetPath")).toString());
-        Module module = Module.load(modelPath);
-        modules.add(module);
-
-        // return the index of this module
-        return modules.size() - 1;
+    private int loadModelFromAsset(HashMap args) throws Exception {
+        long start = System.nanoTime();
+        String assetPath = pluginBinding.getFlutterAssets().getAssetFilePathBySubpath(Objects.requireNonNull(args.get("assetPath")).toString());
+        boolean cold = !modelCache.isCached(assetPath);
+        String modelPath = modelCache.get(assetPath, Boolean.TRUE.equals(args.get("verifyCache"))).getAbsolutePath();
+        int index = loadReplicas(modelPath, args);
+        modelCache.recordLoad(cold, start);
+        return index;
     }
 
     /**
      * Loads the model from the given file path
      *
-     * @param args the arguments passed from flutter end, must contain "filePath"
+     * @param args the arguments passed from flutter end, must contain "filePath", and can contain
+     *  the number of "replicas" to load
      * @return (int) the index of the model stored in the backend, on all the future calls using
      *  the `Model` class in Flutter end, it will be required to use the index
+     * @throws Exception if the model cannot be loaded
      */
-    private int loadModelFromFile(HashMap args) {
+    private int loadModelFromFile(HashMap args) throws Exception {
         String modelPath = Objects.requireNonNull(args.get("filePath")).toString();
-        Module module = Module.load(modelPath);
-        modules.add(module);
+        return loadReplicas(modelPath, args);
+    }
+
+    /**
+     * Loads the replicas of a model from the same file, and lets the scheduler run as many calls of
+     * the model at the same time
+     */
+    private int loadReplicas(String modelPath, HashMap args) throws Exception {
+        Number replicas = (Number) args.get("replicas");
+        int count = replicas == null ? 1 : replicas.intValue();
+        if (count < 1) {
+            throw new Exception("replicas must be >= 1, got: " + count);
+        }
+        int index = registry.load(modelPath, estimateFootprint(modelPath, args), count);
+        scheduler.setConcurrency(index, count);
+        return index;
+    }
+
+    /**
+     * Runs a load on the loader threads, the loads don't go through the inference scheduler since
+     * the model has no index yet
+     */
+    private void submitLoad(Callable<Integer> load, Result result, String errorMessage) {
+        try {
+            loadExecutor.execute(() -> {
+                try {
+                    scheduler.postSuccess(result, load.call());
+                } catch (Exception e) {
+                    scheduler.postError(result, PTFLErrors.ERROR_LOADINNG_MODEL.toString(), errorMessage, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.error(PTFLErrors.ERROR_LOADINNG_MODEL.toString(), errorMessage, e.toString());
+        }
+    }
+
+    /**
+     * Loads the models on the loader threads, each model is reported to flutter as soon as it is
+     * loaded and warmed up, and the result is completed once all of them are done
+     *
+     * @param call the call with "models", the list of the specs of the models, and "preloadId",
+     *  which is sent back with the reports
+     * @param result the result of the call, completed with the list of the reports
+     */
+    private void preloadModels(MethodCall call, Result result) {
+        ArrayList<?> specs = Objects.requireNonNull(call.argument("models"));
+        Object preloadId = call.argument("preloadId");
+        if (specs.isEmpty()) {
+            result.success(new ArrayList<>());
+            return;
+        }
+
+        HashMap<?, ?>[] reports = new HashMap<?, ?>[specs.size()];
+        AtomicInteger remaining = new AtomicInteger(specs.size());
+        for (int i = 0; i < specs.size(); i++) {
+            final int position = i;
+            final HashMap<?, ?> spec = (HashMap<?, ?>) specs.get(i);
+            try {
+                loadExecutor.execute(() -> {
+                    HashMap<String, Object> report = preloadModel(spec);
+                    report.put("position", position);
+                    report.put("preloadId", preloadId);
+                    reports[position] = report;
+                    mainHandler.post(() -> channel.invokeMethod("onModelPreloaded", report));
+
+                    if (remaining.decrementAndGet() == 0) {
+                        scheduler.postSuccess(result, new ArrayList<>(Arrays.asList(reports)));
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                result.error(PTFLErrors.ERROR_LOADINNG_MODEL.toString(), "Error preloading models", e.toString());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Loads a model and runs its warm-up passes, runs on a loader thread
+     *
+     * @param spec the "assetPath" or "filePath" of the model, the "estimatedBytes" and "verifyCache"
+     *  of the load, and an optional "warmUp" with the "shape" and "dtype" of the dummy input, the
+     *  number of "runs" and the "methodName" to run
+     * @return (HashMap) the "index" of the model and the "loadMicros" and "warmUpMicros", or the
+     *  "error" if the model could not be loaded or warmed up
+     */
+    private HashMap<String, Object> preloadModel(HashMap<?, ?> spec) {
+        HashMap<String, Object> report = new HashMap<>();
+        int index = -1;
+        try {
+            long start = System.nanoTime();
+            index = spec.containsKey("assetPath") ? loadModelFromAsset(spec) : loadModelFromFile(spec);
+            report.put("loadMicros", (System.nanoTime() - start) / 1000);
+
+            HashMap<?, ?> warmUp = (HashMap<?, ?>) spec.get("warmUp");
+            long warmUpStart = System.nanoTime();
+            if (warmUp != null) {
+                warmUp(index, warmUp);
+            }
+            report.put("warmUpMicros", (System.nanoTime() - warmUpStart) / 1000);
+            report.put("index", index);
+        } catch (Exception e) {
+            Log.e(LOGTAG, "Error preloading model", e);
+            report.put("error", e.toString());
+            // a model that loaded but failed its warm-up is not handed out
+            if (index >= 0) {
+                try {
+                    registry.close(index);
+                } catch (Exception ignored) {
+                }
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Runs the model on an input of zeros, so that the lazy initialization and the graph
+     * optimizations of the first runs are done before the first real call
+     */
+    private void warmUp(int index, HashMap<?, ?> warmUp) throws Exception {
+        long[] shape = Objects.requireNonNull((long[]) warmUp.get("shape"));
+        DType dtype = TensorConverter.dtypeOf(Objects.requireNonNull(warmUp.get("dtype")).toString());
+        Object methodName = warmUp.get("methodName");
+        Number runs = (Number) warmUp.get("runs");
 
-        // return the index of this module
-        return modules.size() - 1;
+        try (TensorConverter.Lease lease = converter.newLease()) {
+            int numel = (int) Tensor.numel(shape);
+            Buffer buffer = lease.acquire(dtype, numel);
+            // the pooled buffers still hold the data of their previous use
+            TensorConverter.copyTo(TensorConverter.zeros(dtype, numel), buffer, dtype, 0);
+            buffer.rewind();
+            IValue input = IValue.from(TensorConverter.fromBuffer(buffer, dtype, shape));
+            // the runs rotate through the replicas, so each of them is warmed up
+            int count = (runs == null ? 1 : runs.intValue()) * registry.replicasOf(index);
+            for (int i = 0; i < count; i++) {
+                runModel(index, methodName == null ? "forward" : methodName.toString(), input);
+            }
+        }
+    }
+
+    /**
+     * Estimates the native memory used by a loaded model, which is mostly its weights, so the size
+     * of the model file is used unless flutter passes "estimatedBytes"
+     */
+    private static long estimateFootprint(String modelPath, HashMap args) {
+        Object estimatedBytes = args.get("estimatedBytes");
+        if (estimatedBytes instanceof Number) {
+            return ((Number) estimatedBytes).longValue();
+        }
+        return new File(modelPath).length();
+    }
+
+    /**
+     * Submits a model call to the scheduler, timing its stages into the metrics of the model and
+     * method
+     *
+     * @param call the call received from flutter, with the "index" of the model, its "priority"
+     *  class, NORMAL if not given, and optionally the "requestId" it can be cancelled with and the
+     *  "timeoutMillis" it must complete in
+     * @param methodName the method the call runs, used to group the metrics
+     * @param task runs the call on the worker of the model
+     * @param result the result of the call
+     * @param errorCode the error code sent to flutter if the task throws
+     * @param errorMessage the error message sent to flutter if the task throws
+     */
+    private void submitCall(MethodCall call, String methodName, Callable<Object> task, Result result,
+                            PTFLErrors errorCode, String errorMessage) {
+        int index = modelIndexOf(call);
+        String metricsName = methodName == null ? "forward" : methodName;
+        InferenceScheduler.Priority priority;
+        try {
+            priority = InferenceScheduler.Priority.of(call.argument("priority"));
+        } catch (IllegalArgumentException e) {
+            result.error(PTFLErrors.ERROR_INVALID_ARGUMENT.toString(), "Invalid priority", e.toString());
+            return;
+        }
+        long received = System.nanoTime();
+        RequestTracker.Request request = requests.track(call.argument("requestId"), call.argument("timeoutMillis"),
+                result);
+        scheduler.submit(index, priority, () -> {
+            CallMetrics.begin(received);
+            try {
+                // a cancelled or expired call stops here, before its inputs are parsed
+                requests.begin(request);
+                Object output = task.call();
+                metrics.end(index, metricsName, null);
+                return output;
+            } catch (RequestTracker.AbortedException e) {
+                metrics.end(index, metricsName, e.errorCode.toString());
+                throw e;
+            } catch (Exception e) {
+                metrics.end(index, metricsName, errorCode.toString());
+                throw e;
+            } finally {
+                requests.end(request);
+            }
+        }, request == null ? result : request, errorCode, errorMessage);
+    }
+
+    /**
+     * Runs the forward method of a model once per input, each input is queued as a call of its own,
+     * so the inputs run in parallel on the replicas of the model, the call fails with the first
+     * input that fails, and the inputs that have not started yet are skipped
+     *
+     * The outputs are not cached, the timings of each input are recorded as a "forward" call
+     *
+     * @param call the call with the "index" of the model, the list of "inputs", and the same
+     *  "postprocess", "keepOutput", "priority", "requestId" and "timeoutMillis" as "forward"
+     * @param result the result of the call, completed with the list of the outputs
+     */
+    private void forwardMany(MethodCall call, Result result) {
+        int index = modelIndexOf(call);
+        ArrayList<HashMap<?, ?>> inputs = Objects.requireNonNull(call.argument("inputs"));
+        InferenceScheduler.Priority priority;
+        OutputSpec outputSpec;
+        try {
+            priority = InferenceScheduler.Priority.of(call.argument("priority"));
+            outputSpec = OutputSpec.of(call);
+        } catch (Exception e) {
+            result.error(PTFLErrors.ERROR_INVALID_ARGUMENT.toString(), "Invalid forwardMany arguments", e.toString());
+            return;
+        }
+        if (inputs.isEmpty()) {
+            result.success(new ArrayList<>());
+            return;
+        }
+
+        long received = System.nanoTime();
+        RequestTracker.Request request = requests.track(call.argument("requestId"), call.argument("timeoutMillis"),
+                result);
+        if (request != null) {
+            request.split(inputs.size());
+        }
+        Result reply = request == null ? result : request;
+        Object[] outputs = new Object[inputs.size()];
+        AtomicInteger remaining = new AtomicInteger(inputs.size());
+        AtomicBoolean failed = new AtomicBoolean(false);
+        for (int i = 0; i < inputs.size(); i++) {
+            final int position = i;
+            final HashMap<?, ?> input = inputs.get(i);
+            try {
+                scheduler.execute(index, priority, () -> {
+                    CallMetrics.begin(received);
+                    try {
+                        if (failed.get()) {
+                            return;
+                        }
+                        requests.begin(request);
+                        try (TensorConverter.Lease lease = converter.newLease()) {
+                            outputs[position] = encodeOutput(runModel(index, "forward", parseIValue(input, lease)),
+                                    outputSpec, lease);
+                        }
+                        metrics.end(index, "forward", null);
+                        if (remaining.decrementAndGet() == 0) {
+                            scheduler.postSuccess(reply, new ArrayList<>(Arrays.asList(outputs)));
+                        }
+                    } catch (RequestTracker.AbortedException e) {
+                        metrics.end(index, "forward", e.errorCode.toString());
+                        if (failed.compareAndSet(false, true)) {
+                            scheduler.postError(reply, e.errorCode.toString(), e.getMessage(), e);
+                        }
+                    } catch (Exception e) {
+                        metrics.end(index, "forward", PTFLErrors.ERROR_RUNNING_FORWARD.toString());
+                        if (failed.compareAndSet(false, true)) {
+                            Log.e(LOGTAG, "Error running forwardMany on Model", e);
+                            scheduler.postError(reply, PTFLErrors.ERROR_RUNNING_FORWARD.toString(),
+                                    "Error running forwardMany on Model", e);
+                        }
+                    } finally {
+                        requests.end(request);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the model has been closed, or the plugin has been detached from the engine
+                if (failed.compareAndSet(false, true)) {
+                    reply.error(PTFLErrors.ERROR_RUNNING_FORWARD.toString(), "Error running forwardMany on Model",
+                            e.toString());
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Measures how the throughput of a model scales with its replicas, for each number of replicas
+     * from 1 to all of them, the same input is run "calls" times with that many calls at the same
+     * time, runs on a loader thread, and must be run while the model gets no other calls
+     *
+     * @param call the call with the "index" of the model, the "input" to run, and the number of
+     *  "calls" per number of replicas, 16 if not given
+     * @return (ArrayList) for each number of replicas, the "replicas", the "callsPerSecond", and the
+     *  "speedup" over a single replica
+     * @throws Exception if "calls" is below 1, the model has calls queued, or the model fails
+     */
+    private ArrayList<HashMap<String, Object>> measureReplicaScaling(MethodCall call) throws Exception {
+        int index = modelIndexOf(call);
+        Number callsArg = call.argument("calls");
+        int calls = callsArg == null ? 16 : callsArg.intValue();
+        if (calls < 1) {
+            throw new Exception("calls must be >= 1, got: " + calls);
+        }
+        int replicas = registry.replicasOf(index);
+        // the calls of the app would be counted, and would run with fewer replicas than loaded
+        if (scheduler.getQueueDepth(index) > 0) {
+            throw new Exception("The model at index " + index + " has calls queued");
+        }
+        ArrayList<HashMap<String, Object>> report = new ArrayList<>();
+
+        try (TensorConverter.Lease lease = converter.newLease()) {
+            // the input is only read by the model, so all the calls share it
+            IValue input = parseIValue(Objects.requireNonNull(call.argument("input")), lease);
+            double baseline = 0;
+            try {
+                for (int k = 1; k <= replicas; k++) {
+                    scheduler.setConcurrency(index, k);
+                    CountDownLatch done = new CountDownLatch(calls);
+                    AtomicReference<Exception> error = new AtomicReference<>();
+                    long start = System.nanoTime();
+                    for (int i = 0; i < calls; i++) {
+                        scheduler.execute(index, () -> {
+                            try {
+                                runModel(index, "forward", input);
+                            } catch (Exception e) {
+                                error.compareAndSet(null, e);
+                            } finally {
+                                done.countDown();
+                            }
+                        });
+                    }
+                    done.await();
+                    if (error.get() != null) {
+                        throw error.get();
+                    }
+                    double callsPerSecond = calls * 1e9 / (System.nanoTime() - start);
+                    if (k == 1) {
+                        baseline = callsPerSecond;
+                    }
+                    HashMap<String, Object> level = new HashMap<>();
+                    level.put("replicas", k);
+                    level.put("callsPerSecond", callsPerSecond);
+                    level.put("speedup", callsPerSecond / baseline);
+                    report.add(level);
+                }
+            } finally {
+                scheduler.setConcurrency(index, replicas);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Runs a model call through the result cache of the model, when it has one and the call can be
+     * cached, the hashing of the arguments is timed as the DECODE stage
+     *
+     * @param call the call received from flutter
+     * @param methodName the method the call runs
+     * @param task runs the call on a miss
+     * @return (Object) the encoded output, from the cache on a hit
+     * @throws Exception if the call fails
+     */
+    private Object cachedCall(MethodCall call, String methodName, Callable<Object> task) throws Exception {
+        int index = modelIndexOf(call);
+        ResultCache cache = resultCaches.get(index);
+        if (cache == null || !(call.arguments instanceof Map<?, ?>)) {
+            return task.call();
+        }
+        long start = System.nanoTime();
+        ResultCache.Key key = ResultCache.keyOf(methodName == null ? "forward" : methodName, (Map<?, ?>) call.arguments);
+        CallMetrics.current().lap(CallMetrics.Stage.DECODE, start);
+        if (key == null) {
+            return task.call();
+        }
+
+        int generation = registry.generationOf(index);
+        Object output = cache.get(key, generation);
+        if (output == null) {
+            output = task.call();
+            cache.put(key, output, generation);
+        }
+        return output;
+    }
+
+    /**
+     * What is sent back for the output of a call: the output itself, the result of the
+     * "postprocess" spec, or, when "keepOutput" is true, handles to the output kept on this end
+     * for "ttlMillis" after its last use. When "chunkBytes" is set, the Tensors of the output
+     * larger than that are streamed in chunks with the "chunkStreamId" of the call
+     */
+    private static class OutputSpec {
+        final PostProcessor postProcessor;
+        final boolean keep;
+        final long ttlMillis;
+        // 0 when the output is not streamed
+        final int chunkBytes;
+        final int chunkStreamId;
+
+        private OutputSpec(PostProcessor postProcessor, boolean keep, long ttlMillis, int chunkBytes,
+                           int chunkStreamId) {
+            this.postProcessor = postProcessor;
+            this.keep = keep;
+            this.ttlMillis = ttlMillis;
+            this.chunkBytes = chunkBytes;
+            this.chunkStreamId = chunkStreamId;
+        }
+
+        static OutputSpec of(MethodCall call) throws Exception {
+            PostProcessor postProcessor = PostProcessor.of(call.argument("postprocess"));
+            boolean keep = Boolean.TRUE.equals(call.argument("keepOutput"));
+            if (keep && postProcessor != null) {
+                throw new Exception("An output can't be both kept and post-processed");
+            }
+            Number ttlMillis = call.argument("ttlMillis");
+            Number chunkBytes = call.argument("chunkBytes");
+            Number chunkStreamId = call.argument("chunkStreamId");
+            if (chunkBytes != null && (keep || postProcessor != null)) {
+                throw new Exception("A streamed output can't be kept or post-processed");
+            }
+            return new OutputSpec(postProcessor, keep, ttlMillis == null ? DEFAULT_HANDLE_TTL_MILLIS : ttlMillis.longValue(),
+                    chunkBytes == null ? 0 : chunkBytes.intValue(), chunkStreamId == null ? 0 : chunkStreamId.intValue());
+        }
+    }
+
+    /**
+     * Encodes the output of a call according to its spec, see {@link OutputSpec}
+     *
+     * @param output the output of the model
+     * @param spec the output spec of the call
+     * @param lease the lease of the inputs, the buffers are kept out of the pool when the output
+     *  is kept, since an output can be a view of an input
+     * @return (Object) the value sent to flutter
+     * @throws Exception if the output can't be post-processed or encoded
+     */
+    private Object encodeOutput(IValue output, OutputSpec spec, TensorConverter.Lease lease) throws Exception {
+        if (spec.chunkBytes > 0) {
+            long start = System.nanoTime();
+            Object encoded = outputEncoder.encode(output, new ChunkWriter(spec.chunkStreamId, spec.chunkBytes, this::sendChunk));
+            CallMetrics.current().lap(CallMetrics.Stage.ENCODE, start);
+            return encoded;
+        } else if (!spec.keep) {
+            return encodeOutput(output, spec.postProcessor);
+        }
+        lease.detach();
+        // the elements of a tuple or list are kept apart, so each can be passed to a different call
+        if (output.isTuple() || output.isList()) {
+            ArrayList<Object> list = new ArrayList<>();
+            for (IValue element : output.isTuple() ? output.toTuple() : output.toList()) {
+                list.add(keepOutput(element, spec.ttlMillis));
+            }
+            return list;
+        } else if (output.isTensorList()) {
+            ArrayList<Object> list = new ArrayList<>();
+            for (Tensor tensor : output.toTensorList()) {
+                list.add(keepOutput(IValue.from(tensor), spec.ttlMillis));
+            }
+            return list;
+        }
+        return keepOutput(output, spec.ttlMillis);
+    }
+
+    /**
+     * Keeps a value under a new handle
+     *
+     * @return (HashMap) the handle sent to flutter, with the dtype and shape of the value when it
+     *  is a Tensor
+     */
+    private HashMap<String, Object> keepOutput(IValue value, long ttlMillis) {
+        int id = handles.put(value, ttlMillis);
+        HashMap<String, Object> handle = new HashMap<>();
+        handle.put("class_type", "TensorHandle");
+        handle.put("handle", id);
+        handle.put("bytes", handles.bytesOf(id));
+        if (value.isTensor()) {
+            handle.put("dtype", value.toTensor().dtype().toString());
+            handle.put("shape", value.toTensor().shape());
+        }
+        return handle;
+    }
+
+    /**
+     * Encodes the output of the model for flutter, or only the result of the postprocess spec of
+     * the call when there is one, timed as the ENCODE stage
+     */
+    private Object encodeOutput(IValue output, PostProcessor postProcessor) throws Exception {
+        long start = System.nanoTime();
+        Object encoded = postProcessor == null ? outputEncoder.encode(output) : postProcessor.apply(output);
+        CallMetrics.current().lap(CallMetrics.Stage.ENCODE, start);
+        return encoded;
+    }
+
+    /**
+     * @return (long) the size in bytes of the data of an input received from flutter
+     */
+    private static long sizeOfData(Object data) {
+        if (data instanceof byte[]) {
+            return ((byte[]) data).length;
+        } else if (data instanceof int[]) {
+            return 4L * ((int[]) data).length;
+        } else if (data instanceof float[]) {
+            return 4L * ((float[]) data).length;
+        } else if (data instanceof long[]) {
+            return 8L * ((long[]) data).length;
+        } else if (data instanceof double[]) {
+            return 8L * ((double[]) data).length;
+        } else if (data instanceof ArrayList<?>) {
+            // the planes of a YuvImageTensor
+            long size = 0;
+            for (Object plane : (ArrayList<?>) data) {
+                size += sizeOfData(plane);
+            }
+            return size;
+        }
+        return 0;
+    }
+
+    /**
+     * Sends the value of a kept output, encoded on a loader thread
+     *
+     * @param call the call with the "handle", and "release" to release it once sent
+     * @param result completed with the encoded value
+     */
+    private void fetchHandle(MethodCall call, Result result) {
+        try {
+            loadExecutor.execute(() -> {
+                try {
+                    int id = Objects.requireNonNull(call.<Number>argument("handle")).intValue();
+                    Object encoded = outputEncoder.encode(handles.get(id));
+                    if (Boolean.TRUE.equals(call.argument("release"))) {
+                        handles.release(id);
+                    }
+                    scheduler.postSuccess(result, encoded);
+                } catch (Exception e) {
+                    scheduler.postError(result, PTFLErrors.ERROR_INVALID_ARGUMENT.toString(),
+                            "Error fetching the tensor handle", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.error(PTFLErrors.ERROR_INVALID_ARGUMENT.toString(), "Error fetching the tensor handle", e.toString());
+        }
+    }
+
+    /**
+     * @return the memory stats of the models, with the stats of the kept outputs as "handles"
+     */
+    private HashMap<String, Object> getMemoryStats() {
+        HashMap<String, Object> stats = registry.getStats();
+        stats.put("handles", handles.getStats());
+        return stats;
+    }
+
+    /**
+     * @param reset clears the call metrics after reading them
+     * @return the call metrics, with the queue depths, the scheduler stats, the request stats, the
+     *  result cache stats, the memory stats and the model cache stats
+     */
+    private HashMap<String, Object> getStats(boolean reset) {
+        HashMap<String, Object> stats = metrics.getStats();
+        if (reset) {
+            metrics.reset();
+        }
+        stats.put("queueDepths", new HashMap<>(scheduler.getQueueDepths()));
+        stats.put("scheduler", scheduler.getStats());
+        stats.put("requests", requests.getStats());
+        HashMap<Integer, Object> cacheStats = new HashMap<>();
+        for (Map.Entry<Integer, ResultCache> entry : resultCaches.entrySet()) {
+            cacheStats.put(entry.getKey(), entry.getValue().getStats());
+        }
+        stats.put("resultCaches", cacheStats);
+        stats.put("memory", getMemoryStats());
+        stats.put("modelCache", modelCache.getStats());
+        return stats;
+    }
+
+    /**
+     * Runs a method of the model, the model is held for the duration of the call so that it
+     * cannot be closed or evicted while running
+     *
+     * @param index the index of the model
+     * @param methodName the method to run, "forward" runs the forward method
+     * @param inputs the inputs of the method
+     * @return (IValue) the output of the method
+     * @throws Exception if the model is not loaded or the method fails
+     */
+    private IValue runModel(int index, String methodName, IValue... inputs) throws Exception {
+        // the last chance to drop a cancelled or expired call, the model can't be interrupted
+        requests.checkCurrent();
+        Module module = registry.acquire(index);
+        long start = System.nanoTime();
+        try {
+            return methodName.equals("forward") ? module.forward(inputs) : module.runMethod(methodName, inputs);
+        } finally {
+            CallMetrics.current().lap(CallMetrics.Stage.RUN, start);
+            registry.release(index, module);
+        }
     }
 
     /**
      * Converts the given IValue from Flutter end to the IValue in Android Java
      *
      * @param args the call.arguments received from flutter
+     * @param lease holds the buffers of the Tensors created while parsing
      * @return (IValue) a representation needed to call methods on the model
      * @throws Exception if any exception happens during parsing the arguments
      */
-    private IValue parseIValue(HashMap<?, ?> args) throws Exception {
+    private IValue parseIValue(HashMap<?, ?> args, TensorConverter.Lease lease) throws Exception {
+        long start = System.nanoTime();
         Object dataArg = Objects.requireNonNull(args.get("data"));
-        String toDataType = Objects.requireNonNull(args.get("dtype")).toString();
         String classType = Objects.requireNonNull(args.get("class_type")).toString();
 
         IValue ivalue;
 
         switch (classType) {
             case "Value":
-                ivalue = iValueFromValue(dataArg, toDataType);
+                ivalue = TensorConverter.valueOf(dataArg, Objects.requireNonNull(args.get("dtype")).toString());
                 break;
             case "TensorValue":
                 long[] shape = (long[])args.get("shape");
-                ivalue = iValueFromTensorValue(dataArg, shape, toDataType);
+                ivalue = converter.tensorValueOf(TensorConverter.dataOf(args), shape, Objects.requireNonNull(args.get("dtype")).toString(), lease);
                 break;
             case "ImageTensor":
-                double[] mean = (double[]) args.get("mean");
-                double[] std = (double[]) args.get("std");
-                ivalue = iValueFromImageTensor(dataArg, mean, std);
+                ivalue = iValueFromImageTensor(args, lease);
+                break;
+            case "RawImageTensor":
+            case "YuvImageTensor":
+                ivalue = iValueFromPixels(args, lease);
+                break;
+            case "TensorHandle":
+                ivalue = handles.get(((Number) dataArg).intValue());
                 break;
             default:
-                throw new Exception("Unknown classType: " + classType + " supported ones are: Value, TensorValue, ImageTensor");
+                throw new Exception("Unknown classType: " + classType + " supported ones are: Value, TensorValue, ImageTensor, RawImageTensor, YuvImageTensor, TensorHandle");
         }
 
+        CallMetrics.Timer timer = CallMetrics.current();
+        timer.addBytesIn(sizeOfData(dataArg));
+        timer.lap(CallMetrics.Stage.CONVERT, start);
         return ivalue;
     }
 
@@ -267,14 +1634,16 @@ public class PytorchFlutterPlugin implements FlutterPlugin, MethodCallHandler {
     private Object modelForward(MethodCall call) throws Exception {
 
         int index = Objects.requireNonNull(call.argument("index"));
-        Module module = modules.get(index);
+        OutputSpec outputSpec = OutputSpec.of(call);
 
         Object output;
         if (call.arguments instanceof HashMap<?, ?>) {
-            IValue input = parseIValue((HashMap<?, ?>) call.arguments);
-            output = module.forward(input);
+            try (TensorConverter.Lease lease = converter.newLease()) {
+                IValue input = parseIValue((HashMap<?, ?>) call.arguments, lease);
+                output = encodeOutput(runModel(index, "forward", input), outputSpec, lease);
 
-            return output;
+                return output;
+            }
         } else {
             throw new Exception("Unknown type found for call.arguments: " + call.arguments.getClass());
         }
@@ -292,239 +1661,229 @@ public class PytorchFlutterPlugin implements FlutterPlugin, MethodCallHandler {
      */
     private Object modelForwardList(MethodCall call) throws Exception {
         int index = Objects.requireNonNull(call.argument("index"));
-        Module module = modules.get(index);
+        OutputSpec outputSpec = OutputSpec.of(call);
 
         ArrayList<HashMap<?, ?>> inputsArg = call.argument("inputs");
 
         assert inputsArg != null;
-        assert module != null;
 
-        ArrayList<IValue> inputs = new ArrayList<>();
-        // prepare the input arguments
-        for (HashMap<?, ?> arg : inputsArg) {
-            inputs.add(parseIValue(arg));
-        }
+        try (TensorConverter.Lease lease = converter.newLease()) {
+            ArrayList<IValue> inputs = new ArrayList<>();
+            // prepare the input arguments
+            for (HashMap<?, ?> arg : inputsArg) {
+                inputs.add(parseIValue(arg, lease));
+            }
 
-        // convert the ArrayList to IValue[] that can be sent to the forward function with variable
-        // list of arguments
-        Object output = module.forward(inputs.toArray(new IValue[0]));
+            // convert the ArrayList to IValue[] that can be sent to the forward function with variable
+            // list of arguments
+            Object output = encodeOutput(runModel(index, "forward", inputs.toArray(new IValue[0])), outputSpec, lease);
 
-        return output;
+            return output;
+        }
     }
 
     /**
-     * Parses the IValue from a Value type received from flutter
-     *  IValue
+     * Creates an IValue from a given Image data
+     *
+     * The Image data received from flutter is of byte[], which is decoded to a Bitmap of the target
+     * size, then written to a pooled FloatBuffer applying the mean and std for the image, then an
+     * IValue is created from this Tensor
+     * Internally we are using TensorImageUtils.bitmapToFloatBuffer
      *
-     * @param data the data received from flutter
-     * @param toType the datatype to convert to, can only be BOOL, INT, FLOAT, STR
-     * @return (IValue) the IValue representation of the data
-     * @throws Exception throws an Exception if any error occurs during conversion
+     * @param args the call.arguments received from flutter, with the "data", "mean" and "std" of
+     *  the image, and optionally its target "width", "height" and "resizeMode"
+     * @param lease holds the buffer of the Tensor
+     * @return (IValue) an IValue representation of the Image Tensor
+     * @throws Exception throws an Exception if happens during the conversion process
      */
     @NotNull
-    private IValue iValueFromValue(Object data, String toType) throws Exception {
-        @NotNull IValue result;
-        switch (toType) {
-            case "BOOL": {
-                boolean _data = (Boolean) data;
-                result = IValue.from(_data);
-                break;
-            }
-            case "INT": {
-                long _data;
-                if (data instanceof Integer) {
-                    _data = ((Integer) data).longValue();
-                } else if (data instanceof Long) {
-                    _data = ((Long) data);
-                } else {
-                    throw new Exception("Invalid data type received in Value: " + data.getClass());
-                }
-                result = IValue.from(_data);
-                break;
-            }
-            case "FLOAT": {
-                double _data = (Double) data;
-                result = IValue.from(_data);
-                break;
-            }
-            case "STR": {
-                String _data = (String) data;
-                result = IValue.from(_data);
-                break;
-            }
-            default:
-                throw new Exception("Invalid toType: " + toType);
+    private IValue iValueFromImageTensor(HashMap<?, ?> args, TensorConverter.Lease lease) throws Exception {
+        float[] mean = TensorConverter.toFloatArray((double[]) args.get("mean"));
+        float[] std = TensorConverter.toFloatArray((double[]) args.get("std"));
+        Bitmap bitmap = decodeImage(args);
+        try {
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            FloatBuffer buffer = (FloatBuffer) lease.acquire(DType.FLOAT32, 3 * width * height);
+            TensorImageUtils.bitmapToFloatBuffer(bitmap, 0, 0, width, height, mean, std, buffer, 0);
+            buffer.rewind();
+            return IValue.from(Tensor.fromBlob(buffer, new long[]{1, 3, height, width}));
+        } finally {
+            imagePreprocessor.release(bitmap);
+        }
+    }
+
+    /**
+     * Decodes the encoded image received from flutter at its target size
+     *
+     * @param args the call.arguments of an ImageTensor, the "data" must be a byte[]
+     * @return (Bitmap) the decoded image, from the pool of the ImagePreprocessor
+     * @throws Exception if the data is not a byte[] or cannot be decoded as an image
+     */
+    private Bitmap decodeImage(HashMap<?, ?> args) throws Exception {
+        Object data = Objects.requireNonNull(args.get("data"));
+        if (!(data instanceof byte[])) {
+            throw new Exception("Invalid type received for ImageTensor : " + data.getClass());
         }
-        return result;
+        Number width = (Number) args.get("width");
+        Number height = (Number) args.get("height");
+        Object resizeMode = args.get("resizeMode");
+        long start = System.nanoTime();
+        Bitmap bitmap = imagePreprocessor.decode((byte[]) data, width == null ? 0 : width.intValue(),
+                height == null ? 0 : height.intValue(),
+                resizeMode == null ? ImagePreprocessor.ResizeMode.STRETCH : ImagePreprocessor.ResizeMode.valueOf(resizeMode.toString()));
+        CallMetrics.current().lap(CallMetrics.Stage.IMAGE, start);
+        return bitmap;
+    }
+
+    /**
+     * Creates an IValue from the raw pixels of a RawImageTensor or a YuvImageTensor, the pixels are
+     * converted straight into a pooled FloatBuffer, see PixelConverter
+     *
+     * @param args the call.arguments received from flutter
+     * @param lease holds the buffer of the Tensor
+     * @return (IValue) an IValue representation of the image Tensor
+     * @throws Exception if the pixels or the transform are invalid
+     */
+    private IValue iValueFromPixels(HashMap<?, ?> args, TensorConverter.Lease lease) throws Exception {
+        MicroBatcher.BatchInput input = parsePixels(args);
+        FloatBuffer buffer = (FloatBuffer) lease.acquire(DType.FLOAT32, (int) Tensor.numel(input.shape()));
+        input.writeTo(buffer, 0);
+        buffer.rewind();
+        return IValue.from(Tensor.fromBlob(buffer, input.shape()));
     }
 
     /**
-     * Creates an IValue from the given data Tensor, the allowed conversion to Tensor supported are
-     *  UINT8, INT8, INT32, FLOAT32, INT64, FLOAT64
+     * Parses a RawImageTensor or a YuvImageTensor into an input that writes its pixels to a float
+     * buffer
      *
-     *  The data is first converted to the Tensor type defined, and then this Tensor is converted to
-     *      IValue, since the forward function in Module expects IValue(s) only
+     * RawImageTensor: "data" is the RGBA or BGRA pixels, with "width", "height", "rowStride" and
+     * "format"
+     * YuvImageTensor: "data" is the list of the Y, U and V planes, with "width", "height",
+     * "yRowStride", "uvRowStride" and "uvPixelStride"
+     * both: "mean" and "std", and the optional "cropX", "cropY", "cropWidth", "cropHeight",
+     * "rotation", "outWidth" and "outHeight"
      *
-     * @param data The data received from flutter
-     * @param shape The shape to resize to when converting to a Tensor
-     * @param toType The Tensor type to convert to
-     * @return (IValue) The Tensor converted to IValue
-     * @throws Exception throws Exception if any error happens during the conversion process
+     * @param args the call.arguments received from flutter
+     * @return (MicroBatcher.BatchInput) the image as an input of shape {1, 3, outHeight, outWidth}
+     * @throws Exception if the transform is invalid
      */
-    @NotNull
-    private IValue iValueFromTensorValue(Object data, long[] shape, String toType) throws Exception {
-        @NotNull IValue result;
-        switch (toType) {
-            case "UINT8":
-            case "INT8": {
-                byte[] _data;
-                if (data instanceof byte[]) {
-                    byte[] temp = (byte[]) data;
-                    _data = Bytes.toArray(Bytes.asList(temp));
-                } else if (data instanceof int[]) {
-                    int[] temp = (int[]) data;
-                    _data = Bytes.toArray(Ints.asList(temp));
-                } else if (data instanceof long[]) {
-                    long[] temp = (long[]) data;
-                    _data = Bytes.toArray(Longs.asList(temp));
-                } else if (data instanceof double[]) {
-                    double[] temp = (double[]) data;
-                    _data = Bytes.toArray(Doubles.asList(temp));
-                } else {
-                    throw new Exception("Invalid data type for conversion to " + toType + " : " + data.getClass());
-                }
+    private static MicroBatcher.BatchInput parsePixels(HashMap<?, ?> args) throws Exception {
+        boolean yuv = "YuvImageTensor".equals(args.get("class_type"));
+        Object data = Objects.requireNonNull(args.get("data"));
+        int width = intArgument(args, "width", -1);
+        int height = intArgument(args, "height", -1);
+        if (width <= 0 || height <= 0) {
+            throw new Exception("The width and height of the image are required");
+        }
+        float[] mean = TensorConverter.toFloatArray((double[]) args.get("mean"));
+        float[] std = TensorConverter.toFloatArray((double[]) args.get("std"));
+        PixelConverter.Transform transform = PixelConverter.Transform.of(width, height,
+                intArgument(args, "cropX", 0), intArgument(args, "cropY", 0),
+                intArgument(args, "cropWidth", 0), intArgument(args, "cropHeight", 0),
+                intArgument(args, "rotation", 0),
+                intArgument(args, "outWidth", 0), intArgument(args, "outHeight", 0));
+        long[] shape = transform.shape();
 
-                if (toType.equals("UINT8")) {
-                    Tensor tensor = Tensor.fromBlobUnsigned(_data, shape);
-                    result = IValue.from(tensor);
-                    break;
-                } else {
-                    Tensor tensor = Tensor.fromBlob(_data, shape);
-                    result = IValue.from(tensor);
-                    break;
-                }
+        PixelWriter writer;
+        if (yuv) {
+            ArrayList<?> planes = (ArrayList<?>) data;
+            if (planes.size() != 3) {
+                throw new Exception("A YuvImageTensor needs the Y, U and V planes, got " + planes.size() + " planes");
             }
-            case "FLOAT32": {
-                float[] _data;
-                if (data instanceof byte[]) {
-                    byte[] temp = (byte[]) data;
-                    _data = Floats.toArray(Bytes.asList(temp));
-                } else if (data instanceof int[]) {
-                    int[] temp = (int[]) data;
-                    _data = Floats.toArray(Ints.asList(temp));
-                } else if (data instanceof long[]) {
-                    long[] temp = (long[]) data;
-                    _data = Floats.toArray(Longs.asList(temp));
-                } else if (data instanceof double[]) {
-                    double[] temp = (double[]) data;
-                    _data = Floats.toArray(Doubles.asList(temp));
-                } else {
-                    throw new Exception("Invalid data type for conversion to " + toType + " : " + data.getClass());
-                }
-                Tensor tensor = Tensor.fromBlob(_data, shape);
-                result = IValue.from(tensor);
-                break;
+            int yRowStride = intArgument(args, "yRowStride", width);
+            int uvRowStride = intArgument(args, "uvRowStride", (width + 1) / 2);
+            int uvPixelStride = intArgument(args, "uvPixelStride", 1);
+            writer = (buffer, offset) -> PixelConverter.yuv420ToFloat((byte[]) planes.get(0), (byte[]) planes.get(1),
+                    (byte[]) planes.get(2), width, height, yRowStride, uvRowStride, uvPixelStride, transform,
+                    mean, std, buffer, offset);
+        } else {
+            if (!(data instanceof byte[])) {
+                throw new Exception("Invalid type received for RawImageTensor : " + data.getClass());
             }
-            case "INT32": {
-                int[] _data;
-                if (data instanceof byte[]) {
-                    byte[] temp = (byte[]) data;
-                    _data = Ints.toArray(Bytes.asList(temp));
-                } else if (data instanceof int[]) {
-                    int[] temp = (int[]) data;
-                    _data = Ints.toArray(Ints.asList(temp));
-                } else if (data instanceof long[]) {
-                    long[] temp = (long[]) data;
-                    _data = Ints.toArray(Longs.asList(temp));
-                } else if (data instanceof double[]) {
-                    double[] temp = (double[]) data;
-                    _data = Ints.toArray(Doubles.asList(temp));
-                } else {
-                    throw new Exception("Invalid data type for conversion to " + toType + " : " + data.getClass());
-                }
-                Tensor tensor = Tensor.fromBlob(_data, shape);
-                result = IValue.from(tensor);
-                break;
+            int rowStride = intArgument(args, "rowStride", 4 * width);
+            PixelConverter.PixelFormat format = PixelConverter.PixelFormat.valueOf(
+                    Objects.requireNonNull(args.get("format")).toString());
+            writer = (buffer, offset) -> PixelConverter.rgbaToFloat((byte[]) data, width, height, rowStride, format,
+                    transform, mean, std, buffer, offset);
+        }
+
+        return new MicroBatcher.BatchInput() {
+            public DType dtype() {
+                return DType.FLOAT32;
             }
-            case "FLOAT64": {
-                double[] _data;
-                if (data instanceof byte[]) {
-                    byte[] temp = (byte[]) data;
-                    _data = Doubles.toArray(Bytes.asList(temp));
-                } else if (data instanceof int[]) {
-                    int[] temp = (int[]) data;
-                    _data = Doubles.toArray(Ints.asList(temp));
-                } else if (data instanceof long[]) {
-                    long[] temp = (long[]) data;
-                    _data = Doubles.toArray(Longs.asList(temp));
-                } else if (data instanceof double[]) {
-                    double[] temp = (double[]) data;
-                    _data = Doubles.toArray(Doubles.asList(temp));
-                } else {
-                    throw new Exception("Invalid data type for conversion to " + toType + " : " + data.getClass());
-                }
-                Tensor tensor = Tensor.fromBlob(shape, _data);
-                result = IValue.from(tensor);
-                break;
+
+            public long[] shape() {
+                return shape;
             }
-            case "INT64": {
-                long[] _data;
-                if (data instanceof byte[]) {
-                    byte[] temp = (byte[]) data;
-                    _data = Longs.toArray(Bytes.asList(temp));
-                } else if (data instanceof int[]) {
-                    int[] temp = (int[]) data;
-                    _data = Longs.toArray(Ints.asList(temp));
-                } else if (data instanceof long[]) {
-                    long[] temp = (long[]) data;
-                    _data = Longs.toArray(Longs.asList(temp));
-                } else if (data instanceof double[]) {
-                    double[] temp = (double[]) data;
-                    _data = Longs.toArray(Doubles.asList(temp));
-                } else {
-                    throw new Exception("Invalid data type for conversion to " + toType + " : " + data.getClass());
-                }
-                Tensor tensor = Tensor.fromBlob(_data, shape);
-                result = IValue.from(tensor);
-                break;
+
+            public void writeTo(Buffer buffer, int offset) throws Exception {
+                writer.write((FloatBuffer) buffer, offset);
             }
-            default:
-                throw new Exception("Invalid toType : " + toType);
-        }
-        return result;
+        };
+    }
+
+    private interface PixelWriter {
+        void write(FloatBuffer buffer, int offset) throws Exception;
+    }
+
+    private static int intArgument(HashMap<?, ?> args, String key, int defaultValue) {
+        Object value = args.get(key);
+        return value instanceof Number ? ((Number) value).intValue() : defaultValue;
     }
 
     /**
-     * Creates an IValue from a given Image data
-     *
-     * The Image data received from flutter is of byte[], which is then converted to a Bitmap and then to a
-     * Float32Tensor, and also applying the mean and std for the image, then an IValue is created from this Tensor
-     * Internally we are using TensorImageUtils.bitmapToFloat32Tensor
-     *
-     * @param data The image data, only allowed type is byte[]
-     * @param mean The mean of the image
-     * @param std The standard deviation of the image
-     * @return (IValue) an IValue representation of the Image Tensor
-     * @throws Exception throws an Exception if happens during the conversion process
+     * Sends the outcome of a tensor message back as its binary reply
      */
-    @NotNull
-    private IValue iValueFromImageTensor(Object data, double[] mean, double[] std) throws Exception {
-        @NotNull IValue result;
-        float[] mean_ = Floats.toArray(Doubles.asList(mean));
-        float[] std_ = Floats.toArray(Doubles.asList(std));
-        if (data instanceof byte[]) {
-            byte[] _data = (byte[]) data;
-            Bitmap imageBitmap = BitmapFactory.decodeByteArray(_data, 0, _data.length);
-            Tensor imageTensor = TensorImageUtils.bitmapToFloat32Tensor(imageBitmap, mean_, std_);
-            result = IValue.from(imageTensor);
-        } else {
-            throw new Exception("Invalid type received for ImageTensor : " + data.getClass());
+    private static class TensorReplyResult implements Result {
+        private final BasicMessageChannel.Reply<ByteBuffer> reply;
+
+        TensorReplyResult(BasicMessageChannel.Reply<ByteBuffer> reply) {
+            this.reply = reply;
+        }
+
+        @Override
+        public void success(Object output) {
+            reply.reply((ByteBuffer) output);
+        }
+
+        @Override
+        public void error(String errorCode, String errorMessage, Object errorDetails) {
+            reply.reply(TensorMessageCodec.encodeError(errorCode, errorMessage + ": " + errorDetails));
+        }
+
+        @Override
+        public void notImplemented() {
+            reply.reply(null);
         }
-        return result;
     }
 
     @Override
     public void onDetachedFromEngine(@NonNull FlutterPluginBinding binding) {
         channel.setMethodCallHandler(null);
+        tensorChannel.setMessageHandler(null);
+        streamChannel.setStreamHandler(null);
+        statsChannel.setStreamHandler(null);
+        generateChannel.setStreamHandler(null);
+        chunkChannel.setStreamHandler(null);
+        stopStatsTimer();
+        for (TokenGenerator generator : generations.values()) {
+            generator.cancel();
+        }
+        generations.clear();
+        for (StreamSession session : streams.values()) {
+            session.close();
+        }
+        streams.clear();
+        applicationContext.unregisterComponentCallbacks(memoryCallbacks);
+        batchTimer.shutdownNow();
+        loadExecutor.shutdown();
+        batchers.clear();
+        resultCaches.clear();
+        scheduler.shutdown();
+        registry.closeAll();
+        handles.clear();
+        converter.getPool().clear();
+        imagePreprocessor.clear();
     }
 }
@@ -0,0 +1,269 @@
+package io.satyajit.pytorch_flutter;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * Tracks the model calls that have a request id, so they can be cancelled, or a deadline
+ *
+ * - a call that is cancelled or expires while waiting for its model fails right away, and its task
+ *   does nothing once it reaches the worker, the inputs are never parsed
+ * - a call that is cancelled or expires while running is checked again before the model runs,
+ *   see {@link #checkCurrent()}, the model itself can't be interrupted
+ *
+ * The aborted calls fail with ERROR_REQUEST_CANCELLED or ERROR_DEADLINE_EXCEEDED, and are counted
+ * by whether they were waiting or running
+ */
+class RequestTracker {
+    private static final PytorchFlutterPlugin.PTFLErrors CANCELLED =
+            PytorchFlutterPlugin.PTFLErrors.ERROR_REQUEST_CANCELLED;
+    private static final PytorchFlutterPlugin.PTFLErrors EXPIRED =
+            PytorchFlutterPlugin.PTFLErrors.ERROR_DEADLINE_EXCEEDED;
+
+    /**
+     * Thrown on the worker when the call running is cancelled or expired, its code is sent to
+     * flutter instead of the code of the call
+     */
+    static class AbortedException extends Exception {
+        final PytorchFlutterPlugin.PTFLErrors errorCode;
+
+        AbortedException(PytorchFlutterPlugin.PTFLErrors errorCode, String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+
+    /**
+     * A tracked call, it is also the result of the call, so it replies only once, whether the reply
+     * comes from the worker or from a cancel
+     */
+    static class Request implements Result {
+        final String requestId;
+        // 0 when the call has no deadline
+        final long deadlineNanos;
+        private final Result result;
+        private final AtomicReference<PytorchFlutterPlugin.PTFLErrors> abortCode = new AtomicReference<>();
+        private volatile boolean started = false;
+        private volatile boolean abortedWhileRunning = false;
+        // the tasks of the call that have not ended yet
+        private final AtomicInteger parts = new AtomicInteger(1);
+        private boolean replied = false;
+        private ScheduledFuture<?> expiry;
+
+        private Request(String requestId, long deadlineNanos, Result result) {
+            this.requestId = requestId;
+            this.deadlineNanos = deadlineNanos;
+            this.result = result;
+        }
+
+        /**
+         * Splits the call into several tasks, each of them begins and ends on its own, the call
+         * ends with the last of them, must be called before the first task begins
+         *
+         * @param count the number of tasks
+         */
+        void split(int count) {
+            parts.set(count);
+        }
+
+        /**
+         * Marks the call as aborted, only the first abort counts
+         *
+         * @return (boolean) false if the call had already been aborted
+         */
+        private boolean abort(PytorchFlutterPlugin.PTFLErrors code, boolean running) {
+            if (!abortCode.compareAndSet(null, code)) {
+                return false;
+            }
+            abortedWhileRunning = running;
+            return true;
+        }
+
+        // the replies are all made on the main thread
+        @Override
+        public void success(Object output) {
+            if (!replied) {
+                replied = true;
+                result.success(output);
+            }
+        }
+
+        @Override
+        public void error(String errorCode, String errorMessage, Object errorDetails) {
+            if (!replied) {
+                replied = true;
+                result.error(errorCode, errorMessage, errorDetails);
+            }
+        }
+
+        @Override
+        public void notImplemented() {
+            if (!replied) {
+                replied = true;
+                result.notImplemented();
+            }
+        }
+    }
+
+    private final ScheduledExecutorService timer;
+    private final Executor mainThread;
+    private final ConcurrentHashMap<String, Request> requests = new ConcurrentHashMap<>();
+    // the request of the call running on the current thread
+    private final ThreadLocal<Request> current = new ThreadLocal<>();
+
+    private final AtomicLong tracked = new AtomicLong();
+    private final AtomicLong cancelledWaiting = new AtomicLong();
+    private final AtomicLong cancelledRunning = new AtomicLong();
+    private final AtomicLong expiredWaiting = new AtomicLong();
+    private final AtomicLong expiredRunning = new AtomicLong();
+
+    /**
+     * @param timer fails the calls that are still waiting at their deadline
+     * @param mainThread runs on the main thread, the calls are replied to on it
+     */
+    RequestTracker(ScheduledExecutorService timer, Executor mainThread) {
+        this.timer = timer;
+        this.mainThread = mainThread;
+    }
+
+    /**
+     * Starts tracking a call, on the main thread when the call is received
+     *
+     * @param requestId the id the call can be cancelled with, can be null
+     * @param timeoutMillis the time the call has to complete in from now, null for no deadline
+     * @param result the result of the call
+     * @return (Request) the request, to be used as the result of the call, null if the call has
+     *  neither an id nor a deadline
+     */
+    Request track(String requestId, Number timeoutMillis, Result result) {
+        if (requestId == null && timeoutMillis == null) {
+            return null;
+        }
+        long deadlineNanos = timeoutMillis == null ? 0 : System.nanoTime() + timeoutMillis.longValue() * 1000000;
+        Request request = new Request(requestId, deadlineNanos, result);
+        tracked.incrementAndGet();
+        if (requestId != null) {
+            // a reused id now refers to the latest call
+            requests.put(requestId, request);
+        }
+        if (timeoutMillis != null) {
+            request.expiry = timer.schedule(() -> mainThread.execute(() -> {
+                if (!request.started && request.abort(EXPIRED, false)) {
+                    request.error(EXPIRED.toString(), "The deadline of the call passed",
+                            "Waited " + timeoutMillis + " ms for the model");
+                }
+            }), Math.max(0, timeoutMillis.longValue()), TimeUnit.MILLISECONDS);
+        }
+        return request;
+    }
+
+    /**
+     * Cancels a call, on the main thread, a waiting call fails right away, a running call fails
+     * before its model runs, or completes if the model is already running
+     *
+     * @param requestId the id of the call
+     * @return (boolean) false if there is no call with this id waiting or running
+     */
+    boolean cancel(String requestId) {
+        Request request = requests.get(requestId);
+        if (request == null) {
+            return false;
+        }
+        boolean running = request.started;
+        if (request.abort(CANCELLED, running) && !running) {
+            request.error(CANCELLED.toString(), "The call was cancelled", requestId);
+        }
+        return true;
+    }
+
+    /**
+     * Begins a call on the worker
+     *
+     * @param request the request of the call, null if it is not tracked
+     * @throws AbortedException if the call was cancelled or expired while waiting
+     */
+    void begin(Request request) throws AbortedException {
+        if (request == null) {
+            return;
+        }
+        current.set(request);
+        request.started = true;
+        check(request, false);
+    }
+
+    /**
+     * Checks the call running on the current thread, before its model runs
+     *
+     * @throws AbortedException if the call was cancelled or has expired
+     */
+    void checkCurrent() throws AbortedException {
+        Request request = current.get();
+        if (request != null) {
+            check(request, true);
+        }
+    }
+
+    /**
+     * Ends a call on the worker, whether it completed or failed
+     *
+     * @param request the request of the call, null if it is not tracked
+     */
+    void end(Request request) {
+        if (request == null) {
+            return;
+        }
+        current.remove();
+        if (request.parts.decrementAndGet() > 0) {
+            return;
+        }
+        if (request.requestId != null) {
+            requests.remove(request.requestId, request);
+        }
+        if (request.expiry != null) {
+            request.expiry.cancel(false);
+        }
+        PytorchFlutterPlugin.PTFLErrors code = request.abortCode.get();
+        if (code == CANCELLED) {
+            (request.abortedWhileRunning ? cancelledRunning : cancelledWaiting).incrementAndGet();
+        } else if (code == EXPIRED) {
+            (request.abortedWhileRunning ? expiredRunning : expiredWaiting).incrementAndGet();
+        }
+    }
+
+    private void check(Request request, boolean running) throws AbortedException {
+        if (request.deadlineNanos != 0 && System.nanoTime() > request.deadlineNanos) {
+            request.abort(EXPIRED, running);
+        }
+        PytorchFlutterPlugin.PTFLErrors code = request.abortCode.get();
+        if (code == CANCELLED) {
+            throw new AbortedException(code, "The call was cancelled");
+        } else if (code == EXPIRED) {
+            throw new AbortedException(code, "The deadline of the call passed");
+        }
+    }
+
+    /**
+     * @return the number of calls tracked, and of the calls cancelled and expired, while waiting
+     *  and while running
+     */
+    HashMap<String, Object> getStats() {
+        HashMap<String, Object> stats = new HashMap<>();
+        stats.put("tracked", tracked.get());
+        // the calls with an id that are waiting or running
+        stats.put("pending", requests.size());
+        stats.put("cancelledWaiting", cancelledWaiting.get());
+        stats.put("cancelledRunning", cancelledRunning.get());
+        stats.put("expiredWaiting", expiredWaiting.get());
+        stats.put("expiredRunning", expiredRunning.get());
+        return stats;
+    }
+}
@@ -0,0 +1,381 @@
+package io.satyajit.pytorch_flutter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the encoded outputs of a model for the inputs it has already seen, for the models that
+ * are pure functions of their inputs (embeddings, classifiers of repeated texts or thumbnails)
+ *
+ * - a call is keyed by a 128 bit hash of its method name and its arguments as received from
+ *   flutter, the data, dtype and shape of the inputs along with the postprocess spec, so a hit
+ *   skips the parsing of the inputs as well as the model
+ * - the entries are evicted least recently used first to stay under a budget of bytes
+ * - the entries are dropped when the model is loaded again, see {@link ModelRegistry#generationOf}
+ *
+ * The calls that keep their output, or take a kept output as an input, are never cached, a handle
+ * refers to a different value on each call, and neither are the calls that stream their output,
+ * the chunks are only sent once
+ *
+ * This class only uses java.util and java.nio, so it can run on a plain JVM
+ */
+class ResultCache {
+    // the arguments that don't change the output of a call
+    private static final String[] IGNORED_ARGUMENTS = {"index", "priority", "requestId", "timeoutMillis"};
+    // the estimated overhead of an entry, the key, the node of the map and the encoded maps
+    private static final long ENTRY_OVERHEAD_BYTES = 128;
+
+    /**
+     * The hash of a call, two independent 64 bit hashes, so two different calls practically never
+     * collide
+     */
+    static final class Key {
+        final long high;
+        final long low;
+
+        Key(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return high == key.high && low == key.low;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (low ^ (low >>> 32));
+        }
+    }
+
+    private static class Entry {
+        final Object output;
+        final long bytes;
+
+        Entry(Object output, long bytes) {
+            this.output = output;
+            this.bytes = bytes;
+        }
+    }
+
+    private final long maxBytes;
+    // in access order, the eldest entry is the least recently used
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long heldBytes = 0;
+    private int generation = -1;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    /**
+     * @param maxBytes the bytes the encoded outputs can take, an output larger than that is not
+     *  cached
+     */
+    ResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param key the key of the call, see {@link #keyOf(String, Map)}
+     * @param generation the generation of the model, the entries are dropped when it changes
+     * @return (Object) the encoded output of the call, null if it is not in the cache
+     */
+    synchronized Object get(Key key, int generation) {
+        invalidateIfReloaded(generation);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.output;
+    }
+
+    /**
+     * Caches the encoded output of a call, evicting the least recently used entries if needed
+     *
+     * @param key the key of the call
+     * @param output the encoded output, it is shared by all the hits so it must not be modified
+     * @param generation the generation of the model that computed the output
+     */
+    synchronized void put(Key key, Object output, int generation) {
+        invalidateIfReloaded(generation);
+        long bytes = ENTRY_OVERHEAD_BYTES + sizeOf(output);
+        if (output == null || bytes > maxBytes) {
+            return;
+        }
+        Entry previous = entries.put(key, new Entry(output, bytes));
+        if (previous != null) {
+            heldBytes -= previous.bytes;
+        }
+        heldBytes += bytes;
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (heldBytes > maxBytes && eldest.hasNext()) {
+            heldBytes -= eldest.next().bytes;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops all the entries
+     */
+    synchronized void clear() {
+        entries.clear();
+        heldBytes = 0;
+    }
+
+    /**
+     * @return the number of entries and the bytes they hold, the budget, and the number of hits,
+     *  misses, evictions and invalidations
+     */
+    synchronized HashMap<String, Object> getStats() {
+        HashMap<String, Object> stats = new HashMap<>();
+        stats.put("entries", entries.size());
+        stats.put("heldBytes", heldBytes);
+        stats.put("maxBytes", maxBytes);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hitRate", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        stats.put("evictions", evictions);
+        stats.put("invalidations", invalidations);
+        return stats;
+    }
+
+    private void invalidateIfReloaded(int generation) {
+        if (generation != this.generation) {
+            if (!entries.isEmpty()) {
+                invalidations++;
+            }
+            clear();
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Hashes a call
+     *
+     * @param methodName the method the call runs
+     * @param arguments the arguments of the call as received from flutter
+     * @return (Key) the key of the call, null if the call can't be cached
+     */
+    static Key keyOf(String methodName, Map<?, ?> arguments) {
+        if (Boolean.TRUE.equals(arguments.get("keepOutput")) || arguments.get("chunkBytes") != null) {
+            return null;
+        }
+        Hasher hasher = new Hasher();
+        hasher.add(methodName);
+        if (!hasher.addMap(arguments, true)) {
+            return null;
+        }
+        return hasher.key();
+    }
+
+    /**
+     * @return (long) the estimated bytes of an encoded output
+     */
+    static long sizeOf(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        } else if (value instanceof int[]) {
+            return 4L * ((int[]) value).length;
+        } else if (value instanceof float[]) {
+            return 4L * ((float[]) value).length;
+        } else if (value instanceof long[]) {
+            return 8L * ((long[]) value).length;
+        } else if (value instanceof double[]) {
+            return 8L * ((double[]) value).length;
+        } else if (value instanceof String) {
+            return 2L * ((String) value).length();
+        } else if (value instanceof List<?>) {
+            long bytes = 0;
+            for (Object element : (List<?>) value) {
+                bytes += 16 + sizeOf(element);
+            }
+            return bytes;
+        } else if (value instanceof Map<?, ?>) {
+            long bytes = 0;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                bytes += 32 + sizeOf(entry.getKey()) + sizeOf(entry.getValue());
+            }
+            return bytes;
+        }
+        return 16;
+    }
+
+    /**
+     * Two 64 bit hashes of the values received from flutter, each value is tagged with its type and
+     * length, and the entries of a map are combined in any order
+     */
+    private static class Hasher {
+        private static final long M1 = 0x9E3779B97F4A7C15L;
+        private static final long M2 = 0xC2B2AE3D27D4EB4FL;
+
+        private long h1 = 0x243F6A8885A308D3L;
+        private long h2 = 0x13198A2E03707344L;
+
+        void addLong(long value) {
+            h1 = (h1 ^ value) * M1;
+            h1 ^= h1 >>> 29;
+            h2 = Long.rotateLeft(h2 + value * M2, 31) * M1;
+        }
+
+        void add(String value) {
+            addLong(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                addLong(value.charAt(i));
+            }
+        }
+
+        /**
+         * @return (boolean) false if the value can't be cached
+         */
+        boolean add(Object value) {
+            if (value == null) {
+                addLong(0);
+            } else if (value instanceof Boolean) {
+                addLong(1);
+                addLong((Boolean) value ? 1 : 0);
+            } else if (value instanceof Integer || value instanceof Long) {
+                addLong(2);
+                addLong(((Number) value).longValue());
+            } else if (value instanceof Double) {
+                addLong(3);
+                addLong(Double.doubleToLongBits((Double) value));
+            } else if (value instanceof String) {
+                addLong(4);
+                add((String) value);
+            } else if (value instanceof byte[]) {
+                addLong(5);
+                addBytes((byte[]) value);
+            } else if (value instanceof int[]) {
+                addLong(6);
+                int[] array = (int[]) value;
+                addLong(array.length);
+                for (int element : array) {
+                    addLong(element);
+                }
+            } else if (value instanceof float[]) {
+                addLong(7);
+                float[] array = (float[]) value;
+                addLong(array.length);
+                // two floats per step, the hash is the bottleneck for large inputs
+                int i = 0;
+                for (; i + 1 < array.length; i += 2) {
+                    addLong(((long) Float.floatToRawIntBits(array[i]) << 32)
+                            | (Float.floatToRawIntBits(array[i + 1]) & 0xFFFFFFFFL));
+                }
+                if (i < array.length) {
+                    addLong(Float.floatToRawIntBits(array[i]));
+                }
+            } else if (value instanceof long[]) {
+                addLong(8);
+                long[] array = (long[]) value;
+                addLong(array.length);
+                for (long element : array) {
+                    addLong(element);
+                }
+            } else if (value instanceof double[]) {
+                addLong(9);
+                double[] array = (double[]) value;
+                addLong(array.length);
+                for (double element : array) {
+                    addLong(Double.doubleToRawLongBits(element));
+                }
+            } else if (value instanceof List<?>) {
+                addLong(10);
+                List<?> list = (List<?>) value;
+                addLong(list.size());
+                for (Object element : list) {
+                    if (!add(element)) {
+                        return false;
+                    }
+                }
+            } else if (value instanceof Map<?, ?>) {
+                addLong(11);
+                return addMap((Map<?, ?>) value, false);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Hashes the entries of the map on their own, and adds their sum, so the order they are
+         * iterated in does not matter
+         */
+        boolean addMap(Map<?, ?> map, boolean isArguments) {
+            // a kept output is a different value for each call with the same handle
+            if ("TensorHandle".equals(map.get("class_type"))) {
+                return false;
+            }
+            long sum1 = 0;
+            long sum2 = 0;
+            int count = 0;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if (isArguments && isIgnored(entry.getKey())) {
+                    continue;
+                }
+                Hasher hasher = new Hasher();
+                if (!hasher.add(entry.getKey()) || !hasher.add(entry.getValue())) {
+                    return false;
+                }
+                sum1 += mix(hasher.h1);
+                sum2 += mix(hasher.h2);
+                count++;
+            }
+            addLong(count);
+            addLong(sum1);
+            addLong(sum2);
+            return true;
+        }
+
+        private static boolean isIgnored(Object key) {
+            for (String ignored : IGNORED_ARGUMENTS) {
+                if (ignored.equals(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void addBytes(byte[] bytes) {
+            addLong(bytes.length);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            int i = 0;
+            for (; i + 8 <= bytes.length; i += 8) {
+                addLong(buffer.getLong(i));
+            }
+            for (; i < bytes.length; i++) {
+                addLong(bytes[i]);
+            }
+        }
+
+        Key key() {
+            return new Key(mix(h1), mix(h2 ^ h1 >>> 17));
+        }
+
+        // the finalizer of murmur3, so every bit of the state affects every bit of the hash
+        private static long mix(long h) {
+            h ^= h >>> 33;
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            h *= 0xC4CEB93FE53C2C13L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
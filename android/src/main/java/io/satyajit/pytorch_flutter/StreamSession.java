@@ -0,0 +1,229 @@
+package io.satyajit.pytorch_flutter;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A stream of frames run on one model, for live camera inference
+ *
+ * The frames wait in a bounded queue of `capacity` frames, and at most one frame of the session
+ * runs at a time. When the model is slower than the camera, the queue fills up and frames are
+ * dropped according to the drop policy, instead of piling up behind the model, so the latency
+ * stays bounded. A capacity of 1 with DROP_OLDEST keeps only the newest frame (latest wins)
+ *
+ * The results are not sent through a method call result, they are sent as events tagged with the
+ * session id, the frame id and the timestamp of the frame
+ */
+class StreamSession {
+    enum DropPolicy {
+        // the oldest waiting frame is dropped to make room for the new one
+        DROP_OLDEST,
+        // the new frame is dropped while the queue is full
+        DROP_NEWEST
+    }
+
+    /**
+     * Runs a frame on the model and returns the encoded output, runs on the worker of the model,
+     * `receivedNanos` is when the frame was pushed
+     */
+    interface FrameRunner {
+        Object run(int modelIndex, String methodName, HashMap<?, ?> input, long receivedNanos) throws Exception;
+    }
+
+    /**
+     * Sends an event to flutter, the sender takes care of posting it on the main thread
+     */
+    interface EventSender {
+        void send(HashMap<String, Object> event);
+    }
+
+    private static class Frame {
+        final long frameId;
+        final Object timestamp;
+        final HashMap<?, ?> input;
+        final long receivedNanos = System.nanoTime();
+
+        Frame(long frameId, Object timestamp, HashMap<?, ?> input) {
+            this.frameId = frameId;
+            this.timestamp = timestamp;
+            this.input = input;
+        }
+    }
+
+    private final int sessionId;
+    private final int modelIndex;
+    private final String methodName;
+    private final int capacity;
+    private final DropPolicy dropPolicy;
+    private final InferenceScheduler.Priority priority;
+    private final InferenceScheduler scheduler;
+    private final FrameRunner runner;
+    private final EventSender sender;
+
+    private final ArrayDeque<Frame> pending = new ArrayDeque<>();
+    private boolean running = false;
+    private boolean closed = false;
+
+    private long received = 0;
+    private long completed = 0;
+    private long dropped = 0;
+    private long failed = 0;
+    // from the frame being received to its run starting, and the run itself
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+    private final LatencyHistogram runLatency = new LatencyHistogram();
+
+    StreamSession(int sessionId, int modelIndex, String methodName, int capacity, DropPolicy dropPolicy,
+                  InferenceScheduler.Priority priority, InferenceScheduler scheduler, FrameRunner runner,
+                  EventSender sender) {
+        this.sessionId = sessionId;
+        this.modelIndex = modelIndex;
+        this.methodName = methodName;
+        this.capacity = Math.max(1, capacity);
+        this.dropPolicy = dropPolicy;
+        this.priority = priority;
+        this.scheduler = scheduler;
+        this.runner = runner;
+        this.sender = sender;
+    }
+
+    int getSessionId() {
+        return sessionId;
+    }
+
+    int getModelIndex() {
+        return modelIndex;
+    }
+
+    /**
+     * Adds a frame to the session, dropping a frame if the queue is full
+     *
+     * @param frameId the id of the frame, sent back with its result
+     * @param timestamp the timestamp of the frame, sent back as it is
+     * @param input the input of the frame, as received from flutter
+     * @return (boolean) false if the new frame was dropped or the session is closed
+     */
+    boolean add(long frameId, Object timestamp, HashMap<?, ?> input) {
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            received++;
+            if (pending.size() >= capacity) {
+                dropped++;
+                if (dropPolicy == DropPolicy.DROP_NEWEST) {
+                    return false;
+                }
+                pending.poll();
+            }
+            pending.add(new Frame(frameId, timestamp, input));
+            if (running) {
+                return true;
+            }
+            running = true;
+        }
+        return scheduleNext();
+    }
+
+    /**
+     * Runs the oldest waiting frame, then queues itself again behind the other calls of the model
+     * if more frames are waiting, so the frames don't starve the regular calls
+     */
+    private void runNext() {
+        Frame frame;
+        synchronized (this) {
+            frame = pending.poll();
+            if (frame == null) {
+                running = false;
+                return;
+            }
+        }
+
+        long start = System.nanoTime();
+        queueLatency.record((start - frame.receivedNanos) / 1000);
+        HashMap<String, Object> event = new HashMap<>();
+        event.put("sessionId", sessionId);
+        event.put("frameId", frame.frameId);
+        event.put("timestamp", frame.timestamp);
+        try {
+            event.put("output", runner.run(modelIndex, methodName, frame.input, frame.receivedNanos));
+        } catch (Exception e) {
+            event.put("error", e.toString());
+        }
+        long end = System.nanoTime();
+        runLatency.record((end - start) / 1000);
+        event.put("queueMicros", (start - frame.receivedNanos) / 1000);
+        event.put("runMicros", (end - start) / 1000);
+
+        boolean more;
+        synchronized (this) {
+            if (event.containsKey("error")) {
+                failed++;
+            } else {
+                completed++;
+            }
+            event.put("droppedFrames", dropped);
+            more = !pending.isEmpty() && !closed;
+            if (!more) {
+                running = false;
+            }
+        }
+        sender.send(event);
+
+        if (more) {
+            scheduleNext();
+        }
+    }
+
+    /**
+     * Queues the run of the next frame, the session is closed if its model has been closed
+     *
+     * @return (boolean) false if the session was closed
+     */
+    private boolean scheduleNext() {
+        try {
+            scheduler.execute(modelIndex, priority, this::runNext);
+            return true;
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                closed = true;
+                running = false;
+                pending.clear();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Closes the session, the waiting frames are discarded and the frame being run is still sent
+     *
+     * @return the stats of the session
+     */
+    HashMap<String, Object> close() {
+        synchronized (this) {
+            closed = true;
+            pending.clear();
+        }
+        return getStats();
+    }
+
+    /**
+     * @return the number of frames received, completed, failed and dropped, the number of frames
+     *  waiting, and the time spent by the frames waiting and running
+     */
+    synchronized HashMap<String, Object> getStats() {
+        HashMap<String, Object> stats = new HashMap<>();
+        stats.put("sessionId", sessionId);
+        stats.put("index", modelIndex);
+        stats.put("capacity", capacity);
+        stats.put("dropPolicy", dropPolicy.toString());
+        stats.put("received", received);
+        stats.put("completed", completed);
+        stats.put("failed", failed);
+        stats.put("dropped", dropped);
+        stats.put("pending", pending.size());
+        stats.put("queueLatency", queueLatency.toMap());
+        stats.put("runLatency", runLatency.toMap());
+        return stats;
+    }
+}
@@ -0,0 +1,125 @@
+package io.satyajit.pytorch_flutter;
+
+import org.pytorch.DType;
+import org.pytorch.Tensor;
+
+import java.nio.Buffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * A pool of direct buffers that back the input Tensors
+ *
+ * `Tensor.fromBlob(buffer, shape)` wraps a direct buffer without copying it, but allocating a
+ * direct buffer on every call is expensive, so the buffers are kept here once the call using them
+ * is done. The buffers are keyed by their dtype and number of elements, since `Tensor.fromBlob`
+ * requires the capacity of the buffer to match the shape exactly
+ */
+class TensorBufferPool {
+    /// the number of free buffers kept for a single dtype and size
+    private static final int MAX_BUFFERS_PER_KEY = 4;
+
+    private final HashMap<Long, ArrayDeque<Buffer>> freeBuffers = new HashMap<>();
+    private final long maxPooledBytes;
+    private long pooledBytes = 0;
+
+    /**
+     * @param maxPooledBytes the maximum bytes held by the free buffers, buffers released above
+     *  this limit are left to the garbage collector
+     */
+    TensorBufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Gets a buffer with exactly `numel` elements of the given dtype, the buffer is cleared, its
+     * position is 0 and limit is its capacity
+     *
+     * @param dtype the dtype of the Tensor this buffer will back
+     * @param numel the number of elements in the buffer
+     * @return (Buffer) a ByteBuffer, IntBuffer, FloatBuffer, LongBuffer or DoubleBuffer depending on the dtype
+     */
+    Buffer acquire(DType dtype, int numel) {
+        synchronized (this) {
+            ArrayDeque<Buffer> buffers = freeBuffers.get(key(dtype, numel));
+            if (buffers != null && !buffers.isEmpty()) {
+                Buffer buffer = buffers.poll();
+                pooledBytes -= sizeInBytes(dtype, numel);
+                buffer.clear();
+                return buffer;
+            }
+        }
+
+        switch (dtype) {
+            case UINT8:
+            case INT8:
+                return Tensor.allocateByteBuffer(numel);
+            case INT32:
+                return Tensor.allocateIntBuffer(numel);
+            case FLOAT32:
+                return Tensor.allocateFloatBuffer(numel);
+            case INT64:
+                return Tensor.allocateLongBuffer(numel);
+            case FLOAT64:
+                return Tensor.allocateDoubleBuffer(numel);
+            default:
+                throw new IllegalArgumentException("Unsupported dtype: " + dtype);
+        }
+    }
+
+    /**
+     * Gives the buffer back to the pool, the Tensor backed by this buffer must not be used anymore
+     *
+     * @param dtype the dtype the buffer was acquired with
+     * @param buffer the buffer to release
+     */
+    synchronized void release(DType dtype, Buffer buffer) {
+        int numel = buffer.capacity();
+        long size = sizeInBytes(dtype, numel);
+        if (pooledBytes + size > maxPooledBytes) {
+            return;
+        }
+
+        Long key = key(dtype, numel);
+        ArrayDeque<Buffer> buffers = freeBuffers.get(key);
+        if (buffers == null) {
+            buffers = new ArrayDeque<>();
+            freeBuffers.put(key, buffers);
+        }
+        if (buffers.size() < MAX_BUFFERS_PER_KEY) {
+            buffers.add(buffer);
+            pooledBytes += size;
+        }
+    }
+
+    /**
+     * Drops all the free buffers
+     */
+    synchronized void clear() {
+        freeBuffers.clear();
+        pooledBytes = 0;
+    }
+
+    synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    static long sizeInBytes(DType dtype, long numel) {
+        switch (dtype) {
+            case UINT8:
+            case INT8:
+                return numel;
+            case INT32:
+            case FLOAT32:
+                return numel * 4;
+            default:
+                return numel * 8;
+        }
+    }
+
+    private static Long key(DType dtype, int numel) {
+        // UINT8 and INT8 are both backed by a ByteBuffer, so they can share the buffers
+        DType bufferType = dtype == DType.UINT8 ? DType.INT8 : dtype;
+        return ((long) bufferType.ordinal() << 32) | numel;
+    }
+}
@@ -0,0 +1,448 @@
+package io.satyajit.pytorch_flutter;
+
+import org.pytorch.DType;
+import org.pytorch.IValue;
+import org.pytorch.Tensor;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Converts the primitive arrays received from flutter to Tensors, and the Value and TensorValue
+ * inputs to IValues
+ *
+ * The data is written with plain primitive loops into direct buffers taken from a
+ * {@link TensorBufferPool}, and the Tensor is created over the buffer with `Tensor.fromBlob`, so
+ * no boxed values or intermediate arrays are created. When the source array already has the
+ * element type of the Tensor, a single bulk copy is done instead of the loop
+ *
+ * The buffers are held by a {@link Lease} until the call that uses the Tensors is done, after
+ * which they go back to the pool
+ *
+ * The StandardMessageCodec of the flutter versions the plugin supports has no float array type, so
+ * a Float32List is sent as its raw bytes in the native byte order with `"raw": true`, and is read
+ * here as a FloatBuffer over those bytes, see {@link #dataOf(Map)}
+ */
+class TensorConverter {
+    private final TensorBufferPool pool;
+
+    TensorConverter(TensorBufferPool pool) {
+        this.pool = pool;
+    }
+
+    TensorBufferPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Creates a Lease that keeps track of the buffers acquired during a call, close it once the
+     * Tensors created with it are not used anymore
+     */
+    Lease newLease() {
+        return new Lease();
+    }
+
+    /**
+     * Parses the Tensor type sent from flutter
+     *
+     * @param toType the name of the Tensor type, one of UINT8, INT8, INT32, FLOAT32, INT64, FLOAT64
+     * @return (DType) the corresponding DType
+     * @throws Exception if the type is not a valid Tensor type
+     */
+    static DType dtypeOf(String toType) throws Exception {
+        switch (toType) {
+            case "UINT8":
+                return DType.UINT8;
+            case "INT8":
+                return DType.INT8;
+            case "INT32":
+                return DType.INT32;
+            case "FLOAT32":
+                return DType.FLOAT32;
+            case "INT64":
+                return DType.INT64;
+            case "FLOAT64":
+                return DType.FLOAT64;
+            default:
+                throw new Exception("Invalid toType : " + toType);
+        }
+    }
+
+    /**
+     * @param args the arguments of a TensorValue received from flutter
+     * @return (Object) the data of the TensorValue, a FloatBuffer over the bytes when they are the
+     *  raw bytes of a Float32List
+     */
+    static Object dataOf(Map<?, ?> args) {
+        Object data = args.get("data");
+        if (Boolean.TRUE.equals(args.get("raw")) && data instanceof byte[]) {
+            return ByteBuffer.wrap((byte[]) data).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        return data;
+    }
+
+    /**
+     * Creates a Tensor of the given dtype and shape from the data received from flutter
+     *
+     * @param data the data, can be byte[], int[], long[], float[], double[] or a FloatBuffer, see
+     *  {@link #dataOf(Map)}
+     * @param shape the shape of the Tensor, the number of elements must match the length of data
+     * @param dtype the dtype of the Tensor
+     * @param lease the lease that holds the buffer backing the Tensor
+     * @return (Tensor) the Tensor backed by a pooled direct buffer
+     * @throws Exception if the data type is not supported or the shape does not match the data
+     */
+    Tensor toTensor(Object data, long[] shape, DType dtype, Lease lease) throws Exception {
+        int length = lengthOf(data);
+        long numel = Tensor.numel(shape);
+        if (numel != length) {
+            throw new Exception("Shape " + java.util.Arrays.toString(shape) + " has " + numel
+                    + " elements, but the data has " + length + " elements");
+        }
+
+        Buffer buffer = lease.acquire(dtype, length);
+        // the bulk copies move the position of the buffer, while the element wise copies don't, so
+        // the buffer is always rewound to keep them the same
+        try {
+            copyTo(data, buffer, dtype, 0);
+            return fromBuffer(buffer, dtype, shape);
+        } finally {
+            buffer.rewind();
+        }
+    }
+
+    /**
+     * Creates an IValue from the data of a TensorValue, see {@link #toTensor}
+     *
+     * @param data the data received from flutter
+     * @param shape the shape of the Tensor
+     * @param toType the name of the Tensor type, see {@link #dtypeOf(String)}
+     * @param lease the lease that holds the buffer of the Tensor until the call is done
+     * @return (IValue) the Tensor as an IValue, since the methods of the Module only take IValues
+     * @throws Exception if the type is not valid or the data cannot be converted
+     */
+    IValue tensorValueOf(Object data, long[] shape, String toType, Lease lease) throws Exception {
+        return IValue.from(toTensor(data, shape, dtypeOf(toType), lease));
+    }
+
+    /**
+     * Creates an IValue from the data of a Value
+     *
+     * @param data the data received from flutter
+     * @param toType the datatype to convert to, can only be BOOL, INT, FLOAT, STR
+     * @return (IValue) the IValue representation of the data
+     * @throws Exception if the type is not valid or does not match the data
+     */
+    static IValue valueOf(Object data, String toType) throws Exception {
+        switch (toType) {
+            case "BOOL":
+                return IValue.from((boolean) (Boolean) data);
+            case "INT":
+                // the codec sends the ints that fit in 32 bits as Integers
+                if (data instanceof Integer) {
+                    return IValue.from(((Integer) data).longValue());
+                } else if (data instanceof Long) {
+                    return IValue.from((long) (Long) data);
+                }
+                throw new Exception("Invalid data type received in Value: " + data.getClass());
+            case "FLOAT":
+                return IValue.from((double) (Double) data);
+            case "STR":
+                return IValue.from((String) data);
+            default:
+                throw new Exception("Invalid toType: " + toType);
+        }
+    }
+
+    /**
+     * Converts a double[] to a float[], used for the small parameter arrays like mean and std
+     */
+    static float[] toFloatArray(double[] data) {
+        float[] result = new float[data.length];
+        for (int i = 0; i < data.length; i++) {
+            result[i] = (float) data[i];
+        }
+        return result;
+    }
+
+    /**
+     * @param dtype the dtype of the Tensor
+     * @param numel the number of elements
+     * @return (Object) a primitive array of zeros that can be copied to a buffer of the dtype
+     */
+    static Object zeros(DType dtype, int numel) {
+        switch (dtype) {
+            case UINT8:
+            case INT8:
+                return new byte[numel];
+            case INT32:
+                return new int[numel];
+            case FLOAT32:
+                return new float[numel];
+            case INT64:
+                return new long[numel];
+            case FLOAT64:
+                return new double[numel];
+            default:
+                throw new IllegalArgumentException("Unsupported dtype: " + dtype);
+        }
+    }
+
+    /**
+     * Writes the data into a buffer acquired for the given dtype, starting at the given element
+     *
+     * @param data the data, can be byte[], int[], long[], float[], double[] or a FloatBuffer
+     * @param buffer the buffer, of the type that backs the dtype
+     * @param dtype the dtype the buffer was acquired for
+     * @param offset the index of the first element to write to
+     */
+    static void copyTo(Object data, Buffer buffer, DType dtype, int offset) {
+        if (data instanceof FloatBuffer) {
+            FloatBuffer floats = ((FloatBuffer) data).duplicate();
+            if (dtype == DType.FLOAT32) {
+                FloatBuffer out = (FloatBuffer) buffer;
+                out.position(offset);
+                out.put(floats);
+                return;
+            }
+            // the raw floats meant for another dtype go through the loops of the arrays
+            float[] array = new float[floats.remaining()];
+            floats.get(array);
+            data = array;
+        }
+        switch (dtype) {
+            case UINT8:
+            case INT8:
+                copyTo(data, (ByteBuffer) buffer, offset);
+                break;
+            case INT32:
+                copyTo(data, (IntBuffer) buffer, offset);
+                break;
+            case FLOAT32:
+                copyTo(data, (FloatBuffer) buffer, offset);
+                break;
+            case INT64:
+                copyTo(data, (LongBuffer) buffer, offset);
+                break;
+            case FLOAT64:
+                copyTo(data, (DoubleBuffer) buffer, offset);
+                break;
+        }
+    }
+
+    /**
+     * Wraps a buffer acquired for the given dtype in a Tensor
+     */
+    static Tensor fromBuffer(Buffer buffer, DType dtype, long[] shape) {
+        switch (dtype) {
+            case UINT8:
+                return Tensor.fromBlobUnsigned((ByteBuffer) buffer, shape);
+            case INT8:
+                return Tensor.fromBlob((ByteBuffer) buffer, shape);
+            case INT32:
+                return Tensor.fromBlob((IntBuffer) buffer, shape);
+            case FLOAT32:
+                return Tensor.fromBlob((FloatBuffer) buffer, shape);
+            case INT64:
+                return Tensor.fromBlob((LongBuffer) buffer, shape);
+            default:
+                return Tensor.fromBlob((DoubleBuffer) buffer, shape);
+        }
+    }
+
+    static int lengthOf(Object data) throws Exception {
+        if (data instanceof byte[]) {
+            return ((byte[]) data).length;
+        } else if (data instanceof int[]) {
+            return ((int[]) data).length;
+        } else if (data instanceof long[]) {
+            return ((long[]) data).length;
+        } else if (data instanceof float[]) {
+            return ((float[]) data).length;
+        } else if (data instanceof double[]) {
+            return ((double[]) data).length;
+        } else if (data instanceof FloatBuffer) {
+            return ((FloatBuffer) data).remaining();
+        }
+        throw new Exception("Invalid data type for conversion to Tensor : " + data.getClass());
+    }
+
+    // The copyTo methods write the whole source array starting at the given index of the buffer,
+    // with the same narrowing rules as a Java cast
+
+    static void copyTo(Object data, ByteBuffer out, int offset) {
+        if (data instanceof byte[]) {
+            out.position(offset);
+            out.put((byte[]) data);
+        } else if (data instanceof int[]) {
+            int[] src = (int[]) data;
+            for (int i = 0; i < src.length; i++) {
+                out.put(offset + i, (byte) src[i]);
+            }
+        } else if (data instanceof long[]) {
+            long[] src = (long[]) data;
+            for (int i = 0; i < src.length; i++) {
+                out.put(offset + i, (byte) src[i]);
+            }
+        } else if (data instanceof float[]) {
+            float[] src = (float[]) data;
+            for (int i = 0; i < src.length; i++) {
+                out.put(offset + i, (byte) src[i]);
+            }
+        } else {
+            double[] src = (double[]) data;
+            for (int i = 0; i < src.length; i++) {
+                out.put(offset + i, (byte) src[i]);
+            }
+        }
+    }
+
+    static void copyTo(Object data, IntBuffer out, int offset) {
+        if (data instanceof int[]) {
+            out.position(offset);
+            out.put((int[]) data);
+        } else if (data instanceof byte[]) {
+            byte[] src = (byte[]) data;
+            for (int i = 0; i < src.length; i++) {
+                out.put(offset + i, src[i]);
+            }
+        } else if (data instanceof long[]) {
+            long[] src = (long[]) data;
+            for (int i = 0; i < src.length; i++) {
+                out.put(offset + i, (int) src[i]);
+            }
+        } else if (data instanceof float[]) {
+            float[] src = (float[]) data;
+            for (int i = 0; i < src.length; i++) {
+                out.put(offset + i, (int) src[i]);
+            }
+        } else {
+            double[] src = (double[]) data;
+            for (int i = 0; i < src.length; i++) {
+                out.put(offset + i, (int) src[i]);
+            }
+        }
+    }
+
+    static void copyTo(Object data, FloatBuffer out, int offset) {
+        if (data instanceof float[]) {
+            out.position(offset);
+            out.put((float[]) data);
+        } else if (data instanceof byte[]) {
+            byte[] src = (byte[]) data;
+            for (int i = 0; i < src.length; i++) {
+                out.put(offset + i, src[i]);
+            }
+        } else if (data instanceof int[]) {
+            int[] src = (int[]) data;
+            for (int i = 0; i < src.length; i++) {
+                out.put(offset + i, src[i]);
+            }
+        } else if (data instanceof long[]) {
+            long[] src = (long[]) data;
+            for (int i = 0; i < src.length; i++) {
+                out.put(offset + i, src[i]);
+            }
+        } else {
+            double[] src = (double[]) data;
+            for (int i = 0; i < src.length; i++) {
+                out.put(offset + i, (float) src[i]);
+            }
+        }
+    }
+
+    static void copyTo(Object data, LongBuffer out, int offset) {
+        if (data instanceof long[]) {
+            out.position(offset);
+            out.put((long[]) data);
+        } else if (data instanceof byte[]) {
+            byte[] src = (byte[]) data;
+            for (int i = 0; i < src.length; i++) {
+                out.put(offset + i, src[i]);
+            }
+        } else if (data instanceof int[]) {
+            int[] src = (int[]) data;
+            for (int i = 0; i < src.length; i++) {
+                out.put(offset + i, src[i]);
+            }
+        } else if (data instanceof float[]) {
+            float[] src = (float[]) data;
+            for (int i = 0; i < src.length; i++) {
+                out.put(offset + i, (long) src[i]);
+            }
+        } else {
+            double[] src = (double[]) data;
+            for (int i = 0; i < src.length; i++) {
+                out.put(offset + i, (long) src[i]);
+            }
+        }
+    }
+
+    static void copyTo(Object data, DoubleBuffer out, int offset) {
+        if (data instanceof double[]) {
+            out.position(offset);
+            out.put((double[]) data);
+        } else if (data instanceof byte[]) {
+            byte[] src = (byte[]) data;
+            for (int i = 0; i < src.length; i++) {
+                out.put(offset + i, src[i]);
+            }
+        } else if (data instanceof int[]) {
+            int[] src = (int[]) data;
+            for (int i = 0; i < src.length; i++) {
+                out.put(offset + i, src[i]);
+            }
+        } else if (data instanceof long[]) {
+            long[] src = (long[]) data;
+            for (int i = 0; i < src.length; i++) {
+                out.put(offset + i, src[i]);
+            }
+        } else {
+            float[] src = (float[]) data;
+            for (int i = 0; i < src.length; i++) {
+                out.put(offset + i, src[i]);
+            }
+        }
+    }
+
+    /**
+     * Holds the buffers acquired from the pool during one call
+     */
+    class Lease implements AutoCloseable {
+        private final ArrayList<Buffer> buffers = new ArrayList<>(2);
+        private final ArrayList<DType> dtypes = new ArrayList<>(2);
+
+        Buffer acquire(DType dtype, int numel) {
+            Buffer buffer = pool.acquire(dtype, numel);
+            buffers.add(buffer);
+            dtypes.add(dtype);
+            return buffer;
+        }
+
+        /**
+         * Keeps the buffers out of the pool, used when a Tensor backed by them outlives the call
+         */
+        void detach() {
+            buffers.clear();
+            dtypes.clear();
+        }
+
+        /**
+         * Gives the buffers back to the pool
+         */
+        @Override
+        public void close() {
+            for (int i = 0; i < buffers.size(); i++) {
+                pool.release(dtypes.get(i), buffers.get(i));
+            }
+            detach();
+        }
+    }
+}
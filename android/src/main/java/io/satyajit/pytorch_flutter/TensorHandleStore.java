@@ -0,0 +1,194 @@
+package io.satyajit.pytorch_flutter;
+
+import org.pytorch.IValue;
+import org.pytorch.Tensor;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps outputs of the models on the Java end, under a handle id flutter can pass as an input to
+ * a later call, so the intermediate values of a pipeline (encoder -> decoder, backbone -> heads)
+ * are not sent to flutter and converted back
+ *
+ * - a handle is released by flutter, or when it has not been used for its time to live
+ * - the bytes of the Tensors held by the handles are accounted, and reported with the memory stats
+ *
+ * This class only depends on the org.pytorch classes, so it can run on a plain JVM
+ */
+class TensorHandleStore {
+    private static class Handle {
+        final IValue value;
+        final long bytes;
+        final long ttlMillis;
+        long lastUsedMillis;
+
+        Handle(IValue value, long bytes, long ttlMillis, long now) {
+            this.value = value;
+            this.bytes = bytes;
+            this.ttlMillis = ttlMillis;
+            this.lastUsedMillis = now;
+        }
+
+        boolean isExpired(long now) {
+            return ttlMillis > 0 && now - lastUsedMillis > ttlMillis;
+        }
+    }
+
+    private final HashMap<Integer, Handle> handles = new HashMap<>();
+    // the ids are never reused, so a stale id can't refer to a newer value
+    private int nextId = 1;
+    private long heldBytes = 0;
+    private long created = 0;
+    private long released = 0;
+    private long expired = 0;
+
+    /**
+     * Keeps a value under a new handle
+     *
+     * @param value the value to keep
+     * @param ttlMillis the time after its last use the handle is released, 0 to keep it until
+     *  it is released
+     * @return (int) the handle id
+     */
+    synchronized int put(IValue value, long ttlMillis) {
+        long bytes = sizeOf(value);
+        int id = nextId++;
+        handles.put(id, new Handle(value, bytes, ttlMillis, System.currentTimeMillis()));
+        heldBytes += bytes;
+        created++;
+        return id;
+    }
+
+    /**
+     * @param id the handle id
+     * @return (IValue) the value of the handle, its time to live starts over
+     * @throws Exception if there is no such handle, or it was released or expired
+     */
+    synchronized IValue get(int id) throws Exception {
+        Handle handle = handles.get(id);
+        long now = System.currentTimeMillis();
+        if (handle != null && handle.isExpired(now)) {
+            remove(id);
+            expired++;
+            handle = null;
+        }
+        if (handle == null) {
+            throw new Exception("No tensor handle with the id " + id + ", it was released or expired");
+        }
+        handle.lastUsedMillis = now;
+        return handle.value;
+    }
+
+    /**
+     * @return (long) the bytes of the Tensors held by the handle, 0 if there is no such handle
+     */
+    synchronized long bytesOf(int id) {
+        Handle handle = handles.get(id);
+        return handle == null ? 0 : handle.bytes;
+    }
+
+    /**
+     * Releases a handle, the value can be collected once the calls using it are done
+     *
+     * @return (boolean) false if there was no such handle
+     */
+    synchronized boolean release(int id) {
+        if (remove(id) == null) {
+            return false;
+        }
+        released++;
+        return true;
+    }
+
+    /**
+     * Releases the handles that have not been used for their time to live
+     *
+     * @return (int) the number of handles released
+     */
+    synchronized int releaseExpired() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        Iterator<Map.Entry<Integer, Handle>> entries = handles.entrySet().iterator();
+        while (entries.hasNext()) {
+            Handle handle = entries.next().getValue();
+            if (handle.isExpired(now)) {
+                entries.remove();
+                heldBytes -= handle.bytes;
+                count++;
+            }
+        }
+        expired += count;
+        return count;
+    }
+
+    /**
+     * Releases all the handles
+     */
+    synchronized void clear() {
+        released += handles.size();
+        handles.clear();
+        heldBytes = 0;
+    }
+
+    /**
+     * @return the number of handles and the bytes they hold, and the number of handles created,
+     *  released and expired
+     */
+    synchronized HashMap<String, Object> getStats() {
+        HashMap<String, Object> stats = new HashMap<>();
+        stats.put("handles", handles.size());
+        stats.put("heldBytes", heldBytes);
+        stats.put("created", created);
+        stats.put("released", released);
+        stats.put("expired", expired);
+        return stats;
+    }
+
+    private Handle remove(int id) {
+        Handle handle = handles.remove(id);
+        if (handle != null) {
+            heldBytes -= handle.bytes;
+        }
+        return handle;
+    }
+
+    /**
+     * @return (long) the bytes of the Tensors in the value, the other values are counted as 0
+     */
+    static long sizeOf(IValue value) {
+        if (value.isTensor()) {
+            return sizeOf(value.toTensor());
+        } else if (value.isTensorList()) {
+            long bytes = 0;
+            for (Tensor tensor : value.toTensorList()) {
+                bytes += sizeOf(tensor);
+            }
+            return bytes;
+        } else if (value.isList() || value.isTuple()) {
+            long bytes = 0;
+            for (IValue element : value.isList() ? value.toList() : value.toTuple()) {
+                bytes += sizeOf(element);
+            }
+            return bytes;
+        } else if (value.isDictStringKey()) {
+            long bytes = 0;
+            for (IValue element : value.toDictStringKey().values()) {
+                bytes += sizeOf(element);
+            }
+            return bytes;
+        } else if (value.isDictLongKey()) {
+            long bytes = 0;
+            for (IValue element : value.toDictLongKey().values()) {
+                bytes += sizeOf(element);
+            }
+            return bytes;
+        }
+        return 0;
+    }
+
+    private static long sizeOf(Tensor tensor) {
+        return TensorBufferPool.sizeInBytes(tensor.dtype(), tensor.numel());
+    }
+}
@@ -0,0 +1,348 @@
+package io.satyajit.pytorch_flutter;
+
+import org.pytorch.DType;
+import org.pytorch.IValue;
+import org.pytorch.Tensor;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes and decodes the messages of the binary tensor channel
+ *
+ * Unlike the `forward`/`runMethod` calls, where the inputs are sent as HashMaps through the
+ * StandardMessageCodec, here the inputs are sent as a compact header followed by the raw bytes of
+ * the Tensors, and the bytes are copied straight into the direct buffers backing the Tensors.
+ * All the values are little endian
+ *
+ * Request:
+ *  int32 version, int32 modelIndex, int32 methodId (0 = forward, 1 = runMethod),
+ *  int32 methodNameLength, utf8 methodName, int32 inputCount,
+ *  per input: int32 dtype, int32 rank, int64[rank] shape, int64 offset, int64 byteLength
+ *  padding to a multiple of 8, the data of all the inputs, the offsets are relative to the
+ *  start of the data
+ *
+ * Reply:
+ *  int32 status (0 = ok, 1 = error)
+ *  ok: int32 outputCount, per output: int32 dtype, int32 rank, int64[rank] shape,
+ *      int64 byteLength, the data padded to a multiple of 8
+ *  error: int32 codeLength, utf8 code, int32 messageLength, utf8 message
+ *
+ * The dtype codes follow the order of the `TensorType` enum on the Dart end
+ */
+class TensorMessageCodec {
+    static final int VERSION = 1;
+    static final int METHOD_FORWARD = 0;
+    static final int METHOD_RUN_METHOD = 1;
+    static final int STATUS_OK = 0;
+    static final int STATUS_ERROR = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // same order as TensorType in lib/dtypes.dart
+    private static final DType[] DTYPES = {
+            DType.UINT8, DType.INT8, DType.FLOAT32, DType.INT32, DType.FLOAT64, DType.INT64
+    };
+
+    private TensorMessageCodec() {
+    }
+
+    /**
+     * A decoded request, the Tensors are backed by the buffers of the lease
+     */
+    static class Request {
+        final int modelIndex;
+        final String methodName;
+        final IValue[] inputs;
+
+        Request(int modelIndex, String methodName, IValue[] inputs) {
+            this.modelIndex = modelIndex;
+            this.methodName = methodName;
+            this.inputs = inputs;
+        }
+    }
+
+    /**
+     * Decodes a request, the data of the inputs is copied out of the message, so the message can
+     * be released as soon as this returns
+     *
+     * @param message the message received on the channel
+     * @param lease holds the buffers of the input Tensors
+     * @return (Request) the decoded request
+     * @throws Exception if the message is malformed
+     */
+    static Request decodeRequest(ByteBuffer message, TensorConverter.Lease lease) throws Exception {
+        ByteBuffer in = message.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        in.position(0);
+
+        int version = in.getInt();
+        if (version != VERSION) {
+            throw new Exception("Unsupported tensor message version: " + version);
+        }
+        int modelIndex = in.getInt();
+        int methodId = in.getInt();
+        String methodName = readString(in);
+        if (methodId == METHOD_FORWARD) {
+            methodName = "forward";
+        } else if (methodId != METHOD_RUN_METHOD) {
+            throw new Exception("Unknown method id: " + methodId);
+        }
+
+        int inputCount = in.getInt();
+        DType[] dtypes = new DType[inputCount];
+        long[][] shapes = new long[inputCount][];
+        long[] offsets = new long[inputCount];
+        long[] lengths = new long[inputCount];
+        for (int i = 0; i < inputCount; i++) {
+            dtypes[i] = dtypeOf(in.getInt());
+            int rank = in.getInt();
+            shapes[i] = new long[rank];
+            for (int d = 0; d < rank; d++) {
+                shapes[i][d] = in.getLong();
+            }
+            offsets[i] = in.getLong();
+            lengths[i] = in.getLong();
+        }
+
+        int dataStart = align8(in.position());
+        IValue[] inputs = new IValue[inputCount];
+        for (int i = 0; i < inputCount; i++) {
+            long numel = Tensor.numel(shapes[i]);
+            if (TensorBufferPool.sizeInBytes(dtypes[i], numel) != lengths[i]) {
+                throw new Exception("Input " + i + " has " + lengths[i] + " bytes, expected "
+                        + TensorBufferPool.sizeInBytes(dtypes[i], numel) + " for its shape and dtype");
+            }
+            int start = (int) (dataStart + offsets[i]);
+            ByteBuffer data = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            data.limit(start + (int) lengths[i]);
+            data.position(start);
+
+            Buffer buffer = lease.acquire(dtypes[i], (int) numel);
+            inputs[i] = IValue.from(copyTo(data.slice().order(ByteOrder.LITTLE_ENDIAN), buffer, dtypes[i], shapes[i]));
+        }
+
+        return new Request(modelIndex, methodName, inputs);
+    }
+
+    /**
+     * Copies the raw bytes into the direct buffer and wraps it in a Tensor, the Tensor buffers are
+     * in the native byte order, which is little endian on Android, so each copy is a bulk copy
+     */
+    private static Tensor copyTo(ByteBuffer data, Buffer buffer, DType dtype, long[] shape) {
+        buffer.clear();
+        try {
+            switch (dtype) {
+                case UINT8:
+                case INT8: {
+                    ByteBuffer out = (ByteBuffer) buffer;
+                    out.put(data);
+                    return dtype == DType.UINT8 ? Tensor.fromBlobUnsigned(out, shape) : Tensor.fromBlob(out, shape);
+                }
+                case INT32: {
+                    IntBuffer out = (IntBuffer) buffer;
+                    out.put(data.asIntBuffer());
+                    return Tensor.fromBlob(out, shape);
+                }
+                case FLOAT32: {
+                    FloatBuffer out = (FloatBuffer) buffer;
+                    out.put(data.asFloatBuffer());
+                    return Tensor.fromBlob(out, shape);
+                }
+                case INT64: {
+                    LongBuffer out = (LongBuffer) buffer;
+                    out.put(data.asLongBuffer());
+                    return Tensor.fromBlob(out, shape);
+                }
+                default: {
+                    DoubleBuffer out = (DoubleBuffer) buffer;
+                    out.put(data.asDoubleBuffer());
+                    return Tensor.fromBlob(out, shape);
+                }
+            }
+        } finally {
+            buffer.rewind();
+        }
+    }
+
+    /**
+     * Encodes the output of the model, only Tensors and tuples or lists of Tensors can be sent on
+     * this channel
+     *
+     * @param output the output of the model
+     * @return (ByteBuffer) a direct buffer with the reply, ready to be sent
+     * @throws Exception if the output holds anything other than Tensors
+     */
+    static ByteBuffer encodeReply(IValue output) throws Exception {
+        Tensor[] tensors;
+        if (output.isTensor()) {
+            tensors = new Tensor[]{output.toTensor()};
+        } else if (output.isTensorList()) {
+            tensors = output.toTensorList();
+        } else if (output.isTuple() || output.isList()) {
+            IValue[] values = output.isTuple() ? output.toTuple() : output.toList();
+            tensors = new Tensor[values.length];
+            for (int i = 0; i < values.length; i++) {
+                if (!values[i].isTensor()) {
+                    throw new Exception("Only Tensor outputs can be sent on the tensor channel, use forward instead");
+                }
+                tensors[i] = values[i].toTensor();
+            }
+        } else {
+            throw new Exception("Only Tensor outputs can be sent on the tensor channel, use forward instead");
+        }
+
+        int size = 8;
+        for (Tensor tensor : tensors) {
+            size += 8 + 8 * tensor.shape().length + 8;
+            size += align8((int) TensorBufferPool.sizeInBytes(tensor.dtype(), tensor.numel()));
+        }
+
+        ByteBuffer out = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(STATUS_OK);
+        out.putInt(tensors.length);
+        for (Tensor tensor : tensors) {
+            long[] shape = tensor.shape();
+            int byteLength = (int) TensorBufferPool.sizeInBytes(tensor.dtype(), tensor.numel());
+            out.putInt(codeOf(tensor.dtype()));
+            out.putInt(shape.length);
+            for (long dim : shape) {
+                out.putLong(dim);
+            }
+            out.putLong(byteLength);
+            putData(out, tensor);
+            out.position(align8(out.position()));
+        }
+        out.flip();
+        return out;
+    }
+
+    private static void putData(ByteBuffer out, Tensor tensor) {
+        int start = out.position();
+        ByteBuffer view = out.slice().order(ByteOrder.LITTLE_ENDIAN);
+        switch (tensor.dtype()) {
+            case UINT8:
+                view.put(tensor.getDataAsUnsignedByteArray());
+                break;
+            case INT8:
+                view.put(tensor.getDataAsByteArray());
+                break;
+            case INT32:
+                view.asIntBuffer().put(tensor.getDataAsIntArray());
+                break;
+            case FLOAT32:
+                view.asFloatBuffer().put(tensor.getDataAsFloatArray());
+                break;
+            case INT64:
+                view.asLongBuffer().put(tensor.getDataAsLongArray());
+                break;
+            case FLOAT64:
+                view.asDoubleBuffer().put(tensor.getDataAsDoubleArray());
+                break;
+        }
+        out.position(start + (int) TensorBufferPool.sizeInBytes(tensor.dtype(), tensor.numel()));
+    }
+
+    /**
+     * Encodes an error reply
+     */
+    static ByteBuffer encodeError(String code, String message) {
+        byte[] codeBytes = code.getBytes(UTF8);
+        byte[] messageBytes = (message == null ? "" : message).getBytes(UTF8);
+        ByteBuffer out = ByteBuffer.allocateDirect(12 + codeBytes.length + messageBytes.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(STATUS_ERROR);
+        out.putInt(codeBytes.length);
+        out.put(codeBytes);
+        out.putInt(messageBytes.length);
+        out.put(messageBytes);
+        out.flip();
+        return out;
+    }
+
+    static DType dtypeOf(int code) throws Exception {
+        if (code < 0 || code >= DTYPES.length) {
+            throw new Exception("Unknown dtype code: " + code);
+        }
+        return DTYPES[code];
+    }
+
+    static int codeOf(DType dtype) {
+        for (int i = 0; i < DTYPES.length; i++) {
+            if (DTYPES[i] == dtype) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported dtype: " + dtype);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length == 0) {
+            return "";
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    static int align8(int position) {
+        return (position + 7) & ~7;
+    }
+
+    /**
+     * Builds a request, used by the benchmarks to create the messages the Dart end would send
+     *
+     * @param modelIndex the index of the model
+     * @param methodName the method to run, "forward" runs the forward method
+     * @param dtypes the dtype of each input
+     * @param shapes the shape of each input
+     * @param data the raw little endian bytes of each input
+     * @return (ByteBuffer) a direct buffer with the request
+     */
+    static ByteBuffer encodeRequest(int modelIndex, String methodName, DType[] dtypes, long[][] shapes, byte[][] data) {
+        boolean forward = "forward".equals(methodName);
+        byte[] name = forward ? new byte[0] : methodName.getBytes(UTF8);
+
+        int headerSize = 20 + name.length;
+        for (long[] shape : shapes) {
+            headerSize += 8 + 8 * shape.length + 16;
+        }
+        int dataSize = 0;
+        for (byte[] bytes : data) {
+            dataSize += align8(bytes.length);
+        }
+
+        ByteBuffer out = ByteBuffer.allocateDirect(align8(headerSize) + dataSize).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(VERSION);
+        out.putInt(modelIndex);
+        out.putInt(forward ? METHOD_FORWARD : METHOD_RUN_METHOD);
+        out.putInt(name.length);
+        out.put(name);
+        out.putInt(data.length);
+        long offset = 0;
+        long[] offsets = new long[data.length];
+        for (int i = 0; i < data.length; i++) {
+            out.putInt(codeOf(dtypes[i]));
+            out.putInt(shapes[i].length);
+            for (long dim : shapes[i]) {
+                out.putLong(dim);
+            }
+            out.putLong(offset);
+            out.putLong(data[i].length);
+            offsets[i] = offset;
+            offset += align8(data[i].length);
+        }
+        int dataStart = align8(out.position());
+        for (int i = 0; i < data.length; i++) {
+            out.position(dataStart + (int) offsets[i]);
+            out.put(data[i]);
+        }
+        out.position(0);
+        return out;
+    }
+}
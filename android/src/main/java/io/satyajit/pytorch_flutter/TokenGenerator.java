@@ -0,0 +1,179 @@
+package io.satyajit.pytorch_flutter;
+
+import org.pytorch.DType;
+import org.pytorch.IValue;
+import org.pytorch.Tensor;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Runs the token by token decoding of a sequence model on the Java end, so a whole sentence takes a
+ * single call from flutter instead of a call per token
+ *
+ * Each step runs the step method with the tokens as an INT64 [1, n] Tensor followed by the state:
+ * - when the step returns a tuple, its first element holds the logits, and the rest is the new
+ *   state (like the past keys and values), the next step gets only the new token and that state
+ * - when the step returns a Tensor, it is the logits, and the next step gets the whole sequence
+ *   again, with the initial state (like the output of an encoder)
+ *
+ * The logits are read at the last position, so they can be [1, vocab] or [1, n, vocab]. The token
+ * Tensors are created over two direct buffers allocated once, so apart from the output of the
+ * model the steps allocate nothing but the Tensor and IValue wrappers
+ *
+ * This class only depends on the org.pytorch classes, so it can run on a plain JVM
+ */
+class TokenGenerator {
+    /**
+     * Runs the step method on the model, `Module.runMethod` on the device
+     */
+    interface StepRunner {
+        IValue run(IValue[] inputs) throws Exception;
+    }
+
+    /**
+     * Gets each token as soon as it is picked, on the thread running the generation
+     */
+    interface TokenListener {
+        void onToken(long token, int position);
+    }
+
+    private final StepRunner runner;
+    private final TokenSampler sampler;
+    private final int maxTokens;
+    private final long[] stopTokens;
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param runner runs the step method
+     * @param sampler picks the tokens from the logits
+     * @param maxTokens the maximum number of tokens generated
+     * @param stopTokens the tokens that end the generation, they are part of the output
+     */
+    TokenGenerator(StepRunner runner, TokenSampler sampler, int maxTokens, long[] stopTokens) {
+        this.runner = runner;
+        this.sampler = sampler;
+        this.maxTokens = maxTokens;
+        this.stopTokens = stopTokens == null ? new long[0] : stopTokens;
+    }
+
+    /**
+     * Stops the generation after the step running now, can be called from any thread
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Generates the tokens following the prompt
+     *
+     * @param prompt the tokens the generation starts from, at least one
+     * @param initialState the inputs passed after the tokens to the first step
+     * @param listener gets the tokens as they are generated
+     * @return (HashMap) the generated "tokens", the "stopReason" (stopToken, maxTokens or
+     *  cancelled), the number of "steps", and the "firstStepMicros" and "totalMicros"
+     * @throws Exception if a step fails, or does not return FLOAT32 logits
+     */
+    HashMap<String, Object> generate(long[] prompt, IValue[] initialState, TokenListener listener) throws Exception {
+        if (prompt.length == 0) {
+            throw new Exception("generate needs at least one prompt token");
+        }
+        long start = System.nanoTime();
+        long firstStepNanos = 0;
+
+        // the whole sequence, for the steps without state, and the last token, for the others
+        LongBuffer sequence = Tensor.allocateLongBuffer(prompt.length + maxTokens);
+        sequence.put(prompt);
+        LongBuffer lastToken = Tensor.allocateLongBuffer(1);
+        long[] sequenceShape = {1, prompt.length};
+        long[] lastTokenShape = {1, 1};
+        int length = prompt.length;
+
+        long[] generated = new long[maxTokens];
+        int count = 0;
+        String stopReason = "maxTokens";
+        IValue[] inputs = withTokens(null, initialState, 0, initialState.length);
+        boolean stateful = false;
+
+        while (count < maxTokens) {
+            if (cancelled) {
+                stopReason = "cancelled";
+                break;
+            }
+            Tensor tokens;
+            if (stateful) {
+                tokens = Tensor.fromBlob(lastToken, lastTokenShape);
+            } else {
+                // a view of the first `length` tokens, the capacity of the buffer must match the shape
+                sequence.position(0).limit(length);
+                tokens = Tensor.fromBlob(sequence.slice(), sequenceShape);
+                sequence.clear();
+            }
+            inputs[0] = IValue.from(tokens);
+
+            IValue output = runner.run(inputs);
+            Tensor logits;
+            if (output.isTuple()) {
+                IValue[] elements = output.toTuple();
+                logits = elements[0].toTensor();
+                // the state of the next step, the inputs are only reallocated when its size changes
+                inputs = withTokens(inputs, elements, 1, elements.length - 1);
+                stateful = true;
+            } else {
+                logits = output.toTensor();
+            }
+            if (logits.dtype() != DType.FLOAT32) {
+                throw new Exception("The step method must return FLOAT32 logits, got " + logits.dtype());
+            }
+
+            long[] shape = logits.shape();
+            int vocab = (int) shape[shape.length - 1];
+            float[] data = logits.getDataAsFloatArray();
+            long token = sampler.sample(data, data.length - vocab, vocab);
+            if (count == 0) {
+                firstStepNanos = System.nanoTime() - start;
+            }
+
+            generated[count++] = token;
+            sequence.put(length++, token);
+            sequenceShape[1] = length;
+            lastToken.put(0, token);
+            listener.onToken(token, count - 1);
+
+            if (isStopToken(token)) {
+                stopReason = "stopToken";
+                break;
+            }
+        }
+
+        HashMap<String, Object> result = new HashMap<>();
+        result.put("tokens", Arrays.copyOf(generated, count));
+        result.put("stopReason", stopReason);
+        result.put("steps", count);
+        result.put("firstStepMicros", firstStepNanos / 1000);
+        result.put("totalMicros", (System.nanoTime() - start) / 1000);
+        return result;
+    }
+
+    /**
+     * Copies `count` values from `from` after the token slot of the inputs, reusing the inputs when
+     * they have the right size
+     */
+    private static IValue[] withTokens(IValue[] inputs, IValue[] from, int offset, int count) {
+        if (inputs == null || inputs.length != count + 1) {
+            inputs = new IValue[count + 1];
+        }
+        System.arraycopy(from, offset, inputs, 1, count);
+        return inputs;
+    }
+
+    private boolean isStopToken(long token) {
+        for (long stopToken : stopTokens) {
+            if (token == stopToken) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,169 @@
+package io.satyajit.pytorch_flutter;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Picks the next token from the logits of a sequence model
+ *
+ * - greedy: the most likely token, when the temperature is 0 or topK is 1
+ * - otherwise the token is drawn from the softmax of the logits divided by the temperature,
+ *   restricted to the topK most likely tokens when topK is set, then to the smallest set of the
+ *   most likely tokens whose probabilities add up to topP (nucleus sampling) when topP < 1
+ *
+ * The working arrays are sized to the vocabulary on the first call and reused, so sampling a token
+ * allocates nothing. A sampler is used by one generation at a time
+ *
+ * This class only uses java.util, so it can run on a plain JVM
+ */
+class TokenSampler {
+    private final int topK;
+    private final float topP;
+    private final float temperature;
+    private final Random random;
+
+    // the candidate tokens and their scores, then probabilities
+    private int[] ids = new int[0];
+    private float[] scores = new float[0];
+    // the candidates sorted for top-p, as the probability bits in the high half and the candidate
+    // in the low half
+    private long[] order = new long[0];
+
+    /**
+     * @param topK the number of most likely tokens kept, 0 to keep them all
+     * @param topP the probability mass of the most likely tokens kept, 1 to keep them all
+     * @param temperature divides the logits, 0 for greedy decoding
+     * @param seed the seed of the random draws, null for a random seed
+     */
+    TokenSampler(int topK, float topP, float temperature, Long seed) {
+        this.topK = Math.max(0, topK);
+        this.topP = topP;
+        this.temperature = temperature;
+        this.random = seed == null ? new Random() : new Random(seed);
+    }
+
+    boolean isGreedy() {
+        return temperature <= 0f || topK == 1;
+    }
+
+    /**
+     * @param logits the logits, the vocabulary is read from `offset`
+     * @param offset the index of the logit of token 0
+     * @param vocab the size of the vocabulary
+     * @return (int) the token
+     */
+    int sample(float[] logits, int offset, int vocab) {
+        if (isGreedy()) {
+            return argmax(logits, offset, vocab);
+        }
+        if (ids.length < vocab) {
+            ids = new int[vocab];
+            scores = new float[vocab];
+            order = new long[vocab];
+        }
+
+        int count;
+        // the top-k window is kept sorted, all the vocabulary is not
+        boolean sorted;
+        if (topK > 0 && topK < vocab) {
+            count = selectTopK(logits, offset, vocab);
+            sorted = true;
+        } else {
+            for (int i = 0; i < vocab; i++) {
+                ids[i] = i;
+                scores[i] = logits[offset + i];
+            }
+            count = vocab;
+            sorted = false;
+        }
+
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            max = Math.max(max, scores[i]);
+        }
+        float sum = 0;
+        for (int i = 0; i < count; i++) {
+            scores[i] = (float) Math.exp((scores[i] - max) / temperature);
+            sum += scores[i];
+        }
+
+        if (topP >= 1f) {
+            float draw = random.nextFloat() * sum;
+            float cumulative = 0;
+            for (int i = 0; i < count; i++) {
+                cumulative += scores[i];
+                if (draw < cumulative) {
+                    return ids[i];
+                }
+            }
+            return ids[count - 1];
+        }
+
+        if (!sorted) {
+            for (int i = 0; i < count; i++) {
+                order[i] = ((long) PostProcessor.sortableBits(scores[i]) << 32) | i;
+            }
+            Arrays.sort(order, 0, count);
+        }
+        // the nucleus, the most likely candidates that add up to topP of the probability
+        float mass = topP * sum;
+        float nucleus = 0;
+        int size = 0;
+        while (size < count && nucleus < mass) {
+            nucleus += scores[candidateAt(size, count, sorted)];
+            size++;
+        }
+        float draw = random.nextFloat() * nucleus;
+        float cumulative = 0;
+        for (int i = 0; i < size; i++) {
+            int candidate = candidateAt(i, count, sorted);
+            cumulative += scores[candidate];
+            if (draw < cumulative) {
+                return ids[candidate];
+            }
+        }
+        return ids[candidateAt(size - 1, count, sorted)];
+    }
+
+    /**
+     * @return the candidate at the given rank, the most likely first
+     */
+    private int candidateAt(int rank, int count, boolean sorted) {
+        return sorted ? rank : (int) order[count - 1 - rank];
+    }
+
+    /**
+     * Keeps the topK highest logits in ids and scores, in decreasing order
+     */
+    private int selectTopK(float[] logits, int offset, int vocab) {
+        int filled = 0;
+        for (int token = 0; token < vocab; token++) {
+            float value = logits[offset + token];
+            if (filled == topK && !(value > scores[topK - 1])) {
+                continue;
+            }
+            int position = Math.min(filled, topK - 1);
+            while (position > 0 && scores[position - 1] < value) {
+                scores[position] = scores[position - 1];
+                ids[position] = ids[position - 1];
+                position--;
+            }
+            scores[position] = value;
+            ids[position] = token;
+            if (filled < topK) {
+                filled++;
+            }
+        }
+        return filled;
+    }
+
+    static int argmax(float[] logits, int offset, int vocab) {
+        int best = 0;
+        for (int token = 1; token < vocab; token++) {
+            if (logits[offset + token] > logits[offset + best]) {
+                best = token;
+            }
+        }
+        return best;
+    }
+}
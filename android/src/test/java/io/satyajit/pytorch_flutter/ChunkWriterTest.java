@@ -0,0 +1,185 @@
+package io.satyajit.pytorch_flutter;
+
+import org.junit.After;
+import org.junit.Test;
+import org.pytorch.Tensor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkWriterTest {
+    private static final int STREAM_ID = 3;
+
+    /**
+     * Keeps the events it is given, with a copy of their data, like the codec makes when the event
+     * is sent
+     */
+    private static class RecordingSender implements ChunkWriter.ChunkSender {
+        final ArrayList<HashMap<String, Object>> events = new ArrayList<>();
+        final ArrayList<byte[]> data = new ArrayList<>();
+
+        @Override
+        public synchronized void send(HashMap<String, Object> event, Runnable sent) {
+            events.add(event);
+            data.add(((byte[]) event.get("data")).clone());
+            sent.run();
+        }
+    }
+
+    private ExecutorService mainThread;
+
+    @After
+    public void tearDown() {
+        if (mainThread != null) {
+            mainThread.shutdownNow();
+        }
+    }
+
+    private static float[] range(int count) {
+        float[] data = new float[count];
+        for (int i = 0; i < count; i++) {
+            data[i] = i;
+        }
+        return data;
+    }
+
+    private static float[] floatsOf(byte[] bytes) {
+        float[] data = new float[bytes.length / 4];
+        ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder()).asFloatBuffer().get(data);
+        return data;
+    }
+
+    @Test
+    public void onlyTheTensorsLargerThanAChunkAreStreamed() {
+        ChunkWriter writer = new ChunkWriter(STREAM_ID, 64, new RecordingSender());
+
+        assertFalse(writer.accepts(Tensor.fromBlob(range(16), new long[]{16})));
+        assertTrue(writer.accepts(Tensor.fromBlob(range(17), new long[]{17})));
+        assertThrows(IllegalArgumentException.class, () -> new ChunkWriter(STREAM_ID, 4, new RecordingSender()));
+    }
+
+    @Test
+    public void chunksHoldWholeRows() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        // 8 floats fit in a chunk, so 2 rows of 3
+        ChunkWriter writer = new ChunkWriter(STREAM_ID, 32, sender);
+        HashMap<String, Object> map = writer.write(Tensor.fromBlob(range(15), new long[]{5, 3}));
+
+        assertEquals(3, sender.events.size());
+        int[] offsets = new int[3];
+        int[] lengths = new int[3];
+        for (int i = 0; i < 3; i++) {
+            HashMap<String, Object> event = sender.events.get(i);
+            offsets[i] = (int) event.get("offset");
+            lengths[i] = (int) event.get("length");
+            assertEquals(STREAM_ID, event.get("streamId"));
+            assertEquals(map.get("tensorId"), event.get("tensorId"));
+            assertEquals("FLOAT32", event.get("dtype"));
+            assertArrayEquals(new long[]{5, 3}, (long[]) event.get("shape"));
+            assertEquals(i == 2, event.get("last"));
+            assertArrayEquals(Arrays.copyOfRange(range(15), offsets[i], offsets[i] + lengths[i]),
+                    floatsOf(sender.data.get(i)), 0f);
+        }
+        assertArrayEquals(new int[]{0, 6, 12}, offsets);
+        // the last chunk is shorter, and only as large as its elements
+        assertArrayEquals(new int[]{6, 6, 3}, lengths);
+        assertEquals(12, sender.data.get(2).length);
+
+        assertEquals("ChunkedTensor", map.get("class_type"));
+        assertEquals(STREAM_ID, map.get("streamId"));
+        assertEquals(3, map.get("chunks"));
+        assertArrayEquals(new long[]{5, 3}, (long[]) map.get("shape"));
+    }
+
+    @Test
+    public void rowLargerThanAChunkIsSplit() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        ChunkWriter writer = new ChunkWriter(STREAM_ID, 32, sender);
+        writer.write(Tensor.fromBlob(range(20), new long[]{1, 20}));
+
+        assertEquals(3, sender.events.size());
+        assertEquals(0, sender.events.get(0).get("offset"));
+        assertEquals(8, sender.events.get(1).get("offset"));
+        assertEquals(16, sender.events.get(2).get("offset"));
+        assertEquals(4, sender.events.get(2).get("length"));
+        assertArrayEquals(new float[]{16, 17, 18, 19}, floatsOf(sender.data.get(2)), 0f);
+    }
+
+    @Test
+    public void longTensorIsStreamedInNativeOrder() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        ChunkWriter writer = new ChunkWriter(STREAM_ID, 16, sender);
+        long[] data = {1L << 40, -2, 3, Long.MAX_VALUE, 5};
+        writer.write(Tensor.fromBlob(data, new long[]{5}));
+
+        long[] received = new long[5];
+        int offset = 0;
+        for (byte[] bytes : sender.data) {
+            long[] chunk = new long[bytes.length / 8];
+            ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder()).asLongBuffer().get(chunk);
+            System.arraycopy(chunk, 0, received, offset, chunk.length);
+            offset += chunk.length;
+        }
+        assertEquals(3, sender.events.size());
+        assertArrayEquals(data, received);
+    }
+
+    @Test
+    public void allTheChunksAreSentBeforeWriteReturns() throws Exception {
+        mainThread = Executors.newSingleThreadExecutor();
+        AtomicInteger sending = new AtomicInteger();
+        AtomicInteger maxSending = new AtomicInteger();
+        AtomicInteger sent = new AtomicInteger();
+        ArrayList<float[]> chunks = new ArrayList<>();
+        // sends the chunks later on another thread, like the main thread does
+        ChunkWriter.ChunkSender sender = (event, done) -> {
+            maxSending.accumulateAndGet(sending.incrementAndGet(), Math::max);
+            mainThread.execute(() -> {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                chunks.add(floatsOf((byte[]) event.get("data")));
+                sending.decrementAndGet();
+                sent.incrementAndGet();
+                done.run();
+            });
+        };
+
+        ChunkWriter writer = new ChunkWriter(STREAM_ID, 32, sender);
+        HashMap<String, Object> map = writer.write(Tensor.fromBlob(range(64), new long[]{64}));
+
+        assertEquals(8, map.get("chunks"));
+        assertEquals(8, sent.get());
+        // two arrays are reused, so a chunk is never overwritten before it is sent
+        assertTrue(maxSending.get() <= 2);
+        mainThread.shutdown();
+        assertTrue(mainThread.awaitTermination(5, TimeUnit.SECONDS));
+        for (int i = 0; i < chunks.size(); i++) {
+            assertArrayEquals(Arrays.copyOfRange(range(64), i * 8, i * 8 + 8), chunks.get(i), 0f);
+        }
+    }
+
+    @Test
+    public void eachTensorGetsItsOwnId() throws Exception {
+        ChunkWriter writer = new ChunkWriter(STREAM_ID, 32, new RecordingSender());
+        Object first = writer.write(Tensor.fromBlob(range(16), new long[]{16})).get("tensorId");
+        Object second = writer.write(Tensor.fromBlob(range(16), new long[]{16})).get("tensorId");
+
+        assertFalse(first.equals(second));
+    }
+}
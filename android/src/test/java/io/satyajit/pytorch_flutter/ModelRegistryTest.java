@@ -0,0 +1,204 @@
+package io.satyajit.pytorch_flutter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pytorch.Module;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class ModelRegistryTest {
+    private static final long FOOTPRINT = 100;
+
+    // the modules loaded so far, in order
+    private final ArrayList<Module> loaded = new ArrayList<>();
+    // the load that fails, -1 for none
+    private int failingLoad = -1;
+    private ModelRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = new ModelRegistry(path -> {
+            if (loaded.size() == failingLoad) {
+                failingLoad = -1;
+                throw new Exception("Failed to load " + path);
+            }
+            Module module = mock(Module.class);
+            loaded.add(module);
+            return module;
+        });
+    }
+
+    @Test
+    public void closeDuringACallDestroysTheModuleOnceTheCallIsDone() throws Exception {
+        int index = registry.load("a.pt", FOOTPRINT, 1);
+        Module module = registry.acquire(index);
+
+        registry.close(index);
+        verify(module, never()).destroy();
+        // no new call can be queued on the closed model
+        assertThrows(Exception.class, () -> registry.retain(index));
+
+        registry.release(index, module);
+        verify(module).destroy();
+        HashMap<String, Object> stats = registry.getStats();
+        assertEquals(0, stats.get("models"));
+        assertEquals(0L, stats.get("loadedBytes"));
+    }
+
+    @Test
+    public void closeWithACallQueuedKeepsTheModelAndItsSlotUntilTheCallIsDone() throws Exception {
+        int index = registry.load("a.pt", FOOTPRINT, 1);
+        Module module = loaded.get(0);
+        // the call is queued, it holds the model without running on it yet
+        registry.retain(index);
+
+        registry.close(index);
+        verify(module, never()).destroy();
+        // the next model can't take the slot of the queued call
+        int other = registry.load("b.pt", FOOTPRINT, 1);
+        assertNotEquals(index, other);
+
+        // the queued call still runs on its own model
+        assertSame(module, registry.acquire(index));
+        registry.release(index, module);
+        verify(module, never()).destroy();
+        registry.release(index);
+        verify(module).destroy();
+
+        assertEquals(index, registry.load("c.pt", FOOTPRINT, 1));
+        assertSame(loaded.get(2), acquireAndRelease(index));
+    }
+
+    @Test
+    public void closeOfAnIdleModelDestroysItRightAway() throws Exception {
+        int index = registry.load("a.pt", FOOTPRINT, 1);
+        registry.close(index);
+
+        verify(loaded.get(0)).destroy();
+        assertThrows(Exception.class, () -> registry.generationOf(index));
+        assertThrows(Exception.class, () -> registry.close(index));
+    }
+
+    @Test
+    public void slotOfAClosedModelIsReused() throws Exception {
+        assertEquals(0, registry.load("a.pt", FOOTPRINT, 1));
+        assertEquals(1, registry.load("b.pt", FOOTPRINT, 1));
+        assertEquals(2, registry.load("c.pt", FOOTPRINT, 1));
+        registry.close(1);
+        registry.close(0);
+
+        // the lowest free slot first
+        assertEquals(0, registry.load("d.pt", FOOTPRINT, 1));
+        assertEquals(1, registry.load("e.pt", FOOTPRINT, 1));
+        assertEquals(3, registry.load("f.pt", FOOTPRINT, 1));
+        assertSame(loaded.get(3), acquireAndRelease(0));
+    }
+
+    @Test
+    public void leastRecentlyUsedIdleModelIsEvictedToStayUnderTheBudget() throws Exception {
+        registry.setMemoryBudget(2 * FOOTPRINT + FOOTPRINT / 2);
+        int a = registry.load("a.pt", FOOTPRINT, 1);
+        int b = registry.load("b.pt", FOOTPRINT, 1);
+        acquireAndRelease(a);
+        registry.load("c.pt", FOOTPRINT, 1);
+
+        verify(loaded.get(a), never()).destroy();
+        verify(loaded.get(b)).destroy();
+        HashMap<String, Object> stats = registry.getStats();
+        assertEquals(3, stats.get("models"));
+        assertEquals(2, stats.get("loadedModels"));
+        assertEquals(2 * FOOTPRINT, stats.get("loadedBytes"));
+        assertEquals(1L, stats.get("evictions"));
+    }
+
+    @Test
+    public void modelRunningACallIsNotEvicted() throws Exception {
+        registry.setMemoryBudget(FOOTPRINT + FOOTPRINT / 2);
+        int a = registry.load("a.pt", FOOTPRINT, 1);
+        Module module = registry.acquire(a);
+        registry.load("b.pt", FOOTPRINT, 1);
+
+        // over the budget until the call is done
+        verify(module, never()).destroy();
+        assertEquals(2 * FOOTPRINT, registry.getStats().get("loadedBytes"));
+
+        registry.release(a, module);
+        registry.setMemoryBudget(FOOTPRINT + FOOTPRINT / 2);
+        verify(module).destroy();
+        assertEquals(FOOTPRINT, registry.getStats().get("loadedBytes"));
+    }
+
+    @Test
+    public void evictedModelIsLoadedAgainOnItsNextCall() throws Exception {
+        int index = registry.load("a.pt", FOOTPRINT, 1);
+        Module first = loaded.get(0);
+        assertEquals(1, registry.trimIdle());
+        verify(first).destroy();
+        assertEquals(0, registry.generationOf(index));
+
+        Module reloaded = acquireAndRelease(index);
+        assertNotSame(first, reloaded);
+        assertSame(loaded.get(1), reloaded);
+        // anything derived from the previous module must be dropped
+        assertEquals(1, registry.generationOf(index));
+        HashMap<String, Object> stats = registry.getStats();
+        assertEquals(1L, stats.get("reloads"));
+        assertEquals(FOOTPRINT, stats.get("loadedBytes"));
+    }
+
+    @Test
+    public void modelWithoutAFileIsNeverEvicted() {
+        int index = registry.register(null, FOOTPRINT, new Module[]{mock(Module.class)});
+        registry.setMemoryBudget(1);
+
+        assertEquals(0, registry.trimIdle());
+        assertEquals(FOOTPRINT, registry.getStats().get("loadedBytes"));
+        assertEquals(0, index);
+    }
+
+    @Test
+    public void callsAreSpreadAcrossTheReplicas() throws Exception {
+        int index = registry.load("a.pt", FOOTPRINT, 2);
+        assertEquals(2, loaded.size());
+        assertEquals(2, registry.replicasOf(index));
+        assertEquals(2 * FOOTPRINT, registry.getStats().get("loadedBytes"));
+
+        // the replica running the fewest calls
+        Module first = registry.acquire(index);
+        Module second = registry.acquire(index);
+        assertNotSame(first, second);
+        registry.release(index, first);
+        assertSame(first, registry.acquire(index));
+        registry.release(index, first);
+        registry.release(index, second);
+
+        // between idle replicas, the one used the longest ago
+        assertSame(second, acquireAndRelease(index));
+        assertSame(first, acquireAndRelease(index));
+    }
+
+    @Test
+    public void failedReplicaLoadDestroysTheLoadedReplicas() {
+        failingLoad = 1;
+        assertThrows(Exception.class, () -> registry.load("a.pt", FOOTPRINT, 2));
+
+        verify(loaded.get(0)).destroy();
+        assertEquals(0, registry.getStats().get("models"));
+    }
+
+    private Module acquireAndRelease(int index) throws Exception {
+        Module module = registry.acquire(index);
+        registry.release(index, module);
+        return module;
+    }
+}
@@ -0,0 +1,225 @@
+package io.satyajit.pytorch_flutter;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class PixelConverterTest {
+    // the mean and std that leave the values in [0, 255]
+    private static final float[] ZERO = {0f, 0f, 0f};
+    private static final float[] UNIT = {1f / 255f, 1f / 255f, 1f / 255f};
+
+    /**
+     * A width x height RGBA image whose red channel holds the ids of the pixels, 1, 2, 3... in
+     * row-major order, green 10 times the id and blue 100 plus the id
+     */
+    private static byte[] ids(int width, int height, int rowStride) {
+        byte[] data = new byte[height * rowStride];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int id = y * width + x + 1;
+                int pixel = y * rowStride + 4 * x;
+                data[pixel] = (byte) id;
+                data[pixel + 1] = (byte) (10 * id);
+                data[pixel + 2] = (byte) (100 + id);
+                data[pixel + 3] = (byte) 255;
+            }
+        }
+        return data;
+    }
+
+    private static float[] convert(byte[] data, int width, int height, int rowStride,
+                                   PixelConverter.PixelFormat format, PixelConverter.Transform transform)
+            throws Exception {
+        FloatBuffer out = FloatBuffer.allocate(transform.numel());
+        PixelConverter.rgbaToFloat(data, width, height, rowStride, format, transform, ZERO, UNIT, out, 0);
+        return out.array();
+    }
+
+    /**
+     * @return the red channel of the output, rounded back to the ids
+     */
+    private static int[] redIds(float[] out, PixelConverter.Transform transform) {
+        int[] ids = new int[transform.outWidth * transform.outHeight];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = Math.round(out[i]);
+        }
+        return ids;
+    }
+
+    private static int[] rotated(int width, int height, int rotation) throws Exception {
+        PixelConverter.Transform transform = PixelConverter.Transform.of(width, height, 0, 0, 0, 0, rotation, 0, 0);
+        return redIds(convert(ids(width, height, 4 * width), width, height, 4 * width,
+                PixelConverter.PixelFormat.RGBA, transform), transform);
+    }
+
+    @Test
+    public void channelsAreReadInTheOrderOfTheFormat() throws Exception {
+        byte[] pixel = {10, 20, 30, (byte) 255};
+        PixelConverter.Transform transform = PixelConverter.Transform.of(1, 1, 0, 0, 0, 0, 0, 0, 0);
+
+        assertArrayEquals(new float[]{10, 20, 30},
+                convert(pixel, 1, 1, 4, PixelConverter.PixelFormat.RGBA, transform), 1e-3f);
+        assertArrayEquals(new float[]{30, 20, 10},
+                convert(pixel, 1, 1, 4, PixelConverter.PixelFormat.BGRA, transform), 1e-3f);
+    }
+
+    @Test
+    public void valuesAreNormalizedPerChannel() throws Exception {
+        byte[] pixel = {(byte) 255, 0, (byte) 51, (byte) 255};
+        PixelConverter.Transform transform = PixelConverter.Transform.of(1, 1, 0, 0, 0, 0, 0, 0, 0);
+        FloatBuffer out = FloatBuffer.allocate(3);
+        PixelConverter.rgbaToFloat(pixel, 1, 1, 4, PixelConverter.PixelFormat.RGBA, transform,
+                new float[]{0.5f, 0.5f, 0f}, new float[]{0.5f, 0.5f, 0.1f}, out, 0);
+
+        // (value / 255 - mean) / std
+        assertArrayEquals(new float[]{1f, -1f, 2f}, out.array(), 1e-5f);
+    }
+
+    @Test
+    public void paddingAtTheEndOfTheRowsIsSkipped() throws Exception {
+        // 2x2 pixels, with 4 bytes of padding after each row
+        byte[] data = ids(2, 2, 12);
+        data[8] = 99;
+        data[20] = 99;
+        PixelConverter.Transform transform = PixelConverter.Transform.of(2, 2, 0, 0, 0, 0, 0, 0, 0);
+        float[] out = convert(data, 2, 2, 12, PixelConverter.PixelFormat.RGBA, transform);
+
+        // the planes are written one after the other, NCHW
+        assertArrayEquals(new float[]{1, 2, 3, 4, 10, 20, 30, 40, 101, 102, 103, 104}, out, 1e-3f);
+    }
+
+    @Test
+    public void dataShorterThanTheImageIsRejected() throws Exception {
+        PixelConverter.Transform transform = PixelConverter.Transform.of(2, 2, 0, 0, 0, 0, 0, 0, 0);
+
+        assertThrows(Exception.class, () -> convert(new byte[15], 2, 2, 8, PixelConverter.PixelFormat.RGBA,
+                transform));
+        // the stride can't be shorter than a row
+        assertThrows(Exception.class, () -> convert(new byte[16], 2, 2, 4, PixelConverter.PixelFormat.RGBA,
+                transform));
+    }
+
+    @Test
+    public void rotationsAreClockwise() throws Exception {
+        // 1 2 3
+        // 4 5 6
+        assertArrayEquals(new int[]{1, 2, 3, 4, 5, 6}, rotated(3, 2, 0));
+        // 4 1
+        // 5 2
+        // 6 3
+        assertArrayEquals(new int[]{4, 1, 5, 2, 6, 3}, rotated(3, 2, 90));
+        // 6 5 4
+        // 3 2 1
+        assertArrayEquals(new int[]{6, 5, 4, 3, 2, 1}, rotated(3, 2, 180));
+        // 3 6
+        // 2 5
+        // 1 4
+        assertArrayEquals(new int[]{3, 6, 2, 5, 1, 4}, rotated(3, 2, 270));
+        assertArrayEquals(rotated(3, 2, 270), rotated(3, 2, -90));
+    }
+
+    @Test
+    public void rotationBy90SwapsTheOutputSize() throws Exception {
+        PixelConverter.Transform transform = PixelConverter.Transform.of(3, 2, 0, 0, 0, 0, 90, 0, 0);
+
+        assertEquals(2, transform.outWidth);
+        assertEquals(3, transform.outHeight);
+        assertArrayEquals(new long[]{1, 3, 3, 2}, transform.shape());
+        assertThrows(Exception.class, () -> PixelConverter.Transform.of(3, 2, 0, 0, 0, 0, 45, 0, 0));
+    }
+
+    @Test
+    public void cropIsAppliedBeforeTheRotation() throws Exception {
+        //  1  2  3  4
+        //  5  6  7  8
+        //  9 10 11 12
+        byte[] data = ids(4, 3, 16);
+        PixelConverter.Transform crop = PixelConverter.Transform.of(4, 3, 1, 1, 2, 2, 0, 0, 0);
+        assertArrayEquals(new int[]{6, 7, 10, 11},
+                redIds(convert(data, 4, 3, 16, PixelConverter.PixelFormat.RGBA, crop), crop));
+
+        // the crop 2 3 4 / 6 7 8, rotated by 90 degrees
+        PixelConverter.Transform rotated = PixelConverter.Transform.of(4, 3, 1, 0, 3, 2, 90, 0, 0);
+        assertArrayEquals(new int[]{6, 2, 7, 3, 8, 4},
+                redIds(convert(data, 4, 3, 16, PixelConverter.PixelFormat.RGBA, rotated), rotated));
+
+        // and by 270 degrees
+        PixelConverter.Transform back = PixelConverter.Transform.of(4, 3, 1, 0, 3, 2, 270, 0, 0);
+        assertArrayEquals(new int[]{4, 8, 3, 7, 2, 6},
+                redIds(convert(data, 4, 3, 16, PixelConverter.PixelFormat.RGBA, back), back));
+    }
+
+    @Test
+    public void cropOutsideTheImageIsRejected() {
+        assertThrows(Exception.class, () -> PixelConverter.Transform.of(4, 3, 3, 0, 2, 2, 0, 0, 0));
+        assertThrows(Exception.class, () -> PixelConverter.Transform.of(4, 3, 0, 2, 2, 2, 0, 0, 0));
+        assertThrows(Exception.class, () -> PixelConverter.Transform.of(4, 3, -1, 0, 2, 2, 0, 0, 0));
+    }
+
+    @Test
+    public void outputIsScaledByNearestNeighbour() throws Exception {
+        PixelConverter.Transform up = PixelConverter.Transform.of(2, 2, 0, 0, 0, 0, 0, 4, 4);
+        assertArrayEquals(new int[]{1, 1, 2, 2, 1, 1, 2, 2, 3, 3, 4, 4, 3, 3, 4, 4},
+                redIds(convert(ids(2, 2, 8), 2, 2, 8, PixelConverter.PixelFormat.RGBA, up), up));
+
+        PixelConverter.Transform down = PixelConverter.Transform.of(4, 3, 0, 0, 0, 0, 0, 2, 1);
+        assertArrayEquals(new int[]{1, 3},
+                redIds(convert(ids(4, 3, 16), 4, 3, 16, PixelConverter.PixelFormat.RGBA, down), down));
+    }
+
+    @Test
+    public void outputIsWrittenAtTheOffset() throws Exception {
+        PixelConverter.Transform transform = PixelConverter.Transform.of(1, 1, 0, 0, 0, 0, 0, 0, 0);
+        FloatBuffer out = FloatBuffer.allocate(5);
+        PixelConverter.rgbaToFloat(new byte[]{1, 2, 3, 4}, 1, 1, 4, PixelConverter.PixelFormat.RGBA, transform,
+                ZERO, UNIT, out, 2);
+
+        assertArrayEquals(new float[]{0, 0, 1, 2, 3}, out.array(), 1e-3f);
+    }
+
+    @Test
+    public void yuvIsConvertedWithTheFullRangeBt601Matrix() throws Exception {
+        PixelConverter.Transform transform = PixelConverter.Transform.of(2, 1, 0, 0, 0, 0, 0, 0, 0);
+        FloatBuffer out = FloatBuffer.allocate(transform.numel());
+        // a chroma sample covers both pixels, Cb = 0 and Cr = 100
+        PixelConverter.yuv420ToFloat(new byte[]{100, (byte) 200}, new byte[]{(byte) 128}, new byte[]{(byte) 228},
+                2, 1, 2, 1, 1, transform, ZERO, UNIT, out, 0);
+
+        float[] expected = {
+                // R = Y + 1.402 Cr, clamped to 255
+                100 + 140.2f, 255,
+                // G = Y - 0.344136 Cb - 0.714136 Cr
+                100 - 71.4136f, 200 - 71.4136f,
+                // B = Y + 1.772 Cb
+                100, 200,
+        };
+        assertArrayEquals(expected, out.array(), 1e-2f);
+    }
+
+    @Test
+    public void yuvChromaIsSubsampledWithItsStrides() throws Exception {
+        // 4x2 pixels of luma 100, the two chroma samples are interleaved, with a padded row
+        byte[] yPlane = new byte[8];
+        Arrays.fill(yPlane, (byte) 100);
+        byte[] uPlane = {(byte) 128, 0, (byte) 228, 0};
+        byte[] vPlane = {(byte) 128, 0, (byte) 128, 0};
+        PixelConverter.Transform transform = PixelConverter.Transform.of(4, 2, 0, 0, 0, 0, 0, 0, 0);
+        FloatBuffer out = FloatBuffer.allocate(transform.numel());
+        PixelConverter.yuv420ToFloat(yPlane, uPlane, vPlane, 4, 2, 4, 6, 2, transform, ZERO, UNIT, out, 0);
+
+        // B = Y + 1.772 Cb, the right half has Cb = 100
+        float[] blue = new float[8];
+        out.position(16);
+        out.get(blue);
+        assertArrayEquals(new float[]{100, 100, 255, 255, 100, 100, 255, 255}, blue, 1e-2f);
+
+        assertThrows(Exception.class, () -> PixelConverter.yuv420ToFloat(yPlane, new byte[2], vPlane, 4, 2, 4, 6, 2,
+                transform, ZERO, UNIT, FloatBuffer.allocate(24), 0));
+    }
+}
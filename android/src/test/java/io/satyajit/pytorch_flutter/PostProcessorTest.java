@@ -0,0 +1,225 @@
+package io.satyajit.pytorch_flutter;
+
+import org.junit.Test;
+import org.pytorch.IValue;
+import org.pytorch.Tensor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class PostProcessorTest {
+    // three boxes as x1, y1, x2, y2 and the scores of two classes: B overlaps A with an IoU of
+    // 81 / 119, C is B with the other class
+    private static final float[][] BOXES = {
+            {0, 0, 10, 10, 0.9f, 0.1f},
+            {1, 1, 11, 11, 0.8f, 0.1f},
+            {1, 1, 11, 11, 0.1f, 0.7f},
+    };
+
+    private static HashMap<String, Object> spec(Object... entries) {
+        HashMap<String, Object> spec = new HashMap<>();
+        for (int i = 0; i < entries.length; i += 2) {
+            spec.put((String) entries[i], entries[i + 1]);
+        }
+        return spec;
+    }
+
+    private static HashMap<String, Object> nmsSpec(Object... entries) {
+        HashMap<String, Object> spec = spec("op", "nms", "boxFormat", "xyxy", "objectness", false);
+        spec.putAll(spec(entries));
+        return spec;
+    }
+
+    private static float[] floatsOf(Object bytes) {
+        float[] data = new float[((byte[]) bytes).length / 4];
+        ByteBuffer.wrap((byte[]) bytes).order(ByteOrder.nativeOrder()).asFloatBuffer().get(data);
+        return data;
+    }
+
+    /**
+     * @return the boxes of `images` images, as [batch, boxes, values], or [batch, values, boxes]
+     *  when transposed like the output of YOLOv8
+     */
+    private static IValue detections(float[][] boxes, int images, boolean transposed) {
+        int values = boxes[0].length;
+        float[] data = new float[images * boxes.length * values];
+        for (int image = 0; image < images; image++) {
+            int base = image * boxes.length * values;
+            for (int box = 0; box < boxes.length; box++) {
+                for (int value = 0; value < values; value++) {
+                    data[base + (transposed ? value * boxes.length + box : box * values + value)] = boxes[box][value];
+                }
+            }
+        }
+        long[] shape = transposed ? new long[]{images, values, boxes.length} : new long[]{images, boxes.length, values};
+        return IValue.from(Tensor.fromBlob(data, shape));
+    }
+
+    @Test
+    public void topKKeepsTheHighestScoresOfEachRowInOrder() throws Exception {
+        float[] data = {
+                3, 1, 4, 1, 5, 9, 2, 6,
+                // increasing, each score goes through the whole window
+                1, 2, 3, 4, 5, 6, 7, 8,
+                // decreasing, the scores past the window are skipped
+                8, 7, 6, 5, 4, 3, 2, 1,
+        };
+        HashMap<String, Object> result = PostProcessor.of(spec("op", "topk", "k", 3)).topK(data, 3, 8);
+
+        assertEquals("ScoredIndices", result.get("class_type"));
+        assertArrayEquals(new int[]{5, 7, 4, 7, 6, 5, 0, 1, 2}, (int[]) result.get("indices"));
+        assertArrayEquals(new float[]{9, 6, 5, 8, 7, 6, 8, 7, 6}, floatsOf(result.get("scores")), 0f);
+        assertArrayEquals(new int[]{0, 3, 6, 9}, (int[]) result.get("rowSplits"));
+    }
+
+    @Test
+    public void topKKeepsTheFirstOfEqualScoresAndNegativeScores() throws Exception {
+        PostProcessor topK = PostProcessor.of(spec("op", "topk", "k", 2));
+
+        assertArrayEquals(new int[]{3, 0}, (int[]) topK.topK(new float[]{1, 1, 1, 2}, 1, 4).get("indices"));
+        assertArrayEquals(new int[]{1, 2}, (int[]) topK.topK(new float[]{-3, -1, -2}, 1, 3).get("indices"));
+        // k is capped at the number of classes
+        HashMap<String, Object> result = PostProcessor.of(spec("op", "topk", "k", 5)).topK(new float[]{2, 7}, 1, 2);
+        assertArrayEquals(new int[]{1, 0}, (int[]) result.get("indices"));
+        assertArrayEquals(new int[]{0, 2}, (int[]) result.get("rowSplits"));
+    }
+
+    @Test
+    public void argmaxAppliesTheSoftmaxOverTheWholeRow() throws Exception {
+        float ln3 = (float) Math.log(3);
+        HashMap<String, Object> result = PostProcessor.of(spec("op", "argmax", "activation", "softmax"))
+                .apply(IValue.from(Tensor.fromBlob(new float[]{0, ln3, 0, 0, 0, 0}, new long[]{2, 3})));
+
+        assertArrayEquals(new int[]{1, 0}, (int[]) result.get("indices"));
+        assertArrayEquals(new float[]{0.6f, 1 / 3f}, floatsOf(result.get("scores")), 1e-5f);
+        assertArrayEquals(new int[]{0, 1, 2}, (int[]) result.get("rowSplits"));
+    }
+
+    @Test
+    public void thresholdKeepsTheScoresAtLeastTheThreshold() throws Exception {
+        HashMap<String, Object> result = PostProcessor.of(spec("op", "threshold", "activation", "sigmoid"))
+                .threshold(new float[]{0, 1, -1, -2, -3, 4}, 2, 3);
+
+        // sigmoid(0) is exactly the threshold
+        assertArrayEquals(new int[]{0, 1, 2}, (int[]) result.get("indices"));
+        assertArrayEquals(new int[]{0, 2, 3}, (int[]) result.get("rowSplits"));
+    }
+
+    @Test
+    public void sortableBitsSortLikeTheFloats() {
+        float[] ordered = {
+                Float.NEGATIVE_INFINITY, -Float.MAX_VALUE, -100f, -1.5f, -Float.MIN_VALUE, -0f, 0f,
+                Float.MIN_VALUE, 1e-30f, 2f, Float.MAX_VALUE, Float.POSITIVE_INFINITY,
+        };
+        for (int i = 1; i < ordered.length; i++) {
+            assertTrue(ordered[i - 1] + " < " + ordered[i],
+                    PostProcessor.sortableBits(ordered[i - 1]) < PostProcessor.sortableBits(ordered[i]));
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            float a = (random.nextFloat() - 0.5f) * random.nextInt(1000);
+            float b = (random.nextFloat() - 0.5f) * random.nextInt(1000);
+            assertEquals(a + " " + b, Integer.signum(Float.compare(a, b)),
+                    Integer.signum(Integer.compare(PostProcessor.sortableBits(a), PostProcessor.sortableBits(b))));
+        }
+    }
+
+    @Test
+    public void nmsSuppressesTheOverlappingBoxesOfTheSameClass() throws Exception {
+        HashMap<String, Object> result = PostProcessor.of(nmsSpec()).apply(detections(BOXES, 1, false));
+
+        assertEquals("Detections", result.get("class_type"));
+        assertArrayEquals(new float[]{0, 0, 10, 10, 1, 1, 11, 11}, floatsOf(result.get("boxes")), 0f);
+        assertArrayEquals(new float[]{0.9f, 0.7f}, floatsOf(result.get("scores")), 0f);
+        assertArrayEquals(new int[]{0, 1}, (int[]) result.get("classes"));
+        assertArrayEquals(new int[]{0, 2}, (int[]) result.get("rowSplits"));
+    }
+
+    @Test
+    public void nmsWithoutClassAwarenessSuppressesAcrossClasses() throws Exception {
+        HashMap<String, Object> result = PostProcessor.of(nmsSpec("classAware", false))
+                .apply(detections(BOXES, 1, false));
+
+        assertArrayEquals(new float[]{0.9f}, floatsOf(result.get("scores")), 0f);
+        assertArrayEquals(new int[]{0}, (int[]) result.get("classes"));
+
+        // B is under the iou threshold with A, and suppresses C, the same box
+        result = PostProcessor.of(nmsSpec("classAware", false, "iouThreshold", 0.7))
+                .apply(detections(BOXES, 1, false));
+        assertArrayEquals(new float[]{0.9f, 0.8f}, floatsOf(result.get("scores")), 0f);
+        assertArrayEquals(new int[]{0, 0}, (int[]) result.get("classes"));
+    }
+
+    @Test
+    public void transposedLayoutGivesTheSameDetections() throws Exception {
+        PostProcessor rows = PostProcessor.of(nmsSpec());
+        PostProcessor columns = PostProcessor.of(nmsSpec("transposed", true));
+
+        for (int images = 1; images <= 3; images++) {
+            HashMap<String, Object> expected = rows.apply(detections(BOXES, images, false));
+            HashMap<String, Object> actual = columns.apply(detections(BOXES, images, true));
+            assertArrayEquals((byte[]) expected.get("boxes"), (byte[]) actual.get("boxes"));
+            assertArrayEquals((byte[]) expected.get("scores"), (byte[]) actual.get("scores"));
+            assertArrayEquals((int[]) expected.get("classes"), (int[]) actual.get("classes"));
+            assertArrayEquals((int[]) expected.get("rowSplits"), (int[]) actual.get("rowSplits"));
+        }
+        assertArrayEquals(new int[]{0, 2, 4, 6},
+                (int[]) columns.apply(detections(BOXES, 3, true)).get("rowSplits"));
+    }
+
+    @Test
+    public void nmsKeepsTheHighestNegativeScoresFirst() throws Exception {
+        float[][] boxes = {
+                {0, 0, 1, 1, -0.5f},
+                {2, 2, 3, 3, -0.1f},
+                {4, 4, 5, 5, -2f},
+        };
+        HashMap<String, Object> result = PostProcessor.of(nmsSpec("scoreThreshold", -1, "maxDetections", 2))
+                .apply(detections(boxes, 1, false));
+
+        assertArrayEquals(new float[]{-0.1f, -0.5f}, floatsOf(result.get("scores")), 0f);
+        assertArrayEquals(new float[]{2, 2, 3, 3, 0, 0, 1, 1}, floatsOf(result.get("boxes")), 0f);
+    }
+
+    @Test
+    public void centerBoxesAreScaledByTheObjectness() throws Exception {
+        float[][] boxes = {
+                {5, 5, 10, 4, 0.5f, 0.2f, 0.8f},
+                // 0.4 * 0.5 is under the score threshold
+                {5, 5, 10, 4, 0.4f, 0.5f, 0.1f},
+        };
+        HashMap<String, Object> result = PostProcessor.of(spec("op", "nms")).apply(detections(boxes, 1, false));
+
+        assertArrayEquals(new float[]{0, 3, 10, 7}, floatsOf(result.get("boxes")), 0f);
+        assertArrayEquals(new float[]{0.4f}, floatsOf(result.get("scores")), 1e-6f);
+        assertArrayEquals(new int[]{1}, (int[]) result.get("classes"));
+    }
+
+    @Test
+    public void invalidSpecsAreRejected() {
+        assertThrows(Exception.class, () -> PostProcessor.of(spec("k", 3)));
+        assertThrows(Exception.class, () -> PostProcessor.of(spec("op", "median")));
+        assertThrows(Exception.class, () -> PostProcessor.of(spec("op", "topk", "k", 0)));
+        assertThrows(Exception.class, () -> PostProcessor.of(spec("op", "nms", "activation", "softmax")));
+        assertThrows(Exception.class, () -> PostProcessor.of(nmsSpec())
+                .apply(IValue.from(Tensor.fromBlob(new float[3], new long[]{1, 1, 3}))));
+    }
+
+    @Test
+    public void outputIsReadFromTheTupleAtTheOutputIndex() throws Exception {
+        IValue output = IValue.tupleFrom(IValue.from(Tensor.fromBlob(new float[]{9, 1}, new long[]{1, 2})),
+                IValue.from(Tensor.fromBlob(new float[]{1, 9}, new long[]{1, 2})));
+
+        assertArrayEquals(new int[]{1},
+                (int[]) PostProcessor.of(spec("op", "argmax", "outputIndex", 1)).apply(output).get("indices"));
+        assertThrows(Exception.class, () -> PostProcessor.of(spec("op", "argmax", "outputIndex", 2)).apply(output));
+    }
+}
@@ -0,0 +1,217 @@
+package io.satyajit.pytorch_flutter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.flutter.plugin.common.MethodChannel.Result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class RequestTrackerTest {
+    private static final String CANCELLED = PytorchFlutterPlugin.PTFLErrors.ERROR_REQUEST_CANCELLED.toString();
+    private static final String EXPIRED = PytorchFlutterPlugin.PTFLErrors.ERROR_DEADLINE_EXCEEDED.toString();
+
+    /**
+     * Records the replies of a call, the tracker must reply once
+     */
+    private static class RecordingResult implements Result {
+        final CountDownLatch replied = new CountDownLatch(1);
+        final AtomicInteger replies = new AtomicInteger();
+        volatile Object output;
+        volatile String errorCode;
+
+        @Override
+        public void success(Object output) {
+            this.output = output;
+            replies.incrementAndGet();
+            replied.countDown();
+        }
+
+        @Override
+        public void error(String errorCode, String errorMessage, Object errorDetails) {
+            this.errorCode = errorCode;
+            replies.incrementAndGet();
+            replied.countDown();
+        }
+
+        @Override
+        public void notImplemented() {
+            replies.incrementAndGet();
+            replied.countDown();
+        }
+    }
+
+    private ScheduledExecutorService timer;
+    private RequestTracker tracker;
+
+    @Before
+    public void setUp() {
+        timer = Executors.newSingleThreadScheduledExecutor();
+        // the replies of the expired calls are made on the timer thread
+        tracker = new RequestTracker(timer, Runnable::run);
+    }
+
+    @After
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    @Test
+    public void callWithoutIdOrDeadlineIsNotTracked() throws Exception {
+        assertNull(tracker.track(null, null, new RecordingResult()));
+        tracker.begin(null);
+        tracker.checkCurrent();
+        tracker.end(null);
+        assertEquals(0L, tracker.getStats().get("tracked"));
+    }
+
+    @Test
+    public void cancelWhileWaitingFailsTheCallRightAway() {
+        RecordingResult result = new RecordingResult();
+        RequestTracker.Request request = tracker.track("request", null, result);
+
+        assertTrue(tracker.cancel("request"));
+        assertEquals(CANCELLED, result.errorCode);
+
+        // the task does nothing once it reaches the worker
+        RequestTracker.AbortedException e = assertThrows(RequestTracker.AbortedException.class,
+                () -> tracker.begin(request));
+        assertEquals(PytorchFlutterPlugin.PTFLErrors.ERROR_REQUEST_CANCELLED, e.errorCode);
+        tracker.end(request);
+
+        HashMap<String, Object> stats = tracker.getStats();
+        assertEquals(1L, stats.get("cancelledWaiting"));
+        assertEquals(0L, stats.get("cancelledRunning"));
+        assertEquals(0, stats.get("pending"));
+    }
+
+    @Test
+    public void cancelWhileRunningFailsTheCallBeforeTheModelRuns() throws Exception {
+        RecordingResult result = new RecordingResult();
+        RequestTracker.Request request = tracker.track("request", null, result);
+        tracker.begin(request);
+
+        assertTrue(tracker.cancel("request"));
+        // the worker replies, once it reaches the check before the model
+        assertEquals(0, result.replies.get());
+        RequestTracker.AbortedException e = assertThrows(RequestTracker.AbortedException.class,
+                tracker::checkCurrent);
+        request.error(e.errorCode.toString(), e.getMessage(), null);
+        tracker.end(request);
+
+        assertEquals(CANCELLED, result.errorCode);
+        HashMap<String, Object> stats = tracker.getStats();
+        assertEquals(0L, stats.get("cancelledWaiting"));
+        assertEquals(1L, stats.get("cancelledRunning"));
+    }
+
+    @Test
+    public void callRepliesOnce() {
+        RecordingResult result = new RecordingResult();
+        RequestTracker.Request request = tracker.track("request", null, result);
+        tracker.cancel("request");
+        // the reply of the worker comes after the cancel
+        request.success("output");
+
+        assertEquals(1, result.replies.get());
+        assertEquals(CANCELLED, result.errorCode);
+        assertNull(result.output);
+    }
+
+    @Test
+    public void cancelOfAnEndedOrUnknownCallReturnsFalse() throws Exception {
+        RequestTracker.Request request = tracker.track("request", null, new RecordingResult());
+        tracker.begin(request);
+        tracker.end(request);
+
+        assertFalse(tracker.cancel("request"));
+        assertFalse(tracker.cancel("unknown"));
+    }
+
+    @Test
+    public void reusedIdCancelsTheLatestCall() {
+        RecordingResult first = new RecordingResult();
+        RecordingResult second = new RecordingResult();
+        tracker.track("request", null, first);
+        tracker.track("request", null, second);
+
+        assertTrue(tracker.cancel("request"));
+        assertEquals(0, first.replies.get());
+        assertEquals(CANCELLED, second.errorCode);
+    }
+
+    @Test
+    public void deadlinePassingWhileWaitingFailsTheCall() throws Exception {
+        RecordingResult result = new RecordingResult();
+        RequestTracker.Request request = tracker.track(null, 20, result);
+
+        assertTrue(result.replied.await(5, TimeUnit.SECONDS));
+        assertEquals(EXPIRED, result.errorCode);
+        RequestTracker.AbortedException e = assertThrows(RequestTracker.AbortedException.class,
+                () -> tracker.begin(request));
+        assertEquals(PytorchFlutterPlugin.PTFLErrors.ERROR_DEADLINE_EXCEEDED, e.errorCode);
+        tracker.end(request);
+
+        assertEquals(1L, tracker.getStats().get("expiredWaiting"));
+    }
+
+    @Test
+    public void deadlinePassingWhileRunningFailsTheCallBeforeTheModelRuns() throws Exception {
+        RecordingResult result = new RecordingResult();
+        RequestTracker.Request request = tracker.track(null, 20, result);
+        tracker.begin(request);
+        Thread.sleep(100);
+
+        // the timer leaves a running call to its worker
+        assertEquals(0, result.replies.get());
+        RequestTracker.AbortedException e = assertThrows(RequestTracker.AbortedException.class,
+                tracker::checkCurrent);
+        assertEquals(PytorchFlutterPlugin.PTFLErrors.ERROR_DEADLINE_EXCEEDED, e.errorCode);
+        tracker.end(request);
+
+        HashMap<String, Object> stats = tracker.getStats();
+        assertEquals(0L, stats.get("expiredWaiting"));
+        assertEquals(1L, stats.get("expiredRunning"));
+    }
+
+    @Test
+    public void callCompletingBeforeItsDeadlineIsNotFailed() throws Exception {
+        RecordingResult result = new RecordingResult();
+        RequestTracker.Request request = tracker.track("request", 10000, result);
+        tracker.begin(request);
+        tracker.checkCurrent();
+        request.success("output");
+        tracker.end(request);
+
+        assertEquals("output", result.output);
+        HashMap<String, Object> stats = tracker.getStats();
+        assertEquals(0L, stats.get("expiredRunning"));
+        assertEquals(0, stats.get("pending"));
+    }
+
+    @Test
+    public void splitCallEndsWithItsLastTask() throws Exception {
+        RequestTracker.Request request = tracker.track("request", null, new RecordingResult());
+        request.split(2);
+
+        tracker.begin(request);
+        tracker.end(request);
+        assertEquals(1, tracker.getStats().get("pending"));
+
+        tracker.begin(request);
+        tracker.end(request);
+        assertEquals(0, tracker.getStats().get("pending"));
+    }
+}
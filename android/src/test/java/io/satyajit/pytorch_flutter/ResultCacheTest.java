@@ -0,0 +1,167 @@
+package io.satyajit.pytorch_flutter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ResultCacheTest {
+    // the bytes an entry holding a byte[] of the given length takes in the budget
+    private static long entryBytes(int length) {
+        return 128 + length;
+    }
+
+    private static Map<String, Object> tensor(float[] data) {
+        LinkedHashMap<String, Object> tensor = new LinkedHashMap<>();
+        tensor.put("class_type", "Tensor");
+        tensor.put("data", data);
+        tensor.put("dtype", "FLOAT32");
+        tensor.put("shape", Arrays.asList(1, data.length));
+        return tensor;
+    }
+
+    private static ResultCache.Key key(int input) {
+        HashMap<String, Object> arguments = new HashMap<>();
+        arguments.put("input", tensor(new float[]{input}));
+        return ResultCache.keyOf("forward", arguments);
+    }
+
+    @Test
+    public void keyDoesNotDependOnTheOrderOfTheArguments() {
+        LinkedHashMap<String, Object> first = new LinkedHashMap<>();
+        first.put("index", 0);
+        first.put("input", tensor(new float[]{1, 2, 3}));
+        first.put("postprocess", "softmax");
+
+        // the same arguments and tensor entries, inserted the other way around
+        LinkedHashMap<String, Object> input = new LinkedHashMap<>();
+        input.put("shape", Arrays.asList(1, 3));
+        input.put("dtype", "FLOAT32");
+        input.put("data", new float[]{1, 2, 3});
+        input.put("class_type", "Tensor");
+        LinkedHashMap<String, Object> second = new LinkedHashMap<>();
+        second.put("postprocess", "softmax");
+        second.put("input", input);
+        second.put("index", 0);
+
+        assertEquals(ResultCache.keyOf("forward", first), ResultCache.keyOf("forward", second));
+    }
+
+    @Test
+    public void keyDependsOnTheMethodAndTheData() {
+        HashMap<String, Object> arguments = new HashMap<>();
+        arguments.put("input", tensor(new float[]{1, 2, 3}));
+        HashMap<String, Object> other = new HashMap<>();
+        other.put("input", tensor(new float[]{1, 2, 4}));
+
+        ResultCache.Key key = ResultCache.keyOf("forward", arguments);
+        assertNotEquals(key, ResultCache.keyOf("forward", other));
+        assertNotEquals(key, ResultCache.keyOf("encode", arguments));
+    }
+
+    @Test
+    public void keyIgnoresTheArgumentsThatDoNotChangeTheOutput() {
+        HashMap<String, Object> arguments = new HashMap<>();
+        arguments.put("index", 0);
+        arguments.put("input", tensor(new float[]{1, 2, 3}));
+
+        HashMap<String, Object> other = new HashMap<>(arguments);
+        other.put("index", 3);
+        other.put("priority", "BACKGROUND");
+        other.put("requestId", "request-1");
+        other.put("timeoutMillis", 500);
+
+        assertEquals(ResultCache.keyOf("forward", arguments), ResultCache.keyOf("forward", other));
+    }
+
+    @Test
+    public void callsWithKeptOrStreamedOutputsAreNotCached() {
+        HashMap<String, Object> keepOutput = new HashMap<>();
+        keepOutput.put("input", tensor(new float[]{1}));
+        keepOutput.put("keepOutput", true);
+        assertNull(ResultCache.keyOf("forward", keepOutput));
+
+        HashMap<String, Object> chunked = new HashMap<>();
+        chunked.put("input", tensor(new float[]{1}));
+        chunked.put("chunkBytes", 1024);
+        assertNull(ResultCache.keyOf("forward", chunked));
+
+        HashMap<String, Object> handle = new HashMap<>();
+        handle.put("class_type", "TensorHandle");
+        handle.put("handle", 7);
+        HashMap<String, Object> keptInput = new HashMap<>();
+        keptInput.put("inputs", new ArrayList<>(Arrays.asList(tensor(new float[]{1}), handle)));
+        assertNull(ResultCache.keyOf("forward", keptInput));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedEntriesToStayUnderTheBudget() {
+        ResultCache cache = new ResultCache(2 * entryBytes(1000));
+        byte[] first = new byte[1000];
+        byte[] second = new byte[1000];
+        byte[] third = new byte[1000];
+
+        cache.put(key(1), first, 0);
+        cache.put(key(2), second, 0);
+        // the first entry becomes the most recently used, so the second one goes
+        assertSame(first, cache.get(key(1), 0));
+        cache.put(key(3), third, 0);
+
+        assertSame(first, cache.get(key(1), 0));
+        assertNull(cache.get(key(2), 0));
+        assertSame(third, cache.get(key(3), 0));
+        HashMap<String, Object> stats = cache.getStats();
+        assertEquals(2, stats.get("entries"));
+        assertEquals(2 * entryBytes(1000), stats.get("heldBytes"));
+        assertEquals(1L, stats.get("evictions"));
+    }
+
+    @Test
+    public void outputLargerThanTheBudgetIsNotCached() {
+        ResultCache cache = new ResultCache(entryBytes(1000));
+        cache.put(key(1), new byte[500], 0);
+        cache.put(key(2), new byte[1001], 0);
+
+        assertNotNull(cache.get(key(1), 0));
+        assertNull(cache.get(key(2), 0));
+        assertEquals(0L, cache.getStats().get("evictions"));
+    }
+
+    @Test
+    public void replacingAnEntryCountsItsBytesOnce() {
+        ResultCache cache = new ResultCache(2 * entryBytes(1000));
+        cache.put(key(1), new byte[1000], 0);
+        cache.put(key(1), new byte[1000], 0);
+
+        assertEquals(entryBytes(1000), cache.getStats().get("heldBytes"));
+    }
+
+    @Test
+    public void entriesAreDroppedWhenTheModelIsLoadedAgain() {
+        ResultCache cache = new ResultCache(4 * entryBytes(1000));
+        cache.put(key(1), new byte[1000], 0);
+        cache.put(key(2), new byte[1000], 0);
+
+        assertNull(cache.get(key(1), 1));
+        assertNull(cache.get(key(2), 1));
+        HashMap<String, Object> stats = cache.getStats();
+        assertEquals(0, stats.get("entries"));
+        assertEquals(0L, stats.get("heldBytes"));
+        assertEquals(1L, stats.get("invalidations"));
+
+        // an output computed by the previous module is dropped too
+        cache.put(key(1), new byte[1000], 0);
+        assertNull(cache.get(key(1), 1));
+        cache.put(key(1), new byte[1000], 1);
+        assertNotNull(cache.get(key(1), 1));
+    }
+}
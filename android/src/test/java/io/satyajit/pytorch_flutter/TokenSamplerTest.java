@@ -0,0 +1,111 @@
+package io.satyajit.pytorch_flutter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenSamplerTest {
+    private static final int DRAWS = 10000;
+
+    private static float ln(double value) {
+        return (float) Math.log(value);
+    }
+
+    /**
+     * @return how many times each token was drawn
+     */
+    private static int[] counts(TokenSampler sampler, float[] logits) {
+        int[] counts = new int[logits.length];
+        for (int i = 0; i < DRAWS; i++) {
+            counts[sampler.sample(logits, 0, logits.length)]++;
+        }
+        return counts;
+    }
+
+    @Test
+    public void greedyPicksTheHighestLogit() {
+        float[] logits = {0, 9, 2, 5, 7, 9, 1};
+
+        TokenSampler zeroTemperature = new TokenSampler(0, 1f, 0f, 1L);
+        assertTrue(zeroTemperature.isGreedy());
+        // the first of equal logits
+        assertEquals(1, zeroTemperature.sample(logits, 0, 7));
+        // the vocabulary is read from the offset
+        assertEquals(2, zeroTemperature.sample(logits, 3, 4));
+        assertEquals(1, zeroTemperature.sample(new float[]{-3, -1, -2}, 0, 3));
+
+        TokenSampler topOne = new TokenSampler(1, 1f, 1f, 1L);
+        assertTrue(topOne.isGreedy());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(3, topOne.sample(logits, 2, 4));
+        }
+        assertFalse(new TokenSampler(2, 1f, 1f, 1L).isGreedy());
+    }
+
+    @Test
+    public void topKOnlyDrawsFromTheKHighestLogits() {
+        // the window of 2 holds tokens 1 and 4, with probabilities 1 / 3 and 2 / 3
+        float[] logits = {0, ln(2), ln(1.5), -1, ln(4), 0.5f};
+        int[] counts = counts(new TokenSampler(2, 1f, 1f, 7L), logits);
+
+        assertEquals(0, counts[0] + counts[2] + counts[3] + counts[5]);
+        assertEquals(1 / 3.0, counts[1] / (double) DRAWS, 0.02);
+        assertEquals(2 / 3.0, counts[4] / (double) DRAWS, 0.02);
+    }
+
+    @Test
+    public void temperatureSharpensTheDistribution() {
+        // probabilities 1 / 4 and 3 / 4, and 1 / 10 and 9 / 10 at a temperature of 0.5
+        float[] logits = {0, ln(3)};
+
+        assertEquals(0.75, counts(new TokenSampler(0, 1f, 1f, 7L), logits)[1] / (double) DRAWS, 0.02);
+        assertEquals(0.9, counts(new TokenSampler(0, 1f, 0.5f, 7L), logits)[1] / (double) DRAWS, 0.02);
+    }
+
+    @Test
+    public void nucleusKeepsTheSmallestSetReachingTopP() {
+        // probabilities 0.1, 0.6, 0.3
+        float[] logits = {ln(1), ln(6), ln(3)};
+
+        // 0.6 alone reaches 0.5
+        assertArrayEquals(new int[]{0, DRAWS, 0}, counts(new TokenSampler(0, 0.5f, 1f, 7L), logits));
+
+        // 0.6 + 0.3 are needed for 0.8, and drawn in proportion
+        int[] counts = counts(new TokenSampler(0, 0.8f, 1f, 7L), logits);
+        assertEquals(0, counts[0]);
+        assertEquals(2 / 3.0, counts[1] / (double) DRAWS, 0.02);
+        assertEquals(1 / 3.0, counts[2] / (double) DRAWS, 0.02);
+    }
+
+    @Test
+    public void nucleusIsTakenWithinTheTopKWindow() {
+        // the window of 3 holds tokens 1, 3 and 0, the first of the equal 0 and 2, with 4 / 7,
+        // 2 / 7 and 1 / 7 of its probability
+        float[] logits = {ln(1), ln(4), ln(1), ln(2), ln(0.5)};
+
+        // 4 / 7 + 2 / 7 reach 0.8
+        int[] counts = counts(new TokenSampler(3, 0.8f, 1f, 7L), logits);
+        assertEquals(0, counts[0] + counts[2] + counts[4]);
+        assertEquals(2 / 3.0, counts[1] / (double) DRAWS, 0.02);
+
+        // the whole window is needed for 0.95, tokens 2 and 4 are still out
+        counts = counts(new TokenSampler(3, 0.95f, 1f, 7L), logits);
+        assertEquals(0, counts[2] + counts[4]);
+        assertEquals(1 / 7.0, counts[0] / (double) DRAWS, 0.02);
+        assertEquals(4 / 7.0, counts[1] / (double) DRAWS, 0.02);
+    }
+
+    @Test
+    public void theSameSeedDrawsTheSameTokens() {
+        float[] logits = {0.3f, 1.2f, -0.5f, 0.9f, 0.1f, 1.1f};
+        TokenSampler a = new TokenSampler(4, 0.9f, 0.8f, 42L);
+        TokenSampler b = new TokenSampler(4, 0.9f, 0.8f, 42L);
+
+        for (int i = 0; i < 200; i++) {
+            assertEquals(a.sample(logits, 0, logits.length), b.sample(logits, 0, logits.length));
+        }
+    }
+}
@@ -0,0 +1,145 @@
+import 'dart:async';
+
+import 'package:flutter/foundation.dart';
+import 'package:flutter/services.dart';
+import 'package:pytorch_flutter/dtypes.dart';
+import 'package:pytorch_flutter/ivalue.dart';
+import 'package:pytorch_flutter/output.dart';
+import 'package:pytorch_flutter/priority.dart';
+
+/// [OutputChunk] is a part of a large Tensor streamed by a [ChunkedOutput]
+///
+/// A chunk holds whole rows of the last dimension of the Tensor, unless a
+/// single row is larger than a chunk
+class OutputChunk {
+  /// the id of the Tensor the chunk belongs to, see [ChunkedTensor]
+  final int tensorId;
+  final TensorType dtype;
+  final List<int> shape;
+
+  /// the position of the first element of the chunk in the Tensor, and the
+  /// number of elements of the chunk
+  final int offset;
+  final int length;
+
+  /// the elements of the chunk, a typed list of the [dtype], see
+  /// [OutputTensor]
+  final List data;
+
+  /// true for the last chunk of the Tensor
+  final bool last;
+
+  OutputChunk(this.tensorId, this.dtype, this.shape, this.offset, this.length,
+      this.data, this.last);
+
+  factory OutputChunk.fromMap(Map map) {
+    TensorType dtype =
+        TensorType.values.firstWhere((e) => e.inString == map["dtype"]);
+    int length = map["length"];
+    return OutputChunk(
+        map["tensorId"],
+        dtype,
+        map["shape"],
+        map["offset"],
+        length,
+        OutputTensor.fromBytes(dtype, [length], map["data"]).data,
+        map["last"]);
+  }
+
+  @override
+  String toString() =>
+      "OutputChunk(tensorId: $tensorId, offset: $offset, length: $length)";
+}
+
+/// [ChunkedTensor] stands in the output of a [ChunkedOutput] for a Tensor
+/// that was streamed in [chunks]
+class ChunkedTensor {
+  final int tensorId;
+  final TensorType dtype;
+  final List<int> shape;
+  final int chunks;
+
+  ChunkedTensor(this.tensorId, this.dtype, this.shape, this.chunks);
+
+  factory ChunkedTensor.fromMap(Map map) {
+    return ChunkedTensor(
+        map["tensorId"],
+        TensorType.values.firstWhere((e) => e.inString == map["dtype"]),
+        map["shape"],
+        map["chunks"]);
+  }
+
+  @override
+  String toString() =>
+      "ChunkedTensor(tensorId: $tensorId, dtype: ${dtype.inString}, shape: $shape)";
+}
+
+/// [ChunkedOutput] is a model call whose large Tensors are streamed in chunks,
+/// see [Model.forwardChunked]
+///
+/// The chunks come out of [chunks] as soon as they are sent, all of them
+/// before [output] completes
+class ChunkedOutput {
+  static const MethodChannel _channel = const MethodChannel('pytorch_flutter');
+  static const EventChannel _events =
+      const EventChannel('pytorch_flutter/chunks');
+
+  // all the calls share the event channel, the chunks are sorted by stream id
+  static Stream<dynamic> _allEvents;
+  static int _nextId = 0;
+
+  final int _streamId;
+  final StreamController<OutputChunk> _chunks =
+      StreamController<OutputChunk>();
+  StreamSubscription<dynamic> _subscription;
+  Future<dynamic> _output;
+
+  ChunkedOutput._internal(this._streamId);
+
+  /// Runs [methodName] of the model at [index] on [inputs], streaming the
+  /// Tensors of its output larger than [chunkBytes]
+  static ChunkedOutput start(int index,
+      {String methodName = "forward",
+      @required List<IValue> inputs,
+      @required int chunkBytes,
+      Priority priority = Priority.NORMAL,
+      String requestId,
+      Duration timeout}) {
+    ChunkedOutput call = ChunkedOutput._internal(_nextId++);
+    // listens before starting, so no chunk is missed, they are buffered until
+    // [chunks] is listened to
+    _allEvents ??= _events.receiveBroadcastStream();
+    call._subscription = _allEvents
+        .where((event) => event["streamId"] == call._streamId)
+        .listen((event) => call._chunks.add(OutputChunk.fromMap(event)));
+
+    bool forward = methodName == "forward";
+    call._output = _channel
+        .invokeMethod(forward ? "forwardList" : "runMethodList",
+            <String, dynamic>{
+          "index": index,
+          if (!forward) "methodName": methodName,
+          "inputs": inputs.map((e) => e.toMap()).toList(),
+          "chunkBytes": chunkBytes,
+          "chunkStreamId": call._streamId,
+          if (priority != Priority.NORMAL) "priority": describeEnum(priority),
+          if (requestId != null) "requestId": requestId,
+          if (timeout != null) "timeoutMillis": timeout.inMilliseconds,
+        })
+        .then((output) => decodeOutput(output))
+        .whenComplete(call._done);
+    return call;
+  }
+
+  /// The chunks of the streamed Tensors, in order within each Tensor
+  Stream<OutputChunk> get chunks => _chunks.stream;
+
+  /// Completes with the output of the call, with a [ChunkedTensor] in place of
+  /// each streamed Tensor
+  Future<dynamic> get output => _output;
+
+  void _done() {
+    _subscription.cancel();
+    _chunks.close();
+  }
+}
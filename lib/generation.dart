@@ -0,0 +1,123 @@
+import 'dart:async';
+import 'dart:typed_data';
+
+import 'package:flutter/foundation.dart';
+import 'package:flutter/services.dart';
+import 'package:pytorch_flutter/ivalue.dart';
+import 'package:pytorch_flutter/priority.dart';
+
+/// [GenerationResult] is the outcome of a [Generation]
+class GenerationResult {
+  /// the generated tokens, without the prompt
+  final Int64List tokens;
+
+  /// why the generation ended, "stopToken", "maxTokens" or "cancelled"
+  final String stopReason;
+
+  /// the number of times the step method was run
+  final int steps;
+
+  /// the time until the first token, and the time of the whole generation,
+  /// both without the time waiting for the model
+  final Duration firstTokenTime;
+  final Duration totalTime;
+
+  GenerationResult(this.tokens, this.stopReason, this.steps,
+      this.firstTokenTime, this.totalTime);
+
+  factory GenerationResult.fromMap(Map map) {
+    return GenerationResult(
+        map["tokens"],
+        map["stopReason"],
+        map["steps"],
+        Duration(microseconds: map["firstStepMicros"]),
+        Duration(microseconds: map["totalMicros"]));
+  }
+
+  @override
+  String toString() =>
+      "GenerationResult(tokens: ${tokens.length}, stopReason: $stopReason)";
+}
+
+/// [Generation] is a token by token decoding running on the native side, see
+/// [Model.generate]
+///
+/// The tokens come out of [tokens] as soon as they are picked, and [result]
+/// completes with all of them once the generation ends
+class Generation {
+  static const MethodChannel _channel = const MethodChannel('pytorch_flutter');
+  static const EventChannel _events =
+      const EventChannel('pytorch_flutter/generate');
+
+  // all the generations share the event channel, the events are sorted by id
+  static Stream<dynamic> _allEvents;
+  static int _nextId = 0;
+
+  final int _generationId;
+  final StreamController<int> _tokens = StreamController<int>();
+  StreamSubscription<dynamic> _subscription;
+  Future<GenerationResult> _result;
+
+  Generation._internal(this._generationId);
+
+  /// Starts a generation on the model at [index], see [Model.generate]
+  static Generation start(int index,
+      {String methodName = "forward",
+      @required List<int> tokens,
+      List<IValue> inputs = const [],
+      @required int maxTokens,
+      List<int> stopTokens = const [],
+      double temperature = 0,
+      int topK = 0,
+      double topP = 1,
+      int seed,
+      Priority priority = Priority.NORMAL,
+      String requestId,
+      Duration timeout}) {
+    Generation generation = Generation._internal(_nextId++);
+    // listens before starting, so no token is missed, they are buffered until
+    // [tokens] is listened to
+    _allEvents ??= _events.receiveBroadcastStream();
+    generation._subscription = _allEvents
+        .where((event) => event["generationId"] == generation._generationId)
+        .listen((event) => generation._tokens.add(event["token"]));
+
+    generation._result = _channel.invokeMethod("generate", <String, dynamic>{
+      "index": index,
+      "generationId": generation._generationId,
+      "methodName": methodName,
+      "tokens": Int64List.fromList(tokens),
+      "inputs": inputs.map((e) => e.toMap()).toList(),
+      "maxTokens": maxTokens,
+      "stopTokens": Int64List.fromList(stopTokens),
+      "temperature": temperature,
+      "topK": topK,
+      "topP": topP,
+      if (seed != null) "seed": seed,
+      if (priority != Priority.NORMAL) "priority": describeEnum(priority),
+      if (requestId != null) "requestId": requestId,
+      if (timeout != null) "timeoutMillis": timeout.inMilliseconds,
+    }).then((output) => GenerationResult.fromMap(output))
+      .whenComplete(generation._done);
+    return generation;
+  }
+
+  /// The generated tokens, as soon as they are picked
+  Stream<int> get tokens => _tokens.stream;
+
+  /// Completes with all the tokens once the generation ends
+  Future<GenerationResult> get result => _result;
+
+  /// Stops the generation after the step it is running, [result] completes
+  /// with the tokens generated so far. Returns false if the generation had
+  /// already ended
+  Future<bool> stop() async {
+    return await _channel.invokeMethod(
+        "stopGeneration", <String, int>{"generationId": _generationId});
+  }
+
+  void _done() {
+    _subscription.cancel();
+    _tokens.close();
+  }
+}
@@ -0,0 +1,129 @@
+import 'dart:async';
+
+import 'package:flutter/foundation.dart';
+import 'package:flutter/services.dart';
+import 'package:pytorch_flutter/ivalue.dart';
+import 'package:pytorch_flutter/output.dart';
+import 'package:pytorch_flutter/postprocess.dart';
+import 'package:pytorch_flutter/priority.dart';
+
+/// What an [InferenceStream] does with a new frame when its queue is full
+enum DropPolicy {
+  /// the oldest waiting frame is dropped, with a capacity of 1 only the newest
+  /// frame is kept
+  DROP_OLDEST,
+
+  /// the new frame is dropped
+  DROP_NEWEST,
+}
+
+/// [FrameResult] is the output of one frame of an [InferenceStream]
+class FrameResult {
+  final int frameId;
+  final dynamic timestamp;
+
+  /// the decoded output, see [decodeOutput], null if the frame failed
+  final dynamic output;
+  final String error;
+
+  /// the time the frame waited for the model, and the time the model took
+  final Duration queueTime;
+  final Duration runTime;
+
+  /// the number of frames dropped by the stream so far
+  final int droppedFrames;
+
+  FrameResult(
+      {@required this.frameId,
+      this.timestamp,
+      this.output,
+      this.error,
+      this.queueTime,
+      this.runTime,
+      this.droppedFrames});
+}
+
+/// [InferenceStream] runs a stream of frames, like camera frames, on a model
+///
+/// The frames are added with [add] without waiting for the model, and their
+/// outputs come out of [results]. When the model is slower than the frames
+/// come in, the frames are dropped according to the [DropPolicy] instead of
+/// piling up, so the latency stays bounded
+class InferenceStream {
+  static const MethodChannel _channel = const MethodChannel('pytorch_flutter');
+  static const EventChannel _events =
+      const EventChannel('pytorch_flutter/stream');
+
+  // all the streams share the event channel, the events are sorted by session
+  static Stream<dynamic> _allEvents;
+
+  final int _sessionId;
+  int _nextFrameId = 0;
+
+  InferenceStream._internal(this._sessionId);
+
+  /// Opens a stream on the model at [index], see [Model.openStream]
+  static Future<InferenceStream> open(int index,
+      {String methodName = "forward",
+      int capacity = 1,
+      DropPolicy dropPolicy = DropPolicy.DROP_OLDEST,
+      PostProcess postprocess,
+      Priority priority = Priority.NORMAL}) async {
+    int sessionId = await _channel.invokeMethod("startStream", {
+      "index": index,
+      "methodName": methodName,
+      "capacity": capacity,
+      "dropPolicy": describeEnum(dropPolicy),
+      if (postprocess != null) "postprocess": postprocess.toMap(),
+      if (priority != Priority.NORMAL) "priority": describeEnum(priority),
+    });
+    return InferenceStream._internal(sessionId);
+  }
+
+  /// The outputs of the frames, in the order they were run
+  Stream<FrameResult> get results {
+    _allEvents ??= _events.receiveBroadcastStream();
+    return _allEvents
+        .where((event) => event["sessionId"] == _sessionId)
+        .map((event) => FrameResult(
+              frameId: event["frameId"],
+              timestamp: event["timestamp"],
+              output: event["output"] == null
+                  ? null
+                  : decodeOutput(event["output"]),
+              error: event["error"],
+              queueTime: Duration(microseconds: event["queueMicros"]),
+              runTime: Duration(microseconds: event["runMicros"]),
+              droppedFrames: event["droppedFrames"],
+            ));
+  }
+
+  /// Adds a frame to the stream
+  ///
+  /// The [timestamp] is sent back as it is with the result of the frame, like
+  /// the capture time of a camera frame. Returns the id of the frame, which
+  /// its result is tagged with, a dropped frame has no result
+  int add(IValue frame, {dynamic timestamp}) {
+    int frameId = _nextFrameId++;
+    _channel.invokeMethod("submitFrame", <String, dynamic>{
+      "sessionId": _sessionId,
+      "frameId": frameId,
+      "timestamp": timestamp,
+      "input": frame.toMap(),
+    });
+    return frameId;
+  }
+
+  /// Returns the number of frames received, completed, failed, dropped and
+  /// waiting, and the queue and run latencies
+  Future<Map> stats() async {
+    return await _channel
+        .invokeMethod("getStreamStats", {"sessionId": _sessionId});
+  }
+
+  /// Closes the stream, the waiting frames are discarded, returns the final
+  /// [stats]
+  Future<Map> close() async {
+    return await _channel.invokeMethod("stopStream", {"sessionId": _sessionId});
+  }
+}
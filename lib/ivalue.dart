@@ -63,14 +63,21 @@ class Value extends IValue {
 /// Uint8List -> byte[]
 /// Int32List -> int[]
 /// Int64List -> long[]
+/// Float32List -> byte[] of its raw bytes, read as floats
 /// Float64List -> double[]
+///
+/// Sending the data in the same type as the [dtype] (Float32List for
+/// FLOAT32, Int64List for INT64 and so on) is the fastest, since the data
+/// is then copied to the Tensor without any conversion. The message codec of
+/// Flutter 1.x has no Float32List, so its bytes are sent instead, flagged with
+/// "raw"
 class TensorValue extends IValue {
   TensorType dtype;
   List<int> shape;
 
   TensorValue({ @required data, @required this.shape, @required this.dtype }) : assert(
-  ['Uint8List', 'Int32List', 'Int64List', 'Float64List'].any((e) => e == data.runtimeType.toString()),
-  "Found data of type: ${data.runtimeType}: Only data of type Uint8List, Int32List, Int64List, Float64List is allowed"
+  ['Uint8List', 'Int32List', 'Int64List', 'Float32List', 'Float64List'].any((e) => e == data.runtimeType.toString()),
+  "Found data of type: ${data.runtimeType}: Only data of type Uint8List, Int32List, Int64List, Float32List, Float64List is allowed"
   ), super(data);
 
   // returns a representation of this class
@@ -78,6 +85,12 @@ class TensorValue extends IValue {
   Map<String, dynamic> toMap() {
     return <String, dynamic>{
       ...super.toMap(),
+      if (data is Float32List) ...{
+        "data": (data as Float32List)
+            .buffer
+            .asUint8List(data.offsetInBytes, data.lengthInBytes),
+        "raw": true,
+      },
       "shape" : Int64List.fromList(shape),
       "dtype": dtype.inString,
     };
@@ -85,16 +98,36 @@ class TensorValue extends IValue {
 
 }
 
+/// How an [ImageTensor] is fit to its target size
+enum ResizeMode {
+  /// the whole image is scaled to the target size, the aspect ratio is lost
+  STRETCH,
+  /// the largest centered part of the image with the aspect ratio of the
+  /// target is scaled to the target size
+  CENTER_CROP,
+}
+
 /// [ImageTensor] represents an Image
 /// It can only contain a type Uint8List
+///
+/// When [width] and [height] are given, the image is decoded straight to that
+/// size, fit with [resizeMode], which is much faster than decoding a large
+/// photo at its full resolution
 class ImageTensor extends IValue {
   // The image will be normalized using these values
   List<double> mean = [0.485, 0.456, 0.406];
   List<double> std = [0.229, 0.224, 0.225];
 
+  // the size of the Tensor, null keeps the size of the image
+  int width;
+  int height;
+  ResizeMode resizeMode;
+
   ImageTensor(
-      { @required Uint8List data, this.mean, this.std })
-      : super(data);
+      { @required Uint8List data, this.mean, this.std, this.width, this.height,
+        this.resizeMode = ResizeMode.STRETCH })
+      : assert((width == null) == (height == null), "Both width and height must be given"),
+        super(data);
 
   // returns a representation of this class
   @override
@@ -105,6 +138,151 @@ class ImageTensor extends IValue {
       ...super.toMap(),
       "mean": Float64List.fromList(mean),
       "std": Float64List.fromList(std),
+      "width": width,
+      "height": height,
+      "resizeMode": describeEnum(resizeMode),
+    };
+  }
+}
+
+/// The order of the channels of the pixels of a [RawImageTensor]
+enum PixelFormat {
+  RGBA,
+  BGRA,
+}
+
+/// The crop, rotation and output size shared by [RawImageTensor] and
+/// [YuvImageTensor], the crop is applied first, then the clockwise [rotation],
+/// then the result is scaled to [outWidth] x [outHeight]
+Map<String, dynamic> _pixelTransformToMap(int cropX, int cropY, int cropWidth,
+    int cropHeight, int rotation, int outWidth, int outHeight) {
+  return <String, dynamic>{
+    "cropX": cropX,
+    "cropY": cropY,
+    "cropWidth": cropWidth,
+    "cropHeight": cropHeight,
+    "rotation": rotation,
+    "outWidth": outWidth,
+    "outHeight": outHeight,
+  };
+}
+
+/// [RawImageTensor] represents the raw RGBA or BGRA pixels of an image, like
+/// the ones of `Image.toByteData(format: ImageByteFormat.rawRgba)` or of a BGRA
+/// camera frame
+///
+/// The pixels are converted straight to a normalized float Tensor of shape
+/// [1, 3, outHeight, outWidth], there is no encoding or decoding involved
+class RawImageTensor extends IValue {
+  List<double> mean;
+  List<double> std;
+
+  int width;
+  int height;
+  // the number of bytes between the start of two rows, 4 * width by default
+  int rowStride;
+  PixelFormat format;
+
+  int cropX;
+  int cropY;
+  int cropWidth;
+  int cropHeight;
+  int rotation;
+  int outWidth;
+  int outHeight;
+
+  RawImageTensor(
+      {@required Uint8List data,
+      @required this.width,
+      @required this.height,
+      this.rowStride,
+      this.format = PixelFormat.RGBA,
+      this.mean = const [0.485, 0.456, 0.406],
+      this.std = const [0.229, 0.224, 0.225],
+      this.cropX = 0,
+      this.cropY = 0,
+      this.cropWidth = 0,
+      this.cropHeight = 0,
+      this.rotation = 0,
+      this.outWidth = 0,
+      this.outHeight = 0})
+      : super(data);
+
+  // returns a representation of this class
+  @override
+  Map<String, dynamic> toMap() {
+    return <String, dynamic>{
+      ...super.toMap(),
+      "width": width,
+      "height": height,
+      "rowStride": rowStride ?? 4 * width,
+      "format": describeEnum(format),
+      "mean": Float64List.fromList(mean),
+      "std": Float64List.fromList(std),
+      ..._pixelTransformToMap(
+          cropX, cropY, cropWidth, cropHeight, rotation, outWidth, outHeight),
+    };
+  }
+}
+
+/// [YuvImageTensor] represents a YUV_420_888 camera frame, as given by the
+/// planes of a `CameraImage` on Android
+///
+/// The planes are converted straight to a normalized RGB float Tensor of shape
+/// [1, 3, outHeight, outWidth], set [rotation] to the sensor orientation to
+/// get an upright image
+class YuvImageTensor extends IValue {
+  List<double> mean;
+  List<double> std;
+
+  int width;
+  int height;
+  int yRowStride;
+  int uvRowStride;
+  int uvPixelStride;
+
+  int cropX;
+  int cropY;
+  int cropWidth;
+  int cropHeight;
+  int rotation;
+  int outWidth;
+  int outHeight;
+
+  YuvImageTensor(
+      {@required Uint8List yPlane,
+      @required Uint8List uPlane,
+      @required Uint8List vPlane,
+      @required this.width,
+      @required this.height,
+      @required this.yRowStride,
+      @required this.uvRowStride,
+      @required this.uvPixelStride,
+      this.mean = const [0.485, 0.456, 0.406],
+      this.std = const [0.229, 0.224, 0.225],
+      this.cropX = 0,
+      this.cropY = 0,
+      this.cropWidth = 0,
+      this.cropHeight = 0,
+      this.rotation = 0,
+      this.outWidth = 0,
+      this.outHeight = 0})
+      : super([yPlane, uPlane, vPlane]);
+
+  // returns a representation of this class
+  @override
+  Map<String, dynamic> toMap() {
+    return <String, dynamic>{
+      ...super.toMap(),
+      "width": width,
+      "height": height,
+      "yRowStride": yRowStride,
+      "uvRowStride": uvRowStride,
+      "uvPixelStride": uvPixelStride,
+      "mean": Float64List.fromList(mean),
+      "std": Float64List.fromList(std),
+      ..._pixelTransformToMap(
+          cropX, cropY, cropWidth, cropHeight, rotation, outWidth, outHeight),
     };
   }
 }
@@ -1,9 +1,18 @@
+import 'dart:async';
 import 'dart:io';
 
 import 'package:flutter/foundation.dart';
 import 'package:flutter/services.dart';
+import 'package:pytorch_flutter/chunked_output.dart';
 import 'package:pytorch_flutter/dtypes.dart';
+import 'package:pytorch_flutter/generation.dart';
+import 'package:pytorch_flutter/inference_stream.dart';
 import 'package:pytorch_flutter/ivalue.dart';
+import 'package:pytorch_flutter/output.dart';
+import 'package:pytorch_flutter/postprocess.dart';
+import 'package:pytorch_flutter/preload.dart';
+import 'package:pytorch_flutter/priority.dart';
+import 'package:pytorch_flutter/tensor_channel.dart';
 
 class Model {
   // the method channel defined in the native code
@@ -16,35 +25,136 @@ class Model {
   Model._internal(this._index);
 
   /// Loads a Model from given [assetPath]
-  static Future<Model> fromAsset({String assetPath}) async {
-    int index = await _channel.invokeMethod("loadModelFromAsset");
+  ///
+  /// The asset is extracted from the APK to the app's files the first time it
+  /// is loaded, and is only extracted again when the app is updated. Set
+  /// [verifyCache] to check the checksum of the extracted file before loading
+  ///
+  /// With more than one [replicas], the model is loaded that many times from
+  /// the extracted file, and that many of its calls run at the same time, each
+  /// on the least busy replica. Every replica takes the memory of a whole model,
+  /// and they all share the intra-op threads, so [setNumThreads] to 1 usually
+  /// scales best, see [replicaScaling]
+  static Future<Model> fromAsset(
+      {String assetPath,
+      int estimatedBytes,
+      bool verifyCache = false,
+      int replicas = 1}) async {
+    int index = await _channel.invokeMethod("loadModelFromAsset", {
+      "assetPath": assetPath,
+      "estimatedBytes": estimatedBytes,
+      "verifyCache": verifyCache,
+      "replicas": replicas,
+    });
     return Model._internal(index);
   }
 
-  /// Loads a Model from given [filePath]
-  static Future<Model> fromFile({String filePath}) async {
-    int index = await _channel.invokeMethod("loadModelFromFile");
+  /// Loads the models of [specs] in parallel, in the background
+  ///
+  /// Each model is added to the stream as soon as it is loaded and warmed up,
+  /// so the first models can be used while the others are still loading, and
+  /// the stream closes once all of them are done. A model that fails to load
+  /// is reported with its error instead of failing the stream
+  static Stream<PreloadedModel> preload(List<ModelSpec> specs) {
+    int preloadId = _nextPreloadId++;
+    StreamController<PreloadedModel> controller = StreamController();
+    Set<int> reported = {};
+
+    void report(Map map) {
+      // the model can be reported by both the event and the final result
+      if (!reported.add(map["position"])) {
+        return;
+      }
+      controller.add(PreloadedModel(
+        position: map["position"],
+        model: map["error"] == null ? Model._internal(map["index"]) : null,
+        loadTime: map["loadMicros"] == null
+            ? null
+            : Duration(microseconds: map["loadMicros"]),
+        warmUpTime: map["warmUpMicros"] == null
+            ? null
+            : Duration(microseconds: map["warmUpMicros"]),
+        error: map["error"],
+      ));
+    }
+
+    _preloads[preloadId] = report;
+    _channel.setMethodCallHandler(_onNativeCall);
+    _channel.invokeMethod<List>("preloadModels", <String, dynamic>{
+      "preloadId": preloadId,
+      "models": specs.map((e) => e.toMap()).toList(),
+    }).then((reports) {
+      reports.forEach((e) => report(e));
+    }).catchError((e) {
+      controller.addError(e);
+    }).whenComplete(() {
+      _preloads.remove(preloadId);
+      controller.close();
+    });
+
+    return controller.stream;
+  }
+
+  static int _nextPreloadId = 0;
+  static final Map<int, void Function(Map)> _preloads = {};
+
+  static Future<dynamic> _onNativeCall(MethodCall call) async {
+    if (call.method == "onModelPreloaded") {
+      Map report = call.arguments;
+      _preloads[report["preloadId"]]?.call(report);
+    }
+  }
+
+  /// Loads a Model from given [filePath], as [replicas] copies, see [fromAsset]
+  static Future<Model> fromFile(
+      {String filePath, int estimatedBytes, int replicas = 1}) async {
+    int index = await _channel.invokeMethod("loadModelFromFile", {
+      "filePath": filePath,
+      "estimatedBytes": estimatedBytes,
+      "replicas": replicas,
+    });
     return Model._internal(index);
   }
 
   /// Runs the forward function of the model with the input given
   ///
   /// Takes in [input] which is an [IValue] and passes it to the forward
-  /// 'function' of the torch::jit model
+  /// 'function' of the torch::jit model, the Tensors in the output are returned
+  /// as [OutputTensor], see [decodeOutput]
+  ///
+  /// When a [postprocess] is given, only its result is returned, see
+  /// [PostProcess]. When [keepOutput] is true, the output stays on the native
+  /// side and a [TensorHandle] to it is returned (a list of them for a tuple or
+  /// list output), it is released after it has not been used for [ttl]
+  ///
+  /// The call waits for the model behind the calls of a higher [priority], see
+  /// [Priority]. A call with a [requestId] can be cancelled with
+  /// `PyTorchFlutter.cancel`, and a call with a [timeout] fails with
+  /// ERROR_DEADLINE_EXCEEDED if it is not done in time. A cancelled or expired
+  /// call fails right away if it is still waiting for the model, or before the
+  /// model runs, a model that is already running can't be stopped
   ///
   /// Sample usage
   /// ```
   /// ptfl.Model meow = ptfl.Model.fromAsset('assets/yolov4.traced.pt')
   /// meow.forward(input)
   /// ```
-  Future<dynamic> forward(IValue input) async {
+  Future<dynamic> forward(IValue input,
+      {PostProcess postprocess,
+      bool keepOutput = false,
+      Duration ttl = _defaultTtl,
+      Priority priority = Priority.NORMAL,
+      String requestId,
+      Duration timeout}) async {
     final output =
         await _channel.invokeMethod("forward", {
           "index": _index,
-          ...input.toMap()
+          ...input.toMap(),
+          ..._callOptions(
+              postprocess, keepOutput, ttl, priority, requestId, timeout),
         });
 
-    return output;
+    return decodeOutput(output);
   }
 
   /// Runs the [inputs] parameters on the model
@@ -56,38 +166,328 @@ class Model {
   ///   x = self.main(input1)
   /// ```
   /// In the above case, use this function with the appropriate list of values
-  Future<dynamic> forwardList(List<IValue> inputs) async {
+  Future<dynamic> forwardList(List<IValue> inputs,
+      {PostProcess postprocess,
+      bool keepOutput = false,
+      Duration ttl = _defaultTtl,
+      Priority priority = Priority.NORMAL,
+      String requestId,
+      Duration timeout}) async {
     final output =
         await _channel.invokeMethod('forwardList', <String, dynamic>{
           "index": _index,
-          "inputs": inputs.map((e) => e.toMap()).toList()
+          "inputs": inputs.map((e) => e.toMap()).toList(),
+          ..._callOptions(
+              postprocess, keepOutput, ttl, priority, requestId, timeout),
         });
 
-    return output;
+    return decodeOutput(output);
   }
 
   /// Runs the [methodName] of the Module with input param as [input]
-  Future<dynamic> runMethod(String methodName, IValue input) async {
+  Future<dynamic> runMethod(String methodName, IValue input,
+      {PostProcess postprocess,
+      bool keepOutput = false,
+      Duration ttl = _defaultTtl,
+      Priority priority = Priority.NORMAL,
+      String requestId,
+      Duration timeout}) async {
     final output =
         await _channel.invokeMethod("runMethod", <String, dynamic>{
           "index": _index,
           "methodName": methodName,
           ...input.toMap(),
+          ..._callOptions(
+              postprocess, keepOutput, ttl, priority, requestId, timeout),
         });
 
-    return output;
+    return decodeOutput(output);
   }
 
   /// Runs the [methodName] of the Module with varargs inputs [inputs]
-  Future<dynamic> runMethodList(String methodName, List<IValue> inputs) async {
+  Future<dynamic> runMethodList(String methodName, List<IValue> inputs,
+      {PostProcess postprocess,
+      bool keepOutput = false,
+      Duration ttl = _defaultTtl,
+      Priority priority = Priority.NORMAL,
+      String requestId,
+      Duration timeout}) async {
     final output =
     await _channel.invokeMethod('runMethodList', <String, dynamic>{
       "index": _index,
       "methodName": methodName,
-      "inputs": inputs.map((e) => e.toMap()).toList()
+      "inputs": inputs.map((e) => e.toMap()).toList(),
+      ..._callOptions(
+              postprocess, keepOutput, ttl, priority, requestId, timeout),
     });
 
-    return output;
+    return decodeOutput(output);
+  }
+
+  /// Runs the forward function of the model once for each of the [inputs]
+  ///
+  /// The inputs run in parallel on the replicas of the model, see [fromAsset],
+  /// and the outputs are returned in the order of the inputs. The call fails
+  /// with the first input that fails, the options apply to every input, see
+  /// [forward]
+  Future<List<dynamic>> forwardMany(List<IValue> inputs,
+      {PostProcess postprocess,
+      bool keepOutput = false,
+      Duration ttl = _defaultTtl,
+      Priority priority = Priority.NORMAL,
+      String requestId,
+      Duration timeout}) async {
+    final List outputs =
+        await _channel.invokeMethod('forwardMany', <String, dynamic>{
+      "index": _index,
+      "inputs": inputs.map((e) => e.toMap()).toList(),
+      ..._callOptions(
+          postprocess, keepOutput, ttl, priority, requestId, timeout),
+    });
+
+    return outputs.map((e) => decodeOutput(e)).toList();
+  }
+
+  /// Measures the throughput of the model with 1 to all of its replicas
+  ///
+  /// For each number of replicas, [input] is run [calls] times with that many
+  /// calls at the same time. Returns, in order, a map per number of replicas
+  /// with the `replicas`, the `callsPerSecond` and the `speedup` over a single
+  /// replica. The model should get no other calls while it is measured
+  Future<List<Map<dynamic, dynamic>>> replicaScaling(IValue input,
+      {int calls = 16}) async {
+    final List report = await _channel
+        .invokeMethod('measureReplicaScaling', <String, dynamic>{
+      "index": _index,
+      "input": input.toMap(),
+      "calls": calls,
+    });
+    return report.cast<Map<dynamic, dynamic>>();
+  }
+
+  static const Duration _defaultTtl = const Duration(minutes: 1);
+
+  // the arguments that choose the priority and the deadline of a call, and what
+  // is sent back for its output
+  static Map<String, dynamic> _callOptions(
+      PostProcess postprocess,
+      bool keepOutput,
+      Duration ttl,
+      Priority priority,
+      String requestId,
+      Duration timeout) {
+    assert(postprocess == null || !keepOutput,
+        "An output can't be both kept and post-processed");
+    return <String, dynamic>{
+      if (postprocess != null) "postprocess": postprocess.toMap(),
+      if (keepOutput) "keepOutput": true,
+      if (keepOutput) "ttlMillis": ttl.inMilliseconds,
+      if (priority != Priority.NORMAL) "priority": describeEnum(priority),
+      if (requestId != null) "requestId": requestId,
+      if (timeout != null) "timeoutMillis": timeout.inMilliseconds,
+    };
+  }
+
+  /// Runs the forward function of the model with Tensor [inputs] over the
+  /// binary tensor channel
+  ///
+  /// This is faster than [forwardList] for large inputs, since the data is sent
+  /// as raw bytes, but it only works for models that return a Tensor, or a
+  /// tuple or list of Tensors
+  Future<List<OutputTensor>> forwardTensors(List<TensorValue> inputs) {
+    return TensorChannel.run(_index, "forward", inputs);
+  }
+
+  /// Runs the [methodName] of the Module with Tensor [inputs] over the binary
+  /// tensor channel, see [forwardTensors]
+  Future<List<OutputTensor>> runMethodTensors(
+      String methodName, List<TensorValue> inputs) {
+    return TensorChannel.run(_index, methodName, inputs);
+  }
+
+  /// Turns on the batching of the [forward] calls of this [Model]
+  ///
+  /// The [forward] calls with a [TensorValue], [ImageTensor], [RawImageTensor]
+  /// or [YuvImageTensor] input that are made within [maxWaitMicros] of each other, up to [maxBatchSize] of them,
+  /// are concatenated along dim 0 and run as a single forward, then the output
+  /// is split back along dim 0 for each call. The model must treat dim 0 as the
+  /// batch dimension. A [maxBatchSize] of 1 turns the batching off. The calls
+  /// with a [PostProcess], a [Priority] other than NORMAL, a request id or a
+  /// timeout are not batched
+  ///
+  /// A larger [maxWaitMicros] gives larger batches and more throughput, at the
+  /// cost of latency, use [batchingStats] to see both
+  Future<void> configureBatching(
+      {@required int maxBatchSize, int maxWaitMicros = 2000}) async {
+    await _channel.invokeMethod('configureBatching', <String, int>{
+      "index": _index,
+      "maxBatchSize": maxBatchSize,
+      "maxWaitMicros": maxWaitMicros,
+    });
+  }
+
+  /// Returns the number of batches and calls run, the mean batch size and the
+  /// latency percentiles of the batched calls, or null if batching is off
+  ///
+  /// When [reset] is true the stats are cleared after being read
+  Future<Map<dynamic, dynamic>> batchingStats({bool reset = false}) async {
+    return await _channel.invokeMethod('getBatchingStats',
+        <String, dynamic>{"index": _index, "reset": reset});
+  }
+
+  /// Caches the outputs of this [Model], up to [maxBytes], for a model that
+  /// always returns the same output for the same input, a [maxBytes] of 0
+  /// removes the cache
+  ///
+  /// The [forward], [forwardList], [runMethod] and [runMethodList] calls are
+  /// keyed by a hash of the method name, the data, dtype and shape of the
+  /// inputs and the [PostProcess], a repeated call is answered from the cache
+  /// without converting the inputs or running the model. The least recently
+  /// used outputs are evicted to stay under [maxBytes]. The calls with
+  /// `keepOutput` or a [TensorHandle] input are never cached, and no call is
+  /// batched while the cache is on. The cache is dropped when the model is
+  /// disposed, or loaded again after an eviction
+  Future<void> configureResultCache({@required int maxBytes}) async {
+    await _channel.invokeMethod('configureResultCache',
+        <String, int>{"index": _index, "maxBytes": maxBytes});
+  }
+
+  /// Returns the number of entries of the result cache and the bytes they
+  /// hold, the hits, misses, hit rate, evictions and invalidations, or null if
+  /// the model has no cache
+  ///
+  /// When [clear] is true the cached outputs are dropped after being counted
+  Future<Map<dynamic, dynamic>> resultCacheStats({bool clear = false}) async {
+    return await _channel.invokeMethod('getResultCacheStats',
+        <String, dynamic>{"index": _index, "clear": clear});
+  }
+
+  /// Opens an [InferenceStream] on this [Model], for live camera inference
+  ///
+  /// At most [capacity] frames wait for the model, when a new frame comes in
+  /// while the queue is full, a frame is dropped according to [dropPolicy].
+  /// The default keeps only the newest frame. The [postprocess] is applied to
+  /// the output of every frame, and the frames run with the given [priority]
+  Future<InferenceStream> openStream(
+      {String methodName = "forward",
+      int capacity = 1,
+      DropPolicy dropPolicy = DropPolicy.DROP_OLDEST,
+      PostProcess postprocess,
+      Priority priority = Priority.NORMAL}) {
+    return InferenceStream.open(_index,
+        methodName: methodName,
+        capacity: capacity,
+        dropPolicy: dropPolicy,
+        postprocess: postprocess,
+        priority: priority);
+  }
+
+  /// Generates the tokens following the prompt [tokens], for a sequence model
+  /// exported with a step method
+  ///
+  /// The loop runs on the native side, so a whole sequence takes a single call.
+  /// Each step runs [methodName] with the tokens as an INT64 [1, n] Tensor,
+  /// followed by [inputs] on the first step. When the step returns a tuple,
+  /// its first element is the logits and the rest is the state (like the past
+  /// keys and values) passed after the new token to the next step. When it
+  /// returns a Tensor, that is the logits, and the next step gets the whole
+  /// sequence and [inputs] again. The logits must be FLOAT32, they are read at
+  /// the last position
+  ///
+  /// The tokens are picked greedily with the default [temperature] of 0,
+  /// otherwise they are drawn from the [topK] most likely tokens (0 for all)
+  /// and the most likely tokens adding up to [topP]. The generation ends after
+  /// [maxTokens] tokens or on one of the [stopTokens], which is included.
+  /// It runs on the worker of the model, the other calls to the model wait
+  /// for it to end. Once the generation runs, a cancel with its [requestId] or
+  /// its [timeout] fails it at the next step, [Generation.stop] ends it with
+  /// the tokens generated so far
+  ///
+  /// Sample usage
+  /// ```
+  /// Generation generation = model.generate(tokens: prompt, maxTokens: 64,
+  ///     stopTokens: [eos], temperature: 0.8, topP: 0.9);
+  /// generation.tokens.listen((token) => print(vocab[token]));
+  /// GenerationResult result = await generation.result;
+  /// ```
+  Generation generate(
+      {String methodName = "forward",
+      @required List<int> tokens,
+      List<IValue> inputs = const [],
+      @required int maxTokens,
+      List<int> stopTokens = const [],
+      double temperature = 0,
+      int topK = 0,
+      double topP = 1,
+      int seed,
+      Priority priority = Priority.NORMAL,
+      String requestId,
+      Duration timeout}) {
+    return Generation.start(_index,
+        methodName: methodName,
+        tokens: tokens,
+        inputs: inputs,
+        maxTokens: maxTokens,
+        stopTokens: stopTokens,
+        temperature: temperature,
+        topK: topK,
+        topP: topP,
+        seed: seed,
+        priority: priority,
+        requestId: requestId,
+        timeout: timeout);
+  }
+
+  /// Runs [methodName] of the model on [inputs], streaming the Tensors of the
+  /// output larger than [chunkBytes] instead of returning them
+  ///
+  /// Large outputs like masks, depth maps or upscaled images are sent in
+  /// chunks of whole rows as soon as they are copied, so the rows can be used
+  /// before the whole Tensor arrives, and neither side holds a second copy of
+  /// the whole Tensor in the channel. The output completes with a
+  /// [ChunkedTensor] in place of each streamed Tensor, after all the chunks
+  ///
+  /// Sample usage
+  /// ```
+  /// ChunkedOutput call = model.forwardChunked([input]);
+  /// call.chunks.listen((chunk) => mask.setAll(chunk.offset, chunk.data));
+  /// await call.output;
+  /// ```
+  ChunkedOutput forwardChunked(List<IValue> inputs,
+      {String methodName = "forward",
+      int chunkBytes = 1024 * 1024,
+      Priority priority = Priority.NORMAL,
+      String requestId,
+      Duration timeout}) {
+    return ChunkedOutput.start(_index,
+        methodName: methodName,
+        inputs: inputs,
+        chunkBytes: chunkBytes,
+        priority: priority,
+        requestId: requestId,
+        timeout: timeout);
+  }
+
+  /// Sets the number of intra-op threads PyTorch uses for the calls of this
+  /// [Model], 0 for the default
+  ///
+  /// PyTorch has a single intra-op thread pool for the whole app, its size is
+  /// changed before each call of a model with a different number, so a
+  /// background model can be given fewer threads than an interactive one. The
+  /// models running at the same time share the number set last
+  Future<void> setNumThreads(int numThreads) async {
+    await _channel.invokeMethod('setNumThreads',
+        <String, int>{"index": _index, "numThreads": numThreads});
+  }
+
+  /// Returns the number of calls waiting or running on this [Model]
+  ///
+  /// The calls on a model are run one after the other on a background thread,
+  /// a growing queue depth means that the calls are made faster than the model
+  /// can run them
+  Future<int> queueDepth() async {
+    return await _channel
+        .invokeMethod('getQueueDepth', <String, int>{"index": _index});
   }
 
   /// Disposes and frees the resources occupied by the [Model]
@@ -97,10 +497,14 @@ class Model {
   /// on the Native side won't take place unless dispose is called from the
   /// Flutter end
   ///
+  /// The calls already sent to the model still complete, the model is
+  /// destroyed once they are done, and its index can be given to the next
+  /// model that is loaded
+  ///
   /// NOTE: Once dispose is called, the model object should not be used anymore
   Future<bool> dispose() async {
     return await _channel
-        .invokeMethod('closeModel', <String, int>{"_index": _index});
+        .invokeMethod('closeModel', <String, int>{"index": _index});
   }
 
 //  /// predicts abstract number input
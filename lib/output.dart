@@ -0,0 +1,99 @@
+import 'dart:typed_data';
+
+import 'package:pytorch_flutter/chunked_output.dart';
+import 'package:pytorch_flutter/dtypes.dart';
+import 'package:pytorch_flutter/postprocess.dart';
+import 'package:pytorch_flutter/tensor_handle.dart';
+
+/// [OutputTensor] represents a Tensor returned by the model
+///
+/// The [data] is a typed list of the same type as the Tensor
+///
+/// Java -> Dart
+/// UINT8 -> Uint8List
+/// INT8 -> Int8List
+/// INT32 -> Int32List
+/// FLOAT32 -> Float32List
+/// INT64 -> Int64List
+/// FLOAT64 -> Float64List
+class OutputTensor {
+  final TensorType dtype;
+  final List<int> shape;
+  final List data;
+
+  OutputTensor(this.dtype, this.shape, this.data);
+
+  /// Creates the [OutputTensor] from the map sent by the native code
+  factory OutputTensor.fromMap(Map map) {
+    TensorType dtype =
+        TensorType.values.firstWhere((e) => e.inString == map["dtype"]);
+    List<int> shape = map["shape"];
+    var data = map["data"];
+
+    if (map["raw"] == true) {
+      // large Tensors are sent as raw bytes in the native byte order
+      return OutputTensor.fromBytes(dtype, shape, data);
+    } else if (dtype == TensorType.INT8) {
+      Uint8List bytes = data;
+      data = bytes.buffer.asInt8List(bytes.offsetInBytes, bytes.length);
+    }
+
+    return OutputTensor(dtype, shape, data);
+  }
+
+  /// Creates the [OutputTensor] from the raw [bytes] of the Tensor data, the
+  /// bytes are copied to an aligned buffer before viewing them as a typed list
+  factory OutputTensor.fromBytes(
+      TensorType dtype, List<int> shape, Uint8List bytes) {
+    ByteBuffer buffer = Uint8List.fromList(bytes).buffer;
+    return OutputTensor(dtype, shape, _viewAs(dtype, buffer));
+  }
+
+  static List _viewAs(TensorType dtype, ByteBuffer buffer) {
+    switch (dtype) {
+      case TensorType.UINT8:
+        return buffer.asUint8List();
+      case TensorType.INT8:
+        return buffer.asInt8List();
+      case TensorType.INT32:
+        return buffer.asInt32List();
+      case TensorType.FLOAT32:
+        return buffer.asFloat32List();
+      case TensorType.INT64:
+        return buffer.asInt64List();
+      case TensorType.FLOAT64:
+        return buffer.asFloat64List();
+    }
+    throw ArgumentError("Unknown dtype: $dtype");
+  }
+
+  @override
+  String toString() => "OutputTensor(dtype: ${dtype.inString}, shape: $shape)";
+}
+
+/// Converts the output received from the native code
+///
+/// The Tensors in the output are converted to [OutputTensor], tuples and lists
+/// become [List], dicts become [Map] and the rest are returned as they are. The
+/// results of a [PostProcess] are converted to [ScoredIndices] or [Detections]
+/// and the kept outputs to [TensorHandle], the streamed Tensors to
+/// [ChunkedTensor]
+dynamic decodeOutput(dynamic output) {
+  if (output is Map) {
+    if (output["class_type"] == "Tensor") {
+      return OutputTensor.fromMap(output);
+    } else if (output["class_type"] == "ScoredIndices") {
+      return ScoredIndices.fromMap(output);
+    } else if (output["class_type"] == "Detections") {
+      return Detections.fromMap(output);
+    } else if (output["class_type"] == "TensorHandle") {
+      return TensorHandle.fromMap(output);
+    } else if (output["class_type"] == "ChunkedTensor") {
+      return ChunkedTensor.fromMap(output);
+    }
+    return output.map((key, value) => MapEntry(key, decodeOutput(value)));
+  } else if (output is List && output is! TypedData) {
+    return output.map(decodeOutput).toList();
+  }
+  return output;
+}
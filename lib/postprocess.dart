@@ -0,0 +1,157 @@
+import 'dart:typed_data';
+
+import 'package:flutter/foundation.dart';
+
+/// The function the scores go through before being compared and returned
+enum Activation {
+  NONE,
+  SOFTMAX,
+  SIGMOID,
+}
+
+/// [PostProcess] reduces the output Tensor of a model to a small result on the
+/// native side, so only that result is sent back instead of the full Tensor
+///
+/// It runs on a FLOAT32 Tensor output, or on the Tensor at [outputIndex] of a
+/// tuple or list output. The classification ops work on each row of the last
+/// dimension and return [ScoredIndices], [nms] returns [Detections]
+///
+/// Sample usage
+/// ```
+/// ScoredIndices top5 = await model.forward(input,
+///     postprocess: PostProcess.topK(5, activation: Activation.SOFTMAX));
+/// ```
+class PostProcess {
+  final String op;
+  final Activation activation;
+  final int outputIndex;
+  final Map<String, dynamic> _options;
+
+  PostProcess._internal(this.op, this.activation, this.outputIndex,
+      [this._options = const {}]);
+
+  /// The best class of each row, with its score
+  factory PostProcess.argmax(
+      {Activation activation = Activation.NONE, int outputIndex = 0}) {
+    return PostProcess._internal("argmax", activation, outputIndex);
+  }
+
+  /// The [k] best classes of each row, sorted by decreasing score
+  factory PostProcess.topK(int k,
+      {Activation activation = Activation.NONE, int outputIndex = 0}) {
+    return PostProcess._internal("topk", activation, outputIndex, {"k": k});
+  }
+
+  /// Every class of each row with a score of at least [threshold], for the
+  /// multi-label classifiers
+  factory PostProcess.threshold(double threshold,
+      {Activation activation = Activation.NONE, int outputIndex = 0}) {
+    return PostProcess._internal(
+        "threshold", activation, outputIndex, {"threshold": threshold});
+  }
+
+  /// The boxes of a YOLO style detector left after the non maximum suppression
+  ///
+  /// Each box of the output is its 4 coordinates, its objectness score if
+  /// [objectness] is true, then the score of each class, the output is
+  /// [batch, boxes, values], or [batch, values, boxes] if [transposed] (like
+  /// YOLOv8). The coordinates are center x, center y, width, height unless
+  /// [centerBoxes] is false, in which case they are x1, y1, x2, y2. The score
+  /// of a box is the best class score times the objectness, the boxes below
+  /// [scoreThreshold] are dropped, and a box is suppressed by a better box of
+  /// the same class, or of any class if [classAware] is false, that overlaps
+  /// it by more than [iouThreshold]
+  factory PostProcess.nms(
+      {double iouThreshold = 0.45,
+      double scoreThreshold = 0.25,
+      int maxDetections = 100,
+      bool centerBoxes = true,
+      bool objectness = true,
+      bool classAware = true,
+      bool transposed = false,
+      Activation activation = Activation.NONE,
+      int outputIndex = 0}) {
+    assert(activation != Activation.SOFTMAX,
+        "The scores of nms can only go through a sigmoid");
+    return PostProcess._internal("nms", activation, outputIndex, {
+      "iouThreshold": iouThreshold,
+      "scoreThreshold": scoreThreshold,
+      "maxDetections": maxDetections,
+      "boxFormat": centerBoxes ? "cxcywh" : "xyxy",
+      "objectness": objectness,
+      "classAware": classAware,
+      "transposed": transposed,
+    });
+  }
+
+  // returns a representation of this class
+  Map<String, dynamic> toMap() {
+    return <String, dynamic>{
+      "op": op,
+      "activation": describeEnum(activation),
+      "outputIndex": outputIndex,
+      ..._options,
+    };
+  }
+}
+
+/// [ScoredIndices] is the result of [PostProcess.argmax], [PostProcess.topK]
+/// and [PostProcess.threshold]
+///
+/// The entries of all the rows are in [indices] and [scores], those of row r
+/// are in the range [rowSplits[r], rowSplits[r + 1])
+class ScoredIndices {
+  final Int32List indices;
+  final Float32List scores;
+  final Int32List rowSplits;
+
+  ScoredIndices(this.indices, this.scores, this.rowSplits);
+
+  factory ScoredIndices.fromMap(Map map) {
+    return ScoredIndices(
+        map["indices"], _floatsOf(map["scores"]), map["rowSplits"]);
+  }
+
+  int get rows => rowSplits.length - 1;
+
+  /// The class indices of [row]
+  List<int> indicesOf(int row) =>
+      indices.sublist(rowSplits[row], rowSplits[row + 1]);
+
+  /// The scores of [row]
+  List<double> scoresOf(int row) =>
+      scores.sublist(rowSplits[row], rowSplits[row + 1]);
+
+  @override
+  String toString() => "ScoredIndices(rows: $rows, count: ${indices.length})";
+}
+
+/// [Detections] is the result of [PostProcess.nms]
+///
+/// The boxes are x1, y1, x2, y2, 4 values per box in [boxes], in the
+/// coordinates of the model input. The boxes of image i of the batch are in
+/// the range [rowSplits[i], rowSplits[i + 1])
+class Detections {
+  final Float32List boxes;
+  final Float32List scores;
+  final Int32List classes;
+  final Int32List rowSplits;
+
+  Detections(this.boxes, this.scores, this.classes, this.rowSplits);
+
+  factory Detections.fromMap(Map map) {
+    return Detections(_floatsOf(map["boxes"]), _floatsOf(map["scores"]),
+        map["classes"], map["rowSplits"]);
+  }
+
+  /// The number of boxes of all the images
+  int get length => scores.length;
+
+  @override
+  String toString() => "Detections(length: $length)";
+}
+
+// the floats are sent as their raw bytes in the native byte order, the codec
+// has no Float32List, they are copied to an aligned buffer before viewing them
+Float32List _floatsOf(Uint8List bytes) =>
+    Uint8List.fromList(bytes).buffer.asFloat32List();
@@ -0,0 +1,78 @@
+import 'dart:typed_data';
+
+import 'package:flutter/foundation.dart';
+import 'package:pytorch_flutter/dtypes.dart';
+import 'package:pytorch_flutter/model.dart';
+
+/// [ModelSpec] describes a model to load with [Model.preload]
+///
+/// Either [assetPath] or [filePath] must be set. When [warmUpRuns] is more
+/// than 0, the model is run that many times on an input of zeros of the given
+/// [warmUpShape] and [warmUpDtype] before being handed out, so that the first
+/// real call already runs at the steady state latency, each of the [replicas]
+/// of the model is warmed up
+class ModelSpec {
+  final String assetPath;
+  final String filePath;
+  final int estimatedBytes;
+  final bool verifyCache;
+  final int replicas;
+
+  final List<int> warmUpShape;
+  final TensorType warmUpDtype;
+  final int warmUpRuns;
+  final String warmUpMethod;
+
+  ModelSpec(
+      {this.assetPath,
+      this.filePath,
+      this.estimatedBytes,
+      this.verifyCache = false,
+      this.replicas = 1,
+      this.warmUpShape,
+      this.warmUpDtype = TensorType.FLOAT32,
+      this.warmUpRuns = 0,
+      this.warmUpMethod = "forward"})
+      : assert((assetPath == null) != (filePath == null),
+            "Exactly one of assetPath and filePath must be given"),
+        assert(warmUpRuns == 0 || warmUpShape != null,
+            "warmUpShape is required to run warm-up passes");
+
+  // returns a representation of this class
+  Map<String, dynamic> toMap() {
+    return <String, dynamic>{
+      if (assetPath != null) "assetPath": assetPath,
+      if (filePath != null) "filePath": filePath,
+      "estimatedBytes": estimatedBytes,
+      "verifyCache": verifyCache,
+      "replicas": replicas,
+      if (warmUpRuns > 0)
+        "warmUp": <String, dynamic>{
+          "shape": Int64List.fromList(warmUpShape),
+          "dtype": warmUpDtype.inString,
+          "runs": warmUpRuns,
+          "methodName": warmUpMethod,
+        },
+    };
+  }
+}
+
+/// [PreloadedModel] reports a model loaded by [Model.preload]
+///
+/// [position] is the position of its [ModelSpec] in the list given to
+/// [Model.preload]. When the model could not be loaded or warmed up, [model]
+/// is null and [error] holds the reason
+class PreloadedModel {
+  final int position;
+  final Model model;
+  final Duration loadTime;
+  final Duration warmUpTime;
+  final String error;
+
+  PreloadedModel(
+      {@required this.position,
+      this.model,
+      this.loadTime,
+      this.warmUpTime,
+      this.error});
+}
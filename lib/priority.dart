@@ -0,0 +1,15 @@
+/// The priority class of a model call
+///
+/// A free worker runs the waiting call of the highest priority, and between
+/// models with calls of the same priority, the model served the longest ago.
+/// The [BACKGROUND] calls only use some of the workers, see
+/// `PyTorchFlutter.configureScheduler`, so they can't hold up the
+/// [INTERACTIVE] calls. A running call is never interrupted
+enum Priority {
+  /// the calls a user is waiting on, like the result of a tap
+  INTERACTIVE,
+  NORMAL,
+
+  /// the jobs nobody is waiting on, like indexing a photo library
+  BACKGROUND,
+}
@@ -9,6 +9,90 @@ import 'package:pytorch_flutter/model.dart';
 
 class PyTorchFlutter {
   static const MethodChannel _channel = MethodChannel("pytorch_flutter");
+  static const EventChannel _stats = EventChannel("pytorch_flutter/stats");
+
+  /// Returns the metrics of the model calls, per model index and method name
+  ///
+  /// For each method: the number of calls, the errors by code, the bytes in
+  /// and out, and the latency percentiles of each stage of the calls, `queue`,
+  /// `decode`, `convert`, `image`, `run`, `encode` and `total`. The queue
+  /// depths, the calls waiting and running per [Priority] under "scheduler",
+  /// the result cache stats of each model under "resultCaches",
+  /// [memoryStats] and [modelCacheStats] are included as well
+  ///
+  /// When [reset] is true the metrics are cleared after being read
+  static Future<Map> stats({bool reset = false}) async {
+    return await _channel.invokeMethod("getStats", {"reset": reset});
+  }
+
+  /// Clears the metrics returned by [stats]
+  static Future<void> resetStats() async {
+    await _channel.invokeMethod("resetStats");
+  }
+
+  /// Sends the [stats] every [interval] while the stream is listened to
+  ///
+  /// When [reset] is true the metrics are cleared after each event, so every
+  /// event only holds the calls of its interval
+  static Stream<Map> statsStream(
+      {Duration interval = const Duration(seconds: 1), bool reset = false}) {
+    return _stats.receiveBroadcastStream({
+      "intervalMillis": interval.inMilliseconds,
+      "reset": reset
+    }).map((event) => event as Map);
+  }
+
+  /// Sets the maximum number of models that can run in parallel
+  ///
+  /// The calls on the same model always run one at a time, this only limits
+  /// how many different models can run at the same time. At most
+  /// [maxBackgroundThreads] of them run BACKGROUND calls, all but one by
+  /// default, so there is always a thread left for the other calls, see
+  /// [Priority]
+  static Future<int> configureScheduler(
+      {int maxThreads, int maxBackgroundThreads}) async {
+    return await _channel.invokeMethod("configureScheduler", {
+      "maxThreads": maxThreads,
+      if (maxBackgroundThreads != null)
+        "maxBackgroundThreads": maxBackgroundThreads,
+    });
+  }
+
+  /// Cancels the model call made with the given [requestId]
+  ///
+  /// A call still waiting for its model fails right away with
+  /// ERROR_REQUEST_CANCELLED, without its inputs being converted, a running
+  /// call fails before its model runs. Returns false if no call with this id
+  /// is waiting or running. The calls cancelled and expired are counted under
+  /// "requests" in [stats]
+  static Future<bool> cancel(String requestId) async {
+    return await _channel.invokeMethod("cancel", {"requestId": requestId});
+  }
+
+  /// Sets the native memory the loaded models can use, in bytes, 0 removes
+  /// the budget
+  ///
+  /// When the models go over the budget, the least recently used models that
+  /// are not running are unloaded, and loaded again from their file the next
+  /// time they are used. Each model counts for the `estimatedBytes` given when
+  /// loading it, or the size of its file
+  static Future<Map> setMemoryBudget(int bytes) async {
+    return await _channel.invokeMethod("setMemoryBudget", {"bytes": bytes});
+  }
+
+  /// Returns the number of models, the memory used by the loaded ones, the
+  /// budget, and the number of evictions and reloads so far. The outputs kept
+  /// as [TensorHandle]s are under "handles", with the bytes they hold
+  static Future<Map> memoryStats() async {
+    return await _channel.invokeMethod("getMemoryStats");
+  }
+
+  /// Returns the number and size of the models extracted from the assets, and
+  /// the time taken by the [Model.fromAsset] calls, `coldStart` for the ones
+  /// that had to extract the asset and `warmStart` for the others
+  static Future<Map> modelCacheStats() async {
+    return await _channel.invokeMethod("getModelCacheStats");
+  }
 
 //  /// Sets pytorch model path and returns Model
 //  static Future<Model> loadModel(String path) async {
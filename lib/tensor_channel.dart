@@ -0,0 +1,166 @@
+import 'dart:convert';
+import 'dart:typed_data';
+
+import 'package:flutter/services.dart';
+import 'package:pytorch_flutter/dtypes.dart';
+import 'package:pytorch_flutter/ivalue.dart';
+import 'package:pytorch_flutter/output.dart';
+
+/// The binary channel for Tensor inputs
+///
+/// Instead of sending the inputs as maps through the [StandardMessageCodec],
+/// the [TensorValue]s are packed as a small header followed by their raw
+/// bytes, which the native end copies straight into the Tensor buffers. The
+/// layout of the messages is documented in `TensorMessageCodec.java`
+class TensorChannel {
+  static const BasicMessageChannel<ByteData> _channel =
+      BasicMessageChannel<ByteData>('pytorch_flutter/tensor', BinaryCodec());
+
+  static const int _version = 1;
+  static const int _methodForward = 0;
+  static const int _methodRunMethod = 1;
+  static const int _statusOk = 0;
+
+  /// Runs [methodName] of the model at [index] with the Tensor [inputs]
+  ///
+  /// Only models that return a Tensor, or a tuple or list of Tensors, can be
+  /// run this way
+  static Future<List<OutputTensor>> run(
+      int index, String methodName, List<TensorValue> inputs) async {
+    ByteData reply =
+        await _channel.send(_encodeRequest(index, methodName, inputs));
+    return _decodeReply(reply);
+  }
+
+  static ByteData _encodeRequest(
+      int index, String methodName, List<TensorValue> inputs) {
+    bool forward = methodName == "forward";
+    List<int> name = forward ? <int>[] : utf8.encode(methodName);
+    List<Uint8List> data =
+        inputs.map((e) => _bytesOf(e.data, e.dtype)).toList();
+
+    int headerSize = 20 + name.length;
+    for (TensorValue input in inputs) {
+      headerSize += 8 + 8 * input.shape.length + 16;
+    }
+    int dataStart = _align8(headerSize);
+    int dataSize = data.fold(0, (size, bytes) => size + _align8(bytes.length));
+
+    Uint8List message = Uint8List(dataStart + dataSize);
+    ByteData header = ByteData.view(message.buffer);
+    int position = 0;
+    void putInt32(int value) {
+      header.setInt32(position, value, Endian.little);
+      position += 4;
+    }
+
+    void putInt64(int value) {
+      header.setInt64(position, value, Endian.little);
+      position += 8;
+    }
+
+    putInt32(_version);
+    putInt32(index);
+    putInt32(forward ? _methodForward : _methodRunMethod);
+    putInt32(name.length);
+    message.setAll(position, name);
+    position += name.length;
+    putInt32(inputs.length);
+
+    int offset = 0;
+    for (int i = 0; i < inputs.length; i++) {
+      putInt32(inputs[i].dtype.index);
+      putInt32(inputs[i].shape.length);
+      inputs[i].shape.forEach(putInt64);
+      putInt64(offset);
+      putInt64(data[i].length);
+      message.setAll(dataStart + offset, data[i]);
+      offset += _align8(data[i].length);
+    }
+
+    return ByteData.view(message.buffer);
+  }
+
+  static List<OutputTensor> _decodeReply(ByteData reply) {
+    int position = 0;
+    int getInt32() {
+      int value = reply.getInt32(position, Endian.little);
+      position += 4;
+      return value;
+    }
+
+    int getInt64() {
+      int value = reply.getInt64(position, Endian.little);
+      position += 8;
+      return value;
+    }
+
+    String getString() {
+      int length = getInt32();
+      String value = utf8.decode(reply.buffer
+          .asUint8List(reply.offsetInBytes + position, length));
+      position += length;
+      return value;
+    }
+
+    if (getInt32() != _statusOk) {
+      throw PlatformException(code: getString(), message: getString());
+    }
+
+    int count = getInt32();
+    List<OutputTensor> outputs = <OutputTensor>[];
+    for (int i = 0; i < count; i++) {
+      TensorType dtype = TensorType.values[getInt32()];
+      int rank = getInt32();
+      List<int> shape = List<int>.generate(rank, (_) => getInt64());
+      int length = getInt64();
+      Uint8List bytes =
+          reply.buffer.asUint8List(reply.offsetInBytes + position, length);
+      outputs.add(OutputTensor.fromBytes(dtype, shape, bytes));
+      position = _align8(position + length);
+    }
+    return outputs;
+  }
+
+  /// Returns the little endian bytes of [data] as the Tensor type [dtype]
+  ///
+  /// When the data is already a typed list of the [dtype] its bytes are used
+  /// as they are, otherwise the values are converted first
+  static Uint8List _bytesOf(TypedData data, TensorType dtype) {
+    List values = data as List;
+    TypedData typed;
+    switch (dtype) {
+      case TensorType.UINT8:
+      case TensorType.INT8:
+        typed = data is Uint8List || data is Int8List
+            ? data
+            : Uint8List.fromList(values.map((e) => e.toInt() as int).toList());
+        break;
+      case TensorType.INT32:
+        typed = data is Int32List
+            ? data
+            : Int32List.fromList(values.map((e) => e.toInt() as int).toList());
+        break;
+      case TensorType.FLOAT32:
+        typed = data is Float32List
+            ? data
+            : Float32List.fromList(
+                values.map((e) => e.toDouble() as double).toList());
+        break;
+      case TensorType.INT64:
+        typed = data is Int64List
+            ? data
+            : Int64List.fromList(values.map((e) => e.toInt() as int).toList());
+        break;
+      case TensorType.FLOAT64:
+        typed = data is Float64List
+            ? data
+            : Float64List.fromList(
+                values.map((e) => e.toDouble() as double).toList());
+        break;
+    }
+    return typed.buffer.asUint8List(typed.offsetInBytes, typed.lengthInBytes);
+  }
+
+  static int _align8(int position) => (position + 7) & ~7;
+}
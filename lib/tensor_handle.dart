@@ -0,0 +1,65 @@
+import 'package:flutter/services.dart';
+import 'package:pytorch_flutter/dtypes.dart';
+import 'package:pytorch_flutter/ivalue.dart';
+import 'package:pytorch_flutter/output.dart';
+
+/// [TensorHandle] refers to an output of a model kept on the native side
+///
+/// It is returned instead of the output when a model is called with
+/// `keepOutput: true`, and can be passed as an input to the next call, like
+/// any other [IValue], so the intermediate outputs of a pipeline (encoder ->
+/// decoder, backbone -> heads) are never sent to Dart and back. The elements
+/// of a tuple or list output are each kept under their own handle
+///
+/// A handle is released with [release], or once it has not been used for the
+/// ttl it was kept with. The memory held by the handles is reported in
+/// `PytorchFlutter.memoryStats()` under "handles"
+class TensorHandle extends IValue {
+  static const MethodChannel _channel = const MethodChannel('pytorch_flutter');
+
+  /// the dtype and shape of the output, null if it is not a Tensor
+  final TensorType dtype;
+  final List<int> shape;
+
+  /// the bytes of the Tensors held by the handle
+  final int bytes;
+
+  TensorHandle._internal(int handle, this.dtype, this.shape, this.bytes)
+      : super(handle);
+
+  /// Creates the [TensorHandle] from the map sent by the native code
+  factory TensorHandle.fromMap(Map map) {
+    TensorType dtype = map["dtype"] == null
+        ? null
+        : TensorType.values.firstWhere((e) => e.inString == map["dtype"]);
+    return TensorHandle._internal(
+        map["handle"], dtype, map["shape"], map["bytes"]);
+  }
+
+  int get handle => data;
+
+  /// Sends the value of the output to Dart, decoded like the output of
+  /// [Model.forward], the handle is released afterwards if [release] is true
+  Future<dynamic> fetch({bool release = false}) async {
+    final output = await _channel.invokeMethod("fetchHandle",
+        <String, dynamic>{"handle": handle, "release": release});
+    return decodeOutput(output);
+  }
+
+  /// Releases the output, the handle can't be used anymore
+  Future<void> release() async {
+    await releaseAll([this]);
+  }
+
+  /// Releases the outputs of all the [handles], returns the number of handles
+  /// that were still held
+  static Future<int> releaseAll(List<TensorHandle> handles) async {
+    return await _channel.invokeMethod("releaseHandles", <String, dynamic>{
+      "handles": handles.map((e) => e.handle).toList(),
+    });
+  }
+
+  @override
+  String toString() =>
+      "TensorHandle(handle: $handle, dtype: ${dtype?.inString}, shape: $shape)";
+}